@@ -12,6 +12,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.MissingNode;
 import com.jacamars.dsp.rtb.common.Campaign;
+import com.jacamars.dsp.rtb.common.CompiledPredicate;
 import com.jacamars.dsp.rtb.common.Configuration;
 import com.jacamars.dsp.rtb.common.Creative;
 import com.jacamars.dsp.rtb.common.Node;
@@ -50,6 +51,9 @@ public class CampaignProcessor implements Runnable {
 	/** The bid request that will be used by this processor object */
 	BidRequest br;
 
+	/** The predicates to test, null means all of the campaign's predicates */
+	CompiledPredicate[] predicates;
+
 	/**
 	 * The unique ID assigned to the bid response. This is probably not needed
 	 * TODO: Need to remove this
@@ -90,6 +94,14 @@ public class CampaignProcessor implements Runnable {
 			start();
 	}
 
+	/**
+	 * Test only these predicates of the campaign, the others were already satisfied by the targeting index.
+	 * @param predicates CompiledPredicate[]. The residual predicates of the campaign.
+	 */
+	public void setPredicates(CompiledPredicate[] predicates) {
+		this.predicates = predicates;
+	}
+
 	public void start() {
 //		me = new Thread(this);
 //		me.start();
@@ -141,10 +153,13 @@ public class CampaignProcessor implements Runnable {
 
 			Node n = null;
 			try {
-				for (int i = 0; i < camp.attributes.size(); i++) {
-					n = camp.attributes.get(i);
+				CompiledPredicate[] predicates = this.predicates;
+				if (predicates == null)
+					predicates = camp.getPredicates();
+				for (int i = 0; i < predicates.length; i++) {
+					n = predicates[i].getNode();
 
-					if (n.test(br,null,null,null,null,null,null) == false) {
+					if (predicates[i].test(br,null,null,null,null,null,null) == false) {
 						if (n.hierarchy == null || n.hierarchy.length()==0) {
 							probe.process(br.getExchange(), camp.adId, Probe.GLOBAL, Probe.SITE_OR_APP_DOMAIN);
 						} else {
@@ -3,7 +3,6 @@ package com.jacamars.dsp.rtb.bidder;
 import java.util.ArrayList;
 
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 
 import java.util.concurrent.*;
@@ -12,11 +11,8 @@ import com.jacamars.dsp.rtb.blocks.WeightedSelector;
 import com.jacamars.dsp.rtb.common.*;
 import com.jacamars.dsp.rtb.pojo.BidRequest;
 import com.jacamars.dsp.rtb.pojo.BidResponse;
-import com.jacamars.dsp.rtb.probe.Probe;
-import com.jacamars.dsp.rtb.tools.Performance;
 
 import edu.emory.mathcs.backport.java.util.Collections;
-import org.apache.commons.lang.mutable.MutableBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,9 +43,6 @@ public class CampaignSelector {
     //  Time high water mark in ms.
     public static volatile int highWaterMark = 100;
 
-    // Executor for handling creative attributes.
-    static ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
-
     /**
      * Empty private constructor.
      */
@@ -100,7 +93,8 @@ public class CampaignSelector {
             return null;
         }
 
-        if (Configuration.getInstance().getCampaignsList().size()==0) {
+        CampaignSnapshot snapshot = br.getSnapshot();
+        if (snapshot.campaigns.size()==0) {
             if (xtest)
                 logger.info("No campaigns are loaded");
             return null;
@@ -112,7 +106,7 @@ public class CampaignSelector {
         List<SelectedCreative> select = null;
         int kount = 0;
 
-        List<Campaign> list = Preshuffle.getInstance().getPreShuffledCampaignList();
+        List<Campaign> list = snapshot.getPreShuffledCampaignList();
 
         if (list == null) {
             logger.debug("No preshuffled campaigns lists");
@@ -124,45 +118,26 @@ public class CampaignSelector {
         List<SelectedCreative> candidates = new ArrayList<SelectedCreative>();
         boolean exchangeIsAdx = br.getExchange().equals("adx");
 
-        int nThreads = Configuration.concurrency;
-
-        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
-        int start, stop;
-        int howMany = list.size()/nThreads;
-        int remainder = list.size() % nThreads;
-
-        if (list.size() < Performance.getCores()) {
-            howMany = list.size();
-            remainder = 0;
-            nThreads = 1;
+        // Prune with the targeting index, unless we are explaining no bids, which needs every campaign tested.
+        TargetingIndex index = null;
+        String mode = Configuration.selection;
+        if (!Configuration.SELECTION_SCAN.equals(mode) && !xtest && !Configuration.getInstance().printNoBidReason) {
+            index = snapshot.index;
+            if (Configuration.SELECTION_BITSET.equals(mode))
+                list = index.candidates(index.eligible(br), list);
+            else
+                list = index.candidates(br, list);
+            if (list.size() == 0)
+                return null;
         }
 
-        List<SelectionWorker> workers = new ArrayList<SelectionWorker>();
-        start = 0;
-        MutableBoolean flag = new MutableBoolean(false);
-        for (int i=0;i<nThreads; i++) {
-            stop = start + howMany;
-            if (i==nThreads-1)
-                stop += remainder;
-            SelectionWorker w = new SelectionWorker(start, stop, list, br, exchangeIsAdx, flag, xtest);
-            start = stop;
-            executor.execute(w);
-            workers.add(w);
-        }
-
-        executor.shutdown();
-        if (!xtest && !executor.awaitTermination(50, TimeUnit.MILLISECONDS))
-          executor.shutdownNow();
-        else
-            executor.awaitTermination(50, TimeUnit.MILLISECONDS);
-
+        List<SelectionWorker> workers = SelectionEngine.getInstance().select(list, br, exchangeIsAdx, xtest, index);
         for (int i=0;i<workers.size();i++) {
             SelectionWorker w = workers.get(i);
             candidates.addAll(w.candidates);
-            frequencyCap = w.frequencyCap;
+            frequencyCap.addAll(w.frequencyCap);
         }
 
-
         xtime = System.currentTimeMillis() - xtime;
 
 
@@ -205,109 +180,3 @@ public class CampaignSelector {
     }
 
 }
-
-/**
- * A class that uses a slice of campaigns to find a match to the bid request.
- */
-class SelectionWorker implements Runnable {
-    int start = 0;
-    int stop = 0;
-    List<Campaign> list = new ArrayList<>();
-    BidRequest br;
-    int count;
-    boolean exchangeIsAdx;
-    volatile List<SelectedCreative> candidates = new ArrayList<SelectedCreative>();
-    static Logger logger = LoggerFactory.getLogger(CampaignSelector.class);
-    List<SelectedCreative> select;
-    List<FrequencyCap> frequencyCap  = new ArrayList<FrequencyCap>();
-    Map<String, String> capSpecs = new ConcurrentHashMap<String, String>();
-    MutableBoolean flag;
-    boolean test;
-
-    public SelectionWorker(int start, int stop, final List<Campaign>  list, final BidRequest br,
-                           final boolean exchangeIsAdx, MutableBoolean flag, boolean test) {
-
-        if (test) {
-            logger.info("WORKER: {} - {}",start,stop);
-        }
-
-        this.test = test;
-
-        this.start = start;
-        this.stop = stop;
-        for (int i=start;i<stop;i++) {
-            this.list.add(list.get(i));
-        }
-        this.exchangeIsAdx = exchangeIsAdx;
-        count = 0;
-        this.br = br;
-        this.flag = flag;
-
-    }
-
-    public void run() {
-        Campaign test;
-        long time = System.currentTimeMillis();
-
-        while (count < list.size() && !flag.booleanValue()){
-            try {
-                test = list.get(count);
-            } catch (Exception error) {
-                logger.info("Campaign was stale, in the selection list");
-                break;
-            }
-        
-            if (test.isAdx == exchangeIsAdx) {
-
-                if (test.isGoverned(br)) {
-                    if (Configuration.getInstance().printNoBidReason || this.test)
-                        logger.info("This campaign is governed: {}, spec: {}", test.adId, br.synthkey);
-                    try {
-                        CampaignProcessor.probe.process(br.getExchange(), test.adId, Probe.GLOBAL, Probe.FREQUENCY_GOVERNED);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                } else {
-                    CampaignProcessor p = new CampaignProcessor(test, br, null, null);
-                    p.run();
-
-                    select = p.getSelectedCreative();
-                    if (select != null && select.size() != 0) {
-                        if (test.isCapped(br, capSpecs)) {
-                            if (Configuration.getInstance().printNoBidReason || this.test)
-                                logger.info("This campaign is capped: {}, spec: {}", test.adId, capSpecs.get(test.adId));
-                            try {
-                                CampaignProcessor.probe.process(br.getExchange(), test.adId, Probe.GLOBAL, Probe.FREQUENCY_CAPPED);
-                            } catch (Exception error) {
-                                error.printStackTrace();
-                            }
-                        } else {
-                            if (test.frequencyCap != null) {
-                                FrequencyCap f = test.frequencyCap.copy();
-                                f.capKey = capSpecs.get(test.adId);
-                                frequencyCap.add(f);
-                            }
-
-                            for (int ii = 0; ii < select.size(); ii++) {
-                                candidates.add(select.get(ii));
-                            }
-                            if (!(br.multibid || test.weights == null)) {
-                                flag.setValue(true);
-                                break;
-                            }
-                        }
-                    }
-                }
-
-                if (!this.test && (System.currentTimeMillis() - time) > 50) {
-                   if (this.test)
-                        logger.info("WARNING, Worker: {}, stopped at: {} of {}",start,count,list.size());
-                    return;
-                }
-            }
-
-            count++;
-        }
-    }
-
-}
@@ -10,7 +10,6 @@ import java.util.List;
 import java.util.Map;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.jacamars.dsp.rtb.blocks.AwsCommander;
 import com.jacamars.dsp.rtb.blocks.LookingGlass;
@@ -232,11 +231,6 @@ public enum Controller {
     /* The configuration object used bu the controller */
     static Configuration config;
 
-    /**
-     * A factory object for making timnestamps
-     */
-    static final JsonNodeFactory factory = JsonNodeFactory.instance;
-
     static final ExchangeLogLevel requestLogLevel = ExchangeLogLevel.getInstance();
 
     static final Logger logger = LoggerFactory.getLogger(Controller.class);
@@ -879,43 +873,13 @@ public enum Controller {
 
     public List<Map> getBackPressure() {
         List<Map> bp = new ArrayList();
-        Map m = null;
-        /** The queue for posting responses on */
-        if (responseQueue != null) m = responseQueue.getBp();
-        if (m != null) bp.add(m);
-
-        /** Queue used to send wins */
-        if (winsQueue != null) m = winsQueue.getBp();
-        if (m != null) bp.add(m);
-
-        /** Queue used to send bids */
-        if (bidQueue != null) m = bidQueue.getBp();
-        if (m != null) bp.add(m);
-
-        /** Queue used to send nobid responses */
-        if (nobidQueue != null) m = nobidQueue.getBp();
-        if (m != null) bp.add(m);
-
-        /** Queue used for requests */
-        if (requestQueue != null) m = requestQueue.getBp();
-        if (m != null) bp.add(m);
-
-        /** Queue for sending log messages */
-        if (loggerQueue != null) m = loggerQueue.getBp();
-        if (m != null) bp.add(m);
-
-        /** Queue for sending clicks */
-        if (clicksQueue != null) m = clicksQueue.getBp();
-        if (m != null) bp.add(m);
-
-        /** Formatter for printing forensiqs messages */
-        if (forensiqsQueue != null) m = forensiqsQueue.getBp();
-        if (m != null) bp.add(m);
-
-        /** Queue for sending stats info */
-        if (perfQueue != null) m = perfQueue.getBp();
-        if (m != null) bp.add(m);
-
+        ZPublisher[] queues = { responseQueue, winsQueue, bidQueue, nobidQueue, requestQueue, request2Queue,
+                loggerQueue, clicksQueue, pixelsQueue, forensiqsQueue, perfQueue, reasonsQueue, videoeventsQueue,
+                postbackQueue, msspQueue };
+        for (ZPublisher q : queues) {
+            Map m = q == null ? null : q.getBp();
+            if (m != null) bp.add(m);
+        }
         return bp;
     }
 
@@ -1003,18 +967,9 @@ public enum Controller {
             if (original == null)
                 return false;
 
-            ObjectNode ext = (ObjectNode) original.get("ext");
-            if (ext != null) {
-                ext.put("timestamp", System.currentTimeMillis());
-                ext.put("exchange", br.getExchange());
-            } else {
-                ObjectNode child = factory.objectNode();
-                child.put("timestamp", System.currentTimeMillis());
-                child.put("exchange", br.getExchange());
-                original.set("ext", child);
-            }
-            original.put("logtype", "requests");
-            requestQueue.addString(original.toString());
+            // Serialized by the publisher, the pool must not refill the request while it is queued
+            br.retain();
+            requestQueue.addDeferred(new RequestLog(original, br.getExchange()));
         }
 
         return true;
@@ -1046,7 +1001,7 @@ public enum Controller {
      */
     public void sendNobid(NobidResponse nobid) {
         if (nobidQueue != null)
-            nobidQueue.add(nobid);
+            nobidQueue.addImmutable(nobid);
     }
 
     /**
@@ -1079,7 +1034,7 @@ public enum Controller {
     public void sendWin(String hash, String cost, String lat, String lon, String adId, String cridId, String pubId,
                         String image, String forward, String price, String adm, String adtype, String domain, String bidType) {
         if (winsQueue != null)
-            winsQueue.add(new WinObject(hash, cost, lat, lon, adId, cridId, pubId, image, forward, price, adm, adtype, domain, bidType));
+            winsQueue.addImmutable(new WinObject(hash, cost, lat, lon, adId, cridId, pubId, image, forward, price, adm, adtype, domain, bidType));
     }
 
     /**
@@ -1095,7 +1050,7 @@ public enum Controller {
             log.uid = uid;
             if (log.debug)
                 logger.info("Click record: {}",log);
-            clicksQueue.add(log);
+            clicksQueue.addImmutable(log);
         }
     }
 
@@ -1117,7 +1072,7 @@ public enum Controller {
             if (log.debug) {
                 logger.info("Pixel record: {}",log);
             }
-            pixelsQueue.add(log);
+            pixelsQueue.addImmutable(log);
         }
     }
 
@@ -1132,7 +1087,7 @@ public enum Controller {
             e.uid = uid;
             if (e.debug)
                 logger.info("Postback record {}",e);
-            postbackQueue.add(e);
+            postbackQueue.addImmutable(e);
         }
     }
 
@@ -1148,7 +1103,7 @@ public enum Controller {
             log.uid = uid;
             if (log.debug)
                 logger.info("Videoevent: {}", log);
-            videoeventsQueue.add(log);
+            videoeventsQueue.addImmutable(log);
         }
     }
 
@@ -1167,7 +1122,7 @@ public enum Controller {
     public void publishConvert(String target) {
         if (clicksQueue != null) {
             ConvertLog log = new ConvertLog(target);
-            clicksQueue.add(log);
+            clicksQueue.addImmutable(log);
         }
     }
 
@@ -0,0 +1,230 @@
+package com.jacamars.dsp.rtb.bidder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring of messages, preallocated, for any number of threads adding and the one thread of a ZPublisher
+ * taking them. A producer claims a sequence number while the ring has room, and stores its message in its slot. The
+ * consumer takes every message that is ready in one batch, and only waits, by its Wait strategy, when the ring is
+ * empty. Producers wake it only when it is waiting.
+ * <p>
+ * When the ring is full a producer counts it as backpressure and retries for up to offerMs, then drops the message
+ * and counts the drop. A slow sink then costs some messages, not the memory of an unbounded queue and the bidder.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public class MessageRing {
+
+    /**
+     * How the consumer waits for messages when the ring is empty.
+     */
+    public enum Wait {
+        /** On a lock's condition, signalled by the producer */
+        BLOCKING,
+        /** Parked, unparked by the producer */
+        PARKING,
+        /** Yielding the CPU in a loop, the least latency at the most CPU */
+        YIELDING
+    }
+
+    /** The longest the consumer waits before returning empty handed, so its loop can do housekeeping */
+    static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** The messages, null where there is none */
+    final AtomicReferenceArray<Object> slots;
+    final int mask;
+    /** The next sequence a producer claims */
+    final AtomicLong tail = new AtomicLong();
+    /** The next sequence the consumer takes */
+    volatile long head;
+
+    final Wait wait;
+    /** How long a producer retries a full ring, in ns */
+    final long offerNanos;
+    /** Set while the consumer waits */
+    volatile boolean waiting;
+    volatile Thread consumer;
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition notEmpty = lock.newCondition();
+
+    /** Messages dropped because the ring stayed full */
+    final AtomicLong drops = new AtomicLong();
+    /** Times a producer found the ring full */
+    final AtomicLong backpressure = new AtomicLong();
+
+    /**
+     * Create a ring.
+     * @param capacity int. The number of messages it holds, rounded up to a power of 2.
+     * @param wait Wait. How the consumer waits.
+     * @param offerMs long. How long a producer retries a full ring before dropping the message.
+     */
+    public MessageRing(int capacity, Wait wait, long offerMs) {
+        int n = 2;
+        while (n < capacity && n < (1 << 30))
+            n <<= 1;
+        slots = new AtomicReferenceArray<Object>(n);
+        mask = n - 1;
+        this.wait = wait;
+        offerNanos = TimeUnit.MILLISECONDS.toNanos(offerMs);
+    }
+
+    /**
+     * Add a message.
+     * @param msg Object. The message, null is ignored.
+     * @return boolean. Returns false if the ring stayed full and the message was dropped.
+     */
+    public boolean offer(Object msg) {
+        if (msg == null)
+            return false;
+        long deadline = 0;
+        boolean full = false;
+        while (true) {
+            long t = tail.get();
+            if (t - head < slots.length()) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    // The consumer cleared the slot before it moved head past it
+                    slots.set((int) t & mask, msg);
+                    if (waiting)
+                        wake();
+                    return true;
+                }
+                continue;
+            }
+            if (!full) {
+                full = true;
+                backpressure.incrementAndGet();
+                deadline = System.nanoTime() + offerNanos;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                drops.incrementAndGet();
+                return false;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Take the messages that are ready, waiting for one if there are none. Only the one consumer thread calls this.
+     * @param batch Object[]. Filled with the messages.
+     * @param max int. The most to take, no more than batch.length.
+     * @return int. The number taken, 0 if none came in a while.
+     */
+    public int take(Object[] batch, int max) {
+        int n = poll(batch, max);
+        if (n != 0)
+            return n;
+        await();
+        return poll(batch, max);
+    }
+
+    int poll(Object[] batch, int max) {
+        long h = head;
+        int n = 0;
+        while (n < max) {
+            int i = (int) h & mask;
+            Object msg = slots.get(i);
+            if (msg == null)
+                break;
+            slots.lazySet(i, null);
+            batch[n++] = msg;
+            h++;
+        }
+        if (n != 0)
+            head = h;
+        return n;
+    }
+
+    boolean ready() {
+        return slots.get((int) head & mask) != null;
+    }
+
+    void await() {
+        switch (wait) {
+            case YIELDING:
+                long deadline = System.nanoTime() + MAX_WAIT;
+                while (!ready() && System.nanoTime() - deadline < 0)
+                    Thread.yield();
+                break;
+            case PARKING:
+                consumer = Thread.currentThread();
+                waiting = true;
+                if (!ready())
+                    LockSupport.parkNanos(this, MAX_WAIT);
+                waiting = false;
+                break;
+            default:
+                lock.lock();
+                try {
+                    waiting = true;
+                    if (!ready())
+                        notEmpty.awaitNanos(MAX_WAIT);
+                } catch (InterruptedException error) {
+                    // Like the sleep this replaces, an interrupt just ends the wait
+                } finally {
+                    waiting = false;
+                    lock.unlock();
+                }
+        }
+    }
+
+    void wake() {
+        if (wait == Wait.PARKING) {
+            Thread t = consumer;
+            if (t != null)
+                LockSupport.unpark(t);
+        } else if (wait == Wait.BLOCKING) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Is the ring empty?
+     * @return boolean. Returns true if every message added has been taken.
+     */
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    /**
+     * Return the number of messages waiting.
+     * @return int. The number of messages.
+     */
+    public int size() {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * Return the number of messages the ring holds.
+     * @return int. The capacity.
+     */
+    public int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Return the number of messages dropped since the last call.
+     * @return long. The drops.
+     */
+    public long getDrops() {
+        return drops.getAndSet(0);
+    }
+
+    /**
+     * Return the number of times producers found the ring full since the last call.
+     * @return long. The count.
+     */
+    public long getBackpressure() {
+        return backpressure.getAndSet(0);
+    }
+}
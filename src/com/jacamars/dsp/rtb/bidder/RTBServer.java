@@ -1087,16 +1087,6 @@ class Handler extends AbstractHandler {
 
             if (x != null) {
 
-                if (BidRequest.compilerBusy()) {
-                    baseRequest.setHandled(true);
-                    response.setHeader("X-REASON", "Server initializing");
-                    response.setStatus(RTBServer.NOBID_CODE);
-
-                    logger.debug("No bid, compiler busy");
-
-                    return;
-                }
-
                 RTBServer.request++;
 
                 /*************
@@ -1135,7 +1125,7 @@ class Handler extends AbstractHandler {
                     if (isGzip)
                         body = new GZIPInputStream(body);
 
-                    br = x.copy(body);
+                    br = RequestPool.getInstance().acquire(x, body);
                     if (br == null) {
                     	code = RTBServer.NOBID_CODE;
                     	RTBServer.error++;
@@ -1271,16 +1261,14 @@ class Handler extends AbstractHandler {
                     RTBServer.bidCountWindow.incrementAndGet();
                     response.setStatus(code);
                     if (bresp != null){
-                      if (request.getHeader("Accept-Encoding") != null && request.getHeader("Accept-Encoding").contains("gzip")) {
-                        sendResponse(response, bresp.getResponseString());
-                      } else {
-                        bresp.writeTo(response);
-                      }
+                      String accepts = request.getHeader("Accept-Encoding");
+                      bresp.writeTo(response, accepts != null && accepts.contains("gzip"));
                     }
                 } else {
                     RTBServer.totalNoBidTime.addAndGet(time);
                     RTBServer.nobidCountWindow.incrementAndGet();
                     br.writeNoBid(response, time);
+                    RequestPool.getInstance().release(x, br);
                 }
                 return;
             }
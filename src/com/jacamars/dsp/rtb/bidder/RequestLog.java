@@ -0,0 +1,131 @@
+package com.jacamars.dsp.rtb.bidder;
+
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A bid request queued for the request log. It only holds the original JSON and what is added to it, the log line
+ * is written by the publisher's thread, so the bidding thread never serializes the request.
+ * <p>
+ * The line is the original with ext.timestamp, ext.exchange and logtype set, as if they had been put into it, but
+ * the original is not changed, so other publishers holding it (the unified logger) can serialize it at the same
+ * time.
+ *
+ * @author Ben M. Faul
+ *
+ */
+final class RequestLog implements ZPublisher.Deferred {
+
+    /** Writes the line, the same as JsonNode.toString() */
+    static final ObjectMapper mapper = new ObjectMapper();
+
+    /** The request as received, not changed after it is queued */
+    final ObjectNode original;
+    /** When it was logged */
+    final long timestamp;
+    /** The exchange it came from */
+    final String exchange;
+
+    /**
+     * Queue a request for logging.
+     * @param original ObjectNode. The request's JSON.
+     * @param exchange String. The exchange name.
+     */
+    RequestLog(ObjectNode original, String exchange) {
+        this.original = original;
+        this.exchange = exchange;
+        timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Write the log line.
+     * @return String. The request JSON with the log fields.
+     */
+    @Override
+    public String render() {
+        StringWriter out = new StringWriter(1024);
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(out)) {
+            boolean ext = false;
+            boolean logtype = false;
+            gen.writeStartObject();
+            Iterator<Map.Entry<String, JsonNode>> fields = original.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> e = fields.next();
+                String name = e.getKey();
+                gen.writeFieldName(name);
+                if (name.equals("ext") && e.getValue() instanceof ObjectNode) {
+                    writeExt(gen, (ObjectNode) e.getValue());
+                    ext = true;
+                } else if (name.equals("logtype")) {
+                    gen.writeString("requests");
+                    logtype = true;
+                } else
+                    gen.writeTree(e.getValue());
+            }
+            if (!ext) {
+                gen.writeFieldName("ext");
+                writeExt(gen, null);
+            }
+            if (!logtype)
+                gen.writeStringField("logtype", "requests");
+            gen.writeEndObject();
+        } catch (Exception error) {
+            ZPublisher.clogger.error("Can't write request log: {}", error.toString());
+            return null;
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write ext with the timestamp and exchange, replacing them where they were, else after its own fields.
+     * @param gen JsonGenerator. The generator, positioned at the value of ext.
+     * @param ext ObjectNode. The request's ext, or null if it has none.
+     * @throws Exception on generator errors.
+     */
+    void writeExt(JsonGenerator gen, ObjectNode ext) throws Exception {
+        boolean ts = false;
+        boolean ex = false;
+        gen.writeStartObject();
+        if (ext != null) {
+            Iterator<Map.Entry<String, JsonNode>> fields = ext.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> e = fields.next();
+                String name = e.getKey();
+                if (name.equals("timestamp")) {
+                    gen.writeNumberField(name, timestamp);
+                    ts = true;
+                } else if (name.equals("exchange")) {
+                    writeExchange(gen);
+                    ex = true;
+                } else {
+                    gen.writeFieldName(name);
+                    gen.writeTree(e.getValue());
+                }
+            }
+        }
+        if (!ts)
+            gen.writeNumberField("timestamp", timestamp);
+        if (!ex)
+            writeExchange(gen);
+        gen.writeEndObject();
+    }
+
+    void writeExchange(JsonGenerator gen) throws Exception {
+        gen.writeFieldName("exchange");
+        if (exchange == null)
+            gen.writeNull();
+        else
+            gen.writeString(exchange);
+    }
+
+    @Override
+    public String toString() {
+        return render();
+    }
+}
@@ -0,0 +1,76 @@
+package com.jacamars.dsp.rtb.bidder;
+
+import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+
+/**
+ * Keeps one spare bid request per exchange on each Jetty thread. Most requests no-bid, and once the no-bid is
+ * written nothing refers to the request any more, so instead of copying the exchange's prototype (a new request,
+ * field table, impressions, predicate cache...) for the next one, the handler resets and refills the spare.
+ * <p>
+ * Only exchanges turned on with the 'pooled' option in the seat's bid string are pooled, and only requests that
+ * no-bid and were not retained (see BidRequest.retain()) go back to the pool. Bids, and anything queued for
+ * logging, always get a fresh request.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public enum RequestPool {
+
+	// Instance of the singleton
+	INSTANCE;
+
+	/** The spare requests of this thread, by exchange prototype */
+	static final ThreadLocal<Map<BidRequest, BidRequest>> spares = new ThreadLocal<Map<BidRequest, BidRequest>>() {
+		@Override
+		protected Map<BidRequest, BidRequest> initialValue() {
+			return new IdentityHashMap<BidRequest, BidRequest>();
+		}
+	};
+
+	/** Number of requests refilled instead of copied */
+	public static final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * Return the singleton.
+	 * @return RequestPool. The pool.
+	 */
+	public static RequestPool getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Return a bid request for this exchange, parsed from the stream. Uses this thread's spare if there is one,
+	 * else copies the prototype.
+	 * @param prototype BidRequest. The exchange's prototype from RTBServer.exchanges.
+	 * @param in InputStream. The stream containing the JSON of the request.
+	 * @return BidRequest. The request.
+	 * @throws Exception on JSON or InputStream processing errors.
+	 */
+	public BidRequest acquire(BidRequest prototype, InputStream in) throws Exception {
+		if (!prototype.isReusable())
+			return prototype.copy(in);
+		BidRequest br = spares.get().remove(prototype);
+		if (br == null)
+			return prototype.copy(in);
+		// If this throws, the spare is simply dropped
+		br.reuse(in, prototype);
+		reused.incrementAndGet();
+		return br;
+	}
+
+	/**
+	 * Give a no-bid request back to this thread, unless something still holds it.
+	 * @param prototype BidRequest. The exchange's prototype the request was acquired with.
+	 * @param br BidRequest. The request, which must not be used by the caller afterwards.
+	 */
+	public void release(BidRequest prototype, BidRequest br) {
+		if (br == null || br == prototype || br.isRetained() || !prototype.isReusable())
+			return;
+		spares.get().put(prototype, br);
+	}
+}
@@ -0,0 +1,181 @@
+package com.jacamars.dsp.rtb.bidder;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes bid responses to the servlet output stream. The response is UTF-8 encoded once, straight from the
+ * response's StringBuilder into a byte buffer that belongs to the Jetty thread, and written with one call. If the
+ * exchange accepts gzip, and the response is big enough to be worth it, the bytes are deflated with the thread's
+ * Deflater into a second buffer instead of going through a GZIPOutputStream and a ByteArrayOutputStream.
+ * <p>
+ * Nothing here allocates per response once the buffers have grown to the largest response the thread has sent.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public enum ResponseWriter {
+
+	// Instance of the singleton
+	INSTANCE;
+
+	/** Responses smaller than this many bytes are not gzipped, even if the exchange accepts it */
+	private static volatile int gzipThreshold = 1024;
+
+	/** The gzip header: magic, deflate, no flags, no mtime, no extra flags, unknown OS */
+	static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	/** Number of responses sent gzipped */
+	public static final AtomicLong gzipped = new AtomicLong();
+
+	/** The buffers and codecs of this thread */
+	static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	/**
+	 * Set the size below which responses are not gzipped, from the configuration's "gzipThreshold".
+	 * @param threshold int. The number of bytes, 0 gzips every response the exchange accepts gzip for.
+	 */
+	public static void setGzipThreshold(int threshold) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("gzipThreshold can't be negative: " + threshold);
+		gzipThreshold = threshold;
+	}
+
+	/**
+	 * Return the size below which responses are not gzipped.
+	 * @return int. The number of bytes.
+	 */
+	public static int getGzipThreshold() {
+		return gzipThreshold;
+	}
+
+	/**
+	 * Return the singleton.
+	 * @return ResponseWriter. The writer.
+	 */
+	public static ResponseWriter getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Write a response.
+	 * @param res HttpServletResponse. The response to write to.
+	 * @param body CharSequence. The body, usually the bid response's StringBuilder.
+	 * @param gzip boolean. Set to true if the exchange accepts gzip.
+	 * @throws Exception on I/O errors.
+	 */
+	public void write(HttpServletResponse res, CharSequence body, boolean gzip) throws Exception {
+		Buffers b = buffers.get();
+		int length = b.encode(body);
+		write(res, b.bytes, length, gzip);
+	}
+
+	/**
+	 * Write a response that is already bytes.
+	 * @param res HttpServletResponse. The response to write to.
+	 * @param bytes byte[]. The body.
+	 * @param length int. The number of bytes of the body.
+	 * @param gzip boolean. Set to true if the exchange accepts gzip.
+	 * @throws Exception on I/O errors.
+	 */
+	public void write(HttpServletResponse res, byte[] bytes, int length, boolean gzip) throws Exception {
+		if (gzip && length >= gzipThreshold) {
+			Buffers b = buffers.get();
+			int zipped = b.gzip(bytes, length);
+			res.addHeader("Content-Encoding", "gzip");
+			res.setContentLength(zipped);
+			res.getOutputStream().write(b.zipped, 0, zipped);
+			gzipped.incrementAndGet();
+			return;
+		}
+		res.setContentLength(length);
+		res.getOutputStream().write(bytes, 0, length);
+	}
+
+	/**
+	 * The per thread state. Only ever touched by its own thread.
+	 */
+	static final class Buffers {
+		// Replace bad surrogates like String.getBytes() does, instead of failing the response
+		final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final CRC32 crc = new CRC32();
+		byte[] bytes = new byte[8192];
+		byte[] zipped = new byte[8192];
+
+		/**
+		 * Encode the text into bytes.
+		 * @param text CharSequence. The text.
+		 * @return int. The number of bytes used.
+		 */
+		int encode(CharSequence text) {
+			int need = (int) (text.length() * encoder.maxBytesPerChar());
+			if (bytes.length < need)
+				bytes = new byte[need];
+			CharBuffer in = CharBuffer.wrap(text);
+			ByteBuffer out = ByteBuffer.wrap(bytes);
+			encoder.reset();
+			CoderResult result = encoder.encode(in, out, true);
+			if (!result.isUnderflow())
+				throw new IllegalStateException("Can't encode response: " + result);
+			encoder.flush(out);
+			return out.position();
+		}
+
+		/**
+		 * Gzip the bytes into zipped.
+		 * @param data byte[]. The bytes.
+		 * @param length int. The number of bytes to compress.
+		 * @return int. The number of bytes in zipped.
+		 */
+		int gzip(byte[] data, int length) {
+			// Deflate never grows the data by more than a few bytes per 16K block
+			int need = GZIP_HEADER.length + length + (length >> 12) + 64;
+			if (zipped.length < need)
+				zipped = new byte[need];
+			System.arraycopy(GZIP_HEADER, 0, zipped, 0, GZIP_HEADER.length);
+			int n = GZIP_HEADER.length;
+
+			deflater.reset();
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (n == zipped.length)
+					zipped = Arrays.copyOf(zipped, zipped.length * 2);
+				n += deflater.deflate(zipped, n, zipped.length - n);
+			}
+
+			crc.reset();
+			crc.update(data, 0, length);
+			if (zipped.length < n + 8)
+				zipped = Arrays.copyOf(zipped, n + 8);
+			n = putInt(zipped, n, (int) crc.getValue());
+			n = putInt(zipped, n, length);
+			return n;
+		}
+
+		static int putInt(byte[] b, int n, int value) {
+			b[n++] = (byte) value;
+			b[n++] = (byte) (value >> 8);
+			b[n++] = (byte) (value >> 16);
+			b[n++] = (byte) (value >> 24);
+			return n;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.jacamars.dsp.rtb.bidder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.jacamars.dsp.rtb.common.Campaign;
+import com.jacamars.dsp.rtb.common.Configuration;
+import com.jacamars.dsp.rtb.common.TargetingIndex;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+import com.jacamars.dsp.rtb.tools.Performance;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long lived engine that runs campaign selection on a shared work stealing pool. The pool is created once
+ * and used by every bid request, instead of creating and destroying a thread pool per request.
+ * <p>
+ * The number of slices a request's campaign list is cut into is chosen per request, from the number of campaigns
+ * and a moving average of the cost of evaluating one campaign. Cheap selections run inline on the calling (Jetty)
+ * thread, expensive ones are split so that each slice costs about TARGET_SLICE_NANOS.
+ * <p>
+ * Slices cancel cooperatively: when a winner is found (or the deadline passes) the shared flag is set and the
+ * remaining workers stop at their next campaign.
+ *
+ * @author Ben M. Faul
+ */
+public enum SelectionEngine {
+
+    // Instance of the singleton
+    INSTANCE;
+
+    static final Logger logger = LoggerFactory.getLogger(SelectionEngine.class);
+
+    /** Work a single slice should do, in nanoseconds, before it is worth splitting again */
+    public static volatile long TARGET_SLICE_NANOS = 200000;
+
+    /** Time allowed for the selection, in ms */
+    public static volatile long DEADLINE_MS = 50;
+
+    /** Weight given to the newest sample in the moving average of campaign cost */
+    static final double ALPHA = 0.05;
+
+    /** The shared work stealing pool */
+    final ForkJoinPool pool;
+
+    /** Maximum number of slices, the parallelism of the pool */
+    final int maxSlices;
+
+    /** Moving average of the nanoseconds it takes to evaluate one campaign */
+    volatile double nanosPerCampaign = 20000;
+
+    SelectionEngine() {
+        int n = Configuration.concurrency > 1 ? Configuration.concurrency : Performance.getCores();
+        maxSlices = n;
+        pool = new ForkJoinPool(n, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        LoggerFactory.getLogger(SelectionEngine.class).info("Campaign selection engine started with parallelism: {}", n);
+    }
+
+    /**
+     * Return the instance of the selection engine.
+     * @return SelectionEngine. The singleton.
+     */
+    public static SelectionEngine getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Determine how many slices to cut a list of campaigns into, given the recent cost of a campaign.
+     * @param campaigns int. The number of campaigns to evaluate.
+     * @return int. The number of slices, at least 1 and at most the parallelism of the pool.
+     */
+    public int slicesFor(int campaigns) {
+        if (campaigns <= 1)
+            return 1;
+        double total = campaigns * nanosPerCampaign;
+        int n = (int) Math.ceil(total / TARGET_SLICE_NANOS);
+        if (n > maxSlices)
+            n = maxSlices;
+        if (n > campaigns)
+            n = campaigns;
+        if (n < 1)
+            n = 1;
+        return n;
+    }
+
+    /**
+     * Fold the measured cost of a slice into the moving average.
+     * @param nanos long. The time the slice took.
+     * @param evaluated int. The number of campaigns the slice looked at.
+     */
+    void record(long nanos, int evaluated) {
+        if (evaluated == 0)
+            return;
+        double sample = (double) nanos / evaluated;
+        nanosPerCampaign = nanosPerCampaign + ALPHA * (sample - nanosPerCampaign);
+    }
+
+    /**
+     * Return the current moving average of campaign evaluation cost.
+     * @return double. Nanoseconds per campaign.
+     */
+    public double getNanosPerCampaign() {
+        return nanosPerCampaign;
+    }
+
+    /**
+     * Run the selection of the campaigns in list against the bid request.
+     * @param list List. The (preshuffled) campaigns to consider.
+     * @param br BidRequest. The bid request.
+     * @param exchangeIsAdx boolean. Set to true if the request is from Adx.
+     * @param xtest boolean. Set to true for the test bid request, no deadline is enforced.
+     * @param index TargetingIndex. The index the list was pruned with, or null if it was not.
+     * @return List. The workers that ran to completion, the caller harvests their candidates.
+     * @throws Exception on interrupts.
+     */
+    List<SelectionWorker> select(List<Campaign> list, BidRequest br, boolean exchangeIsAdx,
+                                 boolean xtest, TargetingIndex index) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEADLINE_MS);
+        int nSlices = slicesFor(list.size());
+        AtomicBoolean flag = new AtomicBoolean(false);
+        List<SelectionWorker> workers = new ArrayList<SelectionWorker>(nSlices);
+
+        int howMany = list.size() / nSlices;
+        int remainder = list.size() % nSlices;
+        int start = 0;
+        for (int i = 0; i < nSlices; i++) {
+            int stop = start + howMany;
+            if (i == nSlices - 1)
+                stop += remainder;
+            workers.add(new SelectionWorker(start, stop, list, br, exchangeIsAdx, flag, xtest, index));
+            start = stop;
+        }
+
+        // One slice, don't pay for the hand off.
+        if (nSlices == 1) {
+            workers.get(0).run();
+            return workers;
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(nSlices);
+        for (int i = 1; i < nSlices; i++) {
+            tasks.add(pool.submit(workers.get(i)));
+        }
+        workers.get(0).run();
+
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                if (xtest)
+                    tasks.get(i).get();
+                else
+                    tasks.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException error) {
+                flag.set(true);
+                break;
+            } catch (ExecutionException error) {
+                logger.error("Selection slice failed: {}", error.getCause().toString());
+            }
+        }
+
+        List<SelectionWorker> finished = new ArrayList<SelectionWorker>(nSlices);
+        finished.add(workers.get(0));
+        for (int i = 0; i < tasks.size(); i++) {
+            if (tasks.get(i).isDone())
+                finished.add(workers.get(i + 1));
+            else
+                br.retain();        // a late slice still reads the request, don't let the handler reuse it
+        }
+        return finished;
+    }
+}
@@ -0,0 +1,145 @@
+package com.jacamars.dsp.rtb.bidder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.jacamars.dsp.rtb.common.Campaign;
+import com.jacamars.dsp.rtb.common.Configuration;
+import com.jacamars.dsp.rtb.common.FrequencyCap;
+import com.jacamars.dsp.rtb.common.TargetingIndex;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+import com.jacamars.dsp.rtb.probe.Probe;
+import com.jacamars.dsp.rtb.redisson.CapCounters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A class that uses a slice of campaigns to find a match to the bid request.
+ */
+class SelectionWorker implements Runnable {
+    int start = 0;
+    int stop = 0;
+    List<Campaign> list;
+    BidRequest br;
+    int count;
+    boolean exchangeIsAdx;
+    volatile List<SelectedCreative> candidates = new ArrayList<SelectedCreative>();
+    static Logger logger = LoggerFactory.getLogger(CampaignSelector.class);
+    List<SelectedCreative> select;
+    List<FrequencyCap> frequencyCap  = new ArrayList<FrequencyCap>();
+    Map<String, Long> capSpecs = new ConcurrentHashMap<String, Long>();
+    AtomicBoolean flag;
+    boolean test;
+    TargetingIndex index;
+
+    public SelectionWorker(int start, int stop, final List<Campaign>  list, final BidRequest br,
+                           final boolean exchangeIsAdx, AtomicBoolean flag, boolean test) {
+        this(start, stop, list, br, exchangeIsAdx, flag, test, null);
+    }
+
+    public SelectionWorker(int start, int stop, final List<Campaign>  list, final BidRequest br,
+                           final boolean exchangeIsAdx, AtomicBoolean flag, boolean test, TargetingIndex index) {
+
+        if (test) {
+            logger.info("WORKER: {} - {}",start,stop);
+        }
+
+        this.test = test;
+
+        this.start = start;
+        this.stop = stop;
+        this.list = list.subList(start, stop);
+        this.exchangeIsAdx = exchangeIsAdx;
+        count = 0;
+        this.br = br;
+        this.flag = flag;
+        this.index = index;
+
+    }
+
+    public void run() {
+        long nanos = System.nanoTime();
+        try {
+            select();
+        } finally {
+            SelectionEngine.getInstance().record(System.nanoTime() - nanos, count);
+        }
+    }
+
+    /**
+     * Evaluate the campaigns in this slice until done, or until another slice sets the flag.
+     */
+    void select() {
+        Campaign test;
+        long time = System.currentTimeMillis();
+
+        while (count < list.size() && !flag.get()){
+            try {
+                test = list.get(count);
+            } catch (Exception error) {
+                logger.info("Campaign was stale, in the selection list");
+                break;
+            }
+        
+            if (test.isAdx == exchangeIsAdx) {
+
+                if (test.isGoverned(br)) {
+                    if (Configuration.getInstance().printNoBidReason || this.test)
+                        logger.info("This campaign is governed: {}, spec: {}", test.adId, br.synthkey);
+                    try {
+                        CampaignProcessor.probe.process(br.getExchange(), test.adId, Probe.GLOBAL, Probe.FREQUENCY_GOVERNED);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                } else {
+                    CampaignProcessor p = new CampaignProcessor(test, br, null, null);
+                    if (index != null)
+                        p.setPredicates(index.getResidual(test));
+                    p.run();
+
+                    select = p.getSelectedCreative();
+                    if (select != null && select.size() != 0) {
+                        if (test.isCapped(br, capSpecs)) {
+                            if (Configuration.getInstance().printNoBidReason || this.test)
+                                logger.info("This campaign is capped: {}, spec: {}", test.adId, capSpecs.containsKey(test.adId)
+                                        ? CapCounters.toKey(capSpecs.get(test.adId)) : null);
+                            try {
+                                CampaignProcessor.probe.process(br.getExchange(), test.adId, Probe.GLOBAL, Probe.FREQUENCY_CAPPED);
+                            } catch (Exception error) {
+                                error.printStackTrace();
+                            }
+                        } else {
+                            if (test.frequencyCap != null) {
+                                FrequencyCap f = test.frequencyCap.copy();
+                                Long cap = capSpecs.get(test.adId);
+                                f.capKey = cap == null ? null : CapCounters.toKey(cap);
+                                frequencyCap.add(f);
+                            }
+
+                            for (int ii = 0; ii < select.size(); ii++) {
+                                candidates.add(select.get(ii));
+                            }
+                            if (!(br.multibid || test.weights == null)) {
+                                flag.set(true);
+                                break;
+                            }
+                        }
+                    }
+                }
+
+                if (!this.test && (System.currentTimeMillis() - time) > 50) {
+                   if (this.test)
+                        logger.info("WARNING, Worker: {}, stopped at: {} of {}",start,count,list.size());
+                    return;
+                }
+            }
+
+            count++;
+        }
+    }
+
+}
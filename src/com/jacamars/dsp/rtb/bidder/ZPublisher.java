@@ -12,9 +12,6 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
 
 import java.util.Properties;
 
@@ -38,12 +35,39 @@ import redis.clients.jedis.JedisPool;
 /**
  * A publisher for ZeroMQ, File, and Logstash/http based messages, sharable by
  * multiple threads.
+ * <p>
+ * Messages are handed to the publisher's thread through a MessageRing, which it drains in batches of up to BATCH,
+ * waiting by the WAIT strategy when there are none. The ring holds RING messages, and what can't be added within
+ * OFFER_MS is dropped and counted, see getBp(). For a file or http publisher add() serializes the object on the
+ * caller's thread, as it always did, so the caller may reuse it. Messages from addImmutable(), which nothing changes
+ * once added, are serialized by the publisher's thread, and so are Deferred ones from addDeferred().
  *
  * @author Ben M. Faul
  */
 public class ZPublisher implements Runnable, Callback {
 
+    /**
+     * A message whose string is made only when it is published, on the publisher's thread.
+     */
+    public interface Deferred {
+        /**
+         * Make the string to publish.
+         * @return String. The message, as it would have been given to addString().
+         */
+        String render();
+    }
+
     static final Logger clogger = LoggerFactory.getLogger(ZPublisher.class);
+
+    /** Messages each publisher's ring holds */
+    public static volatile int RING = 1 << 16;
+    /** How a publisher's thread waits for messages */
+    public static volatile MessageRing.Wait WAIT = MessageRing.Wait.BLOCKING;
+    /** How long, in ms, adding to a full ring is retried before the message is dropped */
+    public static volatile long OFFER_MS = 1;
+    /** Most messages taken from the ring at a time */
+    static final int BATCH = 256;
+
     // The objects thread
     protected Thread me;
     // The connection used
@@ -51,7 +75,7 @@ public class ZPublisher implements Runnable, Callback {
     // The topic of messages
     com.jacamars.dsp.rtb.jmq.Publisher logger;
     // The queue of messages
-    protected ConcurrentLinkedQueue queue = new ConcurrentLinkedQueue();
+    protected MessageRing queue = new MessageRing(RING, WAIT, OFFER_MS);
 
     // Filename, if not using ZeroMQ
     protected String fileName;
@@ -70,8 +94,6 @@ public class ZPublisher implements Runnable, Callback {
     // Logging formatter yyyy-mm-dd-hh:ss part.
     SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HH:mm");
 
-    ReentrantLock lockA = new ReentrantLock();
-
     Pinger ping;
 
     JedisPool jedisPool;
@@ -250,8 +272,15 @@ public class ZPublisher implements Runnable, Callback {
 
     public Map getBp() {
         Map m = null;
-        if (http == null)
-            return null;
+        if (http == null) {
+            m = new HashMap();
+            m.put("address", address);
+            m.put("queued", queue.size());
+            m.put("capacity", queue.capacity());
+            m.put("backpressure", queue.getBackpressure());
+            m.put("drops", queue.getDrops());
+            return m;
+        }
 
         if (errors != 0) {
             pe = 100 * errors / count;
@@ -267,6 +296,7 @@ public class ZPublisher implements Runnable, Callback {
         m.put("latency", latency);
         m.put("wbp", bp);
         m.put("errors", errors);
+        m.put("drops", queue.getDrops());
 
         total = count = errors = 0;
         return m;
@@ -276,7 +306,7 @@ public class ZPublisher implements Runnable, Callback {
      * Run the http post logger.
      */
     public void runHttpLogger() {
-        Object obj = null;
+        Object[] batch = new Object[BATCH];
 
         long elapsed = System.currentTimeMillis();
         String errorString = null;
@@ -289,24 +319,32 @@ public class ZPublisher implements Runnable, Callback {
                 e.printStackTrace();
             }
 
+            // Serialize what was added since the last post, here rather than on the adding thread
+            int n;
+            while ((n = queue.poll(batch, BATCH)) != 0) {
+                for (int i = 0; i < n; i++) {
+                    String str = serialize(batch[i]);
+                    batch[i] = null;
+                    if (str != null) {
+                        sb.append(str);
+                        sb.append("\n");
+                    }
+                }
+            }
+
             try {
                 if (sb.length() != 0) {
                     try {
-                        if (lockA.tryLock(10, TimeUnit.SECONDS)) {
-                            count++;
-                            long time = System.currentTimeMillis();
-                            http.sendPost(url, sb.toString());
-                            int code = http.getResponseCode();
-                            if (code == 200) {
-                                time = System.currentTimeMillis() - time;
-                                total += time;
-                            } else {
-                                errors++;
-                            }
+                        count++;
+                        long time = System.currentTimeMillis();
+                        http.sendPost(url, sb.toString());
+                        int code = http.getResponseCode();
+                        if (code == 200) {
+                            time = System.currentTimeMillis() - time;
+                            total += time;
                         } else {
-                            clogger.error("Erorr writing data to HTTP");
+                            errors++;
                         }
-
                     } catch (Exception error) {
                         // error.printStackTrace();
                         errorString = error.toString();
@@ -321,8 +359,6 @@ public class ZPublisher implements Runnable, Callback {
                 errorString = error.toString();
                 // error.printStackTrace();
                 sb.setLength(0);
-            } finally {
-                if (lockA.isHeldByCurrentThread()) lockA.unlock();
             }
         }
     }
@@ -336,19 +372,20 @@ public class ZPublisher implements Runnable, Callback {
             clogger.error("Pipe is broken for {}, error: {}",topic,error.getMessage());
             return;
         }
+        Object[] batch = new Object[BATCH];
         while (!me.isInterrupted()) {
-            try {
-                Object msg;
-                while ((msg = queue.poll()) != null) {
+            int n = queue.take(batch, BATCH);
+            for (int i = 0; i < n; i++) {
+                try {
                     if (ping != null)
                         ping.cancelPing();
-                    String str = Tools.serialize(mapper, msg);
+                    String str = Tools.serialize(mapper, resolve(batch[i]));
                     p.write(str);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    // return;
                 }
-                Thread.sleep(1);
-            } catch (Exception e) {
-                e.printStackTrace();
-                // return;
+                batch[i] = null;
             }
         }
     }
@@ -357,21 +394,26 @@ public class ZPublisher implements Runnable, Callback {
      * Run the kafka logger in a loop
      */
     public void runKafkaLogger() {
-        Object msg = null;
+        Object[] batch = new Object[BATCH];
         String str = null;
         while (true) {
-            try {
-                while ((msg = queue.poll()) != null) {
+            int n = queue.take(batch, BATCH);
+            for (int i = 0; i < n; i++) {
+                try {
                     if (ping != null)
                         ping.cancelPing();
-                    str = Tools.serialize(mapper, msg);
+                    Object msg = batch[i];
+                    if (msg instanceof Deferred)
+                        str = ((Deferred) msg).render();
+                    else
+                        str = Tools.serialize(mapper, msg);
                     ProducerRecord record =  new ProducerRecord<String, String>(topic, "key", str);
                     producer.send(record, this);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    // return;
                 }
-                Thread.sleep(1);
-            } catch (Exception e) {
-                e.printStackTrace();
-                // return;
+                batch[i] = null;
             }
         }
     }
@@ -388,7 +430,8 @@ public class ZPublisher implements Runnable, Callback {
      * Run the file logger in a loop.
      */
     public void runFileLogger() {
-        Object obj = null;
+        Object[] batch = new Object[BATCH];
+        StringBuilder out = new StringBuilder();
 
         String thisFile = this.fileName;
 
@@ -399,26 +442,24 @@ public class ZPublisher implements Runnable, Callback {
             tailstamp = "";
 
         while (true) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-
-            if (sb.length() != 0) {
-                try {
-                    if (lockA.tryLock(10, TimeUnit.SECONDS) == false) {
-                        clogger.error("Error can'tobtain lock on write log for: {}", thisFile);
+            int n = queue.take(batch, BATCH);
+            if (n != 0) {
+                for (int i = 0; i < n; i++) {
+                    String str = serialize(batch[i]);
+                    batch[i] = null;
+                    if (str != null) {
+                        out.append(str);
+                        out.append("\n");
                     }
-                    AppendToFile.item(thisFile, sb);
+                }
+                try {
+                    AppendToFile.item(thisFile, out);
                 } catch (Exception error) {
                     errored = true;
                     clogger.error("Publisher log error on {}: {}", fileName, error.toString());
                     error.printStackTrace();
                 } finally {
-                    sb.setLength(0);
-                    sb.trimToSize();
-                    if (lockA.isHeldByCurrentThread()) lockA.unlock();
+                    out.setLength(0);
                 }
             }
             if (countdown != 0 && System.currentTimeMillis() > countdown) {
@@ -467,34 +508,28 @@ public class ZPublisher implements Runnable, Callback {
      * Run the kineses logger in a loop
      */
     public void runKinesisLogger() {
-        Object msg = null;
+        Object[] batch = new Object[100];
         String str = null;
-        int i;
         List <PutRecordsRequestEntry> putRecordsRequestEntryList = new ArrayList<>();
         while (!me.isInterrupted()) {
             try {
-                if ((msg = queue.poll()) != null) {
-                    i = 1;
+                int n = queue.take(batch, batch.length);
+                if (n != 0) {
                     PutRecordsRequest putRecordsRequest = new PutRecordsRequest();
-                    while(msg != null) {
-                        str = serialize(msg);
+                    for (int i = 0; i < n; i++) {
+                        str = serialize(batch[i]);
+                        batch[i] = null;
                         byte [] bytes = str.getBytes();
                         PutRecordsRequestEntry putRecordsRequestEntry  = new PutRecordsRequestEntry();
                         putRecordsRequestEntry.setPartitionKey(kinesis.getPartition());
                         putRecordsRequestEntry.setData(ByteBuffer.wrap(bytes));
                         putRecordsRequestEntryList.add(putRecordsRequestEntry);
-
-                        if (i++ == 100)
-                            msg = null;
-                        else
-                            msg = queue.poll();
                     }
                     putRecordsRequest.setRecords(putRecordsRequestEntryList);
                     putRecordsRequest.setStreamName(kinesis.getStream());
                     PutRecordsResult putRecordsResult  = kinesis.getKinesis().putRecords(putRecordsRequest);
                     putRecordsRequestEntryList.clear();
                 }
-                Thread.sleep(1);
 
 
                 /*while ((msg = queue.poll()) != null) {
@@ -519,29 +554,49 @@ public class ZPublisher implements Runnable, Callback {
         }
     }
 
+    /**
+     * Return the string written for a message: strings as they are, deferred messages rendered, anything else
+     * serialized with its class.
+     * @param msg Object. The message from the queue.
+     * @return String. The text to write, or null if it could not be serialized.
+     */
     public String serialize(Object msg) {
         if (msg instanceof String)
             return (String) msg;
+        if (msg instanceof Deferred)
+            return ((Deferred) msg).render();
         return Tools.serialize(mapper, msg);
     }
 
+    /**
+     * Render a deferred message to the string addString() would have been given, leave anything else alone.
+     * @param msg Object. The message from the queue.
+     * @return Object. The message to publish.
+     */
+    static Object resolve(Object msg) {
+        if (msg instanceof Deferred)
+            return ((Deferred) msg).render();
+        return msg;
+    }
+
 
     /**
      * Run the Redis logger in a loop.
      */
     public void runRedisLogger() throws Exception {
-        Object msg = null;
+        Object[] batch = new Object[BATCH];
         while (true) {
-            try {
-                while ((msg = queue.poll()) != null) {
+            int n = queue.take(batch, BATCH);
+            for (int i = 0; i < n; i++) {
+                try {
                     if (ping != null)
                         ping.cancelPing();
-                    jedisPool.getResource().publish(channel, msg.toString());
+                    jedisPool.getResource().publish(channel, batch[i].toString());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    // return;
                 }
-                Thread.sleep(1);
-            } catch (Exception e) {
-                e.printStackTrace();
-                // return;
+                batch[i] = null;
             }
         }
     }
@@ -550,24 +605,31 @@ public class ZPublisher implements Runnable, Callback {
      * Run the ZeroMQ logger in a loop.
      */
     public void runJmqLogger() {
-        Object msg = null;
+        Object[] batch = new Object[BATCH];
         while (true) {
-            try {
-                while ((msg = queue.poll()) != null) {
+            int n = queue.take(batch, BATCH);
+            for (int i = 0; i < n; i++) {
+                Object msg = resolve(batch[i]);
+                batch[i] = null;
+                try {
                     if (ping != null)
                         ping.cancelPing();
-                    logger.publish(msg);
+                    if (msg instanceof byte[])
+                        logger.publishBytes((byte[]) msg);
+                    else
+                        logger.publish(msg);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    // return;
                 }
-                Thread.sleep(1);
-            } catch (Exception e) {
-                e.printStackTrace();
-                // return;
             }
         }
     }
 
     /**
-     * Add a message to the messages queue.
+     * Add a message to the messages queue. For a file or http publisher it is serialized here, on the caller's
+     * thread, so the caller may change or reuse the object once this returns. To serialize on the publisher's thread
+     * instead, use addImmutable() or addDeferred().
      *
      * @param s . String. JSON formatted message.
      */
@@ -575,27 +637,21 @@ public class ZPublisher implements Runnable, Callback {
         if (fileName != null || http != null) {
             if (errored)
                 return;
+            s = Tools.serialize(mapper, s);
+        }
+        queue.offer(s);
+    }
 
-            String contents = null;
-            try {
-                contents =  Tools.serialize(mapper, s);
-            } catch (Exception e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-
-            try {
-                if (lockA.tryLock(10, TimeUnit.SECONDS)) {
-                    sb.append(contents);
-                    sb.append("\n");
-                }
-            } catch (Exception error) {
-                error.printStackTrace();
-            } finally {
-                if (lockA.isHeldByCurrentThread()) lockA.unlock();
-            }
-        } else
-            queue.add(s);
+    /**
+     * Add a message that no thread changes once it is added. It is published as add() would publish it, but a file
+     * or http publisher serializes it on its own thread instead of the caller's.
+     *
+     * @param msg Object. The message, which must not change once added.
+     */
+    public void addImmutable(Object msg) {
+        if ((fileName != null || http != null) && errored)
+            return;
+        queue.offer(msg);
     }
 
     /**
@@ -609,22 +665,20 @@ public class ZPublisher implements Runnable, Callback {
             producer.send(record, this);
             return;
         }
+        queue.offer(contents);
+    }
 
-        if (fileName != null || http != null) {
-            try {
-                if (lockA.tryLock(10, TimeUnit.SECONDS)) {
-                    sb.append(contents);
-                    sb.append("\n");
-                } else {
-                    clogger.error("Error, can't obtain lock for appending data to {}",fileName);
-                }
-            } catch (Exception error) {
-                error.printStackTrace();
-            } finally {
-                if (lockA.isHeldByCurrentThread()) lockA.unlock();
-            }
-        } else
-            queue.add(contents);
+    /**
+     * Add a message that is published as if its rendered string had been given to addString(), but rendered by
+     * the publisher's thread. Use it to keep serializing large messages, like the bid requests, off the bidding
+     * threads.
+     *
+     * @param msg Deferred. The message, which must not change once added.
+     */
+    public void addDeferred(Deferred msg) {
+        if (errored)
+            return;
+        queue.offer(msg);
     }
 
     /**
@@ -65,6 +65,9 @@ public class Campaign implements Comparable {
 	public transient volatile ProportionalEntry weights;
 
     private SortNodesFalseCount nodeSorter = new SortNodesFalseCount();
+
+	/** The compiled, immutable form of the attributes, safe to evaluate from any number of threads */
+	private transient volatile CompiledPredicate[] predicates;
 	/**
 	 * Empty constructor, simply takes all defaults, useful for testing.
 	 */
@@ -105,7 +108,36 @@ public class Campaign implements Comparable {
         for (int i=0;i<creatives.size();i++) {
             creatives.get(i).sortNodes();
         }
+
+        try {
+            compilePredicates();
+        } catch (Exception error) {
+            error.printStackTrace();
+        }
     }
+
+	/**
+	 * Compile the attributes into their immutable predicate form. Call whenever the attributes change.
+	 * @throws Exception if a node is not compilable.
+	 */
+	public void compilePredicates() throws Exception {
+		predicates = PredicateCompiler.compile(attributes);
+	}
+
+	/**
+	 * Return the compiled attributes, compiling them if the list changed since the last compile.
+	 * @return CompiledPredicate[]. The compiled predicates, in the same order as the attributes.
+	 * @throws Exception if a node is not compilable.
+	 */
+	@JsonIgnore
+	public CompiledPredicate[] getPredicates() throws Exception {
+		CompiledPredicate[] x = predicates;
+		if (x == null || x.length != attributes.size()) {
+			compilePredicates();
+			x = predicates;
+		}
+		return x;
+	}
 	
 	/**
 	 * Find the node with the specified hierarchy string.
@@ -127,7 +159,7 @@ public class Campaign implements Comparable {
 	 * @param capSpecs Map. The current cap spec.
 	 * @return boolean. Returns true if the IP address is capped, else false.
 	 */
-	public boolean isCapped(BidRequest br, Map<String, String> capSpecs) {
+	public boolean isCapped(BidRequest br, Map<String, Long> capSpecs) {
 		if (frequencyCap == null)
 			return false;
 		return frequencyCap.isCapped(br,capSpecs,adId);
@@ -270,6 +302,7 @@ public class Campaign implements Comparable {
 			Node n = attributes.get(i);
 			n.setValues();
 		}
+		compilePredicates();
 		
 		if (category == null) {
 			category = new ArrayList<String>();
@@ -0,0 +1,313 @@
+package com.jacamars.dsp.rtb.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+import com.jacamars.dsp.rtb.tools.XORShiftRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable snapshot of everything the bidder derives from the running campaigns: the campaigns themselves,
+ * the compiled bid request and impression keys, the field table slots of those keys, the ids of the shared
+ * predicates, and the preshuffled campaign lists.
+ * <p>
+ * A new snapshot is built by the thread that changed the campaigns (the control plane), then published with a single
+ * volatile write. Bid requests pick up the snapshot that is current when they are parsed and use it until they are
+ * done, so a campaign change never has to stop the bidder.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public final class CampaignSnapshot {
+
+	static final Logger logger = LoggerFactory.getLogger(CampaignSnapshot.class);
+
+	/** Maximum number of preshuffled copies of the campaign list to keep */
+	public static int MAX_SHUFFLES = 64;
+
+	/** Version counter */
+	static final AtomicLong versions = new AtomicLong();
+
+	/** The published snapshot */
+	static volatile CampaignSnapshot current = empty();
+
+	/** Fast random numbers */
+	static final XORShiftRandom xor = new XORShiftRandom();
+
+	/** The version of this snapshot */
+	public final long version;
+	/** The campaigns in this snapshot */
+	public final List<Campaign> campaigns;
+	/** The union of the bid request hierarchies the campaigns use, in compile order */
+	public final List<String> keys;
+	/** The hierarchies, decomposed into their parts */
+	public final Map<String, List<String>> mapp;
+	/** Hierarchy to its slot in the field table of this snapshot's requests */
+	final Map<String, Integer> slots;
+	/** Slot to hierarchy */
+	final String[] names;
+	/** Preshuffled copies of the campaign list */
+	final List<List<Campaign>> shuffled;
+	/** The inverted index over the discrete targeting attributes */
+	public final TargetingIndex index;
+	/** The number of distinct memoized predicates, the size of a request's predicate cache */
+	public final int predicates;
+
+	CampaignSnapshot(Builder b) throws Exception {
+		version = b.version;
+		predicates = b.ids.size();
+		campaigns = Collections.unmodifiableList(new ArrayList<Campaign>(b.campaigns));
+		keys = Collections.unmodifiableList(new ArrayList<String>(b.keys));
+		mapp = Collections.unmodifiableMap(new HashMap<String, List<String>>(b.mapp));
+		slots = new HashMap<String, Integer>(b.slots);
+		names = b.names.toArray(new String[b.names.size()]);
+
+		List<List<Campaign>> lists = new ArrayList<List<Campaign>>();
+		int n = Math.min(campaigns.size(), MAX_SHUFFLES);
+		for (int i = 0; i < n; i++) {
+			List<Campaign> x = new ArrayList<Campaign>(campaigns);
+			Collections.shuffle(x);
+			lists.add(Collections.unmodifiableList(x));
+		}
+		shuffled = Collections.unmodifiableList(lists);
+		index = new TargetingIndex(campaigns, version, slots);
+	}
+
+	static CampaignSnapshot empty() {
+		try {
+			return new Builder(Collections.<Campaign>emptyList()).build();
+		} catch (Exception error) {
+			throw new IllegalStateException(error);
+		}
+	}
+
+	/**
+	 * Return the current snapshot.
+	 * @return CampaignSnapshot. The snapshot new bid requests should use.
+	 */
+	public static CampaignSnapshot current() {
+		return current;
+	}
+
+	/**
+	 * Build a new snapshot from the list of campaigns and publish it. Builds are serialized with each other, but
+	 * not with bid requests, which keep using the previous snapshot until the swap.
+	 * @param list List. The running campaigns.
+	 * @return CampaignSnapshot. The new snapshot.
+	 * @throws Exception on malformed campaigns. The previous snapshot stays in place.
+	 */
+	public static synchronized CampaignSnapshot compile(List<Campaign> list) throws Exception {
+		Builder b = new Builder(list);
+		b.compile();
+		CampaignSnapshot snap = b.build();
+		current = snap;
+		logger.debug("Published campaign snapshot {} with {} campaigns, {} keys, {} predicates, {} indexed",
+				snap.version, snap.campaigns.size(), snap.keys.size(), snap.predicates, snap.index.size());
+		return snap;
+	}
+
+	/**
+	 * Return the field table slot of a hierarchy.
+	 * @param hierarchy Object. The dotted hierarchy.
+	 * @return int. The slot, or -1 if the campaigns of this snapshot don't use it.
+	 */
+	public int slotOf(Object hierarchy) {
+		Integer slot = slots.get(hierarchy);
+		if (slot == null)
+			return -1;
+		return slot;
+	}
+
+	/**
+	 * Return the hierarchy of a slot.
+	 * @param slot int. The slot.
+	 * @return String. The hierarchy.
+	 */
+	public String nameOf(int slot) {
+		return names[slot];
+	}
+
+	/**
+	 * Return the number of slots.
+	 * @return int. The size of a request's field table.
+	 */
+	public int slots() {
+		return names.length;
+	}
+
+	/**
+	 * Return a shuffled list of campaigns.
+	 * @return List. A list of campaigns to use in selection of a campaign, or null if there are none.
+	 */
+	public List<Campaign> getPreShuffledCampaignList() {
+		if (shuffled.size() == 0)
+			return null;
+		return shuffled.get(xor.random(shuffled.size()));
+	}
+
+	/**
+	 * A mutable builder for the snapshot, used only by the compiling thread.
+	 */
+	public static final class Builder {
+		final long version = versions.incrementAndGet();
+		final List<Campaign> campaigns;
+		final List<String> keys = new ArrayList<String>();
+		final Map<String, List<String>> mapp = new HashMap<String, List<String>>();
+		/** Hierarchy to its slot in this snapshot */
+		final Map<String, Integer> slots = new HashMap<String, Integer>();
+		/** Slot to hierarchy */
+		final List<String> names = new ArrayList<String>();
+		/** Predicate key to its id in this snapshot */
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+		Builder(List<Campaign> campaigns) {
+			this.campaigns = new ArrayList<Campaign>(campaigns);
+			BidRequest.compileBuiltIns(this);
+		}
+
+		/**
+		 * Add a bid request hierarchy.
+		 * @param line String. The dotted hierarchy.
+		 */
+		public void addMap(String line) {
+			if (mapp.containsKey(line))
+				return;
+			slot(line);
+			keys.add(line);
+			mapp.put(line, split(line));
+		}
+
+		/**
+		 * Add a bid request hierarchy that was already decomposed.
+		 * @param line String. The dotted hierarchy.
+		 * @param parts List. The parts of the hierarchy.
+		 */
+		public void addMap(String line, List<String> parts) {
+			if (mapp.containsKey(line))
+				return;
+			slot(line);
+			keys.add(line);
+			mapp.put(line, parts);
+		}
+
+		/**
+		 * Give a hierarchy the next slot. 'domain' and 'exchange' are answered by the request, not kept in its table.
+		 * @param line String. The dotted hierarchy.
+		 */
+		void slot(String line) {
+			if (line.length() == 0 || line.equals("domain") || line.equals("exchange") || slots.containsKey(line))
+				return;
+			slots.put(line, names.size());
+			names.add(line);
+		}
+
+		public static List<String> split(String line) {
+			String[] parts = line.split("\\.");
+			List<String> strings = new ArrayList<String>(parts.length);
+			for (int i = 0; i < parts.length; i++) {
+				strings.add(parts[i]);
+			}
+			return strings;
+		}
+
+		/**
+		 * Take the union of all campaign attributes, so the JSON is queried once per hierarchy, not once per
+		 * campaign.
+		 * @throws Exception on malformed OR nodes.
+		 */
+		void compile() throws Exception {
+			for (int i = 0; i < campaigns.size(); i++) {
+				Campaign c = campaigns.get(i);
+
+				// Now frequency caps
+				if (c.frequencyCap != null) {
+					List<String> spec = c.frequencyCap.capSpecification;
+					for (int j = 0; j < spec.size(); j++) {
+						addMap(spec.get(j));
+					}
+				}
+
+				logger.debug("Compiling for domain: {} ", c.adomain);
+				for (int j = 0; j < c.attributes.size(); j++) {
+					Node node = c.attributes.get(j);
+					if (node.hierarchy.equals("") == false) {
+						logger.debug("Compile unit: {}: {} values: {}", c.adomain, node.hierarchy,
+								node.bidRequestValues);
+						addMap(node.hierarchy, node.bidRequestValues);
+					} else {
+						if (node.operator != Node.OR)
+							throw new Exception("Malformed OR processing in campaign " + c.adId);
+						List<Object> nodes = (List<Object>) node.value;
+						for (int nc = 0; nc < nodes.size(); nc++) {
+							Object x = nodes.get(nc);
+							Node n = null;
+							if (x instanceof LinkedHashMap)
+								n = new Node((Map) x);
+							else
+								n = (Node) x;
+							n.setValues();
+							addMap(n.hierarchy, n.bidRequestValues);
+						}
+					}
+				}
+
+				// Handle creative specific attributes
+				for (Creative creative : c.creatives) {
+					logger.debug("Compiling creatives for: {}: {}", c.adomain, creative.impid);
+					for (Node node : creative.attributes) {
+						if (node.hierarchy != null && node.hierarchy.length() != 0) {
+							logger.debug("Compile unit: {}/{}/{}: {}", c.adomain, creative.impid, node.hierarchy,
+									node.bidRequestValues);
+							addMap(node.hierarchy, node.bidRequestValues);
+						}
+					}
+				}
+			}
+
+			for (int i = 0; i < campaigns.size(); i++) {
+				Campaign c = campaigns.get(i);
+				bind(c.getPredicates());
+				for (Creative creative : c.creatives) {
+					bind(creative.getCompiledFixed());
+					bind(creative.getCompiledAttributes());
+				}
+			}
+		}
+
+		/**
+		 * Give the predicates the slots of their hierarchies, and number the memoized ones densely from 0, equal
+		 * ones getting the same id. Slots and ids start over with each snapshot, so the requests' tables and caches
+		 * are only as big as the campaigns that are running.
+		 * @param predicates CompiledPredicate[]. The predicates of a campaign or creative.
+		 */
+		void bind(CompiledPredicate[] predicates) {
+			for (int i = 0; i < predicates.length; i++) {
+				CompiledPredicate p = predicates[i];
+				if (p instanceof PredicateCompiler.Or)
+					bind(((PredicateCompiler.Or) p).branches);
+				Integer slot = p.hierarchy == null ? null : slots.get(p.hierarchy);
+				Integer id = null;
+				if (p.key != null) {
+					id = ids.get(p.key);
+					if (id == null) {
+						id = ids.size();
+						ids.put(p.key, id);
+					}
+				}
+				p.binding = new CompiledPredicate.Binding(version, slot == null ? -1 : slot, id == null ? -1 : id);
+			}
+		}
+
+		CampaignSnapshot build() throws Exception {
+			return new CampaignSnapshot(this);
+		}
+	}
+}
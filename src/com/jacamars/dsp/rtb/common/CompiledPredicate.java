@@ -0,0 +1,278 @@
+package com.jacamars.dsp.rtb.common;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+import com.jacamars.dsp.rtb.pojo.Impression;
+import com.jacamars.dsp.rtb.probe.Probe;
+
+/**
+ * An immutable, compiled form of a campaign or creative Node. The constants of the node (sets, ranges, numbers,
+ * patterns) are built once by the PredicateCompiler, and nothing about the bid request being tested is stored
+ * in the predicate. This means that one campaign can be evaluated by any number of bid requests at the same time.
+ * <p>
+ * The Node the predicate was compiled from is kept so that its false count (used to sort the nodes) can be
+ * maintained, and for reporting.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public abstract class CompiledPredicate {
+
+	/** The node this predicate was compiled from */
+	protected final Node node;
+	/** The dotted hierarchy to retrieve from the bid request */
+	protected final String hierarchy;
+	/** If the hierarchy is not present in the request, the predicate returns this value */
+	protected final boolean notPresentOk;
+	/**
+	 * The structural key of this predicate, equal for structurally equal predicates, or null if the answer should
+	 * not be memoized. Set by the compiler before the predicate is published.
+	 */
+	String key;
+	/** Where this predicate's value and answer are in the requests of the snapshot that last bound it */
+	volatile Binding binding = Binding.NONE;
+
+	/** Values in the bid request's predicate cache */
+	public static final byte UNKNOWN = 0;
+	public static final byte TRUE = 1;
+	public static final byte FALSE = 2;
+
+	/**
+	 * Constructor for the predicate.
+	 * @param node Node. The node this was compiled from.
+	 * @param hierarchy String. The hierarchy of the bid request to test.
+	 * @param notPresentOk boolean. The value to return if the hierarchy is not in the request.
+	 */
+	protected CompiledPredicate(Node node, String hierarchy, boolean notPresentOk) {
+		this.node = node;
+		this.hierarchy = hierarchy;
+		this.notPresentOk = notPresentOk;
+	}
+
+	/**
+	 * Return the node this predicate was compiled from.
+	 * @return Node. The source node.
+	 */
+	public Node getNode() {
+		return node;
+	}
+
+	/**
+	 * Return the hierarchy this predicate tests.
+	 * @return String. The dotted hierarchy, may be null or empty for fixed nodes and OR.
+	 */
+	public String getHierarchy() {
+		return hierarchy;
+	}
+
+	/**
+	 * Test the bid request against this predicate. Same contract as Node.test().
+	 * @param br BidRequest. The bid request.
+	 * @param creative Creative. The creative, if this is a creative attribute.
+	 * @param adId String. The campaign ad id.
+	 * @param imp Impression. The impression being tested, if this is a creative attribute.
+	 * @param errorString StringBuilder. Holds the reason for a false return, may be null.
+	 * @param probe Probe. The probe for accounting.
+	 * @param deals List. Deals found by the fixed nodes.
+	 * @return boolean. Returns true if the bid request satisfies the predicate.
+	 * @throws Exception on errors in the fixed nodes.
+	 */
+	public boolean test(BidRequest br, Creative creative, String adId, Impression imp, StringBuilder errorString,
+			Probe probe, List<Deal> deals) throws Exception {
+		boolean test = evaluate(br);
+		if (!test) {
+			if (errorString != null) {
+				errorString.append(hierarchy);
+				errorString.append(" resolved false");
+			}
+			node.falseCount.incrementAndGet();
+		}
+		return test;
+	}
+
+	/**
+	 * Return the id of this predicate in the snapshot that last bound it.
+	 * @return int. The id, or -1 if it is not memoized.
+	 */
+	public int getId() {
+		return binding.id;
+	}
+
+	/**
+	 * Evaluate the predicate, using the bid request's cache if another campaign already evaluated an equal one.
+	 * Slices evaluating the same request may race on a slot, but they always write the same answer. A request
+	 * parsed with another snapshot than the one that bound this predicate is looked up by name and not memoized,
+	 * its slots and ids mean something else.
+	 * @param br BidRequest. The bid request.
+	 * @return boolean. The value of the predicate.
+	 */
+	public boolean evaluate(BidRequest br) {
+		Binding b = binding;
+		if (b.version != br.getVersion())
+			return compute(br, -1);
+		int id = b.id;
+		byte[] cache = id < 0 ? null : br.getPredicateCache();
+		if (cache == null || id >= cache.length)
+			return compute(br, b.slot);
+		byte answer = cache[id];
+		if (answer != UNKNOWN)
+			return answer == TRUE;
+		boolean test = compute(br, b.slot);
+		cache[id] = test ? TRUE : FALSE;
+		return test;
+	}
+
+	/**
+	 * Retrieve the value from the bid request and evaluate it.
+	 * @param br BidRequest. The bid request.
+	 * @param slot int. The slot of the hierarchy in the request's field table, or -1 to look it up by name.
+	 * @return boolean. The value of the predicate.
+	 */
+	protected boolean compute(BidRequest br, int slot) {
+		Object value = br.interrogate(slot, hierarchy);
+		if (value == null || value instanceof MissingNode)
+			return missing(value);
+		return evaluate(value);
+	}
+
+	/**
+	 * The value of the predicate when the hierarchy is not in the bid request.
+	 * @param value Object. Null or a MissingNode.
+	 * @return boolean. The value of the predicate.
+	 */
+	protected boolean missing(Object value) {
+		return notPresentOk;
+	}
+
+	/**
+	 * Evaluate the predicate against a value retrieved from the bid request.
+	 * @param value Object. The value, never null.
+	 * @return boolean. The value of the predicate.
+	 */
+	protected abstract boolean evaluate(Object value);
+
+	/**
+	 * Convert a bid request or constant value into a comparable scalar. Numbers all become Doubles so
+	 * that 1 and 1.0 compare equal, text becomes a String.
+	 * @param value Object. A Jackson node, String or Number.
+	 * @return Object. A String, Double or Boolean, or null if the value is not a scalar.
+	 */
+	static Object scalar(Object value) {
+		if (value instanceof JsonNode) {
+			JsonNode n = (JsonNode) value;
+			if (n.isTextual())
+				return n.textValue();
+			if (n.isNumber())
+				return Double.valueOf(n.doubleValue());
+			if (n.isBoolean())
+				return Boolean.valueOf(n.booleanValue());
+			return null;
+		}
+		if (value instanceof String || value instanceof Boolean)
+			return value;
+		if (value instanceof Number)
+			return Double.valueOf(((Number) value).doubleValue());
+		return null;
+	}
+
+	/**
+	 * Return the value as a double, or NaN if it is not a number.
+	 * @param value Object. A Jackson node or Number.
+	 * @return double. The value.
+	 */
+	static double number(Object value) {
+		if (value instanceof JsonNode) {
+			JsonNode n = (JsonNode) value;
+			if (n.isNumber())
+				return n.doubleValue();
+			return Double.NaN;
+		}
+		if (value instanceof Number)
+			return ((Number) value).doubleValue();
+		return Double.NaN;
+	}
+
+	/**
+	 * Is the bid request value a list of things?
+	 * @param value Object. The value.
+	 * @return boolean. Returns true for Jackson arrays and Java collections.
+	 */
+	static boolean isArray(Object value) {
+		return (value instanceof JsonNode && ((JsonNode) value).isArray()) || value instanceof Collection;
+	}
+
+	/**
+	 * Does any element of the bid request list appear in the set?
+	 * @param value Object. A Jackson array or Java collection.
+	 * @param set Set. The normalized set of constants.
+	 * @return boolean. Returns true if there is an intersection.
+	 */
+	static boolean anyIn(Object value, Set<Object> set) {
+		Iterator<?> it = value instanceof JsonNode ? ((JsonNode) value).elements() : ((Collection<?>) value).iterator();
+		while (it.hasNext()) {
+			Object x = scalar(it.next());
+			if (x != null && set.contains(x))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Does the scalar appear in the bid request list?
+	 * @param value Object. A Jackson array or Java collection.
+	 * @param what Object. The normalized scalar.
+	 * @return boolean. Returns true if what is in the list.
+	 */
+	static boolean contains(Object value, Object what) {
+		Iterator<?> it = value instanceof JsonNode ? ((JsonNode) value).elements() : ((Collection<?>) value).iterator();
+		while (it.hasNext()) {
+			if (what.equals(scalar(it.next())))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Normalize a list of constants into a set of scalars.
+	 * @param list Collection. The constants.
+	 * @return Set. The normalized set.
+	 */
+	static Set<Object> normalize(Collection<?> list) {
+		Set<Object> set = new HashSet<Object>();
+		for (Object o : list) {
+			Object x = scalar(o);
+			if (x != null)
+				set.add(x);
+		}
+		return set;
+	}
+
+	/**
+	 * The slot and id a snapshot gave a predicate. Replaced as a whole, so a request never sees the slot or id of one
+	 * snapshot with the version of another.
+	 */
+	static final class Binding {
+		/** Not bound by any snapshot */
+		static final Binding NONE = new Binding(-1, -1, -1);
+
+		/** The version of the snapshot */
+		final long version;
+		/** The field table slot of the hierarchy, or -1 */
+		final int slot;
+		/** The id, or -1 */
+		final int id;
+
+		Binding(long version, int slot, int id) {
+			this.version = version;
+			this.slot = slot;
+			this.id = id;
+		}
+	}
+}
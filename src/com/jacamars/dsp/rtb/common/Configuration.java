@@ -39,8 +39,11 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import com.google.common.collect.Sets;
 import com.jacamars.dsp.rtb.bidder.DeadmanSwitch;
+import com.jacamars.dsp.rtb.bidder.MessageRing;
 import com.jacamars.dsp.rtb.bidder.RTBServer;
+import com.jacamars.dsp.rtb.bidder.ResponseWriter;
 import com.jacamars.dsp.rtb.bidder.WebCampaign;
+import com.jacamars.dsp.rtb.bidder.ZPublisher;
 import com.jacamars.dsp.rtb.blocks.Bloom;
 import com.jacamars.dsp.rtb.blocks.Cuckoo;
 import com.jacamars.dsp.rtb.blocks.LookingGlass;
@@ -58,6 +61,7 @@ import com.jacamars.dsp.rtb.fraud.MMDBClient;
 import com.jacamars.dsp.rtb.geo.GeoTag;
 import com.jacamars.dsp.rtb.pojo.BidRequest;
 import com.jacamars.dsp.rtb.rate.Limiter;
+import com.jacamars.dsp.rtb.redisson.CapCounters;
 import com.jacamars.dsp.rtb.redisson.RedissonClient;
 import com.jacamars.dsp.rtb.shared.FrequencyGoverner;
 import com.jacamars.dsp.rtb.tools.*;
@@ -98,6 +102,16 @@ public class Configuration {
 
 	public static int concurrency = 1;
 
+	/**
+	 * Campaign selection mode, SELECTION_SCAN tests every campaign, SELECTION_INDEX prunes with the targeting index's
+	 * posting lists, SELECTION_BITSET prunes with its bitsets. Defaults to scan, set "selection" to "index" or "bitset"
+	 * in the configuration to opt in.
+	 */
+	public static final String SELECTION_SCAN = "scan";
+	public static final String SELECTION_INDEX = "index";
+	public static final String SELECTION_BITSET = "bitset";
+	public static volatile String selection = SELECTION_SCAN;
+
 	/** Geotag extension object */
 	public GeoTag geoTagger = new GeoTag();
 	/** The Nashhorn shell used by the bidder */
@@ -611,6 +625,10 @@ public class Configuration {
 			concurrency = Integer.parseInt(mstr);
 		}
 
+		if (m.get("selection") != null) {
+			selection = (String) m.get("selection");
+		}
+
 		if (m.get("systemMacros") != null) {
 			systemMacros = (Map<String, String>) m.get("systemMacros");
 
@@ -629,6 +647,11 @@ public class Configuration {
 			RTBServer.threads = Integer.parseInt(mstr);
 		}
 
+		if (m.get("gzipThreshold") != null) {
+			String mstr = m.get("gzipThreshold").toString();
+			ResponseWriter.setGzipThreshold(Integer.parseInt(mstr));
+		}
+
 		if (m.get("adminPort") != null) {
 			String mstr = (String) m.get("adminPort");
 			adminPort = (Integer) Integer.parseInt(mstr);
@@ -717,6 +740,12 @@ public class Configuration {
 			PIXELS_CHANNEL = value;
 		if ((value = (String) zeromq.get("fraud")) != null)
 			FORENSIQ_CHANNEL = value;
+		if (zeromq.get("publisherring") != null)
+			ZPublisher.RING = ((Number) zeromq.get("publisherring")).intValue();
+		if ((value = (String) zeromq.get("publisherwait")) != null)
+			ZPublisher.WAIT = MessageRing.Wait.valueOf(value.toUpperCase());
+		if (zeromq.get("publisheroffer") != null)
+			ZPublisher.OFFER_MS = ((Number) zeromq.get("publisheroffer")).longValue();
 		COMMANDS = (String) zeromq.get("commands");
 		RESPONSES_SEND = (String) zeromq.get("responses");
 		String ls = (String) zeromq.get("xfrport");
@@ -731,11 +760,64 @@ public class Configuration {
 			FrequencyGoverner.silent = false;
 		else
 			FrequencyGoverner.silent = true;
+		test = (String) zeromq.get("governer");
+		FrequencyGoverner.BLOOM = test != null && test.equalsIgnoreCase("bloom");
+		if (zeromq.get("governerslice") != null)
+			FrequencyGoverner.SLICE = ((Number) zeromq.get("governerslice")).longValue();
+		if (zeromq.get("governerbits") != null)
+			FrequencyGoverner.BITS = ((Number) zeromq.get("governerbits")).intValue();
+		if (zeromq.get("governerflush") != null)
+			FrequencyGoverner.FLUSH = ((Number) zeromq.get("governerflush")).longValue();
 		RTBServer.frequencyGoverner = new FrequencyGoverner(host, sub, pub, 900);
 
+		test = (String) zeromq.get("cacheprotocol");
+		if (test != null)
+			RedissonClient.BINARY = !test.equalsIgnoreCase("json");
+		if (zeromq.get("cachebatch") != null)
+			RedissonClient.BATCH_SIZE = ((Number) zeromq.get("cachebatch")).intValue();
+		if (zeromq.get("cacheflush") != null)
+			RedissonClient.BATCH_MS = ((Number) zeromq.get("cacheflush")).longValue();
+		if (zeromq.get("capflush") != null)
+			RedissonClient.CAP_FLUSH_MS = ((Number) zeromq.get("capflush")).longValue();
+		if (zeromq.get("capentries") != null)
+			CapCounters.MAX_ENTRIES = ((Number) zeromq.get("capentries")).intValue();
+
+		if ((value = (String) zeromq.get("cachename")) != null)
+			RedissonClient.SHARD_NAME = value;
+
 		redisson = new RedissonClient();
 		redisson.setSharedObject(host, listen);
 
+		/**
+		 * More Zerospikes to spread the shared cache over, each {"name", "host", "pub", "sub", "xfrport",
+		 * "listen"}. Every bidder must list the same shards, by the same names.
+		 */
+		List<?> shards = (List<?>) zeromq.get("cacheshards");
+		if (shards != null) {
+			Set<String> names = new HashSet<String>();
+			names.add(RedissonClient.SHARD_NAME);
+			for (int i = 0; i < shards.size(); i++) {
+				Map<?, ?> cs = (Map<?, ?>) shards.get(i);
+				String name = (String) cs.get("name");
+				String label = "cacheshards[" + i + "]" + (name == null ? "" : " (" + name + ")");
+				String shost = substitute((String) cs.get("host"));
+				if (shost == null)
+					throw new Exception("Error: " + label + " has no host");
+				int spub = shardPort(cs, "pub", label);
+				if (name == null)
+					name = shost + ":" + spub;
+				if (!names.add(name))
+					throw new Exception("Error: " + label + " has the same name as another shard: " + name);
+				boolean slisten = !Boolean.FALSE.equals(cs.get("listen"));
+				if (slisten) {
+					int ssub = shardPort(cs, "sub", label);
+					int sxfr = shardPort(cs, "xfrport", label);
+					redisson.addShard(name, "tcp://" + shost + ":" + spub, "tcp://" + shost + ":" + ssub, shost, sxfr);
+				} else
+					redisson.addShard(name, "tcp://" + shost + ":" + spub, null, null, 0);
+			}
+		}
+
 		Database.getInstance(redisson);
 
 		if ((value = (String) zeromq.get("status")) != null)
@@ -877,6 +959,26 @@ public class Configuration {
 		return Integer.parseInt(address);
 	}
 
+	/**
+	 * Return a port of a cache shard.
+	 * @param cs Map. The shard's entry in "cacheshards".
+	 * @param field String. The name of the port, eg "pub".
+	 * @param label String. The shard, for the error message.
+	 * @return int. The port.
+	 * @throws Exception if the port is missing or not a number.
+	 */
+	static int shardPort(Map<?, ?> cs, String field, String label) throws Exception {
+		Object value = cs.get(field);
+		if (value == null)
+			throw new Exception("Error: " + label + " has no " + field + " port");
+		String port = substitute(String.valueOf(value));
+		try {
+			return Integer.parseInt(port.trim());
+		} catch (NumberFormatException error) {
+			throw new Exception("Error: " + label + " has a bad " + field + " port: " + port);
+		}
+	}
+
 	/**
 	 * Substitute the macros and environment variables found in the the string.
 	 *
@@ -1292,6 +1394,18 @@ public class Configuration {
 					case "usesPiggyBackWins":
 						BidRequest.setUsesPiggyBackWins(name);
 						break;
+					case "streaming":
+						BidRequest.setUsesStreaming(br.getClass(), true);
+						break;
+					case "!streaming":
+						BidRequest.setUsesStreaming(br.getClass(), false);
+						break;
+					case "pooled":
+						BidRequest.setUsesPooling(br.getClass(), true);
+						break;
+					case "!pooled":
+						BidRequest.setUsesPooling(br.getClass(), false);
+						break;
 					default:
 						System.err.println("Unknown request: " + tuples[0] + " in definition of " + className);
 					}
@@ -1715,19 +1829,11 @@ public class Configuration {
 
 	/**
 	 * Recompile the bid attributes we will parse from bid requests, based on the
-	 * aggregate of all campaign bid constraints.
+	 * aggregate of all campaign bid constraints. The result is published as a new
+	 * CampaignSnapshot, requests in flight are not disturbed.
 	 */
 	public void recompile() throws Exception {
-		int percentage = RTBServer.percentage.intValue(); // save the current
-															// throttle
-		// RTBServer.percentage = new AtomicLong(0); // throttle the bidder to 0
-		try {
-			Thread.sleep(1000);
-		} catch (InterruptedException e) {
-		} // Wait for the working campaigns to drain
 		BidRequest.compile(); // modify the Map of bid request components.
-		// RTBServer.percentage = new AtomicLong(percentage); // restore the old
-		// percentage
 	}
 
 	/**
@@ -1745,26 +1851,20 @@ public class Configuration {
 
 	/**
 	 * Sort the rules for selecting campaigns and creatives in descending order, so
-	 * we can shorten the time to no-bid
+	 * we can shorten the time to no-bid. Each campaign swaps in its re-ordered
+	 * predicates atomically, so the bidder keeps running while this happens.
 	 */
 	public void sortCampaignsAndCreatives() {
-		boolean state = RTBServer.stopped;
-		RTBServer.stopped = true;
-
-		// Don't wait if the server is already stopped for some reason
+		List<Campaign> list = new ArrayList<Campaign>(campaignsList);
+		for (int i = 0; i < list.size(); i++) {
+			list.get(i).sortNodes();
+		}
+		// Republish so the targeting index's residual predicates follow the new order
 		try {
-			if (state == false)
-				TimeUnit.SECONDS.sleep(2);
+			BidRequest.compile();
 		} catch (Exception error) {
 			error.printStackTrace();
-			return;
 		}
-
-		for (int i = 0; i < campaignsList.size(); i++) {
-			campaignsList.get(i).sortNodes();
-		}
-
-		RTBServer.stopped = state;
 	}
 
 	/**
@@ -21,6 +21,7 @@ import com.jacamars.dsp.rtb.nativeads.creative.NativeCreative;
 import com.jacamars.dsp.rtb.pojo.*;
 import com.jacamars.dsp.rtb.probe.Probe;
 import com.jacamars.dsp.rtb.tools.MacroProcessing;
+import com.jacamars.dsp.rtb.tools.MacroTemplate;
 
 /**
  * An object that encapsulates the 'creative' (the ad served up and it's
@@ -115,6 +116,22 @@ public class Creative {
 
 	@JsonIgnore
 	public transient StringBuilder smaatoTemplate = null;
+
+	/** The smaato template, compiled for rendering */
+	@JsonIgnore
+	public transient MacroTemplate smaatoCompiled;
+
+	/** The forward url, compiled for rendering */
+	@JsonIgnore
+	public transient MacroTemplate forwardTemplate;
+
+	/** The unencoded adm, compiled for rendering */
+	@JsonIgnore
+	public transient MacroTemplate admTemplate;
+
+	/** The encoded adm, compiled for rendering */
+	@JsonIgnore
+	public transient MacroTemplate encodedAdmTemplate;
 	// //////////////////////////////////////////////////
 
 	/** The macros this particular creative is using */
@@ -143,6 +160,12 @@ public class Creative {
 
 	/** A sorter for the campaign/creative attributes, who is most likely to cause a false will bubble up */
 	private SortNodesFalseCount nodeSorter = new SortNodesFalseCount();
+
+	/** The compiled, immutable form of the fixedNodes */
+	private transient volatile CompiledPredicate[] compiledFixed;
+
+	/** The compiled, immutable form of the attributes */
+	private transient volatile CompiledPredicate[] compiledAttributes;
 	
 
 	/**
@@ -284,6 +307,7 @@ public class Creative {
 
 		encodedFurl = URIEncoder.myUri(forwardurl);
 		encodedIurl = URIEncoder.myUri(imageurl);
+		forwardTemplate = MacroTemplate.compile(forwardurl);
 
 		if (adm != null && adm.size() > 0) {
 			String s = "";
@@ -297,6 +321,8 @@ public class Creative {
 			unencodedAdm = new String(output);
 			MacroProcessing.findMacros(macros, unencodedAdm);
 			encodedAdm = URIEncoder.myUri(s);
+			admTemplate = MacroTemplate.compile(unencodedAdm);
+			encodedAdmTemplate = MacroTemplate.compile(encodedAdm);
 		}
 
 		//strW = Integer.toString(w);
@@ -471,6 +497,48 @@ public class Creative {
 		attributes.add(new FixedNodeDoNative());
         attributes.add(new FixedNodeDoSize());
 		attributes.add(new FixedNodeDoVideo());
+
+		compilePredicates();
+	}
+
+	/**
+	 * Compile the fixed nodes and attributes into their immutable predicate form. Call whenever the
+	 * node lists change.
+	 * @throws Exception if a node is not compilable.
+	 */
+	public void compilePredicates() throws Exception {
+		compiledFixed = PredicateCompiler.compile(fixedNodes);
+		compiledAttributes = PredicateCompiler.compile(attributes);
+	}
+
+	/**
+	 * Return the compiled fixed nodes, compiling them if the list changed since the last compile.
+	 * @return CompiledPredicate[]. The compiled predicates.
+	 * @throws Exception if a node is not compilable.
+	 */
+	@JsonIgnore
+	public CompiledPredicate[] getCompiledFixed() throws Exception {
+		CompiledPredicate[] x = compiledFixed;
+		if (x == null || x.length != fixedNodes.size()) {
+			compilePredicates();
+			x = compiledFixed;
+		}
+		return x;
+	}
+
+	/**
+	 * Return the compiled attributes, compiling them if the list changed since the last compile.
+	 * @return CompiledPredicate[]. The compiled predicates.
+	 * @throws Exception if a node is not compilable.
+	 */
+	@JsonIgnore
+	public CompiledPredicate[] getCompiledAttributes() throws Exception {
+		CompiledPredicate[] x = compiledAttributes;
+		if (x == null || x.length != attributes.size()) {
+			compilePredicates();
+			x = compiledAttributes;
+		}
+		return x;
 	}
 
     /**
@@ -488,6 +556,12 @@ public class Creative {
         for (int i = 0; i<attributes.size();i++) {
             attributes.get(i).clearFalseCount();
         }
+
+        try {
+            compilePredicates();
+        } catch (Exception error) {
+            error.printStackTrace();
+        }
     }
 
 	/**
@@ -528,9 +602,9 @@ public class Creative {
         /**
          * Fixed nodes do not access deals or the br impressions
          */
-        for (int i=0;i<fixedNodes.size();i++) {
-            Deal d = null;
-            if (!fixedNodes.get(i).test(br,this,adId,null,errorString,probe,null))
+        CompiledPredicate[] fixed = getCompiledFixed();
+        for (int i=0;i<fixed.length;i++) {
+            if (!fixed[i].test(br,this,adId,null,errorString,probe,null))
                 return null;
 
         }
@@ -567,9 +641,10 @@ public class Creative {
 		try {
             Deal deal = null;
             List<Deal> deals = new ArrayList<Deal>();
-			for (int i = 0; i < attributes.size(); i++) {
-				n = attributes.get(i);
-				if (n.test(br,this,adId,imp,errorString,probe,deals) == false) {
+            CompiledPredicate[] predicates = getCompiledAttributes();
+			for (int i = 0; i < predicates.length; i++) {
+				n = predicates[i].getNode();
+				if (predicates[i].test(br,this,adId,imp,errorString,probe,deals) == false) {
 				    if (n.hierarchy == null) {
                         if (errorString != null)
                             errorString.append("Creative mismatch: ");
@@ -1,7 +1,10 @@
 package com.jacamars.dsp.rtb.common;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.jacamars.dsp.rtb.bidder.Controller;
 import com.jacamars.dsp.rtb.pojo.BidRequest;
+import com.jacamars.dsp.rtb.redisson.CapCounters;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +16,8 @@ import java.util.Map;
 
 /**
  * A calls that handles frequency capping in Aerospike.
+ * The cap key is "capped_" + adId + the spec values, but it is only ever hashed (see CapCounters), a character at a
+ * time as the values are read from the request, so checking a cap builds no strings.
  * Created by Ben M. Faul on 7/21/17.
  */
 public class FrequencyCap {
@@ -27,7 +32,7 @@ public class FrequencyCap {
     /** Cap time unit, will be one of ("minutes", "hours", "days", "lifetime") */
     public String capTimeUnit;
 
-    /** The computed capKey that will be stored in aerospike */
+    /** The computed capKey that will be stored in aerospike, CapCounters.toKey() of the hashed key */
     public String capKey;
 
     /**
@@ -53,38 +58,34 @@ public class FrequencyCap {
     /**
      * Is this creative capped on the IP address in this bid request?
      * @param br BidRequest. The bid request to query.
-     * @param capSpecs Map. The current cap spec.
+     * @param capSpecs Map. The current cap spec, the hashed cap key by ad id.
      * @param adId String. The ad id being frequency checked.
      * @return boolean. Returns true if the IP address is capped, else false.
      */
-    public boolean isCapped(BidRequest br, Map<String, String> capSpecs, String adId) {
+    public boolean isCapped(BidRequest br, Map<String, Long> capSpecs, String adId) {
         if (capSpecification == null)
             return false;
 
-        StringBuilder value = new StringBuilder();
+        long cap = CapCounters.hash(CapCounters.SEED, "capped_");
+        cap = CapCounters.hash(cap, adId);
         try {
             for (int i=0;i<capSpecification.size();i++) {
-                value.append(BidRequest.getStringFrom(br.database.get(capSpecification.get(i))));
+                cap = hash(cap, br.database.get(capSpecification.get(i)));
             }
         } catch (Exception e) {
             e.printStackTrace();
             return true;
         }
+        cap = CapCounters.finish(cap);
 
-        StringBuilder bs = new StringBuilder("capped_");
-        bs.append(adId);
-        bs.append(value);
         int k = 0;
-        String cap = null;
         try {
-            cap = bs.toString();
-            //System.out.println("---------------------> " + cap);
             capSpecs.put(adId, cap);
             k = getCapValue(cap);
             if (k < 0)
                 return false;
         } catch (Exception e) {
-            logger.error("ERROR GETTING FREQUENCY CAP: {}, error: {}", cap,e.toString());
+            logger.error("ERROR GETTING FREQUENCY CAP: {}, error: {}", CapCounters.toKey(cap),e.toString());
             return true;
         }
 
@@ -94,6 +95,27 @@ public class FrequencyCap {
 
     }
 
+    /**
+     * Hash a spec value into a cap key, the same characters BidRequest.getStringFrom() would return.
+     * @param h long. The hash so far.
+     * @param o Object. The value from the request, a JsonNode, or null.
+     * @return long. The hash so far.
+     */
+    static long hash(long h, Object o) {
+        if (o == null)
+            return CapCounters.hash(h, "null");
+        if (o instanceof ArrayNode) {
+            ArrayNode n = (ArrayNode) o;
+            for (int i = 0; i < n.size(); i++) {
+                if (i > 0)
+                    h = CapCounters.hash(h, ',');
+                h = CapCounters.hash(h, n.get(i).asText());
+            }
+            return h;
+        }
+        return CapCounters.hash(h, ((JsonNode) o).asText());
+    }
+
     /**
      * Returns the number of seconds between the date string and now.
      * @param dateString String. The number of SECONDS from now (e.g. "15") OR a date string as "yyyy-MM-dd hh:mm", which will return
@@ -128,18 +150,28 @@ public class FrequencyCap {
      * @return int. The Integer value of the capSpec
      */
     public static int getCapValue(String capSpec) throws Exception {
-        Number cap = Controller.bidCachePool.getNumber(capSpec);
-        return cap != null? cap.intValue() : -1;
+        return (int) Controller.bidCachePool.getCap(capSpec);
+    }
+
+    /**
+     * Return the Cap value
+     *
+     * @param cap long. The hashed key for the count.
+     * @return int. The Integer value of the cap, or -1 if it is not counting.
+     */
+    public static int getCapValue(long cap) throws Exception {
+        return (int) Controller.bidCachePool.getCap(cap);
     }
 
     /**
      * Handle expiration of a cap specification.
      * @param capSpec String. The frequency specification.
      * @param capTimeout int. The number of the seconds to timeout the specification.
-     * @param capTimeUnit String. Cap time unit, will be one of ("minutes", "hours", "days", "lifetime").
+     * @param capTimeUnit String. Cap time unit, will be one of ("minutes", "hours", "days", "lifetime"). Not used,
+     *                    the window is capTimeout seconds, as it always was.
      * @throws Exception on Aerospike errors.
      */
     public static void handleExpiry(String capSpec, int capTimeout, String capTimeUnit) throws Exception {
-        Controller.bidCachePool.increment(capSpec, capTimeout, capTimeUnit);
+        Controller.bidCachePool.incrementCap(capSpec, capTimeout);
     }
 }
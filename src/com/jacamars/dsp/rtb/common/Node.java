@@ -1418,19 +1418,3 @@ public class Node {
 
 	}
 }
-
-class Point {
-	public double lat;
-	public double lon;
-	public double range;
-
-	public Point(double lat, double lon, double range) {
-		this.lat = lat;
-		this.lon = lon;
-		this.range = range;
-	}
-	
-	public Point() {
-		
-	}
-};
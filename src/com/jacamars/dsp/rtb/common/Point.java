@@ -0,0 +1,17 @@
+package com.jacamars.dsp.rtb.common;
+
+class Point {
+	public double lat;
+	public double lon;
+	public double range;
+
+	public Point(double lat, double lon, double range) {
+		this.lat = lat;
+		this.lon = lon;
+		this.range = range;
+	}
+	
+	public Point() {
+		
+	}
+}
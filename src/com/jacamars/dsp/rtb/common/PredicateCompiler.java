@@ -0,0 +1,574 @@
+package com.jacamars.dsp.rtb.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.BloomFilter;
+import com.jacamars.dsp.rtb.blocks.LookingGlass;
+import com.jacamars.dsp.rtb.blocks.NavMap;
+import com.jacamars.dsp.rtb.blocks.SimpleSet;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+import com.jacamars.dsp.rtb.pojo.Impression;
+import com.jacamars.dsp.rtb.probe.Probe;
+
+/**
+ * Compiles campaign and creative Nodes into immutable, operator specialized CompiledPredicates. All the constant
+ * work a Node does on every test (building sets out of the value list, parsing ranges, compiling patterns) is done
+ * here, once, when the campaign is encoded.
+ * <p>
+ * Fixed nodes (the subclasses of Node that implement creative logic in code) are not compiled, they are wrapped
+ * and called as is.
+ * <p>
+ * Structurally equal nodes (same hierarchy, operator, value and notPresentOk) in different campaigns and creatives
+ * are given the same key. When the campaign snapshot is built, it numbers the keys its campaigns use, so that the
+ * bid request can remember the answer and evaluate each distinct predicate at most once.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public final class PredicateCompiler {
+
+	private PredicateCompiler() {
+
+	}
+
+	/**
+	 * Return the structural key of a predicate, equal for predicates that always give the same answer.
+	 * @param operator int. The operator.
+	 * @param value Object. The constant.
+	 * @param hierarchy String. The hierarchy.
+	 * @param notPresentOk boolean. The answer when the hierarchy is missing.
+	 * @return String. The key.
+	 */
+	static String keyOf(int operator, Object value, String hierarchy, boolean notPresentOk) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(operator).append('\u0001').append(hierarchy).append('\u0001').append(notPresentOk).append('\u0001');
+		if (value != null)
+			sb.append(value.getClass().getName()).append('\u0001');
+		sb.append(value);
+		return sb.toString();
+	}
+
+	/**
+	 * Compile a list of nodes, keeping the order.
+	 * @param nodes List. The nodes to compile.
+	 * @return CompiledPredicate[]. The compiled predicates.
+	 * @throws Exception if a node is not compilable.
+	 */
+	public static CompiledPredicate[] compile(List<Node> nodes) throws Exception {
+		CompiledPredicate[] predicates = new CompiledPredicate[nodes.size()];
+		for (int i = 0; i < predicates.length; i++) {
+			predicates[i] = compile(nodes.get(i));
+		}
+		return predicates;
+	}
+
+	/**
+	 * Compile a single node.
+	 * @param node Node. The node to compile.
+	 * @return CompiledPredicate. The compiled form of the node.
+	 * @throws Exception if a node is not compilable.
+	 */
+	public static CompiledPredicate compile(Node node) throws Exception {
+		return compile(node, node.notPresentOk);
+	}
+
+	static CompiledPredicate compile(Node node, boolean notPresentOk) throws Exception {
+		if (node.getClass() != Node.class)
+			return new Delegate(node);
+
+		int operator = node.operator;
+		if (operator == Node.OR) {
+			List<?> list = (List<?>) node.lval;
+			CompiledPredicate[] branches = new CompiledPredicate[list.size()];
+			for (int i = 0; i < branches.length; i++) {
+				branches[i] = compile((Node) list.get(i), false);
+			}
+			return new Or(node, branches);
+		}
+
+		if (operator == Node.QUERY) {
+			Object operand = node.lval != null ? node.lval : node.sval != null ? node.sval : node.ival;
+			CompiledPredicate sub = make(node, node.suboperator, operand, node.hierarchy, notPresentOk);
+			return new Query(node, (Map<?, ?>) node.value, sub);
+		}
+
+		CompiledPredicate p = make(node, operator, node.value, node.hierarchy, notPresentOk);
+		if (!(p instanceof Constant) && node.hierarchy != null && node.hierarchy.length() != 0)
+			p.key = keyOf(operator, node.value, node.hierarchy, notPresentOk);
+		return p;
+	}
+
+	static CompiledPredicate make(Node node, int operator, Object value, String hierarchy, boolean notPresentOk)
+			throws Exception {
+		switch (operator) {
+		case Node.EQUALS:
+		case Node.NOT_EQUALS:
+			return new Equals(node, hierarchy, notPresentOk, value, operator == Node.NOT_EQUALS);
+
+		case Node.MEMBER:
+		case Node.NOT_MEMBER:
+			if (value instanceof String && (((String) value).startsWith("@") || ((String) value).startsWith("$")))
+				return new Symbol(node, hierarchy, notPresentOk, (String) value, operator == Node.NOT_MEMBER);
+			return new Member(node, hierarchy, notPresentOk, value, operator == Node.NOT_MEMBER);
+
+		case Node.INTERSECTS:
+		case Node.NOT_INTERSECTS:
+			return new Intersects(node, hierarchy, notPresentOk, value, operator == Node.NOT_INTERSECTS);
+
+		case Node.STRINGIN:
+		case Node.NOT_STRINGIN:
+			return new StringIn(node, hierarchy, notPresentOk, value, operator == Node.NOT_STRINGIN);
+
+		case Node.REGEX:
+		case Node.NOT_REGEX:
+			return new Regex(node, hierarchy, notPresentOk, (String) value, operator == Node.NOT_REGEX);
+
+		case Node.INRANGE:
+		case Node.NOT_INRANGE:
+			return new InRange(node, hierarchy, notPresentOk, node.points, operator == Node.NOT_INRANGE);
+
+		case Node.DOMAIN:
+		case Node.NOT_DOMAIN:
+			List<?> range = (List<?>) value;
+			if (range.size() != 2)
+				throw new Exception("Domain computation requires a low and high range (2 value)");
+			return new Domain(node, hierarchy, notPresentOk, ((Number) range.get(0)).doubleValue(),
+					((Number) range.get(1)).doubleValue(), operator == Node.NOT_DOMAIN);
+
+		case Node.LESS_THAN:
+		case Node.LESS_THAN_EQUALS:
+		case Node.GREATER_THAN:
+		case Node.GREATER_THAN_EQUALS:
+			return new Relational(node, hierarchy, notPresentOk, operator, value);
+
+		case Node.EXISTS:
+		case Node.NOT_EXISTS:
+			return new Exists(node, hierarchy, notPresentOk, operator == Node.NOT_EXISTS);
+
+		default:
+			return new Constant(node, hierarchy, notPresentOk, false);
+		}
+	}
+
+	/**
+	 * Wraps nodes that are implemented in code (the FixedNode* classes).
+	 */
+	static final class Delegate extends CompiledPredicate {
+		Delegate(Node node) {
+			super(node, node.hierarchy, node.notPresentOk);
+		}
+
+		@Override
+		public boolean test(BidRequest br, Creative creative, String adId, Impression imp,
+				StringBuilder errorString, Probe probe, List<Deal> deals) throws Exception {
+			return node.test(br, creative, adId, imp, errorString, probe, deals);
+		}
+
+		@Override
+		public boolean evaluate(BidRequest br) {
+			try {
+				return node.test(br, null);
+			} catch (Exception error) {
+				return false;
+			}
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			return false;
+		}
+	}
+
+	/**
+	 * Always returns the same answer when the value is present, used for unknown operators.
+	 */
+	static final class Constant extends CompiledPredicate {
+		final boolean answer;
+
+		Constant(Node node, String hierarchy, boolean notPresentOk, boolean answer) {
+			super(node, hierarchy, notPresentOk);
+			this.answer = answer;
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			return answer;
+		}
+	}
+
+	/**
+	 * True if any of the branches is true.
+	 */
+	static final class Or extends CompiledPredicate {
+		final CompiledPredicate[] branches;
+
+		Or(Node node, CompiledPredicate[] branches) {
+			super(node, node.hierarchy, node.notPresentOk);
+			this.branches = branches;
+		}
+
+		@Override
+		public boolean evaluate(BidRequest br) {
+			for (int i = 0; i < branches.length; i++) {
+				if (branches[i].evaluate(br))
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			return false;
+		}
+	}
+
+	/**
+	 * Looks the bid request value up in a map, then applies the sub operator to what was found.
+	 */
+	static final class Query extends CompiledPredicate {
+		final Map<?, ?> map;
+		final CompiledPredicate sub;
+
+		Query(Node node, Map<?, ?> map, CompiledPredicate sub) {
+			super(node, node.hierarchy, node.notPresentOk);
+			this.map = map;
+			this.sub = sub;
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			if (map == null)
+				return false;
+			Object x = map.get(value instanceof JsonNode ? ((JsonNode) value).asText() : value.toString());
+			if (x == null)
+				return notPresentOk;
+			return sub.evaluate(x);
+		}
+	}
+
+	static final class Equals extends CompiledPredicate {
+		final Object scalar;
+		final Set<Object> set;
+		/** The members of the set, so the request's list can be checked for each without an iterator */
+		final Object[] members;
+		final boolean not;
+
+		Equals(Node node, String hierarchy, boolean notPresentOk, Object value, boolean not) {
+			super(node, hierarchy, notPresentOk);
+			this.not = not;
+			if (value instanceof Collection) {
+				set = Collections.unmodifiableSet(normalize((Collection<?>) value));
+				members = set.toArray();
+				scalar = null;
+			} else {
+				set = null;
+				members = null;
+				scalar = scalar(value);
+			}
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			boolean test;
+			if (scalar != null) {
+				test = scalar.equals(scalar(value));
+			} else if (set != null && isArray(value)) {
+				test = sameSet(value);
+			} else
+				test = false;
+			return not ? !test : test;
+		}
+
+		/**
+		 * The request's list, as a set of scalars, equals the constant set when every scalar in the list is in the
+		 * set and every member of the set is in the list. Compared in place, nothing is copied.
+		 * @param value Object. A Jackson array or Java collection.
+		 * @return boolean. Returns true if the sets are equal.
+		 */
+		boolean sameSet(Object value) {
+			Iterator<?> it = value instanceof JsonNode ? ((JsonNode) value).elements() : ((Collection<?>) value).iterator();
+			while (it.hasNext()) {
+				Object x = scalar(it.next());
+				if (x != null && !set.contains(x))
+					return false;
+			}
+			for (int i = 0; i < members.length; i++) {
+				if (!contains(value, members[i]))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	static final class Member extends CompiledPredicate {
+		final Object scalar;
+		final Set<Object> set;
+		final boolean not;
+
+		Member(Node node, String hierarchy, boolean notPresentOk, Object value, boolean not) {
+			super(node, hierarchy, notPresentOk);
+			this.not = not;
+			if (value instanceof Collection) {
+				set = Collections.unmodifiableSet(normalize((Collection<?>) value));
+				scalar = null;
+			} else {
+				set = null;
+				scalar = scalar(value);
+			}
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			boolean test;
+			if (isArray(value)) {
+				// Is the constant a member of the set in the request?
+				test = scalar != null && contains(value, scalar);
+			} else {
+				// Is the request's value a member of the constant set?
+				Object x = scalar(value);
+				if (x == null || "".equals(x))
+					test = false;
+				else if (set != null)
+					test = set.contains(x);
+				else
+					test = x.equals(scalar);
+			}
+			return not ? !test : test;
+		}
+	}
+
+	/**
+	 * Membership in a named symbol (a LookingGlass object such as a NavMap, Bloom filter or set). The symbol is looked up
+	 * on each test, because symbols are reloaded independently of the campaigns.
+	 */
+	static final class Symbol extends CompiledPredicate {
+		final String name;
+		final boolean not;
+
+		Symbol(Node node, String hierarchy, boolean notPresentOk, String name, boolean not) {
+			super(node, hierarchy, notPresentOk);
+			this.name = name;
+			this.not = not;
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			boolean test = false;
+			Object v = scalar(value);
+			String svalue = v instanceof String ? (String) v : null;
+			if (svalue != null && svalue.length() != 0) {
+				Object x = LookingGlass.get(name);
+				if (x == null) {
+					Long evalue = Node.errors.get(name);
+					if (evalue == null || (System.currentTimeMillis() - evalue > 60000)) {
+						Node.logger.error("Failed to retrieve symbol: {}", name);
+						Node.errors.put(name, System.currentTimeMillis());
+					}
+				} else if (x instanceof NavMap) {
+					test = ((NavMap) x).contains(svalue);
+				} else if (x instanceof BloomFilter) {
+					@SuppressWarnings("unchecked")
+					BloomFilter<CharSequence> bloom = (BloomFilter<CharSequence>) x;
+					test = bloom.mightContain(svalue);
+				} else if (x instanceof SimpleSet) {
+					test = ((SimpleSet) x).getSet().contains(svalue);
+				}
+			}
+			return not ? !test : test;
+		}
+	}
+
+	static final class Intersects extends CompiledPredicate {
+		final Set<Object> set;
+		final boolean not;
+
+		Intersects(Node node, String hierarchy, boolean notPresentOk, Object value, boolean not) {
+			super(node, hierarchy, notPresentOk);
+			this.not = not;
+			if (value instanceof Collection)
+				set = Collections.unmodifiableSet(normalize((Collection<?>) value));
+			else
+				set = Collections.unmodifiableSet(normalize(Collections.singletonList(value)));
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			boolean test;
+			if (isArray(value))
+				test = anyIn(value, set);
+			else {
+				Object x = scalar(value);
+				test = x != null && set.contains(x);
+			}
+			return not ? !test : test;
+		}
+	}
+
+	static final class StringIn extends CompiledPredicate {
+		final String[] strings;
+		final boolean not;
+
+		StringIn(Node node, String hierarchy, boolean notPresentOk, Object value, boolean not) {
+			super(node, hierarchy, notPresentOk);
+			this.not = not;
+			List<String> list = new ArrayList<String>();
+			if (value instanceof Collection) {
+				for (Object o : (Collection<?>) value) {
+					if (o instanceof String)
+						list.add((String) o);
+				}
+			} else if (value instanceof String)
+				list.add((String) value);
+			strings = list.toArray(new String[list.size()]);
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			Object x = scalar(value);
+			boolean test = false;
+			if (x instanceof String) {
+				String svalue = (String) x;
+				for (int i = 0; i < strings.length && !test; i++) {
+					test = svalue.indexOf(strings[i]) > -1;
+				}
+			}
+			return not ? !test : test;
+		}
+	}
+
+	static final class Regex extends CompiledPredicate {
+		final Pattern pattern;
+		final boolean not;
+
+		Regex(Node node, String hierarchy, boolean notPresentOk, String value, boolean not) {
+			super(node, hierarchy, notPresentOk);
+			this.not = not;
+			this.pattern = value == null ? null : Pattern.compile(value);
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			Object x = scalar(value);
+			boolean test = true;
+			if (pattern != null && x instanceof String)
+				test = pattern.matcher((String) x).matches();
+			return not ? !test : test;
+		}
+	}
+
+	static final class InRange extends CompiledPredicate {
+		final double[] lat;
+		final double[] lon;
+		final double[] range;
+		final boolean not;
+
+		InRange(Node node, String hierarchy, boolean notPresentOk, List<Point> points, boolean not) {
+			super(node, hierarchy, notPresentOk);
+			this.not = not;
+			lat = new double[points.size()];
+			lon = new double[points.size()];
+			range = new double[points.size()];
+			for (int i = 0; i < lat.length; i++) {
+				Point p = points.get(i);
+				lat[i] = p.lat;
+				lon[i] = p.lon;
+				range[i] = p.range;
+			}
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			boolean test = false;
+			if (value instanceof ObjectNode) {
+				ObjectNode n = (ObjectNode) value;
+				double plat = number(n.get("lat"));
+				double plon = number(n.get("lon"));
+				if (!Double.isNaN(plat) && !Double.isNaN(plon)) {
+					for (int i = 0; i < lat.length && !test; i++) {
+						test = Node.getRange(lat[i], lon[i], plat, plon) < range[i];
+					}
+				}
+			}
+			return not ? !test : test;
+		}
+	}
+
+	static final class Domain extends CompiledPredicate {
+		final double low;
+		final double high;
+		final boolean not;
+
+		Domain(Node node, String hierarchy, boolean notPresentOk, double low, double high, boolean not) {
+			super(node, hierarchy, notPresentOk);
+			this.low = low;
+			this.high = high;
+			this.not = not;
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			double x = number(value);
+			boolean test = x >= low && x <= high;
+			return not ? !test : test;
+		}
+	}
+
+	static final class Relational extends CompiledPredicate {
+		final int operator;
+		final double constant;
+
+		Relational(Node node, String hierarchy, boolean notPresentOk, int operator, Object value) {
+			super(node, hierarchy, notPresentOk);
+			this.operator = operator;
+			this.constant = number(value);
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			double x = number(value);
+			if (Double.isNaN(x) || Double.isNaN(constant))
+				return false;
+			switch (operator) {
+			case Node.LESS_THAN:
+				return x < constant;
+			case Node.LESS_THAN_EQUALS:
+				return x <= constant;
+			case Node.GREATER_THAN:
+				return x > constant;
+			default:
+				return x >= constant;
+			}
+		}
+	}
+
+	static final class Exists extends CompiledPredicate {
+		final boolean not;
+
+		Exists(Node node, String hierarchy, boolean notPresentOk, boolean not) {
+			super(node, hierarchy, notPresentOk);
+			this.not = not;
+		}
+
+		@Override
+		protected boolean missing(Object value) {
+			if (not)
+				return true;
+			return value == null ? notPresentOk : false;
+		}
+
+		@Override
+		protected boolean evaluate(Object value) {
+			boolean test = value instanceof ObjectNode;
+			return not ? !test : test;
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package com.jacamars.dsp.rtb.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+
+/**
+ * An inverted index over the discrete targeting attributes of the campaigns (exchange, country, device type, ad size
+ * and so on). Campaign attributes that use EQUALS, MEMBER or INTERSECTS with literal values are indexed by value,
+ * so that a bid request only has to look up its own values to find the few campaigns that could match, instead of
+ * testing every campaign.
+ * <p>
+ * Everything that can't be indexed (ranges, regexes, symbol lookups, negations, ...) stays in the campaign's residual
+ * predicates, which the CampaignProcessor still runs against the candidates.
+ * <p>
+ * Each posting list is also kept as a bitset of campaign ordinals, so that eligibility can be computed as the AND,
+ * over the attributes, of the OR of the request's value bitsets with the attribute's "does not constrain" bitset.
+ * <p>
+ * The index is built with the CampaignSnapshot and is immutable.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public final class TargetingIndex {
+
+	/** The campaigns, the index of a campaign in this list is its ordinal */
+	final List<Campaign> campaigns;
+	/** The indexed attributes */
+	final Attribute[] attributes;
+	/** The ordinal of each campaign */
+	final Map<Campaign, Integer> ordinals;
+	/** The version of the snapshot, whose requests can use the slots */
+	final long version;
+	/** The predicates of each campaign that the index does not handle */
+	final Map<Campaign, CompiledPredicate[]> residuals;
+
+	/**
+	 * The postings for one hierarchy.
+	 */
+	static final class Attribute {
+		/** The hierarchy */
+		final String hierarchy;
+		/** The field table slot of the hierarchy */
+		final int slot;
+		/** Value to campaign ordinals, used when the request value is a scalar */
+		final Map<Object, int[]> scalar;
+		/** Value to campaign ordinals, used for each element when the request value is a list */
+		final Map<Object, int[]> array;
+		/** Ordinals of campaigns that don't constrain this hierarchy */
+		final int[] unconstrained;
+		/** Ordinals of campaigns that constrain this hierarchy but accept a request without it */
+		final int[] missingOk;
+		/** The scalar postings as bitsets */
+		final Map<Object, long[]> scalarBits;
+		/** The list postings as bitsets */
+		final Map<Object, long[]> arrayBits;
+		/** The unconstrained campaigns as a bitset */
+		final long[] unconstrainedBits;
+		/** The campaigns that accept a missing value as a bitset */
+		final long[] missingOkBits;
+
+		Attribute(String hierarchy, int slot, Map<Object, List<Integer>> scalar, Map<Object, List<Integer>> array,
+				List<Integer> unconstrained, List<Integer> missingOk, int size) {
+			this.hierarchy = hierarchy;
+			this.slot = slot;
+			this.scalar = toArrays(scalar);
+			this.array = toArrays(array);
+			this.unconstrained = toArray(unconstrained);
+			this.missingOk = toArray(missingOk);
+			this.scalarBits = toBits(this.scalar, size);
+			this.arrayBits = toBits(this.array, size);
+			this.unconstrainedBits = toBits(this.unconstrained, size);
+			this.missingOkBits = toBits(this.missingOk, size);
+		}
+	}
+
+	/**
+	 * Build the index.
+	 * @param campaigns List. The campaigns of the snapshot.
+	 * @param version long. The version of the snapshot.
+	 * @param slots Map. The field table slots of the snapshot.
+	 * @throws Exception if a campaign's nodes don't compile.
+	 */
+	TargetingIndex(List<Campaign> campaigns, long version, Map<String, Integer> slots) throws Exception {
+		this.campaigns = campaigns;
+		this.version = version;
+
+		// hierarchy -> (ordinal -> the predicate indexed for that campaign)
+		Map<String, Map<Integer, CompiledPredicate>> indexed = new LinkedHashMap<String, Map<Integer, CompiledPredicate>>();
+		Map<Campaign, CompiledPredicate[]> rest = new IdentityHashMap<Campaign, CompiledPredicate[]>();
+		Map<Campaign, Integer> ords = new IdentityHashMap<Campaign, Integer>();
+
+		for (int i = 0; i < campaigns.size(); i++) {
+			Campaign c = campaigns.get(i);
+			ords.put(c, i);
+			CompiledPredicate[] predicates = c.getPredicates();
+			List<CompiledPredicate> residual = new ArrayList<CompiledPredicate>();
+			for (CompiledPredicate p : predicates) {
+				if (values(p) == null) {
+					residual.add(p);
+					continue;
+				}
+				Map<Integer, CompiledPredicate> m = indexed.get(p.hierarchy);
+				if (m == null) {
+					m = new HashMap<Integer, CompiledPredicate>();
+					indexed.put(p.hierarchy, m);
+				}
+				// Only one indexed constraint per campaign and hierarchy, the others are residual
+				if (m.containsKey(i))
+					residual.add(p);
+				else
+					m.put(i, p);
+			}
+			rest.put(c, residual.toArray(new CompiledPredicate[residual.size()]));
+		}
+
+		List<Attribute> list = new ArrayList<Attribute>();
+		for (Map.Entry<String, Map<Integer, CompiledPredicate>> e : indexed.entrySet()) {
+			Map<Object, List<Integer>> scalar = new HashMap<Object, List<Integer>>();
+			Map<Object, List<Integer>> array = new HashMap<Object, List<Integer>>();
+			List<Integer> unconstrained = new ArrayList<Integer>();
+			List<Integer> missingOk = new ArrayList<Integer>();
+			for (int i = 0; i < campaigns.size(); i++) {
+				CompiledPredicate p = e.getValue().get(i);
+				if (p == null) {
+					unconstrained.add(i);
+					continue;
+				}
+				if (p.notPresentOk)
+					missingOk.add(i);
+				boolean lists = listMatches(p);
+				for (Object v : values(p)) {
+					add(scalar, v, i);
+					if (lists)
+						add(array, v, i);
+				}
+			}
+			Integer slot = slots.get(e.getKey());
+			list.add(new Attribute(e.getKey(), slot == null ? -1 : slot, scalar, array, unconstrained, missingOk,
+					campaigns.size()));
+		}
+		attributes = list.toArray(new Attribute[list.size()]);
+		residuals = Collections.unmodifiableMap(rest);
+		ordinals = Collections.unmodifiableMap(ords);
+	}
+
+	/**
+	 * Return the values a predicate accepts, if it can be indexed.
+	 * @param p CompiledPredicate. The predicate.
+	 * @return Collection. The normalized values that make the predicate true, or null if the predicate can't be indexed.
+	 */
+	static Collection<Object> values(CompiledPredicate p) {
+		if (p.hierarchy == null || p.hierarchy.length() == 0)
+			return null;
+		if (p instanceof PredicateCompiler.Equals) {
+			PredicateCompiler.Equals x = (PredicateCompiler.Equals) p;
+			if (x.not || x.scalar == null)
+				return null;
+			return Collections.singletonList(x.scalar);
+		}
+		if (p instanceof PredicateCompiler.Member) {
+			PredicateCompiler.Member x = (PredicateCompiler.Member) p;
+			if (x.not)
+				return null;
+			if (x.set != null) {
+				List<Object> list = new ArrayList<Object>(x.set);
+				list.remove(""); // MEMBER never matches an empty string
+				return list;
+			}
+			if (x.scalar == null || "".equals(x.scalar))
+				return null;
+			return Collections.singletonList(x.scalar);
+		}
+		if (p instanceof PredicateCompiler.Intersects) {
+			PredicateCompiler.Intersects x = (PredicateCompiler.Intersects) p;
+			if (x.not)
+				return null;
+			return x.set;
+		}
+		return null;
+	}
+
+	/**
+	 * Can the predicate match an element of a list in the bid request? True for INTERSECTS, and for MEMBER of a single
+	 * constant (the constant is a member of the request's list).
+	 * @param p CompiledPredicate. An indexable predicate.
+	 * @return boolean. Returns true if the array postings apply.
+	 */
+	static boolean listMatches(CompiledPredicate p) {
+		if (p instanceof PredicateCompiler.Intersects)
+			return true;
+		return p instanceof PredicateCompiler.Member && ((PredicateCompiler.Member) p).set == null;
+	}
+
+	/**
+	 * Return the number of indexed hierarchies.
+	 * @return int. The number of attributes in the index.
+	 */
+	public int size() {
+		return attributes.length;
+	}
+
+	/**
+	 * Return the predicates of the campaign that the index does not evaluate.
+	 * @param c Campaign. The campaign.
+	 * @return CompiledPredicate[]. The residual predicates, or null if the campaign is not in the index.
+	 */
+	public CompiledPredicate[] getResidual(Campaign c) {
+		return residuals.get(c);
+	}
+
+	/**
+	 * Find the campaigns that satisfy all the indexed constraints for this bid request.
+	 * @param br BidRequest. The bid request.
+	 * @param order List. The campaigns in the order they should be returned (a preshuffled list of this snapshot).
+	 * @return List. The candidate campaigns, in the same order as 'order'.
+	 */
+	public List<Campaign> candidates(BidRequest br, List<Campaign> order) {
+		if (attributes.length == 0)
+			return order;
+
+		// A request of another snapshot has its values by name only
+		boolean slotted = br.getVersion() == version;
+
+		int[] count = new int[campaigns.size()];
+		for (int k = 0; k < attributes.length; k++) {
+			Attribute a = attributes[k];
+			mark(count, a.unconstrained, k);
+
+			Object value = br.interrogate(slotted ? a.slot : -1, a.hierarchy);
+			if (value == null || value instanceof MissingNode) {
+				mark(count, a.missingOk, k);
+			} else if (CompiledPredicate.isArray(value)) {
+				Iterator<?> it = value instanceof JsonNode ? ((JsonNode) value).elements()
+						: ((Collection<?>) value).iterator();
+				while (it.hasNext()) {
+					Object x = CompiledPredicate.scalar(it.next());
+					if (x != null)
+						mark(count, a.array.get(x), k);
+				}
+			} else {
+				Object x = CompiledPredicate.scalar(value);
+				if (x != null)
+					mark(count, a.scalar.get(x), k);
+			}
+		}
+
+		int n = attributes.length;
+		List<Campaign> list = new ArrayList<Campaign>();
+		for (int i = 0; i < order.size(); i++) {
+			Campaign c = order.get(i);
+			Integer o = ordinals.get(c);
+			if (o != null && count[o] == n)
+				list.add(c);
+		}
+		return list;
+	}
+
+	/**
+	 * Compute the bitset of campaign ordinals that satisfy all the indexed constraints for this bid request.
+	 * @param br BidRequest. The bid request.
+	 * @return long[]. Bit i is set if campaign i is eligible.
+	 */
+	public long[] eligible(BidRequest br) {
+		// A request of another snapshot has its values by name only
+		boolean slotted = br.getVersion() == version;
+		int words = words(campaigns.size());
+		long[] result = new long[words];
+		for (int i = 0; i < words; i++) {
+			result[i] = -1L;
+		}
+		if (words > 0 && (campaigns.size() & 63) != 0)
+			result[words - 1] = (1L << (campaigns.size() & 63)) - 1;
+
+		long[] mask = new long[words];
+		for (int k = 0; k < attributes.length; k++) {
+			Attribute a = attributes[k];
+			System.arraycopy(a.unconstrainedBits, 0, mask, 0, words);
+
+			Object value = br.interrogate(slotted ? a.slot : -1, a.hierarchy);
+			if (value == null || value instanceof MissingNode) {
+				or(mask, a.missingOkBits);
+			} else if (CompiledPredicate.isArray(value)) {
+				Iterator<?> it = value instanceof JsonNode ? ((JsonNode) value).elements()
+						: ((Collection<?>) value).iterator();
+				while (it.hasNext()) {
+					Object x = CompiledPredicate.scalar(it.next());
+					if (x != null)
+						or(mask, a.arrayBits.get(x));
+				}
+			} else {
+				Object x = CompiledPredicate.scalar(value);
+				if (x != null)
+					or(mask, a.scalarBits.get(x));
+			}
+
+			boolean any = false;
+			for (int i = 0; i < words; i++) {
+				result[i] &= mask[i];
+				any |= result[i] != 0;
+			}
+			if (!any)
+				break;
+		}
+		return result;
+	}
+
+	/**
+	 * Find the campaigns that are set in the eligibility bitset.
+	 * @param bits long[]. The bitset returned by eligible().
+	 * @param order List. The campaigns in the order they should be returned (a preshuffled list of this snapshot).
+	 * @return List. The candidate campaigns, in the same order as 'order'.
+	 */
+	public List<Campaign> candidates(long[] bits, List<Campaign> order) {
+		List<Campaign> list = new ArrayList<Campaign>();
+		for (int i = 0; i < order.size(); i++) {
+			Campaign c = order.get(i);
+			Integer o = ordinals.get(c);
+			if (o != null && (bits[o >>> 6] & (1L << o)) != 0)
+				list.add(c);
+		}
+		return list;
+	}
+
+	static int words(int size) {
+		return (size + 63) >>> 6;
+	}
+
+	static void or(long[] mask, long[] bits) {
+		if (bits == null)
+			return;
+		for (int i = 0; i < mask.length; i++) {
+			mask[i] |= bits[i];
+		}
+	}
+
+	static long[] toBits(int[] ordinals, int size) {
+		long[] bits = new long[words(size)];
+		for (int i = 0; i < ordinals.length; i++) {
+			bits[ordinals[i] >>> 6] |= 1L << ordinals[i];
+		}
+		return bits;
+	}
+
+	static Map<Object, long[]> toBits(Map<Object, int[]> map, int size) {
+		Map<Object, long[]> x = new HashMap<Object, long[]>();
+		for (Map.Entry<Object, int[]> e : map.entrySet()) {
+			x.put(e.getKey(), toBits(e.getValue(), size));
+		}
+		return x;
+	}
+
+	/**
+	 * Count a hit for each ordinal that matched all the previous attributes. Matching the same attribute twice
+	 * only counts once.
+	 */
+	static void mark(int[] count, int[] ordinals, int k) {
+		if (ordinals == null)
+			return;
+		for (int i = 0; i < ordinals.length; i++) {
+			int o = ordinals[i];
+			if (count[o] == k)
+				count[o] = k + 1;
+		}
+	}
+
+	static void add(Map<Object, List<Integer>> map, Object key, int ordinal) {
+		List<Integer> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<Integer>();
+			map.put(key, list);
+		}
+		if (list.size() == 0 || list.get(list.size() - 1) != ordinal)
+			list.add(ordinal);
+	}
+
+	static int[] toArray(List<Integer> list) {
+		int[] x = new int[list.size()];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = list.get(i);
+		}
+		return x;
+	}
+
+	static Map<Object, int[]> toArrays(Map<Object, List<Integer>> map) {
+		Map<Object, int[]> x = new HashMap<Object, int[]>();
+		for (Map.Entry<Object, List<Integer>> e : map.entrySet()) {
+			x.put(e.getKey(), toArray(e.getValue()));
+		}
+		return x;
+	}
+}
@@ -82,6 +82,14 @@ public class Inspector extends BidRequest {
         	AppendToFile.item(fileName, report);
         }
         
+        /**
+         * The inspector writes out every request, it is never reused.
+         */
+        @Override
+        public boolean isReusable() {
+                return false;
+        }
+
         /**
          * Process special AdMedia stuff, sets the exchange name. Setss encoding.
          */
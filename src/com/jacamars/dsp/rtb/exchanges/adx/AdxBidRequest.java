@@ -8,7 +8,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.servlet.http.HttpServletResponse;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -481,6 +480,16 @@ public class AdxBidRequest extends BidRequest {
 	 */
 	public RealtimeBidding.BidRequest internal;
 
+	/**
+	 * The protobuf as received, base64'd into the JSON only when the request is logged
+	 */
+	transient byte[] payload;
+
+	/**
+	 * Set once the 'protobuf' field is in the JSON
+	 */
+	transient volatile boolean encoded;
+
 	/**
 	 * Empty constructor
 	 */
@@ -504,6 +513,34 @@ public class AdxBidRequest extends BidRequest {
 
 	String clickthrough = "http://rtb4free.com/click=1";
 
+	/**
+	 * Add the protobuf to the JSON, for the logs. Only done when the JSON is asked for (getOriginal(), toString()),
+	 * so requests that are not logged never pay for the base64.
+	 */
+	@Override
+	protected void inflate() {
+		if (encoded || root == null)
+			return;
+		synchronized (this) {
+			if (encoded)
+				return;
+			byte[] bytes = payload;
+			if (bytes == null)
+				bytes = internal.toByteArray();
+			root.put("protobuf", new String(Base64.encodeBase64(bytes)));
+			payload = null;
+			encoded = true;
+		}
+	}
+
+	/**
+	 * Adx requests are protobufs, they are never reused.
+	 */
+	@Override
+	public boolean isReusable() {
+		return false;
+	}
+
 	/**
 	 * Makes sure the Adx keys are available on the creative
 	 * @param creat Creative. The creative in question.
@@ -690,14 +727,13 @@ public class AdxBidRequest extends BidRequest {
 	}
 
 	/**
-	 * Write the nobid associated with this bid request
+	 * Return the nobid associated with this bid request. It is always the same, so it is serialized once.
 	 */
 	@Override
-	public void writeNoBid(HttpServletResponse response, long time) throws Exception {
-		// new AdxBidResponse((int)time).writeTo(response);
+	protected byte[] noBidBody() throws Exception {
 		AdxBidResponse resp = new AdxBidResponse();
 		resp.setNoBid();
-		resp.writeTo(response);
+		return resp.getInternal().toByteArray();
 	}
 
 	/**
@@ -733,7 +769,8 @@ public class AdxBidRequest extends BidRequest {
 	public AdxBidRequest(InputStream in) throws Exception {
 		impressions = new ArrayList<Impression>();
 		root = BidRequest.factory.objectNode();
-		internal = RealtimeBidding.BidRequest.parseFrom(in);
+		payload = readBody(in);
+		internal = RealtimeBidding.BidRequest.parseFrom(payload);
 
 		internalSetup();
 
@@ -751,10 +788,6 @@ public class AdxBidRequest extends BidRequest {
 		if (internal.hasIsTest())
 			root.set("is_test", BidRequest.factory.booleanNode(internal.getIsTest()));
 
-		byte[] bytes = internal.toByteArray();
-		String str = new String(Base64.encodeBase64(bytes));
-		root.put("protobuf", str);
-
 		AdSlot ad = internal.getAdslot(0);
 		
 		List<Integer> cl = ad.getExcludedProductCategoryList();
@@ -896,6 +929,7 @@ public class AdxBidRequest extends BidRequest {
 	void internalSetup() throws Exception {
 
 		List<String> beenThere = new ArrayList<String>();
+		List<String> keys = getSnapshot().keys;
 		for (int i = 0; i < keys.size(); i++) {
 			String key = keys.get(i);
 			if (key != null) {
@@ -237,6 +237,14 @@ public class AdxBidResponse extends BidResponse {
 		response.setContentType("application/octet-string");
 		internal.writeTo(response.getOutputStream());
 	}
+
+	/**
+	 * Protobuf responses are small and binary, they are never gzipped.
+	 */
+	@Override
+	public void writeTo(HttpServletResponse response, boolean gzip) throws Exception {
+		writeTo(response);
+	}
 	
 	@Override
 	public void writeTo(HttpServletResponse response, String x) throws Exception {
@@ -197,6 +197,14 @@ public class Appnexus extends BidRequest {
 		return altJson;
 	}
 
+	/**
+	 * The endpoint type and alternate responses are per request, so these are never reused.
+	 */
+	@Override
+	public boolean isReusable() {
+		return false;
+	}
+
 	/**
 	 * Process special Atomx stuff, sets the exchange name.
 	 */
@@ -1,17 +1,21 @@
 package com.jacamars.dsp.rtb.exchanges.google;
 
-import java.io.ByteArrayOutputStream;
 
 import java.io.FileInputStream;
 
 import java.io.InputStream;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.JsonNode;
 
@@ -48,7 +52,9 @@ import com.jacamars.dsp.rtb.common.Campaign;
 import com.jacamars.dsp.rtb.common.Creative;
 import com.jacamars.dsp.rtb.exchanges.adx.Base64;
 import com.jacamars.dsp.rtb.pojo.BidRequest;
+import com.jacamars.dsp.rtb.pojo.FieldAccessor;
 import com.jacamars.dsp.rtb.pojo.Impression;
+import com.jacamars.dsp.rtb.tools.GeoPatch;
 
 /**
  * A class that creates a BidRequest from openRTB protobuf that supports most of
@@ -69,6 +75,106 @@ public class GoogleBidRequest extends BidRequest {
 	private ObjectNode root;
 	// The internal protobuf form.
 	transient private com.google.openrtb.OpenRtb.BidRequest internal;
+	// The protobuf as received, base64'd into the JSON only when the request is logged
+	transient private byte[] payload;
+	// Set once the 'protobuf' field is in the JSON
+	transient private volatile boolean encoded;
+	// Set once site/app, device and user are in the JSON
+	transient private volatile boolean materialized;
+
+	/** The parts of the JSON that are only built when something needs them */
+	static final Set<String> LAZY = new HashSet<String>(Arrays.asList("site", "app", "device", "user"));
+
+	/** Hierarchies in the lazy parts that campaigns read straight from the protobuf */
+	static final Map<String, FieldAccessor<OpenRtb.BidRequest>> accessors = new HashMap<String, FieldAccessor<OpenRtb.BidRequest>>();
+
+	/** The extensions Google sends, shared by all requests */
+	static final ExtensionRegistry registry = ExtensionRegistry.newInstance();
+	static {
+		registry.add(com.google.doubleclick.AdxExt.imp);
+
+		accessors.put("site.id", r -> r.hasSite() && r.getSite().hasId() ? text(r.getSite().getId()) : null);
+		accessors.put("site.name", r -> r.hasSite() && r.getSite().hasName() ? text(r.getSite().getName()) : null);
+		accessors.put("site.domain", r -> r.hasSite() ? siteDomain(r.getSite()) : null);
+		accessors.put("site.page", r -> r.hasSite() && r.getSite().hasPage() ? text(r.getSite().getPage()) : null);
+		accessors.put("site.keywords",
+				r -> r.hasSite() && r.getSite().hasKeywords() ? text(r.getSite().getKeywords()) : null);
+		accessors.put("site.cat", r -> r.hasSite() ? categories(r, r.getSite().getCatList()) : null);
+		accessors.put("site.publisher.id", r -> r.hasSite() && r.getSite().hasPublisher()
+				? text(r.getSite().getPublisher().getId()) : null);
+		// Not translated from the protobuf
+		accessors.put("site.content.url", r -> null);
+
+		accessors.put("app.id", r -> !r.hasSite() && r.getApp().hasId() ? text(r.getApp().getId()) : null);
+		accessors.put("app.name", r -> !r.hasSite() && r.getApp().hasName() ? text(r.getApp().getName()) : null);
+		accessors.put("app.domain",
+				r -> !r.hasSite() && r.getApp().hasDomain() ? text(r.getApp().getDomain()) : null);
+		accessors.put("app.bundle",
+				r -> !r.hasSite() && r.getApp().hasBundle() ? text(r.getApp().getBundle()) : null);
+		accessors.put("app.keywords",
+				r -> !r.hasSite() && r.getApp().hasKeywords() ? text(r.getApp().getKeywords()) : null);
+		accessors.put("app.cat", r -> !r.hasSite() ? categories(r, r.getApp().getCatList()) : null);
+		accessors.put("app.publisher.id", r -> !r.hasSite() && r.getApp().hasPublisher()
+				? text(r.getApp().getPublisher().getId()) : null);
+		accessors.put("app.content.url", r -> !r.hasSite() && r.getApp().hasContent()
+				&& r.getApp().getContent().hasUrl() ? text(r.getApp().getContent().getUrl()) : null);
+
+		accessors.put("device.ip", r -> r.hasDevice() && r.getDevice().hasIp() ? text(r.getDevice().getIp()) : null);
+		accessors.put("device.ua", r -> r.hasDevice() && r.getDevice().hasUa() ? text(r.getDevice().getUa()) : null);
+		accessors.put("device.os", r -> r.hasDevice() && r.getDevice().hasOs() ? text(r.getDevice().getOs()) : null);
+		accessors.put("device.osv",
+				r -> r.hasDevice() && r.getDevice().hasOsv() ? text(r.getDevice().getOsv()) : null);
+		accessors.put("device.language",
+				r -> r.hasDevice() && r.getDevice().hasLanguage() ? text(r.getDevice().getLanguage()) : null);
+		accessors.put("device.carrier",
+				r -> r.hasDevice() && r.getDevice().hasCarrier() ? text(r.getDevice().getCarrier()) : null);
+		accessors.put("device.devicetype", r -> r.hasDevice() && r.getDevice().hasDevicetype()
+				? BidRequest.factory.numberNode(r.getDevice().getDevicetype().getNumber()) : null);
+		accessors.put("device.connectiontype", r -> r.hasDevice() && r.getDevice().hasConnectiontype()
+				? BidRequest.factory.numberNode(r.getDevice().getConnectiontype().getNumber()) : null);
+		accessors.put("device.didsha1",
+				r -> r.hasDevice() && r.getDevice().hasDidsha1() ? text(r.getDevice().getDidsha1()) : null);
+		accessors.put("device.didmd5",
+				r -> r.hasDevice() && r.getDevice().hasDidmd5() ? text(r.getDevice().getDidmd5()) : null);
+		accessors.put("device.dpidsha1",
+				r -> r.hasDevice() && r.getDevice().hasDpidsha1() ? text(r.getDevice().getDpidsha1()) : null);
+		accessors.put("device.dnt", r -> r.hasDevice() && r.getDevice().hasDnt()
+				? BidRequest.factory.booleanNode(r.getDevice().getDnt()) : null);
+		accessors.put("device.js", r -> r.hasDevice() && r.getDevice().hasJs()
+				? BidRequest.factory.booleanNode(r.getDevice().getJs()) : null);
+		// Not translated from the protobuf
+		accessors.put("device.ifa", r -> null);
+
+		accessors.put("device.geo.country",
+				r -> r.hasDevice() && r.getDevice().hasGeo() && r.getDevice().getGeo().hasCountry()
+						? text(r.getDevice().getGeo().getCountry()) : null);
+		accessors.put("device.geo.region",
+				r -> r.hasDevice() && r.getDevice().hasGeo() && r.getDevice().getGeo().hasRegion()
+						? text(r.getDevice().getGeo().getRegion()) : null);
+		accessors.put("device.geo.city",
+				r -> r.hasDevice() && r.getDevice().hasGeo() && r.getDevice().getGeo().hasCity()
+						? text(r.getDevice().getGeo().getCity()) : null);
+		accessors.put("device.geo.metro",
+				r -> r.hasDevice() && r.getDevice().hasGeo() && r.getDevice().getGeo().hasMetro()
+						? text(r.getDevice().getGeo().getMetro()) : null);
+		accessors.put("device.geo.zip",
+				r -> r.hasDevice() && r.getDevice().hasGeo() && r.getDevice().getGeo().hasZip()
+						? text(r.getDevice().getGeo().getZip()) : null);
+		accessors.put("device.geo.lat",
+				r -> r.hasDevice() && r.getDevice().hasGeo() && r.getDevice().getGeo().hasLat()
+						? BidRequest.factory.numberNode(r.getDevice().getGeo().getLat()) : null);
+		accessors.put("device.geo.lon",
+				r -> r.hasDevice() && r.getDevice().hasGeo() && r.getDevice().getGeo().hasLon()
+						? BidRequest.factory.numberNode(r.getDevice().getGeo().getLon()) : null);
+
+		accessors.put("user.id", r -> r.hasUser() && r.getUser().hasId() ? text(r.getUser().getId()) : null);
+		accessors.put("user.buyeruid",
+				r -> r.hasUser() && r.getUser().hasBuyeruid() ? text(r.getUser().getBuyeruid()) : null);
+		accessors.put("user.gender",
+				r -> r.hasUser() && r.getUser().hasGender() ? text(r.getUser().getGender()) : null);
+		accessors.put("user.yob", r -> r.hasUser() && r.getUser().hasYob()
+				? BidRequest.factory.numberNode(r.getUser().getYob()) : null);
+	}
 
 	/**
 	 * Simple constructor
@@ -121,22 +227,14 @@ public class GoogleBidRequest extends BidRequest {
 	 * @throws Exception on protobuf, json or I/O errors.
 	 */
 	public GoogleBidRequest(InputStream in) throws Exception {
-		int nRead;
-		byte[] data = new byte[1024];
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		while ((nRead = in.read(data, 0, data.length)) != -1) {
-			buffer.write(data, 0, nRead);
-		}
-
-		data = buffer.toByteArray();
+		byte[] data = readBody(in);
 		if (data.length == 0) {
 			notABidRequest = true;
 			return;
 		}
 
-		ExtensionRegistry registry = ExtensionRegistry.newInstance();
-		registry.add(com.google.doubleclick.AdxExt.imp);
 		internal = com.google.openrtb.OpenRtb.BidRequest.parseFrom(data, registry);
+		payload = data;
 
 		// internal = com.google.openrtb.OpenRtb.BidRequest.parseFrom(in);
 		doInternal();
@@ -167,11 +265,6 @@ public class GoogleBidRequest extends BidRequest {
 		impressions = new ArrayList<>();
 		root = BidRequest.factory.objectNode();
 
-		// Add this to the log
-		byte[] bytes = internal.toByteArray();
-		String str = new String(Base64.encodeBase64(bytes));
-		root.put("protobuf", str);
-
 		root.put("at", internal.getAt().getNumber());
 		ProtocolStringList list = internal.getBadvList();
 		root.set("badv", getAsStringList(BidRequest.factory.arrayNode(), list));
@@ -183,16 +276,141 @@ public class GoogleBidRequest extends BidRequest {
 		String id = internal.getId();
 
 		root.put("id", id);
-		makeSiteOrApp();
-		makeDevice();
+		// The geo patch edits the device in place, so it has to be there before setup()
+		if (GeoPatch.getInstance().isActive())
+			makeDevice();
 		makeImpressions();
-		makeUser();
 
 		rootNode = root;
 		setup();
 
 	}
 
+	/**
+	 * Find the value of a hierarchy. Site/app, device and user are not translated to JSON up front, so hierarchies
+	 * in those parts are read from the protobuf when there is an accessor for them. Anything else builds the rest
+	 * of the JSON and walks the tree.
+	 */
+	@Override
+	protected Object lookup(String key, List<String> list) {
+		if (!materialized && internal != null && LAZY.contains(list.get(0)) && root.get(list.get(0)) == null) {
+			FieldAccessor<OpenRtb.BidRequest> accessor = accessors.get(key);
+			if (accessor != null)
+				return accessor.get(internal);
+			materialize();
+		}
+		return super.lookup(key, list);
+	}
+
+	/**
+	 * Tell whether site/app, device and user have been translated to JSON.
+	 * @return boolean. Returns true once something needed a hierarchy in them that has no accessor.
+	 */
+	@JsonIgnore
+	public boolean isMaterialized() {
+		return materialized;
+	}
+
+	/**
+	 * Translate the parts of the protobuf that doInternal() left out (site/app, device and user) to JSON.
+	 */
+	void materialize() {
+		if (materialized || internal == null)
+			return;
+		synchronized (this) {
+			if (materialized)
+				return;
+			try {
+				makeSiteOrApp();
+				if (root.get("device") == null)
+					makeDevice();
+				makeUser();
+			} catch (Exception error) {
+				logger.error("Could not build the JSON of Google request {}: {}", id, error.toString());
+			}
+			materialized = true;
+		}
+	}
+
+	static TextNode text(String value) {
+		return BidRequest.factory.textNode(value);
+	}
+
+	/**
+	 * Return the site domain as makeSiteOrApp() does, faking it from the page if needed.
+	 * @param s Site. The protobuf site.
+	 * @return TextNode. The domain, or null if there is none.
+	 */
+	static TextNode siteDomain(Site s) {
+		if (s.hasDomain())
+			return text(s.getDomain());
+		if (!s.hasPage())
+			return null;
+		try {
+			return text(pageDomain(s.getPage()));
+		} catch (Exception error) {
+			return null;
+		}
+	}
+
+	/**
+	 * Return the domain part of a page url.
+	 * @param page String. The url, possibly encoded.
+	 * @return String. The domain, without scheme and www.
+	 * @throws Exception on decoding errors.
+	 */
+	static String pageDomain(String page) throws Exception {
+		String value = URLDecoder.decode(page, java.nio.charset.StandardCharsets.UTF_8.toString());
+		value = value.replace("https://", "");
+		value = value.replace("http://", "");
+		value = value.replace("www.", "");
+		int i = value.indexOf("/");
+		if (i != -1)
+			value = value.substring(0, i);
+		return value;
+	}
+
+	/**
+	 * Return the categories as makeSiteOrApp() does, with the user's vertical segments added.
+	 * @param r OpenRtb.BidRequest. The request.
+	 * @param cat ProtocolStringList. The site or app categories.
+	 * @return ArrayNode. The categories.
+	 */
+	static ArrayNode categories(OpenRtb.BidRequest r, ProtocolStringList cat) {
+		ArrayNode node = getAsStringList(BidRequest.factory.arrayNode(), cat);
+		if (r.hasUser()) {
+			User u = r.getUser();
+			for (int i = 0; i < u.getDataCount(); i++) {
+				OpenRtb.BidRequest.Data d = u.getData(i);
+				for (int j = 0; j < d.getSegmentCount(); j++) {
+					node.add(d.getSegment(j).getId());
+				}
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Finish the JSON and add the protobuf to it, for the logs. Only done when the JSON is asked for (getOriginal(),
+	 * toString()), so requests that are not logged never pay for the translation or the base64.
+	 */
+	@Override
+	protected void inflate() {
+		if (encoded || root == null)
+			return;
+		materialize();
+		synchronized (this) {
+			if (encoded)
+				return;
+			byte[] bytes = payload;
+			if (bytes == null)
+				bytes = internal.toByteArray();
+			root.put("protobuf", new String(Base64.encodeBase64(bytes)));
+			payload = null;
+			encoded = true;
+		}
+	}
+
 	/**
 	 * Make a user object
 	 */
@@ -324,17 +542,8 @@ public class GoogleBidRequest extends BidRequest {
 				/**
 				 * If the domain is empty, fake it out.
 				 */
-				if (!s.hasDomain()) {
-					String value = s.getPage();
-					value = URLDecoder.decode(value, java.nio.charset.StandardCharsets.UTF_8.toString());
-					value = value.replace("https://", "");
-					value = value.replace("http://", "");
-					value = value.replace("www.", "");
-					int i = value.indexOf("/");
-					if (i != -1)
-						value = value.substring(0, i);
-					node.put("domain", value);
-				}
+				if (!s.hasDomain())
+					node.put("domain", pageDomain(s.getPage()));
 			}
 
 			if (s.hasRef())
@@ -845,6 +1054,14 @@ public class GoogleBidRequest extends BidRequest {
 		return node;
 	}
 
+	/**
+	 * Google requests are protobufs, they are never reused.
+	 */
+	@Override
+	public boolean isReusable() {
+		return false;
+	}
+
 	/**
 	 * The configuration requires an e_key and an i_key
 	 */
@@ -155,9 +155,9 @@ public class GoogleBidResponse extends com.jacamars.dsp.rtb.pojo.BidResponse {
 			
 			String adm;
 			if (br.usesEncodedAdm)
-				adm = substitute(creat.encodedAdm);
+				adm = substitute(creat.encodedAdmTemplate);
 			else
-				adm = substitute(creat.unencodedAdm);
+				adm = substitute(creat.admTemplate);
 
 			StringBuilder subbed = new StringBuilder(adm);
 			macroSubs(subbed);
@@ -262,9 +262,9 @@ public class GoogleBidResponse extends com.jacamars.dsp.rtb.pojo.BidResponse {
 		//////////////////
 		if (this.creat.isVideo()) {
 			if (br.usesEncodedAdm) {
-				adm = substitute(creat.encodedAdm);
+				adm = substitute(creat.encodedAdmTemplate);
 			} else {
-				adm = substitute(creat.unencodedAdm);
+				adm = substitute(creat.admTemplate);
 			}
 			
 		} else if (this.creat.isNative()) {
@@ -411,6 +411,14 @@ public class GoogleBidResponse extends com.jacamars.dsp.rtb.pojo.BidResponse {
 		response.setContentType("application/octet-string");
 		internal.writeTo(response.getOutputStream());
 	}
+
+	/**
+	 * Protobuf responses are small and binary, they are never gzipped.
+	 */
+	@Override
+	public void writeTo(HttpServletResponse response, boolean gzip) throws Exception {
+		writeTo(response);
+	}
 	
 	/**
 	 * Write the response using your favorite type.
@@ -1,7 +1,19 @@
 package com.jacamars.dsp.rtb.jmq;
 
+import java.nio.charset.StandardCharsets;
+
 public interface EventIF {
 
 	public void handleMessage(String id, String msg);
+
+	/**
+	 * Handle a message as it came off the wire. Handlers that understand binary messages override this, the
+	 * rest get the message as a UTF-8 string.
+	 * @param id String. The topic.
+	 * @param msg byte[]. The message.
+	 */
+	public default void handleMessage(String id, byte[] msg) {
+		handleMessage(id, new String(msg, StandardCharsets.UTF_8));
+	}
 	public void shutdown();
 }
@@ -1,5 +1,6 @@
 package com.jacamars.dsp.rtb.jmq;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import org.apache.kafka.clients.consumer.ConsumerConfig;
@@ -83,6 +84,20 @@ public class MSubscriber implements Runnable, EventIF, SubscriberIF {
 			handler.handleMessage(key, message);
 	}
 
+	@Override
+	public void handleMessage(String key, byte[] message) {
+		if (key.equals(topic)==false)
+			return;
+
+		if (message != null && message.length > 0 && message[0] != '{' && message[0] != '"') {
+			if (handler != null)
+				handler.handleMessage(key, message);
+			return;
+		}
+
+		handleMessage(key, message == null ? null : new String(message, StandardCharsets.UTF_8));
+	}
+
 	public void close() {
 		shutdown();
 	}
@@ -80,6 +80,15 @@ public class Publisher {
             System.err.println("No publish:" + message);
     }
 
+	/**
+	 * Send bytes as they are on the default configured topic.
+	 * @param message byte[]. The message to send.
+	 */
+	public void publishBytes(byte[] message) {
+		publisher.sendMore(topicName);
+		publisher.send(message);
+	}
+
 	/**
 	 * Publish a message using the default configured topic
 	 * @param message
@@ -205,8 +205,8 @@ public class Subscriber extends TailerListenerAdapter implements Runnable, Subsc
 		while (me.isInterrupted()==false) {
 			// Read envelope with address
 			String address = subscriber.recvStr();
-			// Read message contents
-			String contents = subscriber.recvStr();
+			// Read message contents, the handler decides if it is text
+			byte[] contents = subscriber.recv();
 			handler.handleMessage(address, contents);
 		}
 
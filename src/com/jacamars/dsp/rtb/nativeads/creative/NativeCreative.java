@@ -1,9 +1,11 @@
 package com.jacamars.dsp.rtb.nativeads.creative;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.jacamars.dsp.rtb.bidder.Controller;
 import com.jacamars.dsp.rtb.common.URIEncoder;
@@ -44,6 +46,13 @@ public class NativeCreative {
 		
 		transient public String callToAction; /* when the link is not empty */
 
+		/** Maximum number of request layouts remembered per creative */
+		public static int MAX_LAYOUTS = 64;
+		/** The URI encoded markup, by request layout */
+		transient Map<Layout, String> encoded = new ConcurrentHashMap<Layout, String>();
+		/** The quote escaped markup, by request layout */
+		transient Map<Layout, String> escaped = new ConcurrentHashMap<Layout, String>();
+
 		
     /**
      * An empty constructor for use by Jackson
@@ -90,70 +99,98 @@ public class NativeCreative {
 	 * @return String. The URI encoded string to use in the ADM field.
 	 */
 	public String  getEncodedAdm(BidRequest br) {
-		StringBuilder buf = new StringBuilder();
-		// /////////////////////////////////////// Move to initialiation !
-		// //////////////////////////////
-		buf.append("{\"native\":{\"ver\":1,");
-		buf.append("\"link\":");
-		buf.append(link.getStringBuilder());
-		buf.append(",\"assets\":[");
-		// ///////////////////////////////////////////
+		Layout layout = layoutOf(br);
+		String adm = encoded.get(layout);
+		if (adm == null) {
+			/*
+			 * Now escape the string so it can be passed in the adm field
+			 */
+			adm = URIEncoder.myUri(render(layout));
+			remember(encoded, layout, adm);
+		}
+		return adm;
+	}
+	
+	public String getEscapedAdm(BidRequest br) {
+		Layout layout = layoutOf(br);
+		String adm = escaped.get(layout);
+		if (adm == null) {
+			adm = render(layout).replaceAll("\"", "\\\\\"");
+			remember(escaped, layout, adm);
+		}
+		return adm;
+	}
 
-		int index = -1; // index of the asset in the bid request
+	/**
+	 * Return the layout of the bid request, the index in the request of each of our assets.
+	 * @param br BidRequest. The bid request of this transaction.
+	 * @return Layout. The layout.
+	 */
+	Layout layoutOf(BidRequest br) {
+		int[] indexes = new int[assets.size()];
 		for (int i = 0; i < assets.size(); i++) {
 			Asset a = assets.get(i);
-			index = br.getNativeAdAssetIndex(a.getEntityName(), a.getDataKey(),
+			indexes[i] = br.getNativeAdAssetIndex(a.getEntityName(), a.getDataKey(),
 					a.getDataType());
-			
-			/**
-			 * If -1 is returned, then the creative has a native ad component that the bid request 
-			 * didn't ask for. We presume this is ok and will bid, since the creative did have all
-			 * the other required pieces.
-			 */
-			if (i != -1) {
-				buf.append(a.toStringBuilder(index));
-				if (i + 1 != assets.size())
-					buf.append(",");
-			}
 		}
-		buf.append("]}}");
-
-		/*
-		 * Now escape the string so it can be passed in the adm field
-		 */
-		return URIEncoder.myUri(buf.toString());
+		return new Layout(indexes);
 	}
-	
-	public String getEscapedAdm(BidRequest br) {
+
+	/**
+	 * Build the native JSON for a layout.
+	 * @param layout Layout. The indexes of the assets in the bid request.
+	 * @return String. The native JSON, unescaped.
+	 */
+	String render(Layout layout) {
 		StringBuilder buf = new StringBuilder();
-		// /////////////////////////////////////// Move to initialiation !
-		// //////////////////////////////
 		buf.append("{\"native\":{\"ver\":1,");
 		buf.append("\"link\":");
 		buf.append(link.getStringBuilder());
 		buf.append(",\"assets\":[");
-		// ///////////////////////////////////////////
 
-		int index = -1; // index of the asset in the bid request
 		for (int i = 0; i < assets.size(); i++) {
 			Asset a = assets.get(i);
-			index = br.getNativeAdAssetIndex(a.getEntityName(), a.getDataKey(),
-					a.getDataType());
 			
 			/**
-			 * If -1 is returned, then the creative has a native ad component that the bid request 
+			 * If -1 is the index, then the creative has a native ad component that the bid request 
 			 * didn't ask for. We presume this is ok and will bid, since the creative did have all
 			 * the other required pieces.
 			 */
-			if (i != -1) {
-				buf.append(a.toStringBuilder(index));
-				if (i + 1 != assets.size())
-					buf.append(",");
-			}
+			buf.append(a.toStringBuilder(layout.indexes[i]));
+			if (i + 1 != assets.size())
+				buf.append(",");
 		}
 		buf.append("]}}");
-		String contents = buf.toString();
-		contents = contents.replaceAll("\"", "\\\\\"");
-		return contents;
+		return buf.toString();
+	}
+
+	static void remember(Map<Layout, String> cache, Layout layout, String adm) {
+		if (cache.size() >= MAX_LAYOUTS)
+			cache.clear();
+		cache.put(layout, adm);
+	}
+
+	/**
+	 * The indexes of a creative's assets in a bid request. Requests that ask for the same assets in the same
+	 * order get the same markup.
+	 */
+	static final class Layout {
+		final int[] indexes;
+		final int hash;
+
+		Layout(int[] indexes) {
+			this.indexes = indexes;
+			this.hash = Arrays.hashCode(indexes);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Layout && Arrays.equals(indexes, ((Layout) o).indexes);
+		}
 	}
 }
@@ -10,6 +10,7 @@ import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * POJO for a bid object. Use the HTTP payload of the bid and convert it into this object. This is used for
@@ -19,6 +20,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 public class Bid {
 	/** The GSON encoder */
 	transient static ObjectMapper mapper = new ObjectMapper();
+	/** The shared reader for bid payloads, configured once */
+	transient static final ObjectReader reader = new ObjectMapper().setSerializationInclusion(Include.NON_NULL)
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false).readerFor(Map.class);
 	/** The id of the bid */
 	public String id;
 	/** The impression id of the bid */
@@ -50,10 +54,7 @@ public class Bid {
 	 * @param s String. The payload of an HTTP bid response
 	 */
 	public Bid(String s) throws Exception {
-	    ObjectMapper mapper = new ObjectMapper();
-		mapper.setSerializationInclusion(Include.NON_NULL);
-		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		Map map = mapper.readValue(s,Map.class);
+		Map map = reader.readValue(s);
 		
 		id = (String)map.get("id");
 		List list = (List)map.get("seatbid");
@@ -1,12 +1,13 @@
 package com.jacamars.dsp.rtb.pojo;
 
-import java.io.ByteArrayOutputStream;
-
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
@@ -16,6 +17,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.fasterxml.jackson.databind.node.*;
 import com.jacamars.dsp.rtb.bidder.RTBServer;
+import com.jacamars.dsp.rtb.bidder.ResponseWriter;
 import com.jacamars.dsp.rtb.bidder.SelectedCreative;
 import com.jacamars.dsp.rtb.blocks.LookingGlass;
 import com.jacamars.dsp.rtb.common.*;
@@ -28,6 +30,7 @@ import com.jacamars.dsp.rtb.tools.HexDump;
 import com.jacamars.dsp.rtb.tools.IsoTwo2Iso3;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,8 +61,59 @@ public class BidRequest {
 
 	public transient static final JsonNodeFactory factory = JsonNodeFactory.instance;
 
-	/** The JACKSON objectmapper that will be used by the BidRequest. */
-	public transient ObjectMapper mapper = new ObjectMapper();
+	/**
+	 * The JACKSON objectmapper shared by all bid requests. It is configured once, here, don't reconfigure it at
+	 * run time.
+	 */
+	public transient static final ObjectMapper mapper = new ObjectMapper();
+
+	/** The shared, immutable reader for bid request trees */
+	protected transient static final ObjectReader reader = mapper.readerFor(JsonNode.class);
+
+	/** Largest request body buffer a thread keeps between requests */
+	static final int MAX_BUFFER = 1024 * 1024;
+
+	/** The per thread buffer the request body is read into */
+	static final ThreadLocal<RequestBuffer> buffers = new ThreadLocal<RequestBuffer>() {
+		@Override
+		protected RequestBuffer initialValue() {
+			return new RequestBuffer();
+		}
+	};
+
+	/**
+	 * A reusable buffer for reading a request body.
+	 */
+	static final class RequestBuffer {
+		byte[] data = new byte[8192];
+		int length;
+
+		/**
+		 * Read the whole stream into the buffer, growing it as needed.
+		 * 
+		 * @param in InputStream. The request body.
+		 * @return RequestBuffer. This buffer, holding length bytes.
+		 * @throws IOException on stream errors.
+		 */
+		RequestBuffer read(InputStream in) throws IOException {
+			length = 0;
+			int nRead;
+			while ((nRead = in.read(data, length, data.length - length)) != -1) {
+				length += nRead;
+				if (length == data.length)
+					data = Arrays.copyOf(data, data.length * 2);
+			}
+			return this;
+		}
+
+		/**
+		 * Return the buffer to its thread, dropping it if a large request made it grow too much.
+		 */
+		void release() {
+			if (data.length > MAX_BUFFER)
+				buffers.remove();
+		}
+	}
 
 	/** The jackson based JSON root node */
 	transient protected JsonNode rootNode = null;
@@ -70,9 +124,13 @@ public class BidRequest {
 
 	boolean consentGiven = false;
 	/**
-	 * The bid request values are mapped into a hashmap for fast lookup by campaigns
+	 * The bid request values, in a slot array for fast lookup by campaigns
+	 */
+	protected transient FieldTable fields = new FieldTable(CampaignSnapshot.current());
+	/**
+	 * The bid request values by name, a view of the same table
 	 */
-	public transient Map<String, Object> database = new HashMap();
+	public transient Map<String, Object> database = fields;
 
 	/** The exchange this request came from */
 	private String exchange;
@@ -100,13 +158,10 @@ public class BidRequest {
 
 	/** extension object for geo city, state, county, zip */
 	public Solution geoExtension;
-	/**
-	 * These are the keys found in the union of all campaigns (ie bid request items
-	 * that have constraints
-	 */
-	protected static List<String> keys = new ArrayList<String>();
-	/** The compiled list of database values */
-	protected static Map<String, List<String>> mapp = new HashMap();
+	/** The campaign snapshot this request was parsed with */
+	protected transient CampaignSnapshot snapshot;
+	/** Answers of the shared predicates for this request, indexed by predicate id */
+	protected transient byte[] predicateCache;
 	/**
 	 * Indicates there is an ext.rrtb4free object present in the bid request, used
 	 * by our own private exchange
@@ -127,6 +182,25 @@ public class BidRequest {
 	/** Keep a list of multibid capable exchanges */
 	private static Set<String> multibids = ConcurrentHashMap.newKeySet();
 
+	/** The handler classes that parse their requests with the streaming parser */
+	private static Set<Class<?>> streaming = ConcurrentHashMap.newKeySet();
+
+	/** The parser that pruned rootNode, null once the full tree is present */
+	transient volatile StreamingRequestParser streamed;
+	/** The bytes of the request, kept until the full tree is built */
+	transient byte[] raw;
+
+	/** The handler classes whose requests are reused by the Jetty thread once they no-bid */
+	private static Set<Class<?>> pooling = ConcurrentHashMap.newKeySet();
+
+	/** The no bid bodies, by handler class, see writeNoBid() */
+	static final Map<Class<?>, byte[]> noBids = new ConcurrentHashMap<Class<?>, byte[]>();
+
+	/** Set when something still holds this request after the handler is done with it, so it is not reused */
+	transient volatile boolean retained;
+	/** Impressions of the last use of this request, refilled by setup() */
+	transient List<Impression> spares;
+
 	/** The pageurl of the request */
 	public String pageurl = "";
 	// The type field, used in logging
@@ -136,177 +210,76 @@ public class BidRequest {
 	boolean isSite = true;
 
 	/**
-	 * Take the union of all campaign attributes and place them into the static
-	 * mapp. This way the JSON is queried once and the query becomes the key, and
-	 * the JSON value becomes the map value. With multiple campaigns it is important
-	 * to not be traversing the JSON tree for each campaign.
+	 * Take the union of all campaign attributes and compile them into a new CampaignSnapshot. This way the
+	 * JSON is queried once per key, and the query becomes the key and the JSON value becomes the map value.
+	 * With multiple campaigns it is important to not be traversing the JSON tree for each campaign.
 	 * 
-	 * The compiled attributes are stored in mapp. In setup, the compiled list of
+	 * The snapshot is built on the calling thread and swapped in atomically, bid requests in flight finish
+	 * on the snapshot they started with, so the bidder is never stopped. In setup, the compiled list of
 	 * key/values is then put in the 'database' object for the bidrequest.
 	 */
-	public synchronized static void compile() throws Exception {
+	public static void compile() throws Exception {
 		RTB4FREE = false;
-
-		/**
-		 * Stop the bidder, if it is running
-		 */
-		stopBidder();
-
-		keys.clear();
-		mapp.clear();
-		List<Campaign> list = Configuration.getInstance().getCampaignsList();
-		for (int i = 0; i < list.size(); i++) {
-			Campaign c = list.get(i);
-
-			// Now frequency caps */
-			if (c.frequencyCap != null) {
-				List<String> spec = c.frequencyCap.capSpecification;
-				for (int j = 0; j < spec.size(); j++) {
-					String s = spec.get(j);
-					if (mapp.containsKey(s) == false) {
-						addMap(s);
-					}
-				}
-			}
-
-			logger.debug("Compiling for domain: {} ", c.adomain);
-			for (int j = 0; j < c.attributes.size(); j++) {
-				Node node = c.attributes.get(j);
-				if (mapp.containsKey(keys) == false) {
-					logger.debug("Compile unit: {}: {} values: {}", c.adomain, node.hierarchy, node.bidRequestValues);
-
-					if (node.hierarchy.equals("") == false) {
-						keys.add(node.hierarchy);
-						mapp.put(node.hierarchy, node.bidRequestValues);
-					} else {
-						if (node.operator != Node.OR) {
-							startBidder();
-							throw new Exception("Malformed OR processing in campaign " + c.adId);
-						}
-						List<Node> nodes = (List<Node>) node.value;
-						for (int nc = 0; nc < nodes.size(); nc++) {
-							Object x = nodes.get(nc);
-							Node n = null;
-							if (x instanceof LinkedHashMap) {
-								Map map = (Map) x;
-								n = new Node(map);
-
-							} else
-								n = (Node) x;
-
-							n.setValues();
-							if (mapp.get(n.hierarchy) == null) {
-								keys.add(n.hierarchy);
-								mapp.put(n.hierarchy, n.bidRequestValues);
-							}
-						}
-					}
-				}
-			}
-			for (Creative creative : c.creatives) { // Handle creative specific
-													// attributes
-				logger.debug("Compiling creatives for: {}: {}", c.adomain, creative.impid);
-
-				for (Node node : creative.attributes) {
-
-					if (mapp.containsKey(keys) == false) {
-
-						logger.debug("Compile unit: {}/{}/{}: {}", c.adomain, creative.impid, node.hierarchy,
-								node.bidRequestValues);
-
-						if (mapp.get(node.hierarchy) == null) {
-							keys.add(node.hierarchy);
-							mapp.put(node.hierarchy, node.bidRequestValues);
-						}
-					}
-				}
-			}
-		}
-
-		compileBuiltIns();
-
-		// Shuffle the campaigns
-		Preshuffle.getInstance().compile();
-
-		// Restart the bidder
-		startBidder();
+		CampaignSnapshot.compile(Configuration.getInstance().getCampaignsList());
 	}
 
-	private static volatile boolean needsRestart = false;
-	private static volatile boolean compilerBusy = false;
-
-	public static boolean compilerBusy() {
-		return compilerBusy;
+	/**
+	 * Recompile the current snapshot, making sure the built in keys are present.
+	 * @throws Exception on malformed campaigns.
+	 */
+	public static void compileBuiltIns() throws Exception {
+		CampaignSnapshot.compile(CampaignSnapshot.current().campaigns);
 	}
 
-	private static void stopBidder() {
-		compilerBusy = true;
-
-		if (RTBServer.stopped)
-			return;
-
-		needsRestart = true;
-		RTBServer.stopped = true;
-		try {
-			Thread.sleep(500);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		;
-	}
-
-	private static void startBidder() {
-		compilerBusy = false;
-		if (needsRestart)
-			RTBServer.stopped = false;
-	}
-
-	public static void compileBuiltIns() {
-		addMap("site.id");
-		addMap("site.domain");
-		addMap("site.name");
-		addMap("site.page");
-		addMap("site.content.url");
-
-		addMap("app.id");
-		addMap("app.domain");
-		addMap("app.name");
-		addMap("app.content.url");
-
-		addMap("imp.0.id");
-		addMap("imp.0.instl");
-		addMap("imp.0.banner");
-		addMap("imp.0.banner.w");
-		addMap("imp.0.banner.h");
-		addMap("imp.0.video");
-		addMap("imp.0.video.w");
-		addMap("imp.0.video.h");
-		addMap("imp.0.video.mimes");
-		addMap("imp.0.video.protocol");
-		addMap("imp.0.video.minduration");
-		addMap("imp.0.video.maxduration");
-		addMap("imp.0.native.layout");
-		addMap("imp.0.bidfloor");
-		addMap("imp.0.pmp");
+	/**
+	 * Add the keys the bidder itself needs to the snapshot being built.
+	 * @param b CampaignSnapshot.Builder. The snapshot being compiled.
+	 */
+	public static void compileBuiltIns(CampaignSnapshot.Builder b) {
+		b.addMap("site.id");
+		b.addMap("site.domain");
+		b.addMap("site.name");
+		b.addMap("site.page");
+		b.addMap("site.content.url");
+
+		b.addMap("app.id");
+		b.addMap("app.domain");
+		b.addMap("app.name");
+		b.addMap("app.content.url");
+
+		b.addMap("imp.0.id");
+		b.addMap("imp.0.instl");
+		b.addMap("imp.0.banner");
+		b.addMap("imp.0.banner.w");
+		b.addMap("imp.0.banner.h");
+		b.addMap("imp.0.video");
+		b.addMap("imp.0.video.w");
+		b.addMap("imp.0.video.h");
+		b.addMap("imp.0.video.mimes");
+		b.addMap("imp.0.video.protocol");
+		b.addMap("imp.0.video.minduration");
+		b.addMap("imp.0.video.maxduration");
+		b.addMap("imp.0.native.layout");
+		b.addMap("imp.0.bidfloor");
+		b.addMap("imp.0.pmp");
 
 		/**
 		 * These are needed to for device attribution and geocode
 		 */
-		addMap("device.geo.lat");
-		addMap("device.geo.lon");
-		addMap("device.ua");
-		addMap("device.geo.country");
+		b.addMap("device.geo.lat");
+		b.addMap("device.geo.lon");
+		b.addMap("device.ua");
+		b.addMap("device.geo.country");
 
 		// addMap("regs.coppa");
 
 		// For the amalgmated key
-		addMap("user.id");
-		addMap("device.ip");
-		addMap("device.ua");
-		addMap("device.ifa");
-		addMap("device.didsha1");
-		addMap("device.didmd5");
+		b.addMap("user.id");
+		b.addMap("device.ip");
+		b.addMap("device.ua");
+		b.addMap("device.ifa");
+		b.addMap("device.didsha1");
+		b.addMap("device.didmd5");
 	}
 
 	/**
@@ -324,12 +297,12 @@ public class BidRequest {
 	 */
 	public BidRequest(String in) throws Exception {
 		String content = new String(Files.readAllBytes(Paths.get(in)));
-		rootNode = mapper.readTree(content);
+		rootNode = getReader().readTree(content);
 		setup();
 	}
 
 	public BidRequest(StringBuilder sb) throws Exception {
-		rootNode = mapper.readTree(sb.toString());
+		rootNode = getReader().readTree(sb.toString());
 		setup();
 	}
 
@@ -340,35 +313,73 @@ public class BidRequest {
 	 * @throws Exception on stream and JSON processing errors.
 	 */
 	public BidRequest(InputStream in) throws Exception {
-		rootNode = mapper.readTree(in);
+		read(in);
+	}
+
+	/**
+	 * Read the JSON from the stream and set up the request.
+	 * 
+	 * @param in InputStream. The stream to read the JSON from
+	 * @throws Exception on stream and JSON processing errors.
+	 */
+	protected void read(InputStream in) throws Exception {
+		if (streaming.contains(getClass())) {
+			raw = readBody(in);
+			StreamingRequestParser parser = StreamingRequestParser.getInstance();
+			rootNode = parser.parse(raw, mapper);
+			streamed = parser;
+		} else
+			rootNode = getReader().readTree(in);
 		setup();
 	}
 
 	public BidRequest(InputStream in, String exchange) {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		String text = null;
+		RequestBuffer buffer = buffers.get();
+		buffer.length = 0;
 		try {
-			int nRead;
-			byte[] data = new byte[4096];
-
-			while ((nRead = in.read(data, 0, data.length)) != -1) {
-				buffer.write(data, 0, nRead);
-			}
-
-			buffer.flush();
-			text = buffer.toString("UTF-8");
-			rootNode = mapper.readTree(text);
+			buffer.read(in);
+			rootNode = getReader().readTree(new ByteArrayInputStream(buffer.data, 0, buffer.length));
 			setup();
 		} catch (Exception error) {
-			byte[] bytes = buffer.toByteArray();
+			String text = new String(buffer.data, 0, buffer.length, StandardCharsets.UTF_8);
 			System.err.println("Error: Bad data from Exchange: " + exchange + ", : " + text);
-			HexDump.dumpHexData(System.err, "Hex Dump Follows", bytes, bytes.length);
+			HexDump.dumpHexData(System.err, "Hex Dump Follows", buffer.data, buffer.length);
 			blackListed = true;
 			id = "";
+		} finally {
+			buffer.release();
 		}
 
 	}
 
+	/**
+	 * Read a whole request body, for exchanges that keep the bytes (streaming parse, protobufs). The body is
+	 * read in this thread's buffer and copied once, into an array of the exact size.
+	 * 
+	 * @param in InputStream. The stream to read.
+	 * @return byte[]. The body, which the caller owns.
+	 * @throws IOException on stream errors.
+	 */
+	protected static byte[] readBody(InputStream in) throws IOException {
+		RequestBuffer buffer = buffers.get();
+		try {
+			buffer.read(in);
+			return Arrays.copyOf(buffer.data, buffer.length);
+		} finally {
+			buffer.release();
+		}
+	}
+
+	/**
+	 * Return the reader used to parse this exchange's requests. Exchanges that need different parsing features
+	 * override this and return their own reader, built once.
+	 * 
+	 * @return ObjectReader. The shared reader.
+	 */
+	protected ObjectReader getReader() {
+		return reader;
+	}
+
 	/**
 	 * Return a bid response of the appropriate type, normally it is a simple
 	 * BidResponse, but for non openRTB you may need to use a different response.
@@ -407,8 +418,34 @@ public class BidRequest {
 		return RTBServer.NOBID_CODE;
 	}
 
+	/**
+	 * Write the no bid for this request. The body is made once per exchange, by noBidBody().
+	 * @param response HttpServletResponse. The response to write to.
+	 * @param time long. The time it took to process the request.
+	 * @throws Exception on I/O errors.
+	 */
 	public void writeNoBid(HttpServletResponse response, long time) throws Exception {
-		response.setStatus(RTBServer.NOBID_CODE);
+		response.setStatus(returnNoBidCode());
+		byte[] body = noBids.get(getClass());
+		if (body == null) {
+			body = noBidBody();
+			if (body == null)
+				body = new byte[0];
+			noBids.put(getClass(), body);
+		}
+		if (body.length == 0)
+			return;
+		response.setContentType(returnContentType());
+		ResponseWriter.getInstance().write(response, body, body.length, false);
+	}
+
+	/**
+	 * Return the body of this exchange's no bid. Exchanges that answer no bids with a 204 have none.
+	 * @return byte[]. The body, or null for none.
+	 * @throws Exception on serialization errors.
+	 */
+	protected byte[] noBidBody() throws Exception {
+		return null;
 	}
 
 	/**
@@ -441,9 +478,21 @@ public class BidRequest {
 														// with required fields
 														// Im looking for
 		try {
+			snapshot = CampaignSnapshot.current();
+			if (fields.snapshot != snapshot) {
+				// Laid out for an older snapshot, keep anything the exchange already put in it
+				FieldTable table = new FieldTable(snapshot);
+				table.putAll(fields);
+				fields = table;
+				database = fields;
+			}
+			int n = snapshot.predicates;
+			if (predicateCache == null || predicateCache.length != n)
+				predicateCache = new byte[n];
+			List<String> keys = snapshot.keys;
 			for (int i = 0; i < keys.size(); i++) {
 				String key = keys.get(i);
-				List list = mapp.get(key);
+				List<String> list = snapshot.mapp.get(key);
 				if (list.size() != 0)
 					compileList(key, list);
 			}
@@ -547,10 +596,16 @@ public class BidRequest {
 			// Handle the impressions
 			//
 			ArrayNode imps = (ArrayNode) rootNode.get("imp");
-			impressions = new ArrayList<Impression>();
+			if (impressions == null)
+				impressions = new ArrayList<Impression>();
 			for (int i = 0; i < imps.size(); i++) {
 				JsonNode obj = imps.get(i);
-				Impression imp = new Impression(rootNode, obj);
+				Impression imp;
+				if (spares != null && spares.size() != 0) {
+					imp = spares.remove(spares.size() - 1);
+					imp.init(rootNode, obj);
+				} else
+					imp = new Impression(rootNode, obj);
 				impressions.add(imp);
 			}
 
@@ -731,21 +786,6 @@ public class BidRequest {
 		return o;
 	}
 
-	/**
-	 * Add a constraint key to the mapp.
-	 * 
-	 * @param line String. The Javascript notation of the constraint.
-	 */
-	public static void addMap(String line) {
-		String[] parts = line.split("\\.");
-		List<String> strings = new ArrayList<String>();
-		for (int i = 0; i < parts.length; i++) {
-			strings.add(parts[i]);
-		}
-		keys.add(line);
-		mapp.put(line, strings);
-	}
-
 	/**
 	 * Compile the JSON values into the database from the list of constraint keys.
 	 * This is what queries the JSON and places it into the database object.
@@ -780,11 +820,13 @@ public class BidRequest {
 		} else {
 
 			/**
-			 * Standard RTB here
+			 * Standard RTB here. The exchange and the domain are answered by interrogate(line), not by the JSON, so
+			 * leave their slots empty.
 			 */
+			if (key.equals("exchange") || key.equals("domain"))
+				return;
 
-			JsonNode node = (JsonNode) walkTree(list);
-			database.put(key, node);
+			database.put(key, lookup(key, list));
 		}
 	}
 
@@ -808,17 +850,50 @@ public class BidRequest {
 
 		Object obj = database.get(line);
 		if (obj == null) { // not in database, so let's query the JSON node
-			String[] parts = line.split("\\.");
-			List<String> list = new ArrayList<String>();
-			for (int i = 0; i < parts.length; i++) {
-				list.add(parts[i]);
+			List<String> list = getSnapshot().mapp.get(line);
+			if (list == null) {
+				String[] parts = line.split("\\.");
+				list = new ArrayList<String>();
+				for (int i = 0; i < parts.length; i++) {
+					list.add(parts[i]);
+				}
 			}
-			obj = walkTree(list);
+			obj = lookup(line, list);
 
 		}
 		return obj;
 	}
 
+	/**
+	 * Find the value of a hierarchy that is not in the database yet. Normally this walks the JSON tree, exchanges
+	 * with a native request form override it to read the field directly (see FieldAccessor).
+	 * 
+	 * @param key  String. The dotted hierarchy.
+	 * @param list List. The hierarchy, decomposed into its parts.
+	 * @return Object. The value at the hierarchy, or null if it doesn't exist.
+	 */
+	protected Object lookup(String key, List<String> list) {
+		return walkTree(list);
+	}
+
+	/**
+	 * Interrogate by slot, the compiled form of interrogate(line). The value comes straight out of the field table
+	 * when the hierarchy was compiled, including the answer that it is missing. Only a slot that was never filled
+	 * falls back to the named lookup.
+	 * 
+	 * @param slot int. The slot of the hierarchy in the snapshot this request was set up with, or -1.
+	 * @param line String. The dotted hierarchy.
+	 * @return Object. Returns the object at the 'line' location or null if it doesn't exist.
+	 */
+	public Object interrogate(int slot, String line) {
+		Object obj = fields.slot(slot);
+		if (obj == FieldTable.NULL)
+			return null;
+		if (obj == null)
+			return interrogate(line);
+		return obj;
+	}
+
 	/**
 	 * Walk the JSON tree using the list. The list contains the object names. Foe
 	 * example, device.geo.lat is stored in the list as ['device','geo','lat']. The
@@ -830,6 +905,8 @@ public class BidRequest {
 	 */
 
 	Object walkTree(List<String> list) {
+		if (streamed != null && !streamed.covered(rootNode, list))
+			inflate();
 		try {
 			JsonNode node = rootNode.get(list.get(0));
 			if (node == null)
@@ -872,6 +949,7 @@ public class BidRequest {
 	 * @return String. he JSON form of this class.
 	 */
 	public String toString() {
+		inflate();
 		if (rootNode == null)
 			return null;
 
@@ -919,6 +997,93 @@ public class BidRequest {
 		throw new Exception("copy constructor for Exchange handler is not implemented");
 	}
 
+	/**
+	 * Refill this request from a new stream, instead of making a copy of the prototype. Only called on requests
+	 * that no-bid and were not retained, see RequestPool.
+	 * 
+	 * @param in        InputStream. The stream containing the JSON of the request.
+	 * @param prototype BidRequest. The exchange's prototype, the same one copy() would be called on.
+	 * @return BidRequest. This object, set up from the new JSON.
+	 * @throws Exception on JSON or InputStream processing errors.
+	 */
+	public BidRequest reuse(InputStream in, BidRequest prototype) throws Exception {
+		reset();
+		read(in);
+		parseSpecial();
+		usesEncodedAdm = prototype.usesEncodedAdm;
+		return this;
+	}
+
+	/**
+	 * Clear everything taken from the last request. The exchange settings (exchange name, encoded adm, multibid)
+	 * stay as they are. Exchanges that keep more per request state override this and call super.reset().
+	 */
+	protected void reset() {
+		rootNode = null;
+		fields.clear();
+		database = fields;
+		consentGiven = false;
+		id = null;
+		siteId = null;
+		siteDomain = "undefined";
+		siteName = null;
+		lat = null;
+		lon = null;
+		synthkey = null;
+		fraudRecord = null;
+		if (impressions != null) {
+			if (spares == null)
+				spares = new ArrayList<Impression>();
+			for (int i = 0; i < impressions.size(); i++) {
+				Impression imp = impressions.get(i);
+				// Only the plain ones can be refilled with init()
+				if (imp.getClass() == Impression.class) {
+					imp.reset();
+					spares.add(imp);
+				}
+			}
+			impressions.clear();
+		}
+		geoExtension = null;
+		snapshot = null;
+		if (predicateCache != null)
+			Arrays.fill(predicateCache, (byte) 0);
+		blackListed = false;
+		streamed = null;
+		raw = null;
+		pageurl = "";
+		logtype = "requests";
+		isSite = true;
+		retained = false;
+	}
+
+	/**
+	 * Can requests of this exchange be refilled with reuse()? Exchanges whose requests are not plain JSON, or that
+	 * keep state reset() does not know about, return false.
+	 * 
+	 * @return boolean. Returns true if pooling was turned on for this handler class.
+	 */
+	public boolean isReusable() {
+		return pooling.contains(getClass());
+	}
+
+	/**
+	 * Mark this request as still in use (queued for logging, held by a selection that timed out, ...), so that
+	 * the handler does not reuse it.
+	 */
+	public void retain() {
+		retained = true;
+	}
+
+	/**
+	 * Is something still holding this request?
+	 * 
+	 * @return boolean. Returns true if it must not be reused.
+	 */
+	public boolean isRetained() {
+		return retained;
+	}
+
 	/**
 	 * Returns the asset id in the bid request of the requested index
 	 * 
@@ -960,9 +1125,43 @@ public class BidRequest {
 	 * @return JsonNode. The original root node of the request.
 	 */
 	public JsonNode getOriginal() {
+		inflate();
 		return rootNode;
 	}
 
+	/**
+	 * Return the campaign snapshot this request was parsed with. Selection should use the same snapshot, so
+	 * that campaigns and compiled keys always agree.
+	 * 
+	 * @return CampaignSnapshot. The snapshot, or the current one if this request was not set up.
+	 */
+	public CampaignSnapshot getSnapshot() {
+		if (snapshot == null)
+			return CampaignSnapshot.current();
+		return snapshot;
+	}
+
+	/**
+	 * Return the version of the snapshot this request was set up with, the one its field table and predicate cache
+	 * are laid out for.
+	 * 
+	 * @return long. The version, or -1 if this request was not set up.
+	 */
+	public long getVersion() {
+		if (snapshot == null)
+			return -1;
+		return snapshot.version;
+	}
+
+	/**
+	 * Return the answers of the shared campaign predicates already evaluated for this request.
+	 * 
+	 * @return byte[]. The cache, indexed by predicate id, or null if this request was not set up.
+	 */
+	public byte[] getPredicateCache() {
+		return predicateCache;
+	}
+
 	/**
 	 * Check for non standard Exchange specific things against the creative. Used
 	 * for exchanges like Appnexus, Adx, and Stroer. If the creative is not set up
@@ -1156,6 +1355,57 @@ public class BidRequest {
 	public static Boolean usesMultibids(String exchange) {
 		return multibids.contains(exchange);
 	}
+
+	/**
+	 * Set that the requests of this handler class are parsed with the streaming parser. Only use this for handlers
+	 * that don't read rootNode directly (use getOriginal() instead).
+	 * 
+	 * @param handler Class. The BidRequest subclass of the exchange.
+	 * @param set     boolean. Use true to parse only the compiled keys, false to parse the whole request.
+	 */
+	public static void setUsesStreaming(Class<?> handler, boolean set) {
+		if (set)
+			streaming.add(handler);
+		else
+			streaming.remove(handler);
+	}
+
+	/**
+	 * Set that the no-bid requests of this handler class are reused by the Jetty thread, instead of copying the
+	 * prototype for every request.
+	 * 
+	 * @param handler Class. The BidRequest subclass of the exchange.
+	 * @param set     boolean. Use true to reuse requests, false to make a new one each time.
+	 */
+	public static void setUsesPooling(Class<?> handler, boolean set) {
+		if (set)
+			pooling.add(handler);
+		else
+			pooling.remove(handler);
+	}
+
+	/**
+	 * Build the full JSON tree of a request that was parsed with the streaming parser. The parts already parsed
+	 * (and any changes made to them) are kept. Does nothing if the full tree is already there.
+	 */
+	protected void inflate() {
+		if (streamed == null)
+			return;
+		synchronized (this) {
+			StreamingRequestParser parser = streamed;
+			if (parser == null)
+				return;
+			try {
+				JsonNode full = getReader().readTree(new ByteArrayInputStream(raw));
+				parser.overlay((ObjectNode) rootNode, (ObjectNode) full);
+				rootNode = full;
+			} catch (Exception error) {
+				logger.error("Could not build the full tree of request {}: {}", id, error.toString());
+			}
+			raw = null;
+			streamed = null;
+		}
+	}
 	
 	/**
 	 * Check the device.ip is NOT in the master cidr list. 
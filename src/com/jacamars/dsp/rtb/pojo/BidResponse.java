@@ -12,10 +12,13 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.jacamars.dsp.rtb.bidder.ResponseWriter;
 import com.jacamars.dsp.rtb.bidder.SelectedCreative;
 import com.jacamars.dsp.rtb.common.*;
 import com.jacamars.dsp.rtb.tools.DbTools;
 import com.jacamars.dsp.rtb.tools.MacroProcessing;
+import com.jacamars.dsp.rtb.tools.MacroTemplate;
 
 /**
  * A class that handles RTB2 bid response. The BidResponse is built up using a
@@ -308,8 +311,24 @@ public class BidResponse {
 		if (str == null)
 			return null;
 
-		StringBuilder sb = new StringBuilder(str);
-		MacroProcessing.replace(creat.macros, br, creat, imp, adid, sb, snurl, dealId);
+		StringBuilder sb = MacroProcessing.buffer();
+		MacroProcessing.expand(str, br, creat, imp, adid, snurl, dealId, sb);
+
+		return sb.toString();
+	}
+
+	/**
+	 * Render a compiled template (the creative's adm, forward url...) for this bid.
+	 * @param t MacroTemplate. The template.
+	 * @return String. The substituted text, or null if t is null.
+	 * @throws Exception on encoding errors.
+	 */
+	protected String substitute(MacroTemplate t) throws Exception {
+		if (t == null)
+			return null;
+
+		StringBuilder sb = MacroProcessing.buffer();
+		MacroProcessing.render(t, br, creat, imp, adid, snurl, dealId, sb);
 
 		return sb.toString();
 	}
@@ -332,9 +351,8 @@ public class BidResponse {
 
 		/* Test if you are completely overriding the template */
 		if (creat.adm_override) {
-			sb = new StringBuilder(creat.forwardurl);
-			macroSubs(sb);
-			MacroProcessing.replace(creat.macros, br, creat, imp, adid, sb, snurl, dealId);
+			sb = new StringBuilder();
+			MacroProcessing.render(forwardTemplate(), br, creat, imp, adid, snurl, dealId, sb);
 			if (exchange.equals("smaato")) {
 				xmlEscape(sb);
 				xmlEscapeEncoded(sb);
@@ -345,9 +363,10 @@ public class BidResponse {
 
 		if (creat.smaatoTemplate != null) {
 			createSmaatoTemplate();
-			sb = new StringBuilder(creat.smaatoTemplate);
-			macroSubs(sb);
-			MacroProcessing.replace(creat.macros, br, creat,imp, adid, sb, snurl, dealId);
+			if (creat.smaatoCompiled == null)
+				creat.smaatoCompiled = MacroTemplate.compile(creat.smaatoTemplate);
+			sb = new StringBuilder();
+			MacroProcessing.render(creat.smaatoCompiled, br, creat, imp, adid, snurl, dealId, sb);
 			xmlEscape(sb);
 			xmlEscapeEncoded(sb);
 			admAsString = sb.toString();
@@ -355,17 +374,15 @@ public class BidResponse {
 								// SMAATO XML!
 		} else {
 
-			String str = Configuration.getInstance().masterTemplate.get(exchange);
-			if (str == null)
+			MacroTemplate t = MacroTemplate.of(Configuration.getInstance().masterTemplate.get(exchange));
+			if (t == null)
 				throw new Exception("No configured template for: " + exchange);
-			sb = new StringBuilder(str);
-
-			macroSubs(sb);
-			MacroProcessing.replace(creat.macros, br, creat, imp, adid, sb, snurl, dealId);
+			sb = MacroProcessing.buffer();
+			MacroProcessing.render(t, br, creat, imp, adid, snurl, dealId, sb);
 
 			if (br.usesEncodedAdm == false) {
 				admAsString = sb.toString();
-				return sb.toString();
+				return admAsString;
 			} else {
 				xmlEscape(sb);
 				xmlEscapeEncoded(sb);
@@ -376,6 +393,16 @@ public class BidResponse {
 
 	}
 
+	/**
+	 * Return the creative's compiled forward url, compiling it if the creative was not encoded.
+	 * @return MacroTemplate. The template.
+	 */
+	MacroTemplate forwardTemplate() {
+		if (creat.forwardTemplate == null)
+			return MacroTemplate.of(creat.forwardurl == null ? "" : creat.forwardurl);
+		return creat.forwardTemplate;
+	}
+
 	/**
 	 * While we can't uuencode the adm for smaato (pesky XML tags, we have to
 	 * change & to &amp;
@@ -477,21 +504,11 @@ public class BidResponse {
 	 *            StringBuilder. The adm field being substituted into.
 	 */
 	public void macroSubs(StringBuilder sb) {
-		String lat = "0.0";
-		String lon = "0.0";
-		if (br.lat != null && br.lat != 0.0 && br.lon != null && br.lon != 0) {
-			lat = br.lat.toString();
-			lon = br.lon.toString();
-		}
-		/** The configuration used for generating this response */
-		Configuration config = Configuration.getInstance();
-		replaceAll(sb, "{redirect_url}", config.redirectUrl);
-		replaceAll(sb, "{pixel_url}", config.pixelTrackingUrl);
-		replaceAll(sb, "{creative_forward_url}", creat.forwardurl);
-
+		StringBuilder out = MacroProcessing.buffer();
 		try {
-			MacroProcessing.replace(creat.macros, br, creat, imp, adid, sb, snurl, dealId);
-			MacroProcessing.replace(Configuration.getInstance().macros, br, creat, imp, adid, sb, snurl, dealId);
+			MacroProcessing.expand(sb, br, creat, imp, adid, snurl, dealId, out);
+			sb.setLength(0);
+			sb.append(out);
 		} catch (Exception e) {
 
 			e.printStackTrace();
@@ -742,12 +759,13 @@ public class BidResponse {
 	 * @throws Exception on JSON errors.
 	 */
 	public static BidResponse instantiate (String content) throws Exception  {
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.setSerializationInclusion(Include.NON_NULL);
-		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		return mapper.readValue(content, BidResponse.class);
+		return reader.readValue(content);
 	}
 
+	/** The shared reader used by instantiate, configured once */
+	static final ObjectReader reader = new ObjectMapper().setSerializationInclusion(Include.NON_NULL)
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false).readerFor(BidResponse.class);
+
 
 	/**
 	 * Output the bid response.
@@ -755,11 +773,21 @@ public class BidResponse {
 	 * @throws Exception on I/O errors.
 	 */
 	public void writeTo(HttpServletResponse res) throws Exception {
-		res.getOutputStream().write(response.toString().getBytes());
+		writeTo(res, false);
+	}
+
+	/**
+	 * Output the bid response, straight from the response buffer.
+	 * @param res HttpServletResponse
+	 * @param gzip boolean. Set to true if the exchange accepts gzip, big responses are then compressed.
+	 * @throws Exception on I/O errors.
+	 */
+	public void writeTo(HttpServletResponse res, boolean gzip) throws Exception {
+		ResponseWriter.getInstance().write(res, response, gzip);
 	}
 
 	public void writeTo(HttpServletResponse res, String json) throws Exception {
-		res.getOutputStream().write(json.getBytes());
+		ResponseWriter.getInstance().write(res, json, false);
 	}
 
 	public String getResponseString() throws Exception {
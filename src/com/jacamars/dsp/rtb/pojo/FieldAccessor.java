@@ -0,0 +1,22 @@
+package com.jacamars.dsp.rtb.pojo;
+
+/**
+ * Reads one bid request hierarchy (like device.geo.country) straight out of an exchange's native form of the
+ * request, for example a protobuf, so that campaigns can be evaluated without first translating the request to
+ * JSON. Exchanges keep a table of these by hierarchy, and answer lookup() from it.
+ *
+ * @author Ben M. Faul
+ *
+ * @param <T> The native request type.
+ */
+@FunctionalInterface
+public interface FieldAccessor<T> {
+
+	/**
+	 * Return the value of the field.
+	 * @param source T. The native request.
+	 * @return Object. The value, the same JSON node the translated request would have at this hierarchy, or null
+	 *         if the request does not have it.
+	 */
+	Object get(T source);
+}
@@ -0,0 +1,132 @@
+package com.jacamars.dsp.rtb.pojo;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.jacamars.dsp.rtb.common.CampaignSnapshot;
+
+/**
+ * The values of a bid request, by hierarchy. Hierarchies that have a slot (the ones the campaigns of the snapshot
+ * are compiled against) live in a flat array, anything else goes in a small overflow map. It is still a Map, so code that uses
+ * the request's 'database' by name keeps working, but nodes use get(slot).
+ *
+ * @author Ben M. Faul
+ *
+ */
+public class FieldTable extends AbstractMap<String, Object> {
+
+	/** Marks a slot that was looked up and is not in the request */
+	static final Object NULL = new Object();
+
+	/** The snapshot whose slots this table is laid out by, or null for no slots */
+	final CampaignSnapshot snapshot;
+	/** The slotted values */
+	final Object[] values;
+	/** Values for names without a slot, created on first use */
+	Map<String, Object> overflow;
+
+	/**
+	 * Create a table.
+	 * @param snapshot CampaignSnapshot. The snapshot whose slots to use, or null to keep everything by name.
+	 */
+	public FieldTable(CampaignSnapshot snapshot) {
+		this.snapshot = snapshot;
+		values = new Object[snapshot == null ? 0 : snapshot.slots()];
+	}
+
+	/**
+	 * Return the slot of a name.
+	 * @param key Object. The hierarchy.
+	 * @return int. The slot, or -1 if it has none.
+	 */
+	int slotOf(Object key) {
+		if (snapshot == null)
+			return -1;
+		return snapshot.slotOf(key);
+	}
+
+	/**
+	 * Return the value in a slot.
+	 * @param slot int. The slot.
+	 * @return Object. The value, NULL if it was looked up and is missing, or null if it was never set.
+	 */
+	Object slot(int slot) {
+		if (slot < 0 || slot >= values.length)
+			return null;
+		return values[slot];
+	}
+
+	@Override
+	public Object get(Object key) {
+		int slot = slotOf(key);
+		if (slot >= 0 && slot < values.length) {
+			Object o = values[slot];
+			return o == NULL ? null : o;
+		}
+		if (overflow == null)
+			return null;
+		return overflow.get(key);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		int slot = slotOf(key);
+		if (slot >= 0 && slot < values.length) {
+			Object o = values[slot];
+			values[slot] = value == null ? NULL : value;
+			return o == NULL ? null : o;
+		}
+		if (overflow == null)
+			overflow = new HashMap<String, Object>();
+		return overflow.put(key, value);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		int slot = slotOf(key);
+		if (slot >= 0 && slot < values.length) {
+			Object o = values[slot];
+			values[slot] = null;
+			return o == NULL ? null : o;
+		}
+		if (overflow == null)
+			return null;
+		return overflow.remove(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		int slot = slotOf(key);
+		if (slot >= 0 && slot < values.length)
+			return values[slot] != null;
+		return overflow != null && overflow.containsKey(key);
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = null;
+		}
+		if (overflow != null)
+			overflow.clear();
+	}
+
+	/**
+	 * A copy of the entries, this is not on the bidding path.
+	 */
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		Set<Map.Entry<String, Object>> set = new HashSet<Map.Entry<String, Object>>();
+		for (int i = 0; i < values.length; i++) {
+			Object o = values[i];
+			if (o != null)
+				set.add(new SimpleEntry<String, Object>(snapshot.nameOf(i), o == NULL ? null : o));
+		}
+		if (overflow != null)
+			set.addAll(overflow.entrySet());
+		return set;
+	}
+}
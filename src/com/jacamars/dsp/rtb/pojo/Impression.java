@@ -26,16 +26,11 @@ import com.jacamars.dsp.rtb.nativeads.creative.Title;
  */
 public class Impression {
 
-	protected static List<String> keys = new ArrayList<String>();
-
-	/** The compiled list of database values */
-	protected static Map<String, List<String>> mapp = new HashMap<String, List<String>>();
-
 	/**
 	 * The bid request values are mapped into a hashmap for fast lookup by
 	 * campaigns
 	 */
-	public transient Map<String, Object> database = new HashMap<String, Object>();
+	public transient Map<String, Object> database = new FieldTable(null);
 
 	/** Root node of the bid request */
 	transient protected JsonNode rootNode;
@@ -76,42 +71,6 @@ public class Impression {
 	/** Optional format objects, found only in banner */
 	public List<Format> format;
 
-	/**
-	 * Compiles the builtin attributes
-	 */
-	public static void compileBuiltIns() {
-		addMap("instl");
-		addMap("banner");
-		addMap("banner.w");
-		addMap("banner.h");
-		addMap("video");
-		addMap("video.w");
-		addMap("video.h");
-		addMap("video.mimes");
-		addMap("video.protocol");
-		addMap("video.minduration");
-		addMap("video.maxduration");
-		addMap("native.layout");
-		addMap("bidfloor");
-		addMap("ipmp");
-	}
-
-	/**
-	 * Adds a compiled key.
-	 * 
-	 * @param line
-	 *            String. Dot separated attribute
-	 */
-	public static void addMap(String line) {
-		String[] parts = line.split("\\.");
-		List<String> strings = new ArrayList<String>();
-		for (int i = 0; i < parts.length; i++) {
-			strings.add(parts[i]);
-		}
-		keys.add(line);
-		mapp.put(line, strings);
-	}
-
 	/**
 	 * Default constructor
 	 */
@@ -130,6 +89,19 @@ public class Impression {
 	 *             on Json parsing errors.
 	 */
 	public Impression(JsonNode rootNode, JsonNode rnode) {
+		init(rootNode, rnode);
+	}
+
+	/**
+	 * Fill in the impression from the Json. Used by the constructor, and to refill an impression of a pooled bid
+	 * request after reset().
+	 * 
+	 * @param rootNode
+	 *            JsonNode. The json object of the parent object.
+	 * @param rnode
+	 *            JsonNode. The json object of this impression.
+	 */
+	void init(JsonNode rootNode, JsonNode rnode) {
 		this.rootNode = rootNode;
 		this.rnode = rnode;
 
@@ -186,6 +158,26 @@ public class Impression {
 			doNative();
 	}
 
+	/**
+	 * Clear everything taken from the last request, so the impression can be filled in again with init().
+	 */
+	void reset() {
+		database.clear();
+		rootNode = null;
+		rnode = null;
+		privateAuction = 0;
+		deals = null;
+		instl = 0;
+		impid = null;
+		video = null;
+		nativePart = null;
+		bidFloor = null;
+		nativead = false;
+		w = null;
+		h = null;
+		format = null;
+	}
+
 	/**
 	 * Handle the banner impression.
 	 */
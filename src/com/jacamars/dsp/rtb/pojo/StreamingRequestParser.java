@@ -0,0 +1,189 @@
+package com.jacamars.dsp.rtb.pojo;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jacamars.dsp.rtb.common.CampaignSnapshot;
+
+/**
+ * Parses a bid request with the Jackson token stream, keeping only the parts of the JSON that the compiled campaigns
+ * (and the bidder itself) look at. Everything else (long ext objects, user.data segments and so on) is skipped
+ * without building nodes for it.
+ * <p>
+ * The result is a pruned tree: every object on the way to a compiled key holds only the fields that lead to keys,
+ * and the value at a key is kept whole. Arrays met on the way are kept whole too, as the impressions need them.
+ * When something asks for a part of the request that was pruned, the BidRequest parses the full tree and lays the
+ * pruned tree (with whatever was changed in it) over it.
+ * <p>
+ * One parser is built per campaign snapshot and is immutable.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public final class StreamingRequestParser {
+
+	/** Paths the bidder always reads directly from the tree, not through the compiled keys */
+	static final String[] ALWAYS = { "id", "imp", "ext.synthkey", "regs.ext.gdpr", "user.ext.consent", "device.ip",
+			"device.geo" };
+
+	/** The parser for the current snapshot */
+	static volatile StreamingRequestParser current;
+
+	/** The snapshot the key tree was built from */
+	final CampaignSnapshot snapshot;
+	/** The root of the key tree */
+	final Trie root = new Trie();
+
+	/**
+	 * A level of the key tree.
+	 */
+	static final class Trie {
+		/** The whole value at this level is a key */
+		boolean terminal;
+		/** The next levels, by field name */
+		final Map<String, Trie> children = new HashMap<String, Trie>();
+
+		void add(List<String> parts) {
+			Trie t = this;
+			for (int i = 0; i < parts.size() && !t.terminal; i++) {
+				Trie c = t.children.get(parts.get(i));
+				if (c == null) {
+					c = new Trie();
+					t.children.put(parts.get(i), c);
+				}
+				t = c;
+			}
+			t.terminal = true;
+			t.children.clear();
+		}
+	}
+
+	/**
+	 * Build the key tree for a snapshot.
+	 * @param snapshot CampaignSnapshot. The snapshot holding the compiled keys.
+	 */
+	StreamingRequestParser(CampaignSnapshot snapshot) {
+		this.snapshot = snapshot;
+		for (String key : snapshot.keys) {
+			List<String> parts = snapshot.mapp.get(key);
+			// Synthetic values, not in the JSON
+			if (parts.size() == 0 || parts.get(0).equals("rtb4free"))
+				continue;
+			root.add(parts);
+		}
+		for (String key : ALWAYS) {
+			root.add(CampaignSnapshot.Builder.split(key));
+		}
+	}
+
+	/**
+	 * Return the parser for the current campaign snapshot, building it if the snapshot changed.
+	 * @return StreamingRequestParser. The parser to use.
+	 */
+	public static StreamingRequestParser getInstance() {
+		CampaignSnapshot snap = CampaignSnapshot.current();
+		StreamingRequestParser p = current;
+		if (p == null || p.snapshot != snap) {
+			p = new StreamingRequestParser(snap);
+			current = p;
+		}
+		return p;
+	}
+
+	/**
+	 * Parse the request, keeping only the targeted parts.
+	 * @param bytes byte[]. The JSON of the bid request.
+	 * @param mapper ObjectMapper. The mapper used to read the kept values.
+	 * @return ObjectNode. The pruned tree.
+	 * @throws IOException on JSON errors.
+	 */
+	public ObjectNode parse(byte[] bytes, ObjectMapper mapper) throws IOException {
+		JsonParser p = mapper.getFactory().createParser(bytes);
+		try {
+			if (p.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("Bid request is not a JSON object");
+			ObjectNode node = BidRequest.factory.objectNode();
+			readObject(p, node, root);
+			return node;
+		} finally {
+			p.close();
+		}
+	}
+
+	void readObject(JsonParser p, ObjectNode into, Trie t) throws IOException {
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String name = p.getCurrentName();
+			JsonToken token = p.nextToken();
+			Trie c = t.children.get(name);
+			if (c == null) {
+				p.skipChildren();
+			} else if (token == JsonToken.VALUE_NULL) {
+				into.set(name, NullNode.getInstance());
+			} else if (c.terminal || token != JsonToken.START_OBJECT) {
+				into.set(name, (JsonNode) p.readValueAsTree());
+			} else {
+				ObjectNode child = BidRequest.factory.objectNode();
+				into.set(name, child);
+				readObject(p, child, c);
+			}
+		}
+	}
+
+	/**
+	 * Is the value at this path the same in the pruned tree as in the full tree?
+	 * @param pruned JsonNode. The root of the pruned tree.
+	 * @param list List. The path, eg ['device','geo','lat'].
+	 * @return boolean. Returns true if the pruned tree can answer, false if the full tree is needed.
+	 */
+	public boolean covered(JsonNode pruned, List<String> list) {
+		Trie t = root;
+		JsonNode n = pruned;
+		for (int i = 0; i < list.size(); i++) {
+			if (t.terminal || n == null || n instanceof MissingNode || n.isArray())
+				return true;
+			t = t.children.get(list.get(i));
+			if (t == null)
+				return false;
+			n = n.get(list.get(i));
+		}
+		return t.terminal || n == null || n instanceof MissingNode || n.isArray();
+	}
+
+	/**
+	 * Lay the pruned tree over the full tree, so that changes made to the pruned tree (and the node instances
+	 * already handed out) carry over. Keyed fields the pruned tree no longer has were removed, and are removed
+	 * from the full tree too.
+	 * @param pruned ObjectNode. The pruned tree.
+	 * @param full ObjectNode. The full tree, parsed from the same bytes.
+	 */
+	public void overlay(ObjectNode pruned, ObjectNode full) {
+		overlay(pruned, full, root);
+	}
+
+	void overlay(ObjectNode pruned, ObjectNode full, Trie t) {
+		Iterator<Map.Entry<String, JsonNode>> it = pruned.fields();
+		while (it.hasNext()) {
+			Map.Entry<String, JsonNode> e = it.next();
+			JsonNode have = full.get(e.getKey());
+			Trie c = t.children.get(e.getKey());
+			if (c != null && !c.terminal && e.getValue().isObject() && have != null && have.isObject())
+				overlay((ObjectNode) e.getValue(), (ObjectNode) have, c);
+			else
+				full.set(e.getKey(), e.getValue());
+		}
+		for (String name : t.children.keySet()) {
+			if (!pruned.has(name))
+				full.remove(name);
+		}
+	}
+}
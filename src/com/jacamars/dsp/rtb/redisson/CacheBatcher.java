@@ -0,0 +1,156 @@
+package com.jacamars.dsp.rtb.redisson;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the cache mutations of a RedissonClient for one shard and publishes them as BATCH frames, when maxRecords have
+ * accumulated or every flushMs, whichever comes first. Recording a bid or bumping a frequency cap then costs the
+ * Jetty thread a list add, and the XPUB/XSUB proxy, the other bidders' subscriber threads and Zerospike see one
+ * message per batch instead of one per mutation.
+ * <p>
+ * Increments of a key that is already in the pending batch, with nothing else done to that key since, are folded
+ * into the pending record: its delta goes up and its payload becomes the latest count.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public final class CacheBatcher implements Runnable {
+
+	/** Number of batches published */
+	public static final AtomicLong batches = new AtomicLong();
+	/** Number of records published */
+	public static final AtomicLong records = new AtomicLong();
+	/** Number of increments folded into a pending record */
+	public static final AtomicLong coalesced = new AtomicLong();
+
+	/** The shard these mutations go to */
+	final Shard shard;
+	/** Publish when this many records are pending */
+	final int maxRecords;
+	/** Flushes the pending records every flushMs */
+	public final ScheduledExecutorService flusher;
+	/** Held while a batch is swapped out and published, so batches go out in order */
+	final Object flushing = new Object();
+
+	/** The records waiting to be published, in order */
+	List<CacheFrame> pending = new ArrayList<CacheFrame>();
+	/** Index in pending of the increment that later increments of the key fold into */
+	final Map<String, Integer> increments = new HashMap<String, Integer>();
+
+	/**
+	 * Start batching the mutations sent to a shard.
+	 * @param shard Shard. The shard.
+	 * @param maxRecords int. Publish when this many records are pending.
+	 * @param flushMs long. Publish what is pending this often, in ms.
+	 */
+	public CacheBatcher(Shard shard, int maxRecords, long flushMs) {
+		this.shard = shard;
+		this.maxRecords = maxRecords;
+		flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "cache-batcher");
+			t.setDaemon(true);
+			return t;
+		});
+		flusher.scheduleAtFixedRate(this, flushMs, flushMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Add a mutation to the batch, publishing the batch if it is full.
+	 * @param frame CacheFrame. The mutation.
+	 */
+	public void add(CacheFrame frame) {
+		boolean full;
+		synchronized (this) {
+			if (frame.command == CacheFrame.INCR) {
+				Integer at = increments.get(frame.key);
+				if (at != null && frame.expire == -1) {
+					CacheFrame prior = pending.get(at);
+					pending.set(at, new CacheFrame(CacheFrame.INCR, prior.originHigh, prior.originLow, prior.expire,
+							prior.key, frame.payload, prior.delta + frame.delta));
+					coalesced.incrementAndGet();
+					return;
+				}
+				increments.put(frame.key, pending.size());
+			} else
+				increments.remove(frame.key);
+			pending.add(frame);
+			full = pending.size() >= maxRecords;
+		}
+		if (full)
+			flush();
+	}
+
+	/**
+	 * Return the records waiting to be published.
+	 * @return List. A copy of the pending records, in order.
+	 */
+	public synchronized List<CacheFrame> getPending() {
+		return new ArrayList<CacheFrame>(pending);
+	}
+
+	/**
+	 * Publish whatever is pending.
+	 */
+	void flush() {
+		synchronized (flushing) {
+			List<CacheFrame> batch;
+			synchronized (this) {
+				if (pending.isEmpty())
+					return;
+				batch = pending;
+				pending = new ArrayList<CacheFrame>(batch.size());
+				increments.clear();
+			}
+			publish(batch);
+		}
+	}
+
+	/**
+	 * Publish a batch.
+	 * @param batch List. The records, in order.
+	 */
+	void publish(List<CacheFrame> batch) {
+		CacheFrame first = batch.get(0);
+		try {
+			synchronized (shard.sending) {
+				long sequence = shard.client.sequence.incrementAndGet();
+				if (batch.size() == 1)
+					shard.freq.add(CacheFrame.encode(first, sequence));
+				else
+					shard.freq.add(CacheFrame.encodeBatch(first.originHigh, first.originLow, sequence, batch));
+			}
+			batches.incrementAndGet();
+			records.addAndGet(batch.size());
+		} catch (Exception error) {
+			RedissonClient.logger.warn("Can't encode a batch of {} cache updates, sending them one at a time: {}",
+					batch.size(), error.toString());
+			for (int i = 0; i < batch.size(); i++)
+				shard.send(batch.get(i));
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			flush();
+		} catch (Exception error) {
+			// Keep the schedule going
+			error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Publish what is pending and stop the flusher.
+	 */
+	void shutdown() {
+		flusher.shutdown();
+		flush();
+	}
+}
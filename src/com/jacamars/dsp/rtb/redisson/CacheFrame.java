@@ -0,0 +1,539 @@
+package com.jacamars.dsp.rtb.redisson;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The binary form of a cache mutation sent between the RedissonClients of the bidders and Zerospike on the
+ * "context" topic. It replaces the JSON map {origin, command, key, payload, expire} that every set, hmset, incr
+ * and del used to publish.
+ * <p>
+ * A frame is:
+ * <pre>
+ *   byte     MAGIC (0xCF, JSON messages start with '{' or '"', so the two can share the topic)
+ *   byte     VERSION
+ *   byte     command (SET, HMSET, DEL, INCR, INCRBY, SLOT)
+ *   long     origin, most significant bits
+ *   long     origin, least significant bits
+ *   varint   sequence, counts up per origin
+ *   varint   expire, zigzag encoded, -1 if none
+ *   varint   key length, then the key in UTF-8
+ *   payload  a type tag, then the value. Maps, lists, strings and numbers have their own tags, anything else is
+ *            carried as JSON.
+ *   varint   for INCRBY only, the number of increments, zigzag encoded
+ * </pre>
+ * A BATCH frame carries the records of several mutations from the same origin:
+ * <pre>
+ *   byte     MAGIC
+ *   byte     VERSION
+ *   byte     BATCH
+ *   long     origin, most significant bits
+ *   long     origin, least significant bits
+ *   varint   sequence, shared by the records
+ *   varint   the number of records, then each record as a command byte followed by the expire, key, payload
+ *            (and delta) as above
+ * </pre>
+ * INCRBY is how an INCR that was coalesced with others in a batch goes on the wire. It decodes to an INCR with a
+ * delta greater than 1; its payload is still the sender's count after the last increment.
+ * <p>
+ * The sequence lets Zerospike say which updates of each origin a snapshot includes (see SnapshotWriter), so that a
+ * bidder that is loading one only replays the updates it heard that are newer.
+ * <p>
+ * Decoders reject frames with a version newer than theirs, so a newer sender has to fall back to JSON (see
+ * RedissonClient.BINARY) until all the readers are upgraded.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public final class CacheFrame {
+
+	/** First byte of every frame */
+	public static final byte MAGIC = (byte) 0xCF;
+	/** The version written by this code */
+	public static final byte VERSION = 4;
+
+	/** Set a value with an expiry */
+	public static final byte SET = 1;
+	/** Set a map with an expiry */
+	public static final byte HMSET = 2;
+	/** Delete a key */
+	public static final byte DEL = 3;
+	/** Increment a counter */
+	public static final byte INCR = 4;
+	/** Increment a counter more than once, only on the wire */
+	static final byte INCRBY = 5;
+	/** Several records, only on the wire */
+	public static final byte BATCH = 6;
+	/** The origin's slot of a frequency cap counter: its window expiry and total (see CapCounters) */
+	public static final byte SLOT = 7;
+
+	static final byte T_NULL = 0;
+	static final byte T_LONG = 1;
+	static final byte T_INT = 2;
+	static final byte T_DOUBLE = 3;
+	static final byte T_STRING = 4;
+	static final byte T_TRUE = 5;
+	static final byte T_FALSE = 6;
+	static final byte T_MAP = 7;
+	static final byte T_LIST = 8;
+	static final byte T_JSON = 9;
+
+	/** The smallest fixed part: magic, version, command, origin and a one byte sequence */
+	static final int HEADER = 20;
+
+	/** The command names, by command code */
+	static final String[] NAMES = { null, "set", "hmset", "del", "incr", null, null, "slot" };
+
+	/** Encoding buffer, one per thread */
+	static final ThreadLocal<Writer> writers = new ThreadLocal<Writer>() {
+		@Override
+		protected Writer initialValue() {
+			return new Writer();
+		}
+	};
+
+	/** The command code */
+	public final byte command;
+	/** Origin, most significant bits */
+	public final long originHigh;
+	/** Origin, least significant bits */
+	public final long originLow;
+	/** Expiry time in ms since the epoch, -1 if none */
+	public final long expire;
+	/** The key */
+	public final String key;
+	/** The payload, or null */
+	public final Object payload;
+	/** The number of increments, for INCR */
+	public final long delta;
+	/** The origin's sequence number of the frame this came in, 0 if unknown */
+	public final long sequence;
+
+	CacheFrame(byte command, long originHigh, long originLow, long expire, String key, Object payload) {
+		this(command, originHigh, originLow, expire, key, payload, 1, 0);
+	}
+
+	CacheFrame(byte command, long originHigh, long originLow, long expire, String key, Object payload, long delta) {
+		this(command, originHigh, originLow, expire, key, payload, delta, 0);
+	}
+
+	CacheFrame(byte command, long originHigh, long originLow, long expire, String key, Object payload, long delta,
+			long sequence) {
+		this.command = command;
+		this.originHigh = originHigh;
+		this.originLow = originLow;
+		this.sequence = sequence;
+		this.expire = expire;
+		this.key = key;
+		this.payload = payload;
+		this.delta = delta;
+	}
+
+	/**
+	 * Is this frame from the given origin?
+	 * @param origin UUID. The origin.
+	 * @return boolean. Returns true if origin sent it.
+	 */
+	public boolean isFrom(UUID origin) {
+		return originHigh == origin.getMostSignificantBits() && originLow == origin.getLeastSignificantBits();
+	}
+
+	/**
+	 * Return the command's name, as used in the JSON form.
+	 * @return String. The name, eg "hmset".
+	 */
+	public String getCommand() {
+		return NAMES[command];
+	}
+
+	/**
+	 * Return the frame in the JSON map form, as stored by Zerospike.
+	 * @return Map. The map with origin, command, key, payload and expire.
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("origin", new UUID(originHigh, originLow).toString());
+		m.put("command", getCommand());
+		m.put("key", key);
+		if (payload != null)
+			m.put("payload", payload);
+		if (command != DEL)
+			m.put("expire", expire);
+		return m;
+	}
+
+	/**
+	 * Make a frame from the JSON map form.
+	 * @param m Map. The map with origin, command, key, payload and expire.
+	 * @return CacheFrame. The mutation.
+	 * @throws Exception if the command is unknown.
+	 */
+	public static CacheFrame fromMap(Map<?, ?> m) throws Exception {
+		String name = (String) m.get("command");
+		byte command = 0;
+		for (byte i = SET; i < NAMES.length; i++) {
+			if (NAMES[i] != null && NAMES[i].equals(name))
+				command = i;
+		}
+		if (command == 0)
+			throw new Exception("Unknown cache command: " + name);
+		UUID origin = m.get("origin") == null ? new UUID(0, 0) : UUID.fromString((String) m.get("origin"));
+		Number expire = (Number) m.get("expire");
+		return new CacheFrame(command, origin.getMostSignificantBits(), origin.getLeastSignificantBits(),
+				expire == null ? -1 : expire.longValue(), (String) m.get("key"), m.get("payload"));
+	}
+
+	/**
+	 * Return the origin as a UUID.
+	 * @return UUID. The origin.
+	 */
+	public UUID getOrigin() {
+		return new UUID(originHigh, originLow);
+	}
+
+	@Override
+	public String toString() {
+		return toMap().toString();
+	}
+
+	/**
+	 * Is this message a binary frame?
+	 * @param msg byte[]. The message off the wire.
+	 * @return boolean. Returns true if it is a frame, false if it is some other (JSON) message.
+	 */
+	public static boolean isFrame(byte[] msg) {
+		return msg != null && msg.length >= HEADER && msg[0] == MAGIC;
+	}
+
+	/**
+	 * Encode a mutation.
+	 * @param command byte. The command code.
+	 * @param originHigh long. The sender, most significant bits.
+	 * @param originLow long. The sender, least significant bits.
+	 * @param key String. The key.
+	 * @param payload Object. The value, or null.
+	 * @param expire long. The expiry, ms since the epoch, or -1.
+	 * @return byte[]. The frame.
+	 * @throws Exception on JSON errors for payloads without a binary form.
+	 */
+	public static byte[] encode(byte command, long originHigh, long originLow, String key, Object payload,
+			long expire) throws Exception {
+		return encode(new CacheFrame(command, originHigh, originLow, expire, key, payload), 0);
+	}
+
+	/**
+	 * Encode one mutation.
+	 * @param frame CacheFrame. The mutation.
+	 * @param sequence long. The origin's sequence number for the frame.
+	 * @return byte[]. The frame.
+	 * @throws Exception on JSON errors for payloads without a binary form.
+	 */
+	public static byte[] encode(CacheFrame frame, long sequence) throws Exception {
+		Writer w = writers.get();
+		w.n = 0;
+		w.put(MAGIC);
+		w.put(VERSION);
+		w.put(wireCommand(frame));
+		w.putLong(frame.originHigh);
+		w.putLong(frame.originLow);
+		w.putVarLong(sequence);
+		putRecord(w, frame);
+		return Arrays.copyOf(w.buf, w.n);
+	}
+
+	/**
+	 * Encode several mutations from one origin into a single BATCH frame.
+	 * @param originHigh long. The sender, most significant bits.
+	 * @param originLow long. The sender, least significant bits.
+	 * @param sequence long. The origin's sequence number for the frame.
+	 * @param records List. The mutations, in the order they are to be applied.
+	 * @return byte[]. The frame.
+	 * @throws Exception on JSON errors for payloads without a binary form.
+	 */
+	public static byte[] encodeBatch(long originHigh, long originLow, long sequence, List<CacheFrame> records)
+			throws Exception {
+		Writer w = writers.get();
+		w.n = 0;
+		w.put(MAGIC);
+		w.put(VERSION);
+		w.put(BATCH);
+		w.putLong(originHigh);
+		w.putLong(originLow);
+		w.putVarLong(sequence);
+		w.putVarLong(records.size());
+		for (int i = 0; i < records.size(); i++) {
+			CacheFrame frame = records.get(i);
+			w.put(wireCommand(frame));
+			putRecord(w, frame);
+		}
+		return Arrays.copyOf(w.buf, w.n);
+	}
+
+	static byte wireCommand(CacheFrame frame) {
+		return frame.command == INCR && frame.delta != 1 ? INCRBY : frame.command;
+	}
+
+	static void putRecord(Writer w, CacheFrame frame) throws Exception {
+		w.putVarLong(zigzag(frame.expire));
+		w.putString(frame.key);
+		w.putValue(frame.payload);
+		if (wireCommand(frame) == INCRBY)
+			w.putVarLong(zigzag(frame.delta));
+	}
+
+	/**
+	 * Decode a frame holding one mutation.
+	 * @param msg byte[]. The frame.
+	 * @return CacheFrame. The mutation.
+	 * @throws Exception if this is not a single mutation frame, or is from a newer version, or is truncated.
+	 */
+	public static CacheFrame decode(byte[] msg) throws Exception {
+		Reader r = header(msg);
+		byte command = r.get();
+		if (command == BATCH)
+			throw new Exception("Cache frame is a batch");
+		long high = r.getLong();
+		long low = r.getLong();
+		long sequence = r.getVarLong();
+		return getRecord(r, command, high, low, sequence);
+	}
+
+	/**
+	 * Decode a frame, single or batch, into its mutations.
+	 * @param msg byte[]. The frame.
+	 * @return List. The mutations, in the order they are to be applied.
+	 * @throws Exception if this is not a frame, or is from a newer version, or is truncated.
+	 */
+	public static List<CacheFrame> decodeAll(byte[] msg) throws Exception {
+		Reader r = header(msg);
+		byte command = r.get();
+		long high = r.getLong();
+		long low = r.getLong();
+		long sequence = r.getVarLong();
+		if (command != BATCH) {
+			List<CacheFrame> list = new ArrayList<CacheFrame>(1);
+			list.add(getRecord(r, command, high, low, sequence));
+			return list;
+		}
+		int count = r.getLength();
+		List<CacheFrame> list = new ArrayList<CacheFrame>(count);
+		for (int k = 0; k < count; k++)
+			list.add(getRecord(r, r.get(), high, low, sequence));
+		return list;
+	}
+
+	static Reader header(byte[] msg) throws Exception {
+		if (!isFrame(msg))
+			throw new Exception("Not a cache frame");
+		if (msg[1] > VERSION)
+			throw new Exception("Cache frame version " + msg[1] + " is newer than " + VERSION);
+		Reader r = new Reader(msg);
+		r.i = 2;
+		return r;
+	}
+
+	static CacheFrame getRecord(Reader r, byte command, long high, long low, long sequence) throws Exception {
+		if (command < SET || command > SLOT || command == BATCH)
+			throw new Exception("Unknown cache frame command: " + command);
+		long expire = unzigzag(r.getVarLong());
+		String key = r.getString();
+		Object payload = r.getValue();
+		if (command != INCRBY)
+			return new CacheFrame(command, high, low, expire, key, payload, 1, sequence);
+		return new CacheFrame(INCR, high, low, expire, key, payload, unzigzag(r.getVarLong()), sequence);
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * A growable byte buffer.
+	 */
+	static final class Writer {
+		byte[] buf = new byte[512];
+		int n;
+
+		void ensure(int more) {
+			if (n + more > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, n + more));
+		}
+
+		void put(byte b) {
+			ensure(1);
+			buf[n++] = b;
+		}
+
+		void putLong(long v) {
+			ensure(8);
+			for (int s = 56; s >= 0; s -= 8)
+				buf[n++] = (byte) (v >> s);
+		}
+
+		void putVarLong(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buf[n++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[n++] = (byte) v;
+		}
+
+		void putString(String s) {
+			int len = s.length();
+			boolean ascii = true;
+			for (int i = 0; i < len && ascii; i++)
+				ascii = s.charAt(i) < 0x80;
+			if (ascii) {
+				putVarLong(len);
+				ensure(len);
+				for (int i = 0; i < len; i++)
+					buf[n++] = (byte) s.charAt(i);
+				return;
+			}
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			putVarLong(b.length);
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, n, b.length);
+			n += b.length;
+		}
+
+		void putValue(Object o) throws Exception {
+			if (o == null) {
+				put(T_NULL);
+			} else if (o instanceof Long || o instanceof AtomicLong) {
+				put(T_LONG);
+				putVarLong(zigzag(((Number) o).longValue()));
+			} else if (o instanceof Integer || o instanceof Short || o instanceof Byte || o instanceof AtomicInteger) {
+				put(T_INT);
+				putVarLong(zigzag(((Number) o).intValue()));
+			} else if (o instanceof Double || o instanceof Float) {
+				put(T_DOUBLE);
+				putLong(Double.doubleToLongBits(((Number) o).doubleValue()));
+			} else if (o instanceof String) {
+				put(T_STRING);
+				putString((String) o);
+			} else if (o instanceof Boolean) {
+				put(((Boolean) o) ? T_TRUE : T_FALSE);
+			} else if (o instanceof Map) {
+				Map<?, ?> m = (Map<?, ?>) o;
+				put(T_MAP);
+				putVarLong(m.size());
+				for (Map.Entry<?, ?> e : m.entrySet()) {
+					putString(String.valueOf(e.getKey()));
+					putValue(e.getValue());
+				}
+			} else if (o instanceof List) {
+				List<?> list = (List<?>) o;
+				put(T_LIST);
+				putVarLong(list.size());
+				for (int i = 0; i < list.size(); i++)
+					putValue(list.get(i));
+			} else {
+				put(T_JSON);
+				putString(RedissonClient.mapper.writeValueAsString(o));
+			}
+		}
+	}
+
+	/**
+	 * A cursor over a frame.
+	 */
+	static final class Reader {
+		final byte[] buf;
+		int i;
+
+		Reader(byte[] buf) {
+			this.buf = buf;
+		}
+
+		byte get() throws Exception {
+			if (i >= buf.length)
+				throw new Exception("Truncated cache frame");
+			return buf[i++];
+		}
+
+		long getLong() throws Exception {
+			long v = 0;
+			for (int k = 0; k < 8; k++)
+				v = (v << 8) | (get() & 0xFF);
+			return v;
+		}
+
+		long getVarLong() throws Exception {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = get();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return v;
+			}
+			throw new Exception("Malformed varint in cache frame");
+		}
+
+		int getLength() throws Exception {
+			long len = getVarLong();
+			if (len < 0 || len > buf.length - i)
+				throw new Exception("Bad length in cache frame: " + len);
+			return (int) len;
+		}
+
+		String getString() throws Exception {
+			int len = getLength();
+			String s = new String(buf, i, len, StandardCharsets.UTF_8);
+			i += len;
+			return s;
+		}
+
+		Object getValue() throws Exception {
+			byte tag = get();
+			switch (tag) {
+			case T_NULL:
+				return null;
+			case T_LONG:
+				return unzigzag(getVarLong());
+			case T_INT:
+				return (int) unzigzag(getVarLong());
+			case T_DOUBLE:
+				return Double.longBitsToDouble(getLong());
+			case T_STRING:
+				return getString();
+			case T_TRUE:
+				return Boolean.TRUE;
+			case T_FALSE:
+				return Boolean.FALSE;
+			case T_MAP: {
+				int size = getLength();
+				Map<String, Object> m = new HashMap<String, Object>(size * 2);
+				for (int k = 0; k < size; k++) {
+					String name = getString();
+					m.put(name, getValue());
+				}
+				return m;
+			}
+			case T_LIST: {
+				int size = getLength();
+				List<Object> list = new ArrayList<Object>(size);
+				for (int k = 0; k < size; k++)
+					list.add(getValue());
+				return list;
+			}
+			case T_JSON:
+				return RedissonClient.mapper.readValue(getString(), Object.class);
+			default:
+				throw new Exception("Unknown payload type in cache frame: " + tag);
+			}
+		}
+	}
+}
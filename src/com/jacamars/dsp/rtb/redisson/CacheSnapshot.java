@@ -0,0 +1,233 @@
+package com.jacamars.dsp.rtb.redisson;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The binary form of the snapshot Zerospike's FileServer sends a bidder when it starts, in place of one JSON
+ * object per key behind a 6 character length.
+ * <p>
+ * The bidder says it can read this form by sending hello() when it connects. Zerospike then sends:
+ * <pre>
+ *   byte[4]  MAGIC
+ *   byte     VERSION
+ *   int      number of origins, then for each: long, long origin, long the last sequence applied from it
+ *   chunks   int raw length, int deflated length, the deflated bytes; a raw length of 0 ends the snapshot
+ *   int      the number of records sent
+ * </pre>
+ * A chunk, inflated, is records of an int length followed by a CacheFrame. The sequences are taken before the
+ * keys are read, so every update at or below them is in the snapshot, and the bidder only has to replay the
+ * updates it heard while loading that are newer.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public final class CacheSnapshot {
+
+	/** Starts the hello and the snapshot */
+	public static final byte[] MAGIC = { 'Z', 'S', 'N', 'P' };
+	/** The version written by this code */
+	public static final byte VERSION = 1;
+	/** Records are deflated in chunks of about this many bytes */
+	public static int CHUNK = 64 * 1024;
+	/** Number of records left out of snapshots because they could not be encoded */
+	public static final AtomicLong skipped = new AtomicLong();
+
+	static final Logger logger = LoggerFactory.getLogger(CacheSnapshot.class);
+
+	/**
+	 * Called with each record of a snapshot as it is read.
+	 */
+	@FunctionalInterface
+	public interface Sink {
+		/**
+		 * Apply a record.
+		 * @param frame CacheFrame. The record.
+		 * @throws Exception on cache errors.
+		 */
+		void accept(CacheFrame frame) throws Exception;
+	}
+
+	/**
+	 * Return the bytes a bidder sends to ask for this form.
+	 * @return byte[]. The hello.
+	 */
+	public static byte[] hello() {
+		byte[] hello = Arrays.copyOf(MAGIC, MAGIC.length + 1);
+		hello[MAGIC.length] = VERSION;
+		return hello;
+	}
+
+	/**
+	 * Is this the hello of a bidder that can read this version?
+	 * @param hello byte[]. The bytes the bidder sent.
+	 * @return boolean. Returns true if the snapshot can be sent in this form.
+	 */
+	public static boolean isHello(byte[] hello) {
+		if (hello.length < MAGIC.length + 1)
+			return false;
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (hello[i] != MAGIC[i])
+				return false;
+		}
+		return hello[MAGIC.length] >= VERSION;
+	}
+
+	/**
+	 * Write a snapshot. A record that can't be encoded is left out and counted, rather than failing the snapshot.
+	 * @param os OutputStream. Where to write it, it is not flushed or closed.
+	 * @param sequences Map. The last sequence applied from each origin, taken before values was read.
+	 * @param values Iterable. The JSON map form of each record.
+	 * @return int. The number of records written.
+	 * @throws Exception on I/O errors.
+	 */
+	public static int write(OutputStream os, Map<UUID, Long> sequences, Iterable<?> values) throws Exception {
+		DataOutputStream out = new DataOutputStream(os);
+		out.write(MAGIC);
+		out.write(VERSION);
+		out.writeInt(sequences.size());
+		for (Map.Entry<UUID, Long> e : sequences.entrySet()) {
+			out.writeLong(e.getKey().getMostSignificantBits());
+			out.writeLong(e.getKey().getLeastSignificantBits());
+			out.writeLong(e.getValue());
+		}
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		ByteArrayOutputStream raw = new ByteArrayOutputStream(CHUNK + 4096);
+		DataOutputStream records = new DataOutputStream(raw);
+		byte[] zipped = new byte[CHUNK];
+		int count = 0;
+		int bad = 0;
+		try {
+			for (Object value : values) {
+				byte[] frame;
+				try {
+					frame = CacheFrame.encode(CacheFrame.fromMap((Map<?, ?>) value), 0);
+				} catch (Exception error) {
+					if (bad++ == 0)
+						logger.warn("Can't encode {} for the cache snapshot: {}", value, error.toString());
+					continue;
+				}
+				records.writeInt(frame.length);
+				records.write(frame);
+				count++;
+				if (raw.size() >= CHUNK) {
+					zipped = writeChunk(out, deflater, raw, zipped);
+				}
+			}
+			if (raw.size() > 0)
+				writeChunk(out, deflater, raw, zipped);
+		} finally {
+			deflater.end();
+		}
+		out.writeInt(0);
+		out.writeInt(count);
+		if (bad > 0) {
+			skipped.addAndGet(bad);
+			logger.warn("Left {} records that can't be encoded out of the cache snapshot", bad);
+		}
+		return count;
+	}
+
+	static byte[] writeChunk(DataOutputStream out, Deflater deflater, ByteArrayOutputStream raw, byte[] zipped)
+			throws Exception {
+		byte[] data = raw.toByteArray();
+		raw.reset();
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		int n = 0;
+		while (!deflater.finished()) {
+			if (n == zipped.length)
+				zipped = Arrays.copyOf(zipped, zipped.length * 2);
+			n += deflater.deflate(zipped, n, zipped.length - n);
+		}
+		out.writeInt(data.length);
+		out.writeInt(n);
+		out.write(zipped, 0, n);
+		return zipped;
+	}
+
+	/**
+	 * Read a snapshot.
+	 * @param in DataInputStream. The stream, positioned at MAGIC.
+	 * @param sequences Map. Filled in with the last sequence applied from each origin.
+	 * @param sink Sink. Applies each record.
+	 * @return int. The number of records read.
+	 * @throws Exception on I/O errors, or if the snapshot is malformed.
+	 */
+	public static int read(DataInputStream in, Map<UUID, Long> sequences, Sink sink) throws Exception {
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new Exception("Not a cache snapshot");
+		byte version = in.readByte();
+		if (version > VERSION)
+			throw new Exception("Cache snapshot version " + version + " is newer than " + VERSION);
+		int origins = in.readInt();
+		for (int i = 0; i < origins; i++) {
+			UUID origin = new UUID(in.readLong(), in.readLong());
+			sequences.put(origin, in.readLong());
+		}
+
+		Inflater inflater = new Inflater();
+		byte[] zipped = new byte[CHUNK];
+		byte[] data = new byte[CHUNK];
+		int count = 0;
+		try {
+			while (true) {
+				int rawLength = in.readInt();
+				if (rawLength == 0)
+					break;
+				int zippedLength = in.readInt();
+				if (rawLength < 0 || zippedLength < 0)
+					throw new Exception("Bad chunk in cache snapshot");
+				if (zipped.length < zippedLength)
+					zipped = new byte[zippedLength];
+				if (data.length < rawLength)
+					data = new byte[rawLength];
+				in.readFully(zipped, 0, zippedLength);
+				inflater.reset();
+				inflater.setInput(zipped, 0, zippedLength);
+				int n = 0;
+				while (n < rawLength && !inflater.finished()) {
+					int k = inflater.inflate(data, n, rawLength - n);
+					if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					n += k;
+				}
+				if (n != rawLength)
+					throw new Exception("Short chunk in cache snapshot");
+
+				DataInputStream records = new DataInputStream(new ByteArrayInputStream(data, 0, rawLength));
+				int left = rawLength;
+				while (left > 0) {
+					int length = records.readInt();
+					byte[] frame = new byte[length];
+					records.readFully(frame);
+					left -= 4 + length;
+					sink.accept(CacheFrame.decode(frame));
+					count++;
+				}
+			}
+		} finally {
+			inflater.end();
+		}
+		int sent = in.readInt();
+		if (sent != count)
+			throw new Exception("Cache snapshot has " + count + " records, expected " + sent);
+		return count;
+	}
+}
@@ -0,0 +1,504 @@
+package com.jacamars.dsp.rtb.redisson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Frequency cap counters that merge instead of being broadcast on every win. Each cap key is a G-counter: every
+ * bidder has its own slot in it, only ever increments its own slot, and ships the slot's total to the others every
+ * so often. Receiving a slot takes the larger of the two totals, so the order and number of times a slot arrives
+ * does not matter, and every bidder converges on the same sum.
+ * <p>
+ * Each slot is bucketed by the cap's window: it carries the time the window it counts in expires. A bidder that
+ * wins on a cap that is already counting joins the earliest live window, otherwise it opens a new one capTimeout
+ * seconds long, just like the first increment of the old shared counter did. A slot from a newer window replaces
+ * the node's older one, and expired slots no longer count.
+ * <p>
+ * Caps are keyed by a 64 bit hash of the cap key, which FrequencyCap computes from the campaign and the spec
+ * values without building the key string, and the slots are primitives in off heap CapTables, SEGMENTS of them
+ * each with its own lock. A cap's entry holds our slot plus the sum of the other nodes' live slots, and each other
+ * node's slot is an entry of its own, keyed by the cap and the node, so reading a cap is one probe. Mind
+ * -XX:MaxDirectMemorySize, an entry is 40 bytes, the tables are kept under 3/4 full and all of them together
+ * grow to at most MAX_ENTRIES entries. Past that, caps that are not already counting are not counted.
+ * <p>
+ * Outside the bidder a cap key is written as PREFIX and the 16 hex digits of the hash (toKey()). Any other string,
+ * such as a "capped_..." key from an older bidder, is hashed to the key it would have been built as (parse()).
+ *
+ * @author Ben M. Faul
+ *
+ */
+public final class CapCounters {
+
+	/** Number of tables, a power of 2 */
+	static final int SEGMENTS = 16;
+	/** Initial entries per table */
+	public static int CAPACITY = 4096;
+	/**
+	 * The most entries of all the tables together, SEGMENTS tables of MAX_ENTRIES / SEGMENTS each. The default is
+	 * 1.3 GB off the heap. Set from zeromq "capentries", before the counters are made.
+	 */
+	public static volatile int MAX_ENTRIES = 1 << 25;
+	/** Starts the string form of a hashed cap key */
+	public static final String PREFIX = "cap:";
+	/** FNV-1a offset basis, what every key hash starts from */
+	public static final long SEED = 0xcbf29ce484222325L;
+
+	/** Entry flags: our slot changed since the last drain */
+	static final int DIRTY = 1;
+	/** Entry flags: the entry is another node's slot */
+	static final int SLOT = 2;
+
+	static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** This node's slot id */
+	final UUID self;
+	/** The tables, by the top bits of the cap key */
+	final Segment[] segments = new Segment[SEGMENTS];
+	/** The other nodes, guarded by itself */
+	final Map<UUID, Node> nodes = new HashMap<UUID, Node>();
+	/** The indexes of the nodes, the ones to sum */
+	volatile int[] active = new int[0];
+	/** The next node index */
+	int next = 1;
+
+	/**
+	 * A table and the keys of our slots that changed in it. Guarded by itself.
+	 */
+	static final class Segment {
+		final CapTable table = new CapTable(CAPACITY, MAX_ENTRIES / SEGMENTS);
+		long[] dirty = new long[64];
+		int dirtyCount;
+
+		void mark(long key) {
+			if (dirtyCount == dirty.length)
+				dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+			dirty[dirtyCount++] = key;
+		}
+	}
+
+	/**
+	 * Another node we have slots from.
+	 */
+	static final class Node {
+		final int index;
+		/** The latest window expiry heard from it, when it passes all its slots are dead */
+		long expire;
+
+		Node(int index) {
+			this.index = index;
+		}
+	}
+
+	/**
+	 * A slot total to send to the other nodes.
+	 */
+	static final class Delta {
+		final long key;
+		final long expire;
+		final long count;
+
+		Delta(long key, long expire, long count) {
+			this.key = key;
+			this.expire = expire;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Create the counters of a node.
+	 * @param self UUID. The node's id, the origin of its cache frames.
+	 */
+	public CapCounters(UUID self) {
+		this.self = self;
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment();
+	}
+
+	/**
+	 * Hash more characters into a cap key.
+	 * @param h long. The hash so far, SEED to start.
+	 * @param s CharSequence. The characters.
+	 * @return long. The hash so far.
+	 */
+	public static long hash(long h, CharSequence s) {
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * Hash a character into a cap key.
+	 * @param h long. The hash so far.
+	 * @param c char. The character.
+	 * @return long. The hash so far.
+	 */
+	public static long hash(long h, char c) {
+		return (h ^ c) * 0x100000001b3L;
+	}
+
+	/**
+	 * Finish a cap key, mixing the bits so the table and segment bits spread out.
+	 * @param h long. The hash of all the characters.
+	 * @return long. The cap key, never 0.
+	 */
+	public static long finish(long h) {
+		h = mix(h);
+		return h == 0 ? 1 : h;
+	}
+
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Return the key of a cap key string.
+	 * @param key String. A key from toKey(), or any other string, which is hashed.
+	 * @return long. The cap key.
+	 */
+	public static long parse(String key) {
+		if (key.length() == PREFIX.length() + 16 && key.startsWith(PREFIX)) {
+			try {
+				return Long.parseUnsignedLong(key.substring(PREFIX.length()), 16);
+			} catch (NumberFormatException error) {
+
+			}
+		}
+		return finish(hash(SEED, key));
+	}
+
+	/**
+	 * Return the string form of a cap key.
+	 * @param key long. The cap key.
+	 * @return String. PREFIX and 16 hex digits.
+	 */
+	public static String toKey(long key) {
+		char[] c = new char[PREFIX.length() + 16];
+		PREFIX.getChars(0, PREFIX.length(), c, 0);
+		for (int i = 0; i < 16; i++)
+			c[c.length - 1 - i] = HEX[(int) (key >>> (i * 4)) & 15];
+		return new String(c);
+	}
+
+	Segment segment(long key) {
+		return segments[(int) (key >>> 60) & (SEGMENTS - 1)];
+	}
+
+	static long slotKey(long key, int node) {
+		long k = mix(key + node * 0x9e3779b97f4a7c15L);
+		return k == 0 ? 1 : k;
+	}
+
+	/**
+	 * Count a win on this node.
+	 * @param key long. The cap key.
+	 * @param ttl long. The length of a new window, in seconds.
+	 * @return long. The cap's total across all nodes, as known here, or -1 if there is no room for it.
+	 */
+	public long increment(long key, long ttl) {
+		long now = RedissonClient.clock.millis();
+		Segment s = segment(key);
+		synchronized (s) {
+			CapTable t = s.table;
+			int e = t.insert(key);
+			if (e < 0)
+				return -1;
+			refresh(t, key, e, now);
+			long expire = t.getLong(e + CapTable.EXPIRE);
+			int count;
+			if (expire <= now) {
+				long window = t.getLong(e + CapTable.REMOTE_EXPIRE);
+				t.putLong(e + CapTable.EXPIRE, window != 0 ? window : now + ttl * 1000);
+				count = 1;
+			} else
+				count = t.getInt(e + CapTable.COUNT) + 1;
+			t.putInt(e + CapTable.COUNT, count);
+			int flags = t.getInt(e + CapTable.FLAGS);
+			if ((flags & DIRTY) == 0) {
+				t.putInt(e + CapTable.FLAGS, flags | DIRTY);
+				s.mark(key);
+			}
+			return count + t.getInt(e + CapTable.REMOTE);
+		}
+	}
+
+	/**
+	 * Count a win on this node.
+	 * @param key String. The cap key, see parse().
+	 * @param ttl long. The length of a new window, in seconds.
+	 * @return long. The cap's total across all nodes, as known here.
+	 */
+	public long increment(String key, long ttl) {
+		return increment(parse(key), ttl);
+	}
+
+	/**
+	 * Return a cap's total.
+	 * @param key long. The cap key.
+	 * @return long. The total across all nodes, as known here, or -1 if the cap is not counting.
+	 */
+	public long get(long key) {
+		long now = RedissonClient.clock.millis();
+		Segment s = segment(key);
+		synchronized (s) {
+			CapTable t = s.table;
+			int e = t.find(key);
+			if (e < 0)
+				return -1;
+			refresh(t, key, e, now);
+			boolean mine = t.getLong(e + CapTable.EXPIRE) > now;
+			if (!mine && t.getLong(e + CapTable.REMOTE_EXPIRE) == 0)
+				return -1;
+			return (mine ? t.getInt(e + CapTable.COUNT) : 0) + t.getInt(e + CapTable.REMOTE);
+		}
+	}
+
+	/**
+	 * Return a cap's total.
+	 * @param key String. The cap key, see parse().
+	 * @return long. The total across all nodes, as known here, or -1 if the cap is not counting.
+	 */
+	public long get(String key) {
+		return get(parse(key));
+	}
+
+	/**
+	 * Merge another node's slot.
+	 * @param node UUID. The node.
+	 * @param key long. The cap key.
+	 * @param expire long. The slot's window expiry.
+	 * @param count long. The slot's total.
+	 */
+	public void merge(UUID node, long key, long expire, long count) {
+		long now = RedissonClient.clock.millis();
+		if (expire <= now || node.equals(self))
+			return;
+		int index = node(node, expire);
+		Segment s = segment(key);
+		synchronized (s) {
+			CapTable t = s.table;
+			int n = t.insert(slotKey(key, index));
+			if (n < 0)
+				return;
+			long old = t.getLong(n + CapTable.EXPIRE);
+			int oldCount = t.getInt(n + CapTable.COUNT);
+			if (old != 0 && expire < old || expire == old && count <= oldCount)
+				return;
+			t.putLong(n + CapTable.EXPIRE, expire);
+			t.putInt(n + CapTable.COUNT, (int) count);
+			t.putInt(n + CapTable.FLAGS, SLOT);
+			t.putInt(n + CapTable.NODE, index);
+
+			int e = t.insert(key);
+			if (e < 0)
+				return;
+			long window = t.getLong(e + CapTable.REMOTE_EXPIRE);
+			// Stale, or the old slot was the earliest window and it moved on
+			if (window != 0 && (window <= now || window == old)) {
+				recompute(t, key, e, now);
+				return;
+			}
+			// The old slot is in the sum if it is still live
+			int sum = t.getInt(e + CapTable.REMOTE) + (int) count - (old > now ? oldCount : 0);
+			t.putInt(e + CapTable.REMOTE, sum);
+			if (window == 0 || expire < window)
+				t.putLong(e + CapTable.REMOTE_EXPIRE, expire);
+		}
+	}
+
+	/**
+	 * Merge another node's slot.
+	 * @param node UUID. The node.
+	 * @param key String. The cap key, see parse().
+	 * @param expire long. The slot's window expiry.
+	 * @param count long. The slot's total.
+	 */
+	public void merge(UUID node, String key, long expire, long count) {
+		merge(node, parse(key), expire, count);
+	}
+
+	/**
+	 * Return the index of a node, noting the latest window heard from it.
+	 */
+	int node(UUID id, long expire) {
+		synchronized (nodes) {
+			Node n = nodes.get(id);
+			if (n == null) {
+				n = new Node(next++);
+				nodes.put(id, n);
+				int[] a = Arrays.copyOf(active, active.length + 1);
+				a[a.length - 1] = n.index;
+				active = a;
+			}
+			if (expire > n.expire)
+				n.expire = expire;
+			return n.index;
+		}
+	}
+
+	/**
+	 * Sum the other nodes' slots again if the earliest of them has expired.
+	 */
+	void refresh(CapTable t, long key, int e, long now) {
+		long window = t.getLong(e + CapTable.REMOTE_EXPIRE);
+		if (window != 0 && window <= now)
+			recompute(t, key, e, now);
+	}
+
+	void recompute(CapTable t, long key, int e, long now) {
+		int sum = 0;
+		long window = 0;
+		for (int index : active) {
+			int n = t.find(slotKey(key, index));
+			if (n < 0)
+				continue;
+			long expire = t.getLong(n + CapTable.EXPIRE);
+			if (expire > now) {
+				sum += t.getInt(n + CapTable.COUNT);
+				if (window == 0 || expire < window)
+					window = expire;
+			}
+		}
+		t.putInt(e + CapTable.REMOTE, sum);
+		t.putLong(e + CapTable.REMOTE_EXPIRE, window);
+	}
+
+	/**
+	 * Forget a cap on this node.
+	 * @param key long. The cap key.
+	 */
+	public void remove(long key) {
+		Segment s = segment(key);
+		synchronized (s) {
+			CapTable t = s.table;
+			int e = t.find(key);
+			if (e < 0)
+				return;
+			t.remove(e);
+			for (int index : active) {
+				int n = t.find(slotKey(key, index));
+				if (n >= 0)
+					t.remove(n);
+			}
+		}
+	}
+
+	/**
+	 * Forget a cap on this node.
+	 * @param key String. The cap key, see parse().
+	 */
+	public void remove(String key) {
+		remove(parse(key));
+	}
+
+	/**
+	 * Take this node's slots that changed since the last drain.
+	 * @return List. The slot totals to send.
+	 */
+	List<Delta> drain() {
+		long now = RedissonClient.clock.millis();
+		List<Delta> deltas = new ArrayList<Delta>();
+		for (Segment s : segments) {
+			synchronized (s) {
+				CapTable t = s.table;
+				for (int i = 0; i < s.dirtyCount; i++) {
+					long key = s.dirty[i];
+					int e = t.find(key);
+					if (e < 0)
+						continue;
+					int flags = t.getInt(e + CapTable.FLAGS);
+					if ((flags & DIRTY) == 0)
+						continue;
+					t.putInt(e + CapTable.FLAGS, flags & ~DIRTY);
+					long expire = t.getLong(e + CapTable.EXPIRE);
+					if (expire > now)
+						deltas.add(new Delta(key, expire, t.getInt(e + CapTable.COUNT)));
+				}
+				s.dirtyCount = 0;
+			}
+		}
+		return deltas;
+	}
+
+	/**
+	 * Drop the nodes whose slots have all expired, and the expired slots and caps.
+	 */
+	void sweep() {
+		long now = RedissonClient.clock.millis();
+		synchronized (nodes) {
+			Iterator<Node> it = nodes.values().iterator();
+			int[] a = new int[nodes.size()];
+			int k = 0;
+			while (it.hasNext()) {
+				Node n = it.next();
+				if (n.expire <= now)
+					it.remove();
+				else
+					a[k++] = n.index;
+			}
+			active = Arrays.copyOf(a, k);
+		}
+		for (Segment s : segments) {
+			synchronized (s) {
+				CapTable t = s.table;
+				int i = 0;
+				while (i < t.capacity) {
+					int e = i * CapTable.ENTRY;
+					long key = t.getLong(e);
+					if (key == 0) {
+						i++;
+						continue;
+					}
+					boolean dead;
+					if ((t.getInt(e + CapTable.FLAGS) & SLOT) != 0)
+						dead = t.getLong(e + CapTable.EXPIRE) <= now;
+					else {
+						refresh(t, key, e, now);
+						dead = t.getLong(e + CapTable.EXPIRE) <= now && t.getLong(e + CapTable.REMOTE_EXPIRE) == 0;
+					}
+					// Another entry may move into this one, look at it again
+					if (dead)
+						t.remove(e);
+					else
+						i++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the number of entries held, caps and other nodes' slots.
+	 * @return int. The number of entries.
+	 */
+	public int size() {
+		int n = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				n += s.table.size;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Return the most entries the tables may grow to together.
+	 * @return int. The sum of the tables' most entries.
+	 */
+	public int maxEntries() {
+		int n = 0;
+		for (Segment s : segments)
+			n += s.table.max;
+		return n;
+	}
+}
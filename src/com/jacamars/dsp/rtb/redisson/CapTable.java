@@ -0,0 +1,188 @@
+package com.jacamars.dsp.rtb.redisson;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An open addressing hash table of 64 bit keys to fixed size records, kept off the heap in a direct buffer. Each
+ * entry is ENTRY bytes, the key then the fields, so the garbage collector has nothing to trace however many caps
+ * are counting. Keys are probed linearly from their low bits, 0 marks an empty entry, and removing an entry shifts
+ * the ones after it back instead of leaving a tombstone.
+ * <p>
+ * Offsets returned by find() and insert() are only good until the next insert (which may grow the table) or
+ * remove. Not thread safe, the caller locks it.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public final class CapTable {
+
+	/** Bytes per entry */
+	public static final int ENTRY = 40;
+	/** Field offsets within an entry */
+	static final int KEY = 0;
+	public static final int EXPIRE = 8;
+	static final int REMOTE_EXPIRE = 16;
+	static final int COUNT = 24;
+	static final int REMOTE = 28;
+	static final int FLAGS = 32;
+	static final int NODE = 36;
+	/** The most entries a table may have, so offsets fit in an int */
+	public static final int LIMIT = 1 << 25;
+
+	/** The entries */
+	ByteBuffer buffer;
+	/** Number of entries, a power of 2 */
+	int capacity;
+	/** Number of keys held */
+	int size;
+	/** The table does not grow past this many entries, a power of 2 */
+	public final int max;
+
+	/**
+	 * Create a table.
+	 * @param capacity int. The initial number of entries, rounded up to a power of 2.
+	 * @param max int. The most entries it may grow to, rounded down to a power of 2, from 16 to LIMIT.
+	 */
+	public CapTable(int capacity, int max) {
+		int m = 16;
+		while (m <= max / 2 && m < LIMIT)
+			m <<= 1;
+		this.max = m;
+		int n = 16;
+		while (n < capacity && n < m)
+			n <<= 1;
+		allocate(n);
+	}
+
+	void allocate(int n) {
+		buffer = ByteBuffer.allocateDirect(n * ENTRY).order(ByteOrder.nativeOrder());
+		capacity = n;
+	}
+
+	int home(long key) {
+		return (int) key & (capacity - 1);
+	}
+
+	/**
+	 * Find a key.
+	 * @param key long. The key, not 0.
+	 * @return int. The offset of its entry, or -1 if it is not there.
+	 */
+	public int find(long key) {
+		int mask = capacity - 1;
+		int pos = home(key);
+		while (true) {
+			long k = buffer.getLong(pos * ENTRY);
+			if (k == key)
+				return pos * ENTRY;
+			if (k == 0)
+				return -1;
+			pos = (pos + 1) & mask;
+		}
+	}
+
+	/**
+	 * Find a key, adding an entry with its fields zeroed if it is not there.
+	 * @param key long. The key, not 0.
+	 * @return int. The offset of its entry, or -1 if the table is full.
+	 */
+	public int insert(long key) {
+		int e = find(key);
+		if (e >= 0)
+			return e;
+		if ((size + 1) * 4L > capacity * 3L) {
+			if (capacity < max)
+				grow();
+			else if (size + 1 >= capacity)
+				return -1;
+		}
+		int mask = capacity - 1;
+		int pos = home(key);
+		while (buffer.getLong(pos * ENTRY) != 0)
+			pos = (pos + 1) & mask;
+		buffer.putLong(pos * ENTRY, key);
+		size++;
+		return pos * ENTRY;
+	}
+
+	/**
+	 * Remove an entry, moving back the entries after it that probed past it.
+	 * @param offset int. The offset of the entry. Another entry may be moved into it.
+	 */
+	public void remove(int offset) {
+		int mask = capacity - 1;
+		int hole = offset / ENTRY;
+		int pos = hole;
+		while (true) {
+			pos = (pos + 1) & mask;
+			long k = buffer.getLong(pos * ENTRY);
+			if (k == 0)
+				break;
+			// Can move back if the hole is between its home and where it is
+			if (((pos - home(k)) & mask) >= ((pos - hole) & mask)) {
+				copy(buffer, pos * ENTRY, buffer, hole * ENTRY);
+				hole = pos;
+			}
+		}
+		for (int i = 0; i < ENTRY; i += 8)
+			buffer.putLong(hole * ENTRY + i, 0);
+		size--;
+	}
+
+	/**
+	 * Double the table, rehashing every entry.
+	 */
+	void grow() {
+		ByteBuffer old = buffer;
+		int n = capacity;
+		allocate(n * 2);
+		int mask = capacity - 1;
+		for (int i = 0; i < n; i++) {
+			long k = old.getLong(i * ENTRY);
+			if (k == 0)
+				continue;
+			int pos = home(k);
+			while (buffer.getLong(pos * ENTRY) != 0)
+				pos = (pos + 1) & mask;
+			copy(old, i * ENTRY, buffer, pos * ENTRY);
+		}
+	}
+
+	/**
+	 * Return the number of keys held.
+	 * @return int. The number of keys.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the number of entries, held or empty.
+	 * @return int. The capacity, a power of 2.
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	static void copy(ByteBuffer from, int src, ByteBuffer to, int dst) {
+		for (int i = 0; i < ENTRY; i += 8)
+			to.putLong(dst + i, from.getLong(src + i));
+	}
+
+	public long getLong(int offset) {
+		return buffer.getLong(offset);
+	}
+
+	public void putLong(int offset, long value) {
+		buffer.putLong(offset, value);
+	}
+
+	int getInt(int offset) {
+		return buffer.getInt(offset);
+	}
+
+	void putInt(int offset, int value) {
+		buffer.putInt(offset, value);
+	}
+}
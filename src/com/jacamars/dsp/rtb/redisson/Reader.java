@@ -0,0 +1,298 @@
+package com.jacamars.dsp.rtb.redisson;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cache2k.Cache;
+import org.slf4j.Logger;
+
+import com.jacamars.dsp.rtb.bidder.RTBServer;
+import com.jacamars.dsp.rtb.common.Configuration;
+
+/**
+ * Loads the snapshot of a Zerospike into the RedissonClient's cache and cap counters, then applies the updates the
+ * other bidders sent while it was loading.
+ *
+ * @author Ben M. Faul
+ */
+public class Reader implements Runnable {
+
+    private Socket s;
+    private Thread me;
+    private DataInputStream dis;
+    byte[] buffer = new byte[4096];
+    volatile Cache cache;
+    CapCounters caps;
+    Logger logger;
+    String host;
+    int port;
+    volatile boolean complete = false;
+    /** Updates heard from the other bidders while the snapshot loads, in order */
+    final List<CacheFrame> deferred = new ArrayList<CacheFrame>();
+    /** The last sequence of each origin that the snapshot includes */
+    public final Map<UUID, Long> sequences = new HashMap<UUID, Long>();
+
+    public Reader(Cache cache, CapCounters caps, Logger logger, String host, int port) throws Exception {
+        this.cache = cache;
+        this.caps = caps;
+        this.logger = logger;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Start loading the snapshot. Done once the shard's subscriber is listening.
+     */
+    public void start() {
+        me = new Thread(this);
+        me.start();
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Hold updates from the other bidders until the snapshot is loaded.
+     *
+     * @param frames List. The updates.
+     * @return boolean. Returns false if the snapshot is loaded, and the updates should be applied now.
+     */
+    public synchronized boolean defer(List<CacheFrame> frames) {
+        if (complete)
+            return false;
+        deferred.addAll(frames);
+        return true;
+    }
+
+    public void run() {
+        int count = 0;
+
+        try {
+            s = new Socket(host, port);
+            // Ask for the binary snapshot, a Zerospike that doesn't know it just sends JSON
+            s.getOutputStream().write(CacheSnapshot.hello());
+            s.getOutputStream().flush();
+            dis = new DataInputStream(new BufferedInputStream(s.getInputStream(), 65536));
+        } catch (Exception error) {
+            logger.error("Error connecting to Zerospike reader {}/{}: {}",host,port,error.toString());
+            logger.error("*** System is stopping to try to recover ***");
+            if (Configuration.getInstance() != null)
+                RTBServer.panicStop();
+            System.exit(1);
+        }
+
+        long time = System.currentTimeMillis();
+        try {
+            dis.mark(CacheSnapshot.MAGIC.length);
+            byte[] magic = new byte[CacheSnapshot.MAGIC.length];
+            int rc = 0;
+            while (rc < magic.length) {
+                int k = dis.read(magic, rc, magic.length - rc);
+                if (k <= 0)
+                    break;
+                rc += k;
+            }
+            dis.reset();
+            if (rc == magic.length && Arrays.equals(magic, CacheSnapshot.MAGIC)) {
+                count = CacheSnapshot.read(dis, sequences, frame -> {
+                    if (frame.command == CacheFrame.SLOT)
+                        caps.merge(frame.getOrigin(), frame.key, frame.expire, ((Number) frame.payload).longValue());
+                    else
+                        executeOnCache(frame.getCommand(), frame.key, frame.expire, frame.payload);
+                });
+            } else
+                count = readJson();
+            time = System.currentTimeMillis() - time;
+            logger.info("Initialization reader completed, with {} objects in {} ms", count, time);
+        } catch (Exception error) {
+            logger.error("Error reading initial data, error: {}",error.toString());
+        }
+        try {
+            s.close();
+        } catch (Exception error) {
+            // Already gone
+        }
+        catchUp();
+    }
+
+    /**
+     * Read the snapshot in the JSON form, each object preceded by its length in 6 characters.
+     *
+     * @return int. The number of objects read.
+     * @throws Exception on I/O errors.
+     */
+    int readJson() throws Exception {
+        byte [] blen = new byte[6];
+        byte [] data = new byte[4096];
+        int len = 0;
+        int count = 0;
+        try {
+            while (true) {
+                int rc = 0;
+                len = 6;
+                while(rc != len) {
+                    int k = dis.read(blen,rc,len-rc);
+                    if (k <= 0)
+                        break;
+                    rc += k;
+                }
+                if (rc != 6)
+                    break;
+                
+                String str = new String(blen,0,len);
+                // logger.info("COUNTER: {}, counter string: {}",count,str);
+                str = str.replaceAll(" ","");
+                len = Integer.parseInt(str);
+
+                if (len > data.length)
+                    data = new byte[len];
+                int x = 0;
+                rc = 0;
+                while(rc != len) {
+                    x = dis.read(data,rc,len-rc);
+                    rc += x;
+                    // logger.info("Read {} bytes, left to read: {}", x, (len-rc));
+                }
+                str = new String(data,0,len);
+                // logger.info("Data read in for count: {}, len:{}, size:{}, value:{}",count,len,str.length(),str);
+                Map map = null;
+                try {
+                    map = (Map) RedissonClient.mapper.readValue(str, Map.class);
+                    String key = (String) map.get("key");
+                    Number expire = (Number) map.get("expire");
+                    String cmd = (String) map.get("command");
+                    Object payload = map.get("payload");
+                    if ("slot".equals(cmd))
+                        caps.merge(UUID.fromString((String) map.get("origin")), key, expire.longValue(),
+                                ((Number) payload).longValue());
+                    else
+                        executeOnCache(cmd,key,expire,payload);
+
+                } catch (Exception error) {
+                    logger.error("Encountered an error decoding map: {}, error: {}", map,error.getMessage());
+                }
+                count++;
+            }
+        } catch (Exception error) {
+            error.printStackTrace();
+            System.out.println("LEN: " + len);
+            throw error;
+        }
+        return count;
+    }
+
+    /**
+     * Apply the updates heard while loading that the snapshot doesn't include, then let updates through.
+     */
+    public void catchUp() {
+        int replayed = 0;
+        int skipped = 0;
+        while (true) {
+            List<CacheFrame> frames;
+            synchronized (this) {
+                if (deferred.isEmpty()) {
+                    complete = true;
+                    break;
+                }
+                frames = new ArrayList<CacheFrame>(deferred);
+                deferred.clear();
+            }
+            for (int i = 0; i < frames.size(); i++) {
+                CacheFrame frame = frames.get(i);
+                Long seen = sequences.get(frame.getOrigin());
+                if (seen != null && frame.sequence <= seen) {
+                    skipped++;
+                    continue;
+                }
+                replay(frame);
+                replayed++;
+            }
+        }
+        logger.info("Initialization caught up, {} updates replayed, {} already in the snapshot", replayed, skipped);
+    }
+
+    /**
+     * Apply an update heard while loading. The snapshot may already include some of it, so a counter is set to
+     * the sender's count if that is higher, rather than incremented.
+     *
+     * @param frame CacheFrame. The update.
+     */
+    void replay(CacheFrame frame) {
+        String key = frame.key;
+        long expire = frame.expire;
+        Object payload = frame.payload;
+        try {
+            switch (frame.command) {
+                case CacheFrame.SET:
+                case CacheFrame.HMSET:
+                    cache.invoke(key,
+                            e -> e.setValue(payload).setExpiry(expire));
+                    break;
+                case CacheFrame.DEL:
+                    cache.remove(key);
+                    break;
+                case CacheFrame.SLOT:
+                    // Merging is idempotent anyway
+                    caps.merge(frame.getOrigin(), key, expire, ((Number) payload).longValue());
+                    break;
+                case CacheFrame.INCR:
+                    long count = ((Number) payload).longValue();
+                    Object x = cache.peek(key);
+                    if (x instanceof AtomicLong) {
+                        ((AtomicLong) x).accumulateAndGet(count, Math::max);
+                    } else if (expire != -1) {
+                        AtomicLong v = new AtomicLong(count);
+                        cache.invoke(key,
+                                e -> e.setValue(v).setExpiry(expire));
+                    } else
+                        logger.error("Error replaying increment of {}, key does not exist", key);
+                    break;
+                default:
+                    logger.error("Unknown distributed cache command: {} for key: {}.", frame.getCommand(), key);
+            }
+        } catch (Exception error) {
+            logger.error("Error replaying cmd: {}, key: {}, error: {}", frame.getCommand(), key, error.toString());
+        }
+    }
+
+    void executeOnCache(String cmd, String key, Number n, Object payload) throws Exception{
+        long expiration = -1;
+        if (n != null)
+            expiration = n.longValue();
+        long expire = expiration;
+        try {
+            switch (cmd) {
+                case "hmset":
+                    cache.invoke(key,
+                            e -> e.setValue(payload).setExpiry(expire));
+                    break;
+                case "set":
+                    cache.invoke(key,
+                            e -> e.setValue(payload).setExpiry(expire));
+                    break;
+                case "incr":
+                    Number value = (Number) payload;
+                    AtomicLong v = new AtomicLong(value.longValue());
+                    cache.invoke(key,
+                            e -> e.setValue(v).setExpiry(expire));
+                    break;
+                default:
+                    logger.error("Unknown distributed cache command: {} for key: {}.", cmd, key);
+
+            }
+        } catch (Exception error) {
+            logger.error("Error on cmd: {}, key: {}, expire: {}", cmd,key,expire);
+            error.printStackTrace();
+        }
+    }
+
+}
@@ -1,14 +1,15 @@
 package com.jacamars.dsp.rtb.redisson;
 
 
-import java.io.DataInputStream;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -19,11 +20,9 @@ import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.jacamars.dsp.rtb.bidder.RTBServer;
-import com.jacamars.dsp.rtb.bidder.ZPublisher;
 import com.jacamars.dsp.rtb.common.Campaign;
 import com.jacamars.dsp.rtb.common.Configuration;
 import com.jacamars.dsp.rtb.jmq.EventIF;
-import com.jacamars.dsp.rtb.jmq.MSubscriber;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,15 +50,51 @@ public class RedissonClient implements EventIF {
      */
      volatile Cache cacheDb;
 
-     Reader reader;
+    /**
+     * Used to communicate the cache updates to sibling bidders (but not cacheDb, which is local). One per
+     * Zerospike, keys are spread over them by the ring.
+     */
+    volatile Shard[] shards = new Shard[0];
+    volatile ShardRing ring = new ShardRing(new ArrayList<String>());
 
+    /** Who we are, so we can ignore our own updates */
+    final UUID id = UUID.randomUUID();
+    String self = id.toString();
     /**
-     * Used to communicate the cache updates to sibling bidders (but not cacheDb, which is local
+     * The ring name of the Zerospike the bidder's control channels go through.
      */
-    ZPublisher freq;
-    MSubscriber sfreq;
+    public static volatile String SHARD_NAME = "zerospike";
+
+    /** Sequence number of the frames we publish */
+    final AtomicLong sequence = new AtomicLong();
 
-    String self = UUID.randomUUID().toString();
+    /** The frequency cap counters, our slot and the ones merged from the other bidders */
+    final CapCounters caps = new CapCounters(id);
+
+    /**
+     * How often, in ms, the cap slots that changed are sent to the other bidders.
+     */
+    public static volatile long CAP_FLUSH_MS = 500;
+
+    /** Sends the cap slots, and drops the expired caps, started with the first shard */
+    ScheduledExecutorService capFlusher;
+
+    /**
+     * Set to false to publish cache updates as JSON, for clusters where some readers predate CacheFrame.
+     * Both forms are always accepted.
+     */
+    public static volatile boolean BINARY = true;
+
+    /**
+     * Binary cache updates are published in batches of up to this many records. Set to 1 or less to publish
+     * each update as it happens.
+     */
+    public static volatile int BATCH_SIZE = 256;
+
+    /**
+     * Pending binary cache updates are published at least this often, in ms.
+     */
+    public static volatile long BATCH_MS = 5;
 
     /**
      * The JSON encoder/decoder object
@@ -85,16 +120,81 @@ public class RedissonClient implements EventIF {
     public void setSharedObject(String host, int port) throws Exception {
         if (RTBServer.frequencyGoverner != null) {
             String pub = RTBServer.frequencyGoverner.getPublisherBinding();
-            pub += "&context";
-            freq = new ZPublisher(pub);
-
             String sub = RTBServer.frequencyGoverner.getSubscriptionBinding();
-            sfreq = new MSubscriber(this, sub, "context");
+            addShard(SHARD_NAME, pub, sub, host, port);
+        }
+    }
 
-            reader = new Reader(cache,logger,host,port);
+    /**
+     * Add a Zerospike to the shards the keys are spread over. Every bidder must add the same shards, by the same
+     * names, so that they agree on where each key lives.
+     *
+     * @param name String. The shard's name in the ring, the same on every bidder.
+     * @param pub  String. The publisher binding, without the topic.
+     * @param sub  String. The subscriber binding, or null if this bidder doesn't need the other bidders' updates of
+     *             the keys on this shard.
+     * @param host String. The host of the shard's file server, or null for no snapshot.
+     * @param port int. The port of the shard's file server.
+     * @throws Exception on ZeroMQ errors.
+     */
+    public synchronized void addShard(String name, String pub, String sub, String host, int port) throws Exception {
+        Shard shard = new Shard(this, name, pub + "&context", sub, host, port);
+        Shard[] list = Arrays.copyOf(shards, shards.length + 1);
+        list[shards.length] = shard;
+        List<String> names = new ArrayList<String>();
+        for (Shard x : list)
+            names.add(x.name);
+        ring = new ShardRing(names);
+        shards = list;
+        logger.info("Cache shard {} added, {} shards", shard, list.length);
+
+        if (capFlusher == null) {
+            capFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cap-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            capFlusher.scheduleAtFixedRate(() -> {
+                try {
+                    flushCaps();
+                } catch (Exception error) {
+                    logger.error("Can't flush the frequency cap counts: {}", error.toString());
+                }
+            }, CAP_FLUSH_MS, CAP_FLUSH_MS, TimeUnit.MILLISECONDS);
+            capFlusher.scheduleAtFixedRate(() -> {
+                try {
+                    caps.sweep();
+                } catch (Exception error) {
+                    logger.error("Can't sweep the frequency cap counts: {}", error.toString());
+                }
+            }, 10, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Send the totals of our cap slots that changed to the other bidders.
+     */
+    void flushCaps() {
+        List<CapCounters.Delta> deltas = caps.drain();
+        for (int i = 0; i < deltas.size(); i++) {
+            CapCounters.Delta d = deltas.get(i);
+            publish(CacheFrame.SLOT, CapCounters.toKey(d.key), d.count, d.expire);
         }
     }
 
+    /**
+     * Return the shard a key lives on.
+     *
+     * @param key String. The key.
+     * @return Shard. The shard, or null if there are none.
+     */
+    Shard shardOf(String key) {
+        Shard[] list = shards;
+        if (list.length < 2)
+            return list.length == 0 ? null : list[0];
+        return list[ring.shardOf(key)];
+    }
+
     public Object getAndDelete(String key) {
         Object obj = cache.peek(key);
         if (obj != null) {
@@ -108,33 +208,31 @@ public class RedissonClient implements EventIF {
     }
 
     public boolean loadComplete() {
-        if (reader == null)
-            return true;
-        return reader.isComplete();
+        for (Shard shard : shards) {
+            if (!shard.loadComplete())
+                return false;
+        }
+        return true;
     }
 
+    /**
+     * Connect to the Zerospike the bidder's control channels go through. Like every setSharedObject, it is added as
+     * SHARD_NAME, the name the configuration gives it, so a key lives on the same shard however it was connected.
+     *
+     * @param pub String. The publisher binding.
+     * @param sub String. The subscriber binding.
+     * @throws Exception on ZeroMQ errors.
+     */
     public void setSharedObject(String pub, String sub) throws Exception {
-        pub += "&context";
-        freq = new ZPublisher(pub);
-        sfreq = new MSubscriber(this, sub, "context");
-
+        addShard(SHARD_NAME, pub, sub, null, 0);
     }
 
     public void setSharedObject(String pub, String sub, String host, int port) throws Exception {
-        pub += "&context";
-        freq = new ZPublisher(pub);
-        sfreq = new MSubscriber(this, sub, "context");
-
-        reader = new Reader(cache,logger,host,port);
+        addShard(SHARD_NAME, pub, sub, host, port);
     }
 
     public void setSharedObject(String host, int ipub, int isub, int port) throws Exception {
-        String pub = "tcp://" + host + ":" + ipub + "&context";
-        String sub = "tcp://" + host + ":" + isub;
-        freq = new ZPublisher(pub);
-        sfreq = new MSubscriber(this, sub, "context");
-
-        reader = new Reader(cache,logger,host,port);
+        addShard(SHARD_NAME, "tcp://" + host + ":" + ipub, "tcp://" + host + ":" + isub, host, port);
     }
 
     /**
@@ -203,13 +301,10 @@ public class RedissonClient implements EventIF {
      * @throws Exception on Aerospike/cache errors.
      */
     public void del(String skey) {
+        caps.remove(skey);
         if (cache.peek(skey) != null) {
             cache.remove(skey);
-            Map mx = new HashMap();
-            mx.put("origin",self);
-            mx.put("command", "del");
-            mx.put("key", skey);
-            freq.add(mx);
+            publish(CacheFrame.DEL, skey, null, -1);
             return;
         }
         cacheDb.remove(skey);
@@ -252,13 +347,7 @@ public class RedissonClient implements EventIF {
 
         cache.invoke(skey,
                 e -> e.setValue(value).setExpiry(ttl));
-        Map mx = new HashMap();
-        mx.put("origin",self);
-        mx.put("command", "set");
-        mx.put("key", skey);
-        mx.put("payload", value);
-        mx.put("expire", ttl);
-        freq.add(mx);
+        publish(CacheFrame.SET, skey, value, ttl);
     }
 
 
@@ -273,7 +362,7 @@ public class RedissonClient implements EventIF {
         if (obj == null) {
             obj = cacheDb.peek(skey);
             if (obj == null)
-                return null;
+                return capOrNull(skey);
         }
         if (obj instanceof AtomicLong) {
             Long x = ((AtomicLong) obj).get();
@@ -293,11 +382,22 @@ public class RedissonClient implements EventIF {
         if (obj == null)
             obj = cacheDb.peek(skey);
         if (obj == null)
-            return null;
+            return capOrNull(skey);
 
         return (Number) obj;
     }
 
+    /**
+     * Return a frequency cap's count for the plain getters, so tools that read a cap key still see it.
+     *
+     * @param skey String. The key.
+     * @return Long. The cap's count, or null if it is not a cap that is counting.
+     */
+    Long capOrNull(String skey) {
+        long count = caps.get(skey);
+        return count < 0 ? null : count;
+    }
+
     /**
      * Mimic a REDIS hgetAll operation.
      *
@@ -353,13 +453,7 @@ public class RedissonClient implements EventIF {
         cache.invoke(id,
                 e -> e.setValue(m).setExpiry(ttl));
 
-        Map mx = new HashMap();
-        mx.put("origin",self);
-        mx.put("command", "hmset");
-        mx.put("key", id);
-        mx.put("payload", m);
-        mx.put("expire", ttl);
-        freq.add(mx);
+        publish(CacheFrame.HMSET, id, m, ttl);
         return;
     }
 
@@ -379,13 +473,7 @@ public class RedissonClient implements EventIF {
             AtomicLong v = (AtomicLong)x;
             long value = v.addAndGet(1);
 
-            Map mx = new HashMap();
-            mx.put("origin",self);
-            mx.put("command", "incr");
-            mx.put("key", id);
-            mx.put("payload", v);
-            mx.put("expire", -1L);
-            freq.add(mx);
+            publish(CacheFrame.INCR, id, value, -1);
             return value;
         }
 
@@ -428,17 +516,54 @@ public class RedissonClient implements EventIF {
             value = v.addAndGet(1);
         }
 
-        Map mx = new HashMap();
-        mx.put("origin",self);
-        mx.put("command", "incr");
-        mx.put("key", id);
-        mx.put("payload", value);
-        mx.put("expire", expire);
-        freq.add(mx);
+        publish(CacheFrame.INCR, id, value, expire);
 
         return value;
     }
 
+    /**
+     * Count a win against a frequency cap. Only our own slot of the cap's counter changes, the other bidders hear
+     * its total within CAP_FLUSH_MS.
+     *
+     * @param id  String. The cap key.
+     * @param ttl long. time-to-live of a new cap window, in seconds.
+     * @return long. The cap's count across all the bidders, as known here.
+     */
+    public long incrementCap(String id, long ttl) {
+        return caps.increment(id, ttl);
+    }
+
+    /**
+     * Count a win against a frequency cap, by its hashed key.
+     *
+     * @param key long. The cap key, see CapCounters.
+     * @param ttl long. time-to-live of a new cap window, in seconds.
+     * @return long. The cap's count across all the bidders, as known here.
+     */
+    public long incrementCap(long key, long ttl) {
+        return caps.increment(key, ttl);
+    }
+
+    /**
+     * Return a frequency cap's count.
+     *
+     * @param id String. The cap key.
+     * @return long. The count across all the bidders, as known here, or -1 if the cap is not counting.
+     */
+    public long getCap(String id) {
+        return caps.get(id);
+    }
+
+    /**
+     * Return a frequency cap's count, by its hashed key.
+     *
+     * @param key long. The cap key, see CapCounters.
+     * @return long. The count across all the bidders, as known here, or -1 if the cap is not counting.
+     */
+    public long getCap(long key) {
+        return caps.get(key);
+    }
+
     /**
      * Expire a key (no op on Cache2k, expirt is set globally for it).
      *
@@ -483,6 +608,67 @@ public class RedissonClient implements EventIF {
         return (List)o;
     }
 
+    /**
+     * Send a cache update to the other bidders and Zerospike.
+     *
+     * @param command byte. The CacheFrame command.
+     * @param key     String. The key.
+     * @param payload Object. The value, null for del.
+     * @param expire  long. The expiry in ms since the epoch, -1 for none.
+     */
+    void publish(byte command, String key, Object payload, long expire) {
+        Shard shard = shardOf(key);
+        if (shard == null)
+            return;
+        shard.publish(new CacheFrame(command, id.getMostSignificantBits(), id.getLeastSignificantBits(),
+                expire, key, payload));
+    }
+
+    @Override
+    public void handleMessage(String topic, byte[] msg) {
+        receive(null, topic, msg);
+    }
+
+    /**
+     * Apply the cache updates in a message from another bidder.
+     *
+     * @param shard Shard. The shard it came in on, or null if not known.
+     * @param topic String. The topic.
+     * @param msg   byte[]. The message.
+     */
+    void receive(Shard shard, String topic, byte[] msg) {
+        if (!CacheFrame.isFrame(msg)) {
+            handleMessage(topic, new String(msg, StandardCharsets.UTF_8));
+            return;
+        }
+        List<CacheFrame> frames;
+        try {
+            frames = CacheFrame.decodeAll(msg);
+        } catch (Exception error) {
+            logger.error("Bad cache update on {}: {}", topic, error.toString());
+            return;
+        }
+        // All the records of a batch have the same origin
+        if (frames.isEmpty() || frames.get(0).isFrom(id))
+            return;
+
+        // Still loading the shard's snapshot, these are applied when it is done
+        Reader r = shard == null ? null : shard.reader;
+        if (r != null && r.defer(frames))
+            return;
+
+        for (int i = 0; i < frames.size(); i++) {
+            CacheFrame frame = frames.get(i);
+            logger.debug("Cache got an update. Topic: {}. id: {}. expire: {}. cmd: {}. payload: {}", topic,
+                    frame.key, frame.expire, frame.getCommand(), frame.payload);
+
+            if (frame.command == CacheFrame.SLOT)
+                caps.merge(frame.getOrigin(), frame.key, frame.expire, ((Number) frame.payload).longValue());
+            else
+                executeOnCache(frame.getCommand(), frame.key, frame.expire, frame.payload, frame.delta);
+        }
+    }
+
     @Override
     public void handleMessage(String topic, String msg) {
         if (msg.contains("Ping"))
@@ -506,10 +692,27 @@ public class RedissonClient implements EventIF {
 
         logger.debug("Cache got an update. Topic: {}. id: {}. expire: {}. cmd: {}. payload: {}", topic, key, expire, cmd, payload);
 
+        if ("slot".equals(cmd)) {
+            caps.merge(UUID.fromString(origin), key, expire.longValue(), ((Number) payload).longValue());
+            return;
+        }
         executeOnCache(cmd, key, expire, payload);
     }
 
     void executeOnCache(String cmd, String key, Number n, Object payload) {
+        executeOnCache(cmd, key, n, payload, 1);
+    }
+
+    /**
+     * Apply a cache update from another bidder.
+     *
+     * @param cmd     String. The command, eg "hmset".
+     * @param key     String. The key.
+     * @param n       Number. The expiry in ms since the epoch, -1 or null for none.
+     * @param payload Object. The value.
+     * @param delta   long. For incr, the number of increments.
+     */
+    void executeOnCache(String cmd, String key, Number n, Object payload, long delta) {
         long expiration = -1;
         if (n != null)
             expiration = n.longValue();
@@ -534,10 +737,10 @@ public class RedissonClient implements EventIF {
                         logger.error("Error incrementing {}, key does not exist",key);
                         return;
                     }
-                    v.addAndGet(1);
+                    v.addAndGet(delta);
                     return;
                 }
-                v = new AtomicLong(1);
+                v = new AtomicLong(delta);
                 cache.invoke(key,
                         e -> e.setValue(v).setExpiry(expire));
                 break;
@@ -548,10 +751,13 @@ public class RedissonClient implements EventIF {
     }
 
     /**
-     * No op, not used only for redisson compatibility.
+     * Publish any batched updates. Otherwise a no op, only for redisson compatibility.
      */
     public void shutdown() {
-
+        if (capFlusher != null)
+            flushCaps();
+        for (Shard shard : shards)
+            shard.shutdown();
     }
 
     public static int getTimeToLiveInSecondsRoundedToNearestTimeUnitBaseOnUtcClock(int capTimeout, String capTimeUnit) {
@@ -577,134 +783,3 @@ public class RedissonClient implements EventIF {
     }
 
 }
-
-class Reader implements Runnable {
-
-    private Socket s;
-    private Thread me;
-    private DataInputStream dis;
-    byte[] buffer = new byte[4096];
-    volatile Cache cache;
-    Logger logger;
-    String host;
-    int port;
-    boolean complete = false;
-    public Reader(Cache cache, Logger logger, String host, int port) throws Exception {
-        this.cache = cache;
-        this.logger = logger;
-        this.host = host;
-        this.port = port;
-        me = new Thread(this);
-        me.start();
-    }
-
-    public boolean isComplete() {
-        return complete;
-    }
-
-    public void run() {
-        byte [] blen = new byte[6];
-        byte [] data = new byte[4096];
-        int len = 0;
-        int count = 0;
-
-        boolean connected = false;
-        try {
-            s = new Socket(host, port);
-            dis = new DataInputStream(s.getInputStream());
-            connected = true;
-        } catch (Exception error) {
-            logger.error("Error connecting to Zerospike reader {}/{}: {}",host,port,error.toString());
-            logger.error("*** System is stopping to try to recover ***");
-            if (Configuration.getInstance() != null)
-                RTBServer.panicStop();
-            System.exit(1);
-        }
-
-        long time = System.currentTimeMillis();
-        try {
-            while (true) {
-                int rc = 0;
-                len = 6;
-                while(rc != len) {
-                    int k = dis.read(blen,rc,len-rc);
-                    if (k <= 0)
-                        break;
-                    rc += k;
-                }
-                if (rc != 6)
-                    break;
-                
-                String str = new String(blen,0,len);
-                // logger.info("COUNTER: {}, counter string: {}",count,str);
-                str = str.replaceAll(" ","");
-                len = Integer.parseInt(str);
-
-                if (len > data.length)
-                    data = new byte[len];
-                int x = 0;
-                rc = 0;
-                while(rc != len) {
-                    x = dis.read(data,rc,len-rc);
-                    rc += x;
-                    // logger.info("Read {} bytes, left to read: {}", x, (len-rc));
-                }
-                str = new String(data,0,len);
-                // logger.info("Data read in for count: {}, len:{}, size:{}, value:{}",count,len,str.length(),str);
-                Map map = null;
-                try {
-                    map = (Map) RedissonClient.mapper.readValue(str, Map.class);
-                    String key = (String) map.get("key");
-                    Number expire = (Number) map.get("expire");
-                    String cmd = (String) map.get("command");
-                    Object payload = map.get("payload");
-                    executeOnCache(cmd,key,expire,payload);
-
-                } catch (Exception error) {
-                    logger.error("Encountered an error decoding map: {}, error: {}", map,error.getMessage());
-                }
-                count++;
-            }
-            time = System.currentTimeMillis() - time;
-            time /= 1000;
-            logger.info("Initialization reader completed, with {} objects in {} seconds",count,time);
-        } catch (Exception error) {
-            error.printStackTrace();
-            System.out.println("LEN: " + len);
-            logger.error("Error reading initial data, error: {}",error.toString());
-        }
-        complete = true;
-    }
-
-    void executeOnCache(String cmd, String key, Number n, Object payload) throws Exception{
-        long expiration = -1;
-        if (n != null)
-            expiration = n.longValue();
-        long expire = expiration;
-        try {
-            switch (cmd) {
-                case "hmset":
-                    cache.invoke(key,
-                            e -> e.setValue(payload).setExpiry(expire));
-                    break;
-                case "set":
-                    cache.invoke(key,
-                            e -> e.setValue(payload).setExpiry(expire));
-                    break;
-                case "incr":
-                    Number value = (Number) payload;
-                    AtomicLong v = new AtomicLong(value.longValue());
-                    cache.invoke(key,
-                            e -> e.setValue(v).setExpiry(expire));
-                    break;
-                default:
-                    logger.error("Unknown distributed cache command: {} for key: {}.", cmd, key);
-
-            }
-        } catch (Exception error) {
-            logger.error("Error on cmd: {}, key: {}, expire: {}", cmd,key,expire);
-            error.printStackTrace();
-        }
-    }
-
-}
@@ -0,0 +1,136 @@
+package com.jacamars.dsp.rtb.redisson;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jacamars.dsp.rtb.bidder.ZPublisher;
+import com.jacamars.dsp.rtb.jmq.EventIF;
+import com.jacamars.dsp.rtb.jmq.MSubscriber;
+
+/**
+ * One Zerospike as seen by a RedissonClient. Each Zerospike owns the keys that the client's ShardRing hashes to it,
+ * with its own proxy, MapDB store and expiry wheel. The shard has the publisher (and batcher) the client sends
+ * those keys' updates on, and, if the bidder listens to it, the subscriber that hears the other bidders' updates and
+ * the Reader that loads its snapshot.
+ *
+ * @author Ben M. Faul
+ *
+ */
+final class Shard implements EventIF {
+
+	/** The client this belongs to */
+	final RedissonClient client;
+	/** The name the ring hashes, the same on every bidder */
+	final String name;
+	/** Publishes updates of the keys on this shard */
+	final ZPublisher freq;
+	/** Hears the other bidders' updates, null if the bidder doesn't listen to this shard */
+	final MSubscriber sfreq;
+	/** Loads the snapshot, null if there is none */
+	final Reader reader;
+	/** Batches the binary updates, null if they are not batched */
+	volatile CacheBatcher batcher;
+	/**
+	 * Held while a frame takes its sequence number and is queued on the publisher, so the frames of this shard go
+	 * out in sequence order. Zerospike keeps only the highest sequence it applied from each origin, so a lower one
+	 * arriving after a higher one would be dropped by a bidder catching up from its snapshot.
+	 */
+	final Object sending = new Object();
+
+	/**
+	 * Connect to a Zerospike.
+	 * @param client RedissonClient. The client.
+	 * @param name String. The name of the shard in the ring.
+	 * @param pub String. The publisher binding, with the context topic.
+	 * @param sub String. The subscriber binding, or null to not listen to this shard.
+	 * @param host String. The host of the shard's file server, or null to not load the snapshot.
+	 * @param port int. The port of the shard's file server.
+	 * @throws Exception on ZeroMQ errors.
+	 */
+	Shard(RedissonClient client, String name, String pub, String sub, String host, int port) throws Exception {
+		this.client = client;
+		this.name = name;
+		freq = new ZPublisher(pub);
+		if (RedissonClient.BATCH_SIZE > 1 && RedissonClient.BATCH_MS > 0)
+			batcher = new CacheBatcher(this, RedissonClient.BATCH_SIZE, RedissonClient.BATCH_MS);
+		reader = sub == null || host == null ? null : new Reader(client.cache, client.caps, RedissonClient.logger, host, port);
+		// Listen first, so nothing sent while the snapshot is read is missed
+		sfreq = sub == null ? null : new MSubscriber(this, sub, "context");
+		if (reader != null)
+			reader.start();
+	}
+
+	/**
+	 * Send a cache update, batched if so configured.
+	 * @param frame CacheFrame. The update.
+	 */
+	void publish(CacheFrame frame) {
+		CacheBatcher b = batcher;
+		if (RedissonClient.BINARY && b != null)
+			b.add(frame);
+		else
+			send(frame);
+	}
+
+	/**
+	 * Send one cache update right away, as a frame, or as JSON if frames are off or it can't be encoded.
+	 * @param frame CacheFrame. The update.
+	 */
+	void send(CacheFrame frame) {
+		if (RedissonClient.BINARY) {
+			try {
+				synchronized (sending) {
+					freq.add(CacheFrame.encode(frame, client.sequence.incrementAndGet()));
+				}
+				return;
+			} catch (Exception error) {
+				RedissonClient.logger.warn("Can't encode cache update for {}, sending JSON: {}", frame.key,
+						error.toString());
+			}
+		}
+		Map<String, Object> mx = new HashMap<String, Object>();
+		mx.put("origin", client.self);
+		mx.put("command", frame.getCommand());
+		mx.put("key", frame.key);
+		if (frame.command != CacheFrame.DEL) {
+			mx.put("payload", frame.payload);
+			mx.put("expire", frame.expire);
+		}
+		freq.add(mx);
+	}
+
+	/**
+	 * Is the shard's snapshot loaded?
+	 * @return boolean. Returns true if loaded, or if there is none.
+	 */
+	boolean loadComplete() {
+		return reader == null || reader.isComplete();
+	}
+
+	@Override
+	public void handleMessage(String topic, byte[] msg) {
+		client.receive(this, topic, msg);
+	}
+
+	@Override
+	public void handleMessage(String topic, String msg) {
+		client.handleMessage(topic, msg);
+	}
+
+	/**
+	 * Publish any batched updates.
+	 */
+	@Override
+	public void shutdown() {
+		CacheBatcher b = batcher;
+		if (b != null) {
+			batcher = null;
+			b.shutdown();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
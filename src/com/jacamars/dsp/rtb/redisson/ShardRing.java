@@ -0,0 +1,84 @@
+package com.jacamars.dsp.rtb.redisson;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring over the Zerospike shards. Every shard is placed on the ring at VIRTUAL points hashed from
+ * its name, and a key belongs to the first point at or after the key's hash. Adding or removing a shard only moves
+ * the keys between it and its neighbours, and every bidder configured with the same shard names routes a key to the
+ * same shard.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public final class ShardRing {
+
+	/** Points per shard, enough to spread the keys evenly over a handful of shards */
+	static final int VIRTUAL = 160;
+
+	/** The points, ascending */
+	final long[] points;
+	/** The shard index of each point */
+	final int[] owners;
+
+	/**
+	 * Build the ring.
+	 * @param names List. The shard names, in shard index order.
+	 */
+	public ShardRing(List<String> names) {
+		Map<Long, Integer> ring = new TreeMap<Long, Integer>();
+		for (int i = 0; i < names.size(); i++) {
+			for (int v = 0; v < VIRTUAL; v++)
+				ring.put(hash(names.get(i) + "#" + v), i);
+		}
+		points = new long[ring.size()];
+		owners = new int[ring.size()];
+		int k = 0;
+		for (Map.Entry<Long, Integer> e : ring.entrySet()) {
+			points[k] = e.getKey();
+			owners[k++] = e.getValue();
+		}
+	}
+
+	/**
+	 * Return the shard a key belongs to.
+	 * @param key String. The key.
+	 * @return int. The shard's index.
+	 */
+	public int shardOf(String key) {
+		if (owners.length == 0)
+			return -1;
+		long h = hash(key);
+		int lo = 0;
+		int hi = points.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (points[mid] < h)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return owners[lo == points.length ? 0 : lo];
+	}
+
+	/**
+	 * A 64 bit FNV-1a of the characters, finished with the MurmurHash3 mixer so nearby keys spread out.
+	 * @param s CharSequence. The text.
+	 * @return long. The hash.
+	 */
+	static long hash(CharSequence s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -3,15 +3,20 @@ package com.jacamars.dsp.rtb.services;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jacamars.dsp.rtb.redisson.CacheSnapshot;
 import org.mapdb.HTreeMap;
 import org.slf4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
 /**
  * A file server, TCP based, that listens on a well known socket, any clients connecting then are provided with a socket they
@@ -22,6 +27,8 @@ public class FileServer implements Runnable {
 
     /** The object map on file */
     private HTreeMap objects;
+    /** The listener, knows the sequences the map includes */
+    private ListenToZeroMQ spy;
     /** The server socket we use to listen on. */
     private ServerSocket ss;
     /** The tcp socket we will build the server socket with. */
@@ -35,11 +42,13 @@ public class FileServer implements Runnable {
      * A Server that returns unexpired key/data from the database.
      * @param logger Logger. The error logger.
      * @param objects HTreeMap. The map of data on disk.
+     * @param spy ListenToZeroMQ. The listener that fills the map.
      * @param port int. The port we will listen for clients to connect.
      * @throws Exception on network and file errors.
      */
-    public FileServer( Logger logger, HTreeMap objects, int port) throws Exception {
+    public FileServer( Logger logger, HTreeMap objects, ListenToZeroMQ spy, int port) throws Exception {
         this.objects = objects;
+        this.spy = spy;
         this.port = port;
         this.logger = logger;
         ss = new ServerSocket(port);
@@ -56,7 +65,7 @@ public class FileServer implements Runnable {
         while (true) {
             try {
                 Socket clientSock = ss.accept();
-                new Relay(logger,objects,clientSock);
+                new Relay(logger,objects,spy,clientSock);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -65,13 +74,18 @@ public class FileServer implements Runnable {
 }
 
 /**
- * The worker that takes a connected socket to a client, and returns the key/data from the file.
+ * The worker that takes a connected socket to a client, and returns the key/data from the file. Clients that send
+ * CacheSnapshot's hello get the compressed binary snapshot, older ones the JSON objects.
  */
 class Relay implements Runnable {
+    /** How long to wait for a client's hello, in ms, before sending it JSON */
+    static final int HELLO_WAIT = 250;
     /** My thread */
     Thread me;
     /** The data on disk. */
     HTreeMap objects;
+    /** The listener, knows the sequences the map includes */
+    ListenToZeroMQ spy;
     /** The socket to the client */
     Socket client;
     /** The error logger */
@@ -83,11 +97,13 @@ class Relay implements Runnable {
      * Create a file relay for the database.
      * @param logger Logger. Error logger object.
      * @param objects HTreeMap. The data on disk.
+     * @param spy ListenToZeroMQ. The listener that fills the map.
      * @param client Socket. The connection to the subscriber.
      */
-    public Relay(Logger logger, HTreeMap objects, Socket client) {
+    public Relay(Logger logger, HTreeMap objects, ListenToZeroMQ spy, Socket client) {
         this.logger = logger;
         this.objects = objects;
+        this.spy = spy;
         this.client = client;
         mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
         mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
@@ -103,41 +119,102 @@ class Relay implements Runnable {
      * over the pub/sub channel.
      */
     public void run() {
+        boolean binary = wantsBinary();
+        // Taken before the keys are read, so everything at or below them is in the snapshot
+        Map<UUID, Long> sequences = spy.getSequences();
         Set<HTreeMap.Entry> elements = objects.getEntries();
 
-        logger.info("Starting transfer to {}, elements: {}", client,elements.size());
+        logger.info("Starting {} transfer to {}, elements: {}", binary ? "binary" : "JSON", client,elements.size());
         long time = System.currentTimeMillis();
         int count = 0;
-        for (Map.Entry x : elements) {
-            count++;
+        OutputStream out;
+        try {
+            out = new BufferedOutputStream(client.getOutputStream(), 65536);
+        } catch (IOException e) {
+            logger.error("Error in transfer to {}, error: {}", client,e.toString());
+            close();
+            return;
+        }
+        if (binary) {
             try {
-                String buffer = mapper.writeValueAsString(x.getValue());
-                String preamble = String.format("% 6d", buffer.getBytes().length);
-                
-                logger.info("Write count: {}, size: {}, buffer: {}", count,preamble,buffer);
-                
-                client.getOutputStream().write(preamble.getBytes());
-                client.getOutputStream().write(buffer.getBytes());
-
+                count = CacheSnapshot.write(out, sequences, objects.values());
+                out.flush();
             } catch (Exception e) {
                 e.printStackTrace();
                 logger.error("Error in transfer to {}, error: {}", client,e.toString());
-                try {
-					client.close();
-				} catch (IOException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				}
+                close();
                 return;
             }
+        } else {
+            for (Map.Entry x : elements) {
+                count++;
+                try {
+                    byte[] buffer = mapper.writeValueAsBytes(x.getValue());
+                    String preamble = String.format("% 6d", buffer.length);
+
+                    if (logger.isDebugEnabled())
+                        logger.debug("Write count: {}, size: {}, buffer: {}", count,preamble,new String(buffer));
+
+                    out.write(preamble.getBytes());
+                    out.write(buffer);
+
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    logger.error("Error in transfer to {}, error: {}", client,e.toString());
+                    close();
+                    return;
+                }
+            }
         }
         try {
+            out.flush();
             client.close();
         } catch (Exception error) {
             error.printStackTrace();
         }
         time = System.currentTimeMillis() - time;
-        time /= 1000;
-        logger.info("Transfer to {}, of {} objects, complete in {} seconds.",client,count,time);
+        logger.info("Transfer to {}, of {} objects, complete in {} ms.",client,count,time);
+    }
+
+    /**
+     * Wait a moment for the client's hello.
+     * @return boolean. Returns true if the client asked for the binary snapshot.
+     */
+    boolean wantsBinary() {
+        byte[] hello = CacheSnapshot.hello();
+        try {
+            client.setSoTimeout(HELLO_WAIT);
+            InputStream in = client.getInputStream();
+            int rc = 0;
+            while (rc < hello.length) {
+                int k = in.read(hello, rc, hello.length - rc);
+                if (k <= 0)
+                    return false;
+                rc += k;
+            }
+            return CacheSnapshot.isHello(hello);
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            logger.warn("Error reading hello from {}, error: {}", client, e.toString());
+            return false;
+        } finally {
+            try {
+                client.setSoTimeout(0);
+            } catch (IOException e) {
+                // The transfer will fail
+            }
+        }
+    }
+
+    /**
+     * Close the connection to the client.
+     */
+    void close() {
+        try {
+            client.close();
+        } catch (IOException e1) {
+            e1.printStackTrace();
+        }
     }
 }
\ No newline at end of file
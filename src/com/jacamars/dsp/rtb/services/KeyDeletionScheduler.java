@@ -1,25 +1,33 @@
 package com.jacamars.dsp.rtb.services;
 
-import org.mapdb.DB;
-import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 
 /**
- * The worker that deletes stuff out of the database as they age from the DelayQueue.
+ * The worker that deletes stuff out of the database as they age. Keys are kept in a hashed timing wheel: a ring of
+ * SLOTS buckets, one per TICK ms, each a linked list of the keys that expire on a tick that hashes to it. Adding,
+ * rescheduling and deleting a key is an index lookup and a list link/unlink, and every tick only looks at one
+ * bucket.
+ * <p>
+ * The wheel is not written anywhere. Every stored object carries its expire time, and Zerospike rebuilds the wheel
+ * from the objects map when it starts (see Zerospike.initializeLoad()).
  */
-class KeyDeletionScheduler {
+public class KeyDeletionScheduler {
+    /** Length of a tick in ms, keys expire at most this late */
+    public static final long TICK = 500;
+    /** Number of buckets in the wheel, a power of 2. 4096 ticks is a bit over half an hour */
+    public static final int SLOTS = 4096;
+
     /** The tree interface to the data on disk */
     private volatile HTreeMap object;
-    /** The delayed queue of keys that time out */
-    private final BlockingQueue< PostponedWorkItem > delayed =
-            new DelayQueue< PostponedWorkItem >();
     /** The trace flag */
     private boolean trace = false;
     /** The error logger object */
@@ -27,10 +35,31 @@ class KeyDeletionScheduler {
     /** Counter for number of keys deleted */
     private AtomicLong count = new AtomicLong(0);
 
-    /** A scratch dataabase we use to store off-heap items that will be deleted */
-    private volatile DB scratchdb;
-    /** The map of work items. stored off-heap */
-    private HTreeMap<String, PostponedWorkItem> map;
+    /** The buckets, each the head of a list of timeouts */
+    private final Timeout[] wheel = new Timeout[SLOTS];
+    /** The timeouts, by key */
+    private final Map<String, Timeout> index = new HashMap<String, Timeout>();
+    /** The time of tick 0 */
+    public final long start = System.currentTimeMillis();
+    /** The next tick to process */
+    private long tick;
+
+    /**
+     * A key waiting to expire, linked into its bucket.
+     */
+    static final class Timeout {
+        final String key;
+        /** Expiry, in ms since the epoch */
+        long time;
+        /** The tick it expires on */
+        long deadline;
+        Timeout prev;
+        Timeout next;
+
+        Timeout(String key) {
+            this.key = key;
+        }
+    }
 
     /**
      * Every 1/2 second this worker gathers all the expired keys up, then deletes them from the database file. Note,
@@ -42,28 +71,14 @@ class KeyDeletionScheduler {
         this.object = object;
         this.logger = logger;
 
-        scratchdb = DBMaker.tempFileDB()
-                .fileMmapEnable()            // Always enable mmap
-                .fileMmapEnableIfSupported() // Only enable mmap on supported platforms
-                .fileMmapPreclearDisable()   // Make mmap file faster
-                // Unmap (release resources) file when its closed.
-                // That can cause JVM crash if file is accessed after it was unmapped
-                // (there is possible race condition).
-                .cleanerHackEnable()
-                .make();
-
-        map = (HTreeMap<String, PostponedWorkItem>) scratchdb.hashMap("scratch").createOrOpen();
-        map.clear();
-
-        ScheduledExecutorService execService = Executors.newScheduledThreadPool(5);
+        ScheduledExecutorService execService = Executors.newSingleThreadScheduledExecutor();
         execService.scheduleAtFixedRate(() -> {
             try {
                 process();
             } catch (Exception e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                logger.error("Error expiring keys: {}", e.toString());
             }
-        }, 500, 500, TimeUnit.MILLISECONDS);
+        }, TICK, TICK, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -75,14 +90,13 @@ class KeyDeletionScheduler {
     }
 
     /**
-     * Delete the data on disk indexed by key.
+     * Forget the timeout of a key, the data itself is deleted by the caller.
      * @param key String. The key of the data to delete.
      */
-    public void delKey(final String key) {
-        PostponedWorkItem x = map.get(key);
-        if (x == null)
-            return;
-        delayed.remove(x);
+    public synchronized void delKey(final String key) {
+        Timeout t = index.remove(key);
+        if (t != null)
+            unlink(t);
     }
 
     /**
@@ -94,50 +108,146 @@ class KeyDeletionScheduler {
     }
 
     /**
-     * Add a key, to delayqueue so we can decide when to delete it.
+     * Return the number of keys waiting to expire.
+     * @return int. The number of keys.
+     */
+    public synchronized int getSize() {
+        return index.size();
+    }
+
+    /**
+     * Add a key, or move it if it is already there, so we can delete it when it expires.
      * @param workItem String. The key to delete in the future.
      * @param time long. The future time when this key is to be deleted.
      */
-    public void addKey( final String workItem, final long time ) {
+    public synchronized void addKey( final String workItem, final long time ) {
         if (trace) {
-            logger.info("ADD ITEM: {}, timeout: {}" + workItem, time);
+            logger.info("ADD ITEM: {}, timeout: {}", workItem, time);
         }
 
-        delKey(workItem);   // make sure that the deletion key doesn't have this key. If it does it could time out and delete the new aDDITION
-
-        final PostponedWorkItem postponed = new PostponedWorkItem( workItem, time );
-        if( !delayed.contains( postponed )) {
-            map.put(workItem,postponed);
-            delayed.offer( postponed );
-        }
+        Timeout t = index.get(workItem);
+        if (t == null) {
+            t = new Timeout(workItem);
+            index.put(workItem, t);
+        } else
+            unlink(t);
+
+        t.time = time;
+        // Round up, so a key never goes early. Anything already due goes on the next tick
+        t.deadline = Math.max(tick, (time - start + TICK - 1) / TICK);
+        link(t);
     }
 
     /**
      * Return the absolute time (epoch) when the key will expire.
      * @param key String. The key
-     * @return long. The epoch of wwhen this key actually expires.
+     * @return Long. The epoch of wwhen this key actually expires, or null if the key is not known.
      */
-    public long getTTL(final String key) {
-       final PostponedWorkItem wk =  map.get(key);
-       return wk.getStartTime();
+    public synchronized Long getTTL(final String key) {
+        Timeout t = index.get(key);
+        return t == null ? null : t.time;
     }
+
     /**
-     * Drain the expired keys into a bucker, then delete them. TBD: This could be improved with a thread pool.
+     * Is the key waiting to expire?
+     * @param key String. The key.
+     * @return boolean. Returns true if the key has a timeout.
      */
-    public void process() {
-        final Collection< PostponedWorkItem > expired = new ArrayList< PostponedWorkItem >();
-        delayed.drainTo( expired );
-
-        // System.out.println("EXPIRED: " + expired);
+    public synchronized boolean isScheduled(final String key) {
+        return index.containsKey(key);
+    }
 
-        for( final PostponedWorkItem postponed: expired ) {
+    /**
+     * Take the keys that are due off the wheel, then delete them from the database in one pass. Each key is checked
+     * and deleted under the lock, so one that is stored and added back meanwhile keeps its new value.
+     */
+    public void process() {
+        long now = System.currentTimeMillis();
+        List<String> expired = expire((now - start) / TICK);
+
+        for (int i = 0; i < expired.size(); i++) {
+            String key = expired.get(i);
+            synchronized (this) {
+                // Added back since it was taken off the wheel
+                if (index.containsKey(key))
+                    continue;
+                // Stored again, and about to be added back. Only the value that expired is deleted
+                Object value = object.get(key);
+                if (value == null || !isExpired(value, now) || !object.remove(key, value))
+                    continue;
+            }
             count.incrementAndGet();
-            String key = postponed.getKey();
-            object.remove(key);
             if (trace) {
                 logger.info("Key expired: {}",key);
             }
         }
     }
-}
 
+    /**
+     * Has a stored object expired? Every object carries its expire time.
+     * @param value Object. The object in the database.
+     * @param now long. The current time, ms since the epoch.
+     * @return boolean. Returns true if the object is due, or has no expire time.
+     */
+    static boolean isExpired(Object value, long now) {
+        if (!(value instanceof Map))
+            return true;
+        Object expire = ((Map<?, ?>) value).get("expire");
+        return !(expire instanceof Number) || ((Number) expire).longValue() <= now;
+    }
+
+    /**
+     * Advance the wheel to the given tick, unlinking everything due.
+     * @param now long. The current tick.
+     * @return List. The keys that expired.
+     */
+    public synchronized List<String> expire(long now) {
+        List<String> expired = new ArrayList<String>();
+        if (now - tick >= SLOTS) {
+            // Fell a whole turn behind (a long pause), look at every bucket once
+            for (int slot = 0; slot < SLOTS; slot++)
+                expire(slot, now, expired);
+            tick = now + 1;
+            return expired;
+        }
+        for (; tick <= now; tick++)
+            expire((int) (tick & (SLOTS - 1)), tick, expired);
+        return expired;
+    }
+
+    /**
+     * Unlink the timeouts of a bucket that are due by a tick. The others are for later turns of the wheel.
+     */
+    private void expire(int slot, long now, List<String> expired) {
+        Timeout t = wheel[slot];
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.deadline <= now) {
+                unlink(t);
+                index.remove(t.key);
+                expired.add(t.key);
+            }
+            t = next;
+        }
+    }
+
+    private void link(Timeout t) {
+        int slot = (int) (t.deadline & (SLOTS - 1));
+        t.prev = null;
+        t.next = wheel[slot];
+        if (t.next != null)
+            t.next.prev = t;
+        wheel[slot] = t;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null)
+            t.prev.next = t.next;
+        else
+            wheel[(int) (t.deadline & (SLOTS - 1))] = t.next;
+        if (t.next != null)
+            t.next.prev = t.prev;
+        t.prev = null;
+        t.next = null;
+    }
+}
@@ -1,11 +1,17 @@
 package com.jacamars.dsp.rtb.services;
 
+import com.jacamars.dsp.rtb.redisson.CacheFrame;
 import org.mapdb.HTreeMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zeromq.ZMQ;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -30,6 +36,8 @@ class ListenToZeroMQ implements Runnable {
     private KeyDeletionScheduler worker;
     /** The object that is mapped to disk */
     private HTreeMap objects;
+    /** The last sequence applied from each origin, sent with snapshots */
+    private final Map<UUID, Long> sequences = new ConcurrentHashMap<UUID, Long>();
 
     /**
      * Constructor for the spy listening to context topic
@@ -60,7 +68,29 @@ class ListenToZeroMQ implements Runnable {
             String topic = pipe.recvStr();
             //System.out.println("---------------->" + topic);
             if (topic.charAt(0)!=1) {
-                String msg = pipe.recvStr();
+                byte[] data = pipe.recv();
+                if (CacheFrame.isFrame(data)) {
+                    if (topic.equals("context")) {
+                        try {
+                            List<CacheFrame> frames = CacheFrame.decodeAll(data);
+                            for (int i = 0; i < frames.size(); i++) {
+                                CacheFrame frame = frames.get(i);
+                                if (trace)
+                                    logger.info("Cache RECV, topic: '{}', frame: '{}'", topic, frame);
+                                count.incrementAndGet();
+                                handleContext(frame.toMap());
+                            }
+                            // Only once all of it is in the map
+                            if (!frames.isEmpty())
+                                sequences.put(frames.get(0).getOrigin(), frames.get(0).sequence);
+                        } catch (Exception error) {
+                            logger.error("Bad cache frame on {}: {}", topic, error.toString());
+                        }
+                    }
+                    totalCount.addAndGet(1);
+                    continue;
+                }
+                String msg = new String(data, StandardCharsets.UTF_8);
                 if (trace)
                     logger.info("Cache RECV, topic: '{}', msg: '{}'", topic, msg);
                 if (topic.equals("context")) {
@@ -88,6 +118,14 @@ class ListenToZeroMQ implements Runnable {
         logger.error("Zeromq listener has exited");
     }
 
+    /**
+     * Return the last sequence applied from each origin. Everything at or below these is in the map.
+     * @return Map. A copy of the sequences, by origin.
+     */
+    public Map<UUID, Long> getSequences() {
+        return new HashMap<UUID, Long>(sequences);
+    }
+
     /**
      * Get the count of the times we have received a disk based message, then zero the count.
      * @return long. The number of times we have encountered a message.
@@ -155,6 +193,18 @@ class ListenToZeroMQ implements Runnable {
                     objects.put(key, m);
                     worker.addKey(key, ttl);
                     break;
+                case "slot":
+                    /**
+                     * A bidder's slot of a frequency cap, kept one per bidder so the snapshot has all of them.
+                     */
+                    if (expire == null || expire.longValue() <= 0) {
+                        logger.error("Slot {} has an invalid timeout: {}", key, expire);
+                        return;
+                    }
+                    String slot = key + "#" + m.get("origin");
+                    objects.put(slot, m);
+                    worker.addKey(slot, expire.longValue());
+                    break;
                 default:
                     logger.error("Unknown distributed cache command: {}, key: {}", cmd, key);
 
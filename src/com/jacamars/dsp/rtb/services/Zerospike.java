@@ -249,7 +249,7 @@ public class Zerospike implements Runnable {
         if (kafkaLogger != null) {
             kafkaLogger.add("System starting: publisher is at " + pub + " subscriber is at " + sub);
         }
-        new FileServer(logger, objects, listen);
+        new FileServer(logger, objects, spy, listen);
         me = new Thread(this);
         me.start();
     }
@@ -332,10 +332,10 @@ public class Zerospike implements Runnable {
     private void printStatus() {
         db.commit();
         int elementCount = objects.getSize();
-        logger.info("Threads: {}, CPU: {}, Memory: {}, Disk-Space: {}, Total-Hits: {}, Disk-Hits: {}, elements: {}, deletions: {}",
+        logger.info("Threads: {}, CPU: {}, Memory: {}, Disk-Space: {}, Total-Hits: {}, Disk-Hits: {}, elements: {}, deletions: {}, timeouts: {}",
                 Performance.getThreadCount(),Performance.getCpuPerfAsString(),Performance.getMemoryUsed(),
                 Performance.getPercFreeDisk(),
-                spy.getTotalClearCount(),spy.getClearCount(), elementCount, worker.getDeletions());
+                spy.getTotalClearCount(),spy.getClearCount(), elementCount, worker.getDeletions(), worker.getSize());
     }
 
     /**
@@ -0,0 +1,394 @@
+package com.jacamars.dsp.rtb.shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.jacamars.dsp.rtb.redisson.CapCounters;
+
+/**
+ * A set of recently added keys, as a ring of time sliced Bloom filters. Time is cut into slices of the same length
+ * on every bidder (epoch = now / slice), a key is added to the filter of the current slice, and a key is in the set
+ * if the filter of any of the last 'live' slices has it. The filter of a slice that has fallen out of the window is
+ * cleared and reused for a new one, so the memory is fixed however many keys are added, and a key stays in the set
+ * between (live - 1) and live slices after it was added.
+ * <p>
+ * The bits set here are also kept as a delta, which drain() takes as one deflated frame of the changed words of each
+ * slice, and merge() ORs into the other bidders' filters. A slice whose delta is more than half its words is sent
+ * whole, so a frame is never much larger than the filters, however many keys were added. Bidders should have their
+ * clocks in sync to well within a slice.
+ * <p>
+ * Like any Bloom filter it has false positives (a key that was never added is in the set), never false negatives.
+ *
+ * @author Ben M. Faul
+ *
+ */
+public class BloomRing {
+
+    /** Starts a frame, not the start of a JSON message */
+    public static final byte MAGIC = 'B';
+    /** The frame version */
+    public static final byte VERSION = 1;
+
+    /** Bits per filter, a power of 2 */
+    final int bits;
+    /** Bits set per key */
+    final int hashes;
+    /** Length of a slice in ms */
+    final long slice;
+    /** Number of slices a key is looked for in */
+    public final int live;
+    /** The filters, one more than live so the one being reused is never one being read */
+    final Slice[] ring;
+    /** The words drain() takes from a delta, zeroed again once written. Guarded by itself */
+    final long[] taken;
+
+    /**
+     * The filter of a slice.
+     */
+    static final class Slice {
+        /** The slice it is the filter of, -1 while it is being cleared */
+        volatile long epoch = -1;
+        /** The filter */
+        final AtomicLongArray words;
+        /** The bits set here not drained yet */
+        final AtomicLongArray delta;
+        /** One bit per word of delta that may be non zero */
+        final AtomicLongArray dirty;
+
+        Slice(int bits) {
+            words = new AtomicLongArray(bits >>> 6);
+            delta = new AtomicLongArray(bits >>> 6);
+            dirty = new AtomicLongArray(Math.max(1, bits >>> 12));
+        }
+
+        void clear() {
+            for (int i = 0; i < words.length(); i++) {
+                words.set(i, 0);
+                delta.set(i, 0);
+            }
+            for (int i = 0; i < dirty.length(); i++)
+                dirty.set(i, 0);
+        }
+    }
+
+    /**
+     * Create the ring.
+     * @param timeout long. How long a key must stay in the set, in ms.
+     * @param slice long. The length of a slice in ms, keys stay in the set up to this long past the timeout.
+     * @param bits int. The bits per filter, rounded up to a power of 2.
+     * @param hashes int. The bits set per key.
+     */
+    public BloomRing(long timeout, long slice, int bits, int hashes) {
+        int n = 4096;
+        while (n < bits && n < (1 << 30))
+            n <<= 1;
+        this.bits = n;
+        this.hashes = hashes;
+        this.slice = slice;
+        live = (int) ((timeout + slice - 1) / slice) + 1;
+        ring = new Slice[live + 1];
+        for (int i = 0; i < ring.length; i++)
+            ring[i] = new Slice(n);
+        taken = new long[n >>> 6];
+    }
+
+    /**
+     * Hash a key.
+     * @param key String. The key.
+     * @return long. The hash.
+     */
+    public static long hash(String key) {
+        return CapCounters.finish(CapCounters.hash(CapCounters.SEED, key));
+    }
+
+    /**
+     * Hash a key made of two parts, the same as hash(a + sep + b), without making the string.
+     * @param a String. The first part.
+     * @param sep char. The separator.
+     * @param b String. The second part.
+     * @return long. The hash.
+     */
+    public static long hash(String a, char sep, String b) {
+        long h = CapCounters.hash(CapCounters.SEED, a);
+        h = CapCounters.hash(h, sep);
+        return CapCounters.finish(CapCounters.hash(h, String.valueOf(b)));
+    }
+
+    /**
+     * Return the filter of a slice, reusing the oldest one if it is the newest slice.
+     * @param epoch long. The slice.
+     * @param now long. The current slice.
+     * @return Slice. The filter, or null if the slice is out of the window.
+     */
+    Slice slice(long epoch, long now) {
+        if (epoch <= now - live || epoch > now + 1)
+            return null;
+        Slice s = ring[(int) (epoch % ring.length)];
+        if (s.epoch == epoch)
+            return s;
+        synchronized (this) {
+            if (s.epoch > epoch)
+                return null;
+            if (s.epoch != epoch) {
+                s.epoch = -1;
+                s.clear();
+                s.epoch = epoch;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Add a key.
+     * @param h long. The hash of the key.
+     */
+    public void add(long h) {
+        add(h, System.currentTimeMillis());
+    }
+
+    /**
+     * Add a key at a given time.
+     * @param h long. The hash of the key.
+     * @param now long. The time in ms.
+     */
+    public void add(long h, long now) {
+        long epoch = now / slice;
+        Slice s = slice(epoch, epoch);
+        if (s == null)
+            return;
+        int mask = bits - 1;
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            long m = 1L << bit;
+            int w = bit >>> 6;
+            if ((s.words.get(w) & m) == 0)
+                or(s.words, w, m);
+            if ((s.delta.get(w) & m) == 0) {
+                or(s.delta, w, m);
+                or(s.dirty, w >>> 6, 1L << w);
+            }
+        }
+    }
+
+    /**
+     * Is a key in the set?
+     * @param h long. The hash of the key.
+     * @return boolean. Returns true if the key was added within the window (or is a false positive).
+     */
+    public boolean contains(long h) {
+        return contains(h, System.currentTimeMillis());
+    }
+
+    /**
+     * Is a key in the set at a given time?
+     * @param h long. The hash of the key.
+     * @param now long. The time in ms.
+     * @return boolean. Returns true if the key was added within the window (or is a false positive).
+     */
+    public boolean contains(long h, long now) {
+        long epoch = now / slice;
+        int mask = bits - 1;
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int k = 0; k < live; k++) {
+            Slice s = ring[(int) ((epoch - k) % ring.length)];
+            if (s.epoch != epoch - k)
+                continue;
+            int i = 0;
+            for (; i < hashes; i++) {
+                int bit = (h1 + i * h2) & mask;
+                if ((s.words.get(bit >>> 6) & (1L << bit)) == 0)
+                    break;
+            }
+            if (i == hashes && s.epoch == epoch - k)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Empty every filter, and forget the delta.
+     */
+    public synchronized void clear() {
+        for (Slice s : ring) {
+            s.epoch = -1;
+            s.clear();
+        }
+    }
+
+    static void or(AtomicLongArray a, int i, long m) {
+        long v;
+        do {
+            v = a.get(i);
+        } while ((v & m) != m && !a.compareAndSet(i, v, v | m));
+    }
+
+    /**
+     * Take the bits added here since the last drain.
+     * @return byte[]. The frame to send, or null if nothing was added.
+     * @throws IOException never, it writes to memory.
+     */
+    public byte[] drain() throws IOException {
+        return drain(System.currentTimeMillis());
+    }
+
+    /**
+     * Take the bits added here since the last drain, at a given time.
+     * @param now long. The time in ms.
+     * @return byte[]. The frame to send, or null if nothing was added.
+     * @throws IOException never, it writes to memory.
+     */
+    public byte[] drain(long now) throws IOException {
+        synchronized (taken) {
+            return drain(now, taken);
+        }
+    }
+
+    byte[] drain(long now, long[] taken) throws IOException {
+        long epoch = now / slice;
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(raw);
+        int sections = 0;
+        for (Slice s : ring) {
+            long e = s.epoch;
+            if (e <= epoch - live)
+                continue;
+            int count = 0;
+            for (int d = 0; d < s.dirty.length(); d++) {
+                long mask = s.dirty.getAndSet(d, 0);
+                while (mask != 0) {
+                    int i = (d << 6) + Long.numberOfTrailingZeros(mask);
+                    mask &= mask - 1;
+                    long v = s.delta.getAndSet(i, 0);
+                    if (v == 0)
+                        continue;
+                    taken[i] = v;
+                    count++;
+                }
+            }
+            // If it was reused while we read it, the old slice is dead, what was taken only costs false positives
+            e = s.epoch;
+            if (count == 0)
+                continue;
+            if (e < 0) {
+                Arrays.fill(taken, 0);
+                continue;
+            }
+            out.writeLong(e);
+            if (count > taken.length / 2) {
+                // Dense, a count of 0 and every word
+                writeVarint(out, 0);
+                for (int i = 0; i < taken.length; i++)
+                    out.writeLong(taken[i]);
+                Arrays.fill(taken, 0);
+            } else {
+                // Sparse, the gap to each changed word and the word
+                writeVarint(out, count);
+                int last = 0;
+                for (int i = 0; i < taken.length; i++) {
+                    if (taken[i] == 0)
+                        continue;
+                    writeVarint(out, i - last);
+                    out.writeLong(taken[i]);
+                    taken[i] = 0;
+                    last = i;
+                }
+            }
+            sections++;
+        }
+        if (sections == 0)
+            return null;
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(raw.size() / 2 + 16);
+        DataOutputStream header = new DataOutputStream(frame);
+        header.writeByte(MAGIC);
+        header.writeByte(VERSION);
+        header.writeInt(bits);
+        header.writeInt(sections);
+        DeflaterOutputStream zip = new DeflaterOutputStream(frame);
+        raw.writeTo(zip);
+        zip.finish();
+        return frame.toByteArray();
+    }
+
+    /**
+     * OR another bidder's frame into the filters.
+     * @param frame byte[]. The frame from drain().
+     * @return boolean. Returns false if it is not a frame this ring can read.
+     * @throws IOException if the frame is malformed.
+     */
+    public boolean merge(byte[] frame) throws IOException {
+        return merge(frame, System.currentTimeMillis());
+    }
+
+    /**
+     * OR another bidder's frame into the filters, at a given time.
+     * @param frame byte[]. The frame from drain().
+     * @param now long. The time in ms.
+     * @return boolean. Returns false if it is not a frame this ring can read.
+     * @throws IOException if the frame is malformed.
+     */
+    public boolean merge(byte[] frame, long now) throws IOException {
+        if (frame.length < 10 || frame[0] != MAGIC || frame[1] != VERSION)
+            return false;
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(frame, 2, frame.length - 2));
+        if (header.readInt() != bits)
+            return false;
+        int sections = header.readInt();
+        DataInputStream in = new DataInputStream(new InflaterInputStream(header));
+        long epoch = now / slice;
+        for (int k = 0; k < sections; k++) {
+            long e = in.readLong();
+            int count = readVarint(in);
+            Slice s = slice(e, epoch);
+            if (count == 0) {
+                for (int i = 0; i < bits >>> 6; i++) {
+                    long v = in.readLong();
+                    if (s != null && v != 0)
+                        or(s.words, i, v);
+                }
+                continue;
+            }
+            int i = 0;
+            for (int j = 0; j < count; j++) {
+                i += readVarint(in);
+                long v = in.readLong();
+                if (s != null && i < s.words.length())
+                    or(s.words, i, v);
+            }
+        }
+        return true;
+    }
+
+    static void writeVarint(OutputStream out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new IOException("Short bloom frame");
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("Bad varint in bloom frame");
+    }
+}
@@ -3,6 +3,12 @@ package com.jacamars.dsp.rtb.shared;
 import com.jacamars.dsp.rtb.pojo.BidRequest;
 import com.jacamars.dsp.rtb.services.Zerospike;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -14,10 +20,16 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * share the keys across them. So if a user gets a bid, then all other bidders know about it. Then if within 1 second a
  * bid comes in and this key matches, the second bidder will not bid on it.
  * <p>
+ * With BLOOM set the keys are kept in a BloomRing instead, constant memory however high the win rate, and what
+ * was added is sent to the swarm every FLUSH ms as one compressed frame of the changed filter words, in place of a
+ * JSON message per key. Keys from bidders still sending JSON are added to the ring as they come.
+ * <p>
  * Created by Ben M. Faul on 10/4/17.
  */
 public class FrequencyGoverner implements SharedObjectIF<String> {
 
+    protected static final Logger logger = LoggerFactory.getLogger(FrequencyGoverner.class);
+
     public static final String KEY = "freqgov";
     /**
      * The self expiring hash set
@@ -44,6 +56,23 @@ public class FrequencyGoverner implements SharedObjectIF<String> {
      */
     long timeout = 900;
 
+    /** Set to true to keep the keys in a BloomRing, read when the governer is made */
+    public static volatile boolean BLOOM = false;
+    /** Length of a BloomRing slice in ms */
+    public static volatile long SLICE = 300;
+    /** Bits per BloomRing filter */
+    public static volatile int BITS = 1 << 20;
+    /** Bits set per key in the BloomRing */
+    public static volatile int HASHES = 4;
+    /** How often, in ms, the BloomRing's new bits are sent to the swarm */
+    public static volatile long FLUSH = 20;
+
+    /** The Bloom filters, null unless BLOOM */
+    private BloomRing bloom;
+
+    /** Sends the Bloom filter deltas */
+    private ScheduledExecutorService flusher;
+
     /**
      * Set a frequency governer using a list of bidders, and on  specified porta. Used for debugging on the same 0MQ system.
      *
@@ -54,8 +83,31 @@ public class FrequencyGoverner implements SharedObjectIF<String> {
      * @throws Exception on 0MQ errors.
      */
     public FrequencyGoverner(String address, int port, int port1, long timeout) throws Exception {
-        server = new SharedObject(this, address, port, port1,KEY);
         this.timeout = timeout;
+        if (BLOOM)
+            bloom = new BloomRing(timeout, SLICE, BITS, HASHES);
+        server = new SharedObject(this, address, port, port1,KEY);
+        if (bloom != null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "governer-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleAtFixedRate(() -> flush(), FLUSH, FLUSH, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send what was added to the Bloom filters since the last flush.
+     */
+    void flush() {
+        try {
+            byte[] frame = bloom.drain();
+            if (frame != null)
+                server.transmitBytes(frame);
+        } catch (Exception error) {
+            error.printStackTrace();
+        }
     }
 
     /**
@@ -80,6 +132,10 @@ public class FrequencyGoverner implements SharedObjectIF<String> {
      * @param id String. The value to add.
      */
     public void add(String id) {
+        if (bloom != null) {
+            bloom.add(BloomRing.hash(id));
+            return;
+        }
         eset.add(id, timeout);
         server.transmit(id);
     }
@@ -91,6 +147,10 @@ public class FrequencyGoverner implements SharedObjectIF<String> {
      * @param br   BidRequest. The bid request providing the synthkey
      */
     public void add(String camp, BidRequest br) {
+        if (bloom != null) {
+            bloom.add(BloomRing.hash(camp, ':', br.synthkey));
+            return;
+        }
         StringBuilder sb = new StringBuilder(camp);
         sb.append(":");
         sb.append(br.synthkey);
@@ -109,6 +169,8 @@ public class FrequencyGoverner implements SharedObjectIF<String> {
     public boolean contains(String adId, BidRequest br) {
         if (silent)
             return false;
+        if (bloom != null)
+            return bloom.contains(BloomRing.hash(adId, ':', br.synthkey));
 
         StringBuilder sb = new StringBuilder(adId);
         sb.append(":");
@@ -124,11 +186,14 @@ public class FrequencyGoverner implements SharedObjectIF<String> {
      * @return boolean. Returns true if the key still exists, or false if it ages out.
      */
     public boolean contains(String id) {
-
+        if (bloom != null)
+            return bloom.contains(BloomRing.hash(id));
         return eset.contains(id);
     }
 
     public void clear() {
+        if (bloom != null)
+            bloom.clear();
         eset.clear();
     }
 
@@ -139,13 +204,36 @@ public class FrequencyGoverner implements SharedObjectIF<String> {
      */
     @Override
     public void handleMessage(String ip) {
-        eset.add(ip, timeout);
+        if (bloom != null)
+            bloom.add(BloomRing.hash(ip));
+        else
+            eset.add(ip, timeout);
+    }
+
+    /**
+     * Handle a Bloom filter delta from a member of the swarm.
+     *
+     * @param msg byte[]. The frame.
+     * @return boolean. Returns true if it was a frame.
+     * @throws Exception if the frame is malformed.
+     */
+    @Override
+    public boolean handleBinary(byte[] msg) throws Exception {
+        if (msg.length == 0 || msg[0] != BloomRing.MAGIC)
+            return false;
+        if (bloom != null && !bloom.merge(msg))
+            logger.warn("Ignoring a frequency governer frame from a bidder with different Bloom filter settings");
+        return true;
     }
 
     /**
      * Shut the system down
      */
     public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flush();
+        }
         server.shutdown();
     }
 
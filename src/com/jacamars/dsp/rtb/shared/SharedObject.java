@@ -7,6 +7,7 @@ import com.jacamars.dsp.rtb.bidder.ZPublisher;
 import com.jacamars.dsp.rtb.jmq.*;
 
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /** A class that sends messages to a swarm - used to make shared objects
@@ -66,6 +67,14 @@ public class SharedObject implements EventIF {
         publisher.add(str);
     }
 
+    /**
+     * Send a binary message to the subscribers, as is.
+     * @param msg byte[]. The message, it must not start like JSON.
+     */
+    public void transmitBytes(byte[] msg) {
+        publisher.add(msg);
+    }
+
     /**
      * Returns the publisher binding
      * @return String. The binding for this punlisher
@@ -94,6 +103,23 @@ public class SharedObject implements EventIF {
         }
     }
 
+    /**
+     * Handle a binary message from the swarm, the handler gets it as JSON if it doesn't read binary.
+     * @param id String. The channel id.
+     * @param msg byte[]. The message.
+     */
+    @Override
+    public void handleMessage(String id, byte[] msg) {
+        try {
+            if (handler.handleBinary(msg))
+                return;
+        } catch (Exception error) {
+            System.out.println("SharedObject.handleMessage: id:" + id + ", binary msg of " + msg.length + " bytes, error: " + error);
+            return;
+        }
+        handleMessage(id, new String(msg, StandardCharsets.UTF_8));
+    }
+
     /**
      * Got a 0MQ shutdown.
      */
@@ -5,4 +5,14 @@ package com.jacamars.dsp.rtb.shared;
  */
 public interface SharedObjectIF<V> {
     void handleMessage(V obj);
+
+    /**
+     * Handle a binary message from the swarm.
+     * @param msg byte[]. The message.
+     * @return boolean. Returns true if it was handled, false to treat it as JSON.
+     * @throws Exception if the message is malformed.
+     */
+    default boolean handleBinary(byte[] msg) throws Exception {
+        return false;
+    }
 }
@@ -51,6 +51,14 @@ public enum GeoPatch {
 		return GEOPATCH;
 	}
 
+	/**
+	 * Is a geo database loaded, ie will patch() change the device?
+	 * @return boolean. Returns true if devices are patched.
+	 */
+	public boolean isActive() {
+		return reader != null;
+	}
+
 	public double[] patch(JsonNode idev) {
 
 		double lat = 0;
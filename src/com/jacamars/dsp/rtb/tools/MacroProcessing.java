@@ -3,6 +3,7 @@ package com.jacamars.dsp.rtb.tools;
 import java.net.URLDecoder;
 
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
@@ -72,7 +73,7 @@ public class MacroProcessing {
 
         macroList.add("{nurl}");
         macroList.add("{nurl_enc}");
-        macroList.add("%7Bnurl%7D}");
+        macroList.add("%7Bnurl%7D");
 
         macroList.add("{creative_forward_url}");
         macroList.add("%7Bcreative_forward_url%7D");
@@ -173,7 +174,7 @@ public class MacroProcessing {
 
         macroList.add("{brand}");
         macroList.add("{brand_enc}");
-        macroList.add("%7brand%7D");
+        macroList.add("%7Bbrand%7D");
 
         macroList.add("{make}");
         macroList.add("{make_enc}");
@@ -275,6 +276,96 @@ public class MacroProcessing {
 
     public static void addMacro(String mac) {
         macroList.add(mac);
+        irregular = null;
+        MacroTemplate.clearCache();
+    }
+
+    /** Macros that don't start with '{' or '%7B', found with a plain search. Null when it needs recomputing */
+    static volatile List<String> irregular;
+
+    /** The buffer bids are rendered into, one per thread */
+    static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(4096);
+        }
+    };
+
+    /** Maximum depth of macros whose values hold macros (system macros, configured urls, the forward url) */
+    static final int MAX_DEPTH = 4;
+
+    /**
+     * Return the macros that are not in {x} or %7Bx%7D form.
+     * @return List. The macros.
+     */
+    static List<String> irregularMacros() {
+        List<String> list = irregular;
+        if (list == null) {
+            list = new ArrayList<String>();
+            for (String what : macroList) {
+                if (!what.startsWith("{") && !what.startsWith("%7B"))
+                    list.add(what);
+            }
+            irregular = list;
+        }
+        return list;
+    }
+
+    /**
+     * Return the known macro that starts at a position in the text.
+     * @param text CharSequence. The text.
+     * @param i int. The position.
+     * @param irregular List. The macros not in {x} or %7Bx%7D form.
+     * @return String. The macro, or null if there is none at i.
+     */
+    static String macroAt(CharSequence text, int i, List<String> irregular) {
+        char c = text.charAt(i);
+        if (c == '{') {
+            int limit = Math.min(text.length(), i + MacroTemplate.MAX_MACRO);
+            for (int j = i + 1; j < limit; j++) {
+                char d = text.charAt(j);
+                if (d == '}') {
+                    String what = text.subSequence(i, j + 1).toString();
+                    return macroList.contains(what) ? what : null;
+                }
+                if (d == '{')
+                    break;
+            }
+        } else if (c == '%' && i + 2 < text.length() && text.charAt(i + 1) == '7' && text.charAt(i + 2) == 'B') {
+            int limit = Math.min(text.length() - 2, i + MacroTemplate.MAX_MACRO);
+            for (int j = i + 3; j < limit; j++) {
+                if (text.charAt(j) == '%' && text.charAt(j + 1) == '7' && text.charAt(j + 2) == 'D') {
+                    String what = text.subSequence(i, j + 3).toString();
+                    return macroList.contains(what) ? what : null;
+                }
+            }
+        }
+        for (int k = 0; k < irregular.size(); k++) {
+            String what = irregular.get(k);
+            if (regionMatches(text, i, what))
+                return what;
+        }
+        return null;
+    }
+
+    static boolean regionMatches(CharSequence text, int i, String what) {
+        if (i + what.length() > text.length())
+            return false;
+        for (int k = 0; k < what.length(); k++) {
+            if (text.charAt(i + k) != what.charAt(k))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return this thread's render buffer, emptied.
+     * @return StringBuilder. The buffer, only good until the next call on this thread.
+     */
+    public static StringBuilder buffer() {
+        StringBuilder sb = buffers.get();
+        sb.setLength(0);
+        return sb;
     }
 
     /**
@@ -292,515 +383,497 @@ public class MacroProcessing {
     public static void replace(List<String> list, BidRequest br, Creative creat, Impression imp, String adid,
                                StringBuilder sb, StringBuilder snurl, String dealid)
             throws Exception {
-
-        String value = null;
-        Object o = null;
-        Configuration config = Configuration.getInstance();
-
         for (int i = 0; i < list.size(); i++) {
-            value = null;
             String item = list.get(i);
+            replaceAll(sb, item, value(item, br, creat, imp, adid, snurl, dealid));
+        }
+    }
 
-            switch (item) {
-                case "{cachebuster}":
-                case "{cachebuster_enc}":
-                case "%7Bcachebuster%7D":
-                    replaceAll(sb, item, Integer.toString(random.nextInt(Integer.SIZE - 1)));
-                    break;
-
-                case "{redirect_url}":
-                case "{redirect_url_enc}":
-                case "%7Bredirect_url%7D":
-                    value = encodeIfRequested(item,config.redirectUrl);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{pixel_url}":
-                case "{pixel_url_enc}":
-                case "%7Bpixel_url%7D":
-                    replaceAll(sb, item, config.pixelTrackingUrl);
-                    break;
-
-                case "{event_url}":
-                case "{event_url_enc}":
-                case "%7Bevent_url%7D":
-                    value = encodeIfRequested(item,config.eventUrl);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{vast_url}":
-                case "{vast_url_enc}":
-                case "%7Bvast_url%7D":
-                    value = encodeIfRequested(item,config.vastUrl);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{postback_url}":
-                case "{postback_url_enc}":
-                case "%7Bpostback_url%7D":
-                    value = encodeIfRequested(item,config.postbackUrl);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{bid_type}":
-                case "{bid_type_enc}":
-                case "%7Bbid_type%7D":
-                    if (br.isSite())
-                        replaceAll(sb, item, SITE);
-                    else
-                        replaceAll(sb, item, APP);
-                    break;
-
-
-                case "{nurl}":
-                case "{nurl_enc}":
-                case "%7Bnurl%7D":
-                    if (snurl == null)
-                        value = "";
-                    else
-                        value = snurl.toString();
-                    value = encodeIfRequested(item,value);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{win_url}":
-                case "{win_url_enc}":
-                case "%7Bwin_url%7D":
-                    value = encodeIfRequested(item,config.winUrl);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{creative_forward_url}":
-                case "{creative_forward_url_enc}":
-                case "%7Bcreative_forward_url%7D":
-                    value = encodeIfRequested(item, creat.forwardurl);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{creative_ad_price}":
-                case "{creative_ad_price_enc}":
-                case "%7Bcreative_ad_price%7D":
-                    value = encodeIfRequested(item, creat.strPrice);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{creative_ad_width}":
-                case "{creative_ad_width_enc}":
-                case "%7Bcreative_ad_width%7D":
-                    value = encodeIfRequested(item, creat.strW);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{deal_id}":
-                case "{deal_id_enc}":
-                case "%7Bdeal_id%7D":
-                    value = encodeIfRequested(item, dealid);
-                    replaceAll(sb, item, dealid);
-                    break;
-
-                case "{impression_width}":
-                case "{impression_width_enc}":
-                case "%7Bimpression_width%7D":
-                    value = encodeIfRequested(item, Integer.toString(imp.w));
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{impression_height}":
-                case "{impression_height_enc}":
-                case "7Bimpression_height7D":
-                    value = encodeIfRequested(item, Integer.toString(imp.h));
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{creative_ad_height}":
-                case "{creative_ad_height_enc}":
-                case "%7Bcreative_ad_height%7D":
-                    value = encodeIfRequested(item, creat.strH);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{creative_id}":
-                case "{creative_id_enc}":
-                case "%7Bcreative_id%7D":
-                    value = encodeIfRequested(item, creat.impid);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{imp}":
-                case "{imp_enc}":
-                case "%7Bimp%7D":
-                    value = encodeIfRequested(item, creat.impid);
-                    replaceAll(sb, item, value);
-                    break;
-
-
-                case "{creative_image_url}":
-                case "{creative_image_url_enc}":
-                case "%7Bcreative_image_url%7D":
-                    value = encodeIfRequested(item, creat.imageurl);
-                    replaceAll(sb, item, creat.imageurl);
-                    break;
-
-                case "{site_name}":
-                case "%7Bsite_name%7D":
-                case "{site_name_enc}":
-                case "{app_name}":
-                case "{app_name_enc}":
-                case "%7app_name%7D":
-                	if (br.siteName != null) {
-                		value = URLEncoder.encode(br.siteName, "UTF-8");
-                		replaceAll(sb, item, value);
-                	}
-                    break;
-
-                case "{site_id}":
-                case "{site_id_enc}":
-                case "%7Bsite_id%7D":
-                case "{app_id}":
-                case "{app_id_enc}":
-                case "%7Bapp_id%7D":
-                    if (br.siteId != null) {
-                        value = URLEncoder.encode(br.siteId, "UTF-8");
-                        replaceAll(sb, item, value);
-                    }
-                    break;
-
-                case "{page_url}":
-                case "{page_url_enc}":
-                case "%7Bpage_url%7D":
-                    if (br.pageurl != null)
-                        value = br.pageurl;
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, br.pageurl);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{lat}":
-                case "{lat_enc}":
-                case "%7Blat%7D":
-                    if (br.lat == null)
-                        break;
-                    else {
-                        value = encodeIfRequested(item, br.lat.toString());
-                        replaceAll(sb, item, value);
-                    }
-                    break;
-
-                case "{lon}":
-                case "{lon_enc}":
-                case "%7Blon%7D":
-                    if (br.lon == null)
-                        break;
-                    else {
-                        value = encodeIfRequested(item, br.lon.toString());
-                        replaceAll(sb, item, value);
-                    }
-                    break;
-
-                case "{site_domain}":
-                case "{site_domain_enc}":
-                case "%7Bsite_domain%7D":
-                case "{app_domain}":
-                case "{app_domain_enc}":
-                case "%7Bapp_domain%7D":
-                    if (br.siteDomain != null) {
-                        value = encodeIfRequested(item, br.siteDomain);
-                        replaceAll(sb, item, value);
-                    }
-                    break;
-
-                case "{pub}":
-                case "{pub_enc}":
-                case "%7Bpub%7D":
-                case "{exchange}":
-                case "{exchange_enc}":
-                case "%7Bexchange%7D":
-                    value = encodeIfRequested(item, br.getExchange());
-                    replaceAll(sb,item,value);
-                    break;
-
-                case "{bid_id}":
-                case "{bid_id_enc}":
-                case "%7Bbid_id%7D":
-                    // Watch out, some SSPs put '/' in the bid id, like google.
-                    String id = URLEncoder.encode(br.id, "UTF-8");
-                    replaceAll(sb, item, id);
-                    break;
-
-                case "{ad_id}":
-                case "{ad_id_enc}":
-                case "%7Bad_id%7D":
-                    value = encodeIfRequested(item, adid);
-                    replaceAll(sb, "{ad_id}", value);
-                    break;
-
-                case "{isp}":
-                case "{isp_enc}":
-                case "%7Bisp%7D":
-                    o = br.interrogate("device.carrier");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, adid);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{bidder_ip}":
-                case "{bidder_ip_enc}":
-                case "%7Bbidder_ip%7D}":
-                    value = encodeIfRequested(item, Configuration.ipAddress);
-                    replaceAll(sb, item,  item);
-                    break;
-
-                case "{make}":
-                case "{make_enc}":
-                case "%7Bmake%7D":
-                case "{brand}":
-                case "{brand_enc}":
-                case "%7Bbrand%7D":
-                    o = br.interrogate("device.make");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{model}":
-                case "{model_enc}":
-                case "%7Bmodel%7D":
-                    o = br.interrogate("device.model");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
-
-                case "{os}":
-                case "{os_enc}":
-                case "%7Bos%7D":
-                    o = br.interrogate("device.os");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
+    /**
+     * Substitute all the known macros in a text, in one pass.
+     * @param text CharSequence. The text to substitute into.
+     * @param br BidRequest. The bid request to pull values out of for macro substitution.
+     * @param creat Creative. The creative to pull values out of for macro substitution.
+     * @param imp Impression. The impression being bid on, to pull values out of for substitution.
+     * @param adid String. The campaign id.
+     * @param snurl StrinbBuilder. The  win url, which can be substituted from.
+     * @param dealid String. The dealid if present, got substituting with.
+     * @param out StringBuilder. Where the result is appended, must not be text.
+     * @throws Exception on encoding errors.
+     */
+    public static void expand(CharSequence text, BidRequest br, Creative creat, Impression imp, String adid,
+                              StringBuilder snurl, String dealid, StringBuilder out) throws Exception {
+        List<String> irregular = irregularMacros();
+        int literal = 0;
+        int i = 0;
+        while (i < text.length()) {
+            String macro = macroAt(text, i, irregular);
+            if (macro == null) {
+                i++;
+                continue;
+            }
+            out.append(text, literal, i);
+            substitute(macro, br, creat, imp, adid, snurl, dealid, out, 0);
+            i += macro.length();
+            literal = i;
+        }
+        out.append(text, literal, text.length());
+    }
 
-                case "{osv}":
-                case "{osv_enc}":
-                case "%7Bosv%7D":
-                    o = br.interrogate("device.osv");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
+    /**
+     * Render a compiled template.
+     * @param t MacroTemplate. The template.
+     * @param br BidRequest. The bid request to pull values out of for macro substitution.
+     * @param creat Creative. The creative to pull values out of for macro substitution.
+     * @param imp Impression. The impression being bid on, to pull values out of for substitution.
+     * @param adid String. The campaign id.
+     * @param snurl StrinbBuilder. The  win url, which can be substituted from.
+     * @param dealid String. The dealid if present, got substituting with.
+     * @param out StringBuilder. Where the result is appended.
+     * @throws Exception on encoding errors.
+     */
+    public static void render(MacroTemplate t, BidRequest br, Creative creat, Impression imp, String adid,
+                              StringBuilder snurl, String dealid, StringBuilder out) throws Exception {
+        render(t, br, creat, imp, adid, snurl, dealid, out, 0);
+    }
 
-                case "{timestamp}":
-                case "{timestamp_enc}":
-                case "%7Btimestamp%7D":
-                    replaceAll(sb, item, "" + System.currentTimeMillis());
-                    break;
+    static void render(MacroTemplate t, BidRequest br, Creative creat, Impression imp, String adid,
+                       StringBuilder snurl, String dealid, StringBuilder out, int depth) throws Exception {
+        String[] segments = t.segments;
+        boolean[] slots = t.slots;
+        for (int i = 0; i < segments.length; i++) {
+            if (slots[i])
+                substitute(segments[i], br, creat, imp, adid, snurl, dealid, out, depth);
+            else
+                out.append(segments[i]);
+        }
+    }
 
-                case "{ip}":
-                case "{ip_enc}":
-                case "%7Bip%7D":
-                    o = br.interrogate("device.ip");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
+    /**
+     * Write the value of one macro. Values that come from the configuration or the creative may hold macros
+     * themselves, those are rendered too.
+     */
+    static void substitute(String item, BidRequest br, Creative creat, Impression imp, String adid,
+                           StringBuilder snurl, String dealid, StringBuilder out, int depth) throws Exception {
+        MacroTemplate nested = null;
+        if (depth < MAX_DEPTH) {
+            String name = nameOf(item);
+            Configuration config = Configuration.getInstance();
+            switch (name) {
+                case "creative_forward_url":
+                    nested = creat.forwardTemplate != null ? creat.forwardTemplate : MacroTemplate.of(creat.forwardurl);
                     break;
-
-                case "{gps}":
-                case "{gps_enc}":
-                case "%7Bgps%7D":
-                    if (br.lat == null)
-                        break;
-                    else {
-                        value = encodeIfRequested(item,(br.lat.toString() + "x" + br.lon.toString()));
-                        replaceAll(sb, item, value);
-                    }
+                case "redirect_url":
+                    nested = MacroTemplate.of(config.redirectUrl);
                     break;
-
-                case "{ua}":
-                case "{ua_enc}":
-                case "%7Bua%7D":
-                    o = br.interrogate("device.ua");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, URIEncoder.myUri(value));
+                case "pixel_url":
+                    nested = MacroTemplate.of(config.pixelTrackingUrl);
                     break;
-
-                case "{publisher}":
-                case "{publisher_enc}":
-                case "%7Bpublisher%7D":
-                    o = br.interrogate("site.name");
-                    if (o == null)
-                        o = br.interrogate("app.name");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
+                case "event_url":
+                    nested = MacroTemplate.of(config.eventUrl);
                     break;
-
-                case "{adsize}":
-                case "{adsize_enc}":
-                case "%7Badsize%7D":
-                    value = creat.strW + "x" + creat.strH;
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
+                case "vast_url":
+                    nested = MacroTemplate.of(config.vastUrl);
                     break;
-
-                case "{ifa}":
-                case "{ifa_enc}":
-                case "%7Bifa%7D":
-                    o = br.interrogate("device.ifa");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
+                case "postback_url":
+                    nested = MacroTemplate.of(config.postbackUrl);
                     break;
-
-                case "{dnt}":
-                case "{dnt_enc}":
-                case "%7Bdnt%7D":
-                    o = br.interrogate("device.dnt");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
+                case "win_url":
+                    nested = MacroTemplate.of(config.winUrl);
                     break;
+                default:
+                    // Tools and tests render without a bidder configuration
+                    if (config != null)
+                        nested = MacroTemplate.of(config.getMacroDefinition(item));
+            }
+        }
 
-                case "{site_cat}":
-                case "{site_cat_enc}":
-                case "%7Bsite_cat%7D":
-                    o = br.interrogate("site.cat");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
+        if (nested == null || !nested.hasMacros()) {
+            String value = value(item, br, creat, imp, adid, snurl, dealid);
+            out.append(value == null ? item : value);
+        } else if (isEncoded(item)) {
+            StringBuilder sb = new StringBuilder();
+            render(nested, br, creat, imp, adid, snurl, dealid, sb, depth + 1);
+            out.append(encodeIfRequested(item, sb.toString()));
+        } else {
+            render(nested, br, creat, imp, adid, snurl, dealid, out, depth + 1);
+        }
+    }
 
-                case "{app_cat}":
-                case "{app_cat_enc}":
-                case "%7Bapp_cat%7D":
-                    o = br.interrogate("app.cat");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
+    /**
+     * Return the name of a macro without its spelling, eg {site_id_enc} is site_id.
+     * @param item String. The macro.
+     * @return String. The name.
+     */
+    static String nameOf(String item) {
+        String name = item;
+        if (name.startsWith("%7B") && name.endsWith("%7D"))
+            name = name.substring(3, name.length() - 3);
+        else if (name.startsWith("{") && name.endsWith("}"))
+            name = name.substring(1, name.length() - 1);
+        if (name.endsWith("_enc"))
+            name = name.substring(0, name.length() - 4);
+        return name;
+    }
 
-                case "{app_storeurl}":
-                case "{app_storeurl_enc}":
-                case "%7Bapp_storeurl%7D":
-                    o = br.interrogate("app.storeurl");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
+    static boolean isEncoded(String item) {
+        return item.endsWith("_enc}") || item.startsWith("{%7B");
+    }
 
-                case "{regs_coppa}":
-                case "{regs_coppa_enc}":
-                case "%7Bregs_coppa%7D":
-                    o = br.interrogate("regs.coppa");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
+    /**
+     * Return the value of a macro for this bid.
+     * @param item String. The macro, as spelled in the markup.
+     * @param br BidRequest. The bid request to pull values out of for macro substitution.
+     * @param creat Creative. The creative to pull values out of for macro substitution.
+     * @param imp Impression. The impression being bid on, to pull values out of for substitution.
+     * @param adid String. The campaign id.
+     * @param snurl StrinbBuilder. The  win url, which can be substituted from.
+     * @param dealid String. The dealid if present, got substituting with.
+     * @return String. The value, encoded if the spelling asks for it, or null to leave the macro as it is.
+     * @throws Exception on encoding errors.
+     */
+    public static String value(String item, BidRequest br, Creative creat, Impression imp, String adid,
+                               StringBuilder snurl, String dealid) throws Exception {
 
-                case "{app_bundle}":
-                case "{app_bundle_enc}":
-                case "%7Bapp_bundle%7D":
-                    o = br.interrogate("app.bundle");
-                    if (o != null)
-                        value = BidRequest.getStringFrom(o);
-                    else
-                        value = "";
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
-                case "{user_id}":
-                case "{user_id_enc}":
-                case "%7Buser_id%7D":
-                    o = br.interrogate("user.id");
-                    value = (o != null)? BidRequest.getStringFrom(o) : StringUtils.EMPTY;
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
-                case "{device_id}":
-                case "{device_id_enc}":
-                case "%7Bdevice_id%7D":
-                    o = br.interrogate("device.didsha1");
-                    if (o == null) {
-                        o = br.interrogate("device.didmd5");
-                    }
-                    value = (o != null)? BidRequest.getStringFrom(o) : StringUtils.EMPTY;
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
-                case "{user_profile}":
-                case "{user_profile_enc}":
-                case "%7Buser_profile%7D":
-                    o = br.interrogate("synthkey");
-                    value = (o != null)? (String) o : StringUtils.EMPTY;
-                    value = encodeIfRequested(item, value);
-                    replaceAll(sb, item, value);
-                    break;
-                case "{tid}":
-                case "{tid_enc}":
-                case "%7Btid}":
-                    value = TidKey.get(br,adid,creat);
-                    replaceAll(sb, item, value);
-                    break;
+        String value = null;
+        Object o = null;
+        Configuration config = Configuration.getInstance();
 
-                default:
-                    value = Configuration.getInstance().getMacroDefinition(item);
-                    if (value != null)
-                        replaceAll(sb,item,value);
-                    break;
-            }
+        switch (item) {
+            case "{cachebuster}":
+            case "{cachebuster_enc}":
+            case "%7Bcachebuster%7D":
+                return Integer.toString(random.nextInt(Integer.SIZE - 1));
+
+            case "{redirect_url}":
+            case "{redirect_url_enc}":
+            case "%7Bredirect_url%7D":
+                return encodeIfRequested(item, config.redirectUrl);
+
+            case "{pixel_url}":
+            case "{pixel_url_enc}":
+            case "%7Bpixel_url%7D":
+                return encodeIfRequested(item, config.pixelTrackingUrl);
+
+            case "{event_url}":
+            case "{event_url_enc}":
+            case "%7Bevent_url%7D":
+                return encodeIfRequested(item, config.eventUrl);
+
+            case "{vast_url}":
+            case "{vast_url_enc}":
+            case "%7Bvast_url%7D":
+                return encodeIfRequested(item, config.vastUrl);
+
+            case "{postback_url}":
+            case "{postback_url_enc}":
+            case "%7Bpostback_url%7D":
+                return encodeIfRequested(item, config.postbackUrl);
+
+            case "{bid_type}":
+            case "{bid_type_enc}":
+            case "%7Bbid_type%7D":
+                if (br.isSite())
+                    return SITE;
+                return APP;
+
+            case "{nurl}":
+            case "{nurl_enc}":
+            case "%7Bnurl%7D":
+                if (snurl == null)
+                    value = "";
+                else
+                    value = snurl.toString();
+                return encodeIfRequested(item, value);
+
+            case "{win_url}":
+            case "{win_url_enc}":
+            case "%7Bwin_url%7D":
+                return encodeIfRequested(item, config.winUrl);
+
+            case "{creative_forward_url}":
+            case "{creative_forward_url_enc}":
+            case "%7Bcreative_forward_url%7D":
+                return encodeIfRequested(item, creat.forwardurl);
+
+            case "{creative_ad_price}":
+            case "{creative_ad_price_enc}":
+            case "%7Bcreative_ad_price%7D":
+                return encodeIfRequested(item, creat.strPrice);
+
+            case "{creative_ad_width}":
+            case "{creative_ad_width_enc}":
+            case "%7Bcreative_ad_width%7D":
+                return encodeIfRequested(item, creat.strW);
+
+            case "{deal_id}":
+            case "{deal_id_enc}":
+            case "%7Bdeal_id%7D":
+                return encodeIfRequested(item, dealid);
+
+            case "{impression_width}":
+            case "{impression_width_enc}":
+            case "%7Bimpression_width%7D":
+                return encodeIfRequested(item, Integer.toString(imp.w));
+
+            case "{impression_height}":
+            case "{impression_height_enc}":
+            case "%7Bimpression_height%7D":
+                return encodeIfRequested(item, Integer.toString(imp.h));
+
+            case "{creative_ad_height}":
+            case "{creative_ad_height_enc}":
+            case "%7Bcreative_ad_height%7D":
+                return encodeIfRequested(item, creat.strH);
+
+            case "{creative_id}":
+            case "{creative_id_enc}":
+            case "%7Bcreative_id%7D":
+            case "{imp}":
+            case "{imp_enc}":
+            case "%7Bimp%7D":
+                return encodeIfRequested(item, creat.impid);
+
+            case "{creative_image_url}":
+            case "{creative_image_url_enc}":
+            case "%7Bcreative_image_url%7D":
+                return encodeIfRequested(item, creat.imageurl);
+
+            case "{site_name}":
+            case "%7Bsite_name%7D":
+            case "{site_name_enc}":
+            case "{app_name}":
+            case "{app_name_enc}":
+            case "%7Bapp_name%7D":
+                if (br.siteName == null)
+                    return null;
+                return URLEncoder.encode(br.siteName, "UTF-8");
+
+            case "{site_id}":
+            case "{site_id_enc}":
+            case "%7Bsite_id%7D":
+            case "{app_id}":
+            case "{app_id_enc}":
+            case "%7Bapp_id%7D":
+                if (br.siteId == null)
+                    return null;
+                return URLEncoder.encode(br.siteId, "UTF-8");
+
+            case "{page_url}":
+            case "{page_url_enc}":
+            case "%7Bpage_url%7D":
+                if (br.pageurl != null)
+                    value = br.pageurl;
+                else
+                    value = "";
+                return encodeIfRequested(item, value);
+
+            case "{lat}":
+            case "{lat_enc}":
+            case "%7Blat%7D":
+                if (br.lat == null)
+                    return null;
+                return encodeIfRequested(item, br.lat.toString());
+
+            case "{lon}":
+            case "{lon_enc}":
+            case "%7Blon%7D":
+                if (br.lon == null)
+                    return null;
+                return encodeIfRequested(item, br.lon.toString());
+
+            case "{site_domain}":
+            case "{site_domain_enc}":
+            case "%7Bsite_domain%7D":
+            case "{app_domain}":
+            case "{app_domain_enc}":
+            case "%7Bapp_domain%7D":
+                if (br.siteDomain == null)
+                    return null;
+                return encodeIfRequested(item, br.siteDomain);
+
+            case "{pub}":
+            case "{pub_enc}":
+            case "%7Bpub%7D":
+            case "{exchange}":
+            case "{exchange_enc}":
+            case "%7Bexchange%7D":
+                return encodeIfRequested(item, br.getExchange());
+
+            case "{bid_id}":
+            case "{bid_id_enc}":
+            case "%7Bbid_id%7D":
+                // Watch out, some SSPs put '/' in the bid id, like google.
+                return URLEncoder.encode(br.id, "UTF-8");
+
+            case "{ad_id}":
+            case "{ad_id_enc}":
+            case "%7Bad_id%7D":
+                return encodeIfRequested(item, adid);
+
+            case "{isp}":
+            case "{isp_enc}":
+            case "%7Bisp%7D":
+                return encodeIfRequested(item, fromRequest(br, "device.carrier"));
+
+            case "{bidder_ip}":
+            case "{bidder_ip_enc}":
+            case "%7Bbidder_ip%7D":
+                return encodeIfRequested(item, Configuration.ipAddress);
+
+            case "{make}":
+            case "{make_enc}":
+            case "%7Bmake%7D":
+            case "{brand}":
+            case "{brand_enc}":
+            case "%7Bbrand%7D":
+                return encodeIfRequested(item, fromRequest(br, "device.make"));
+
+            case "{model}":
+            case "{model_enc}":
+            case "%7Bmodel%7D":
+                return encodeIfRequested(item, fromRequest(br, "device.model"));
+
+            case "{os}":
+            case "{os_enc}":
+            case "%7Bos%7D":
+                return encodeIfRequested(item, fromRequest(br, "device.os"));
+
+            case "{osv}":
+            case "{osv_enc}":
+            case "%7Bosv%7D":
+                return encodeIfRequested(item, fromRequest(br, "device.osv"));
+
+            case "{timestamp}":
+            case "{timestamp_enc}":
+            case "%7Btimestamp%7D":
+                return "" + System.currentTimeMillis();
+
+            case "{ip}":
+            case "{ip_enc}":
+            case "%7Bip%7D":
+                return encodeIfRequested(item, fromRequest(br, "device.ip"));
+
+            case "{gps}":
+            case "{gps_enc}":
+            case "%7Bgps%7D":
+                if (br.lat == null)
+                    return null;
+                return encodeIfRequested(item, (br.lat.toString() + "x" + br.lon.toString()));
+
+            case "{ua}":
+            case "{ua_enc}":
+            case "%7Bua%7D":
+                value = encodeIfRequested(item, fromRequest(br, "device.ua"));
+                return URIEncoder.myUri(value);
+
+            case "{publisher}":
+            case "{publisher_enc}":
+            case "%7Bpublisher%7D":
+                o = br.interrogate("site.name");
+                if (o == null)
+                    o = br.interrogate("app.name");
+                if (o != null)
+                    value = BidRequest.getStringFrom(o);
+                else
+                    value = "";
+                return encodeIfRequested(item, value);
+
+            case "{adsize}":
+            case "{adsize_enc}":
+            case "%7Badsize%7D":
+                return encodeIfRequested(item, creat.strW + "x" + creat.strH);
+
+            case "{ifa}":
+            case "{ifa_enc}":
+            case "%7Bifa%7D":
+                return encodeIfRequested(item, fromRequest(br, "device.ifa"));
+
+            case "{dnt}":
+            case "{dnt_enc}":
+            case "%7Bdnt%7D":
+                return encodeIfRequested(item, fromRequest(br, "device.dnt"));
+
+            case "{site_cat}":
+            case "{site_cat_enc}":
+            case "%7Bsite_cat%7D":
+                return encodeIfRequested(item, fromRequest(br, "site.cat"));
+
+            case "{app_cat}":
+            case "{app_cat_enc}":
+            case "%7Bapp_cat%7D":
+                return encodeIfRequested(item, fromRequest(br, "app.cat"));
+
+            case "{app_storeurl}":
+            case "{app_storeurl_enc}":
+            case "%7Bapp_storeurl%7D":
+                return encodeIfRequested(item, fromRequest(br, "app.storeurl"));
+
+            case "{regs_coppa}":
+            case "{regs_coppa_enc}":
+            case "%7Bregs_coppa%7D":
+                return encodeIfRequested(item, fromRequest(br, "regs.coppa"));
+
+            case "{app_bundle}":
+            case "{app_bundle_enc}":
+            case "%7Bapp_bundle%7D":
+                return encodeIfRequested(item, fromRequest(br, "app.bundle"));
+
+            case "{user_id}":
+            case "{user_id_enc}":
+            case "%7Buser_id%7D":
+                return encodeIfRequested(item, fromRequest(br, "user.id"));
+
+            case "{device_id}":
+            case "{device_id_enc}":
+            case "%7Bdevice_id%7D":
+                o = br.interrogate("device.didsha1");
+                if (o == null) {
+                    o = br.interrogate("device.didmd5");
+                }
+                value = (o != null)? BidRequest.getStringFrom(o) : StringUtils.EMPTY;
+                return encodeIfRequested(item, value);
+
+            case "{user_profile}":
+            case "{user_profile_enc}":
+            case "%7Buser_profile%7D":
+                o = br.interrogate("synthkey");
+                value = (o != null)? (String) o : StringUtils.EMPTY;
+                return encodeIfRequested(item, value);
+
+            case "{tid}":
+            case "{tid_enc}":
+            case "%7Btid%7D":
+                return TidKey.get(br,adid,creat);
+
+            default:
+                return Configuration.getInstance().getMacroDefinition(item);
         }
     }
 
+    /**
+     * Return a bid request value as a string.
+     * @param br BidRequest. The request.
+     * @param hierarchy String. The dotted name.
+     * @return String. The value, or "" if it is not in the request.
+     */
+    static String fromRequest(BidRequest br, String hierarchy) {
+        Object o = br.interrogate(hierarchy);
+        if (o == null)
+            return "";
+        String value = BidRequest.getStringFrom(o);
+        return value == null ? "" : value;
+    }
+
     /**
      * If the key has "_enc" in it or, contains the encoded {%7B} preamble - encode it, otherwise just return the value.
      * @param key String. The macro name.
      * @param value String. The value to possibly encode
-     * @return String. The resulting value, possibly encoded.
+     * @return String. The resulting value, possibly encoded, null if value is null.
      */
     public static String encodeIfRequested(String key, String value) throws Exception {
+        if (value == null)
+            return null;
         if (key.endsWith("_enc}") || key.startsWith("{%7B"))
             return URLEncoder.encode(value, "UTF-8");
         else
@@ -0,0 +1,130 @@
+package com.jacamars.dsp.rtb.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A piece of markup (a creative's adm or forward url, an exchange template...) compiled into a list of literal
+ * chunks and macro slots, so that rendering a bid is one pass over the segments instead of a search and replace of
+ * the whole string for every known macro.
+ * <p>
+ * Templates are immutable. Creatives compile theirs when they are encoded, texts from the configuration are
+ * compiled once and cached (see of()).
+ *
+ * @author Ben M. Faul
+ */
+public final class MacroTemplate {
+
+	/** Maximum length of a macro, longer {...} runs are not looked up */
+	static final int MAX_MACRO = 64;
+
+	/** Maximum number of cached configuration templates, texts past this are compiled on every use */
+	static final int MAX_CACHED = 1024;
+
+	/** Templates of configuration texts, by text */
+	static final Map<String, MacroTemplate> cache = new ConcurrentHashMap<String, MacroTemplate>();
+
+	/** The segments, literals and macro names, in order */
+	final String[] segments;
+	/** True where the segment is a macro */
+	final boolean[] slots;
+	/** The text this was compiled from */
+	final String text;
+
+	MacroTemplate(String text, List<String> segments, List<Boolean> slots) {
+		this.text = text;
+		this.segments = segments.toArray(new String[segments.size()]);
+		this.slots = new boolean[slots.size()];
+		for (int i = 0; i < this.slots.length; i++) {
+			this.slots[i] = slots.get(i);
+		}
+	}
+
+	/**
+	 * Compile a text against the known macros.
+	 * @param text CharSequence. The markup.
+	 * @return MacroTemplate. The template, or null if text is null.
+	 */
+	public static MacroTemplate compile(CharSequence text) {
+		if (text == null)
+			return null;
+		String str = text.toString();
+		List<String> segments = new ArrayList<String>();
+		List<Boolean> slots = new ArrayList<Boolean>();
+		List<String> irregular = MacroProcessing.irregularMacros();
+		int literal = 0;
+		int i = 0;
+		while (i < str.length()) {
+			String macro = MacroProcessing.macroAt(str, i, irregular);
+			if (macro == null) {
+				i++;
+				continue;
+			}
+			if (i > literal) {
+				segments.add(str.substring(literal, i));
+				slots.add(Boolean.FALSE);
+			}
+			segments.add(macro);
+			slots.add(Boolean.TRUE);
+			i += macro.length();
+			literal = i;
+		}
+		if (literal < str.length()) {
+			segments.add(str.substring(literal));
+			slots.add(Boolean.FALSE);
+		}
+		return new MacroTemplate(str, segments, slots);
+	}
+
+	/**
+	 * Return the compiled form of a configuration text (exchange template, system macro, url...), compiling it
+	 * the first time. Once the cache is full new texts are not admitted, so the templates already in it stay hot.
+	 * @param text String. The text.
+	 * @return MacroTemplate. The template, or null if text is null.
+	 */
+	public static MacroTemplate of(String text) {
+		if (text == null)
+			return null;
+		MacroTemplate t = cache.get(text);
+		if (t == null) {
+			t = compile(text);
+			if (cache.size() < MAX_CACHED)
+				cache.put(text, t);
+		}
+		return t;
+	}
+
+	/**
+	 * Forget the cached templates, called when the known macros change.
+	 */
+	static void clearCache() {
+		cache.clear();
+	}
+
+	/**
+	 * Does the text have any macros in it?
+	 * @return boolean. Returns false if rendering just copies the text.
+	 */
+	public boolean hasMacros() {
+		for (int i = 0; i < slots.length; i++) {
+			if (slots[i])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return the text this template was compiled from.
+	 * @return String. The text.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
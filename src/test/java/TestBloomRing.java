@@ -0,0 +1,154 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.shared.BloomRing;
+
+/**
+ * Tests how the BloomRing rotates its slices and ships them to the other bidders. The tests give the time to
+ * add(), contains(), drain() and merge().
+ * @author Ben M. Faul
+ *
+ */
+public class TestBloomRing {
+
+	/** Keys stay 1 s, in 100 ms slices, so a key is looked for in 11 slices */
+	static final long TIMEOUT = 1000;
+	static final long SLICE = 100;
+	/** A slice far enough from 0 that the window never reaches back past it */
+	static final long BASE = 1000;
+
+	static BloomRing ring() {
+		return new BloomRing(TIMEOUT, SLICE, 1 << 16, 4);
+	}
+
+	/** The ring has one filter more than the slices a key is looked for in */
+	static int filters(BloomRing ring) {
+		return ring.live + 1;
+	}
+
+	static long key(int i) {
+		return BloomRing.hash("key" + i);
+	}
+
+	/**
+	 * A key is in the set for at least the timeout, and at most a slice more.
+	 */
+	@Test
+	public void testWindow() {
+		BloomRing ring = ring();
+		assertEquals(11, ring.live);
+		long t = 10 * SLICE + 50;
+		ring.add(key(1), t);
+
+		assertTrue(ring.contains(key(1), t));
+		assertTrue(ring.contains(key(1), t + TIMEOUT));
+		assertTrue(ring.contains(key(1), 21 * SLICE - 1));
+		assertFalse(ring.contains(key(1), 21 * SLICE));
+		assertFalse(ring.contains(key(2), t));
+	}
+
+	/**
+	 * Over several turns of the ring the recent keys are always there and the old ones are gone, though their
+	 * filters are reused.
+	 */
+	@Test
+	public void testRotation() {
+		BloomRing ring = ring();
+		int turns = 3 * filters(ring);
+		for (int e = 0; e < turns; e++) {
+			long t = (BASE + e) * SLICE;
+			for (int i = 0; i < 20; i++)
+				ring.add(key(e * 100 + i), t);
+			for (int back = 0; back <= e; back++) {
+				boolean live = back < ring.live;
+				for (int i = 0; i < 20; i++) {
+					long k = key((e - back) * 100 + i);
+					if (live)
+						assertTrue(ring.contains(k, t));
+					else
+						assertFalse(ring.contains(k, t));
+				}
+			}
+		}
+	}
+
+	/**
+	 * A slice that is out of the window, or whose filter was reused for a newer one, takes no keys.
+	 * @throws Exception on frame errors.
+	 */
+	@Test
+	public void testStaleSlice() throws Exception {
+		BloomRing ring = ring();
+		long now = 100 * SLICE;
+		ring.add(key(1), now);
+
+		// Out of the window
+		BloomRing old = ring();
+		old.add(key(2), (100 - ring.live) * SLICE);
+		assertTrue(ring.merge(old.drain((100 - ring.live) * SLICE), now));
+		assertFalse(ring.contains(key(2), now));
+
+		// Shares the filter of slice 100, which is not cleared for it
+		long shared = (100 - filters(ring)) * SLICE;
+		old.add(key(3), shared);
+		assertTrue(ring.merge(old.drain(shared), shared));
+		assertFalse(ring.contains(key(3), shared));
+		assertTrue(ring.contains(key(1), now));
+	}
+
+	/**
+	 * What one ring drains another merges, once, sparse or dense.
+	 * @throws Exception on frame errors.
+	 */
+	@Test
+	public void testDrainAndMerge() throws Exception {
+		BloomRing a = ring();
+		BloomRing b = ring();
+		long t = 50 * SLICE;
+		a.add(key(1), t);
+		a.add(key(2), t - 3 * SLICE);
+
+		byte[] frame = a.drain(t);
+		assertNotNull(frame);
+		assertNull(a.drain(t));
+		assertTrue(b.merge(frame, t));
+		assertTrue(b.contains(key(1), t));
+		assertTrue(b.contains(key(2), t));
+		assertFalse(b.contains(key(3), t));
+
+		// Enough keys that the slice goes whole
+		for (int i = 0; i < 20000; i++)
+			a.add(key(1000 + i), t);
+		frame = a.drain(t);
+		assertTrue(b.merge(frame, t));
+		for (int i = 0; i < 20000; i++)
+			assertTrue(b.contains(key(1000 + i), t));
+
+		// A frame heard after its slices left the window adds nothing
+		a.add(key(5), t);
+		frame = a.drain(t);
+		BloomRing c = ring();
+		assertTrue(c.merge(frame, t + 2 * TIMEOUT));
+		assertFalse(c.contains(key(5), t));
+		assertFalse(c.contains(key(5), t + 2 * TIMEOUT));
+	}
+
+	/**
+	 * A ring of another size, or anything that is not a frame, is not merged.
+	 * @throws Exception on frame errors.
+	 */
+	@Test
+	public void testRejects() throws Exception {
+		BloomRing a = ring();
+		long t = BASE * SLICE;
+		a.add(key(1), t);
+		byte[] frame = a.drain(t);
+		BloomRing other = new BloomRing(TIMEOUT, SLICE, 1 << 17, 4);
+		assertFalse(other.merge(frame, t));
+		assertFalse(other.contains(key(1), t));
+		assertFalse(a.merge("{\"hello\":\"world\"}".getBytes(), t));
+	}
+}
@@ -0,0 +1,151 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.redisson.CacheBatcher;
+import com.jacamars.dsp.rtb.redisson.CacheFrame;
+
+/**
+ * Tests how the CacheBatcher folds increments into the pending batch. The batcher has no shard and never fills, so
+ * nothing is published; the tests look at what is pending.
+ * @author Ben M. Faul
+ *
+ */
+public class TestCacheBatcher {
+
+	static final long HIGH = 1;
+	static final long LOW = 2;
+
+	CacheBatcher batcher;
+
+	@Before
+	public void setup() {
+		batcher = new CacheBatcher(null, Integer.MAX_VALUE, 3600000);
+	}
+
+	@After
+	public void teardown() {
+		batcher.flusher.shutdownNow();
+	}
+
+	static CacheFrame frame(byte command, String key, Object payload, long expire) throws Exception {
+		return CacheFrame.decode(CacheFrame.encode(command, HIGH, LOW, key, payload, expire));
+	}
+
+	static CacheFrame incr(String key, long count) throws Exception {
+		return frame(CacheFrame.INCR, key, count, -1);
+	}
+
+	static CacheFrame set(String key, Object value) throws Exception {
+		return frame(CacheFrame.SET, key, value, 1000);
+	}
+
+	/**
+	 * Increments of one key fold into one record with the total delta and the last count.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testFold() throws Exception {
+		long coalesced = CacheBatcher.coalesced.get();
+		for (long i = 1; i <= 5; i++)
+			batcher.add(incr("a", i));
+
+		assertEquals(1, batcher.getPending().size());
+		CacheFrame f = batcher.getPending().get(0);
+		assertEquals(CacheFrame.INCR, f.command);
+		assertEquals("a", f.key);
+		assertEquals(5, f.delta);
+		assertEquals(5L, f.payload);
+		assertEquals(coalesced + 4, CacheBatcher.coalesced.get());
+	}
+
+	/**
+	 * Interleaved keys each fold into their own record, in the order the keys were first incremented.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testInterleaved() throws Exception {
+		for (long i = 1; i <= 3; i++) {
+			batcher.add(incr("a", i));
+			batcher.add(incr("b", 10 + i));
+		}
+		List<CacheFrame> pending = batcher.getPending();
+		assertEquals(2, pending.size());
+		assertEquals("a", pending.get(0).key);
+		assertEquals(3, pending.get(0).delta);
+		assertEquals(3L, pending.get(0).payload);
+		assertEquals("b", pending.get(1).key);
+		assertEquals(3, pending.get(1).delta);
+		assertEquals(13L, pending.get(1).payload);
+	}
+
+	/**
+	 * Anything else done to the key starts a new record, so the order of the updates of a key is kept.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testOrderKept() throws Exception {
+		batcher.add(incr("a", 1));
+		batcher.add(incr("a", 2));
+		batcher.add(set("a", 0L));
+		batcher.add(incr("a", 1));
+		batcher.add(incr("a", 2));
+		batcher.add(frame(CacheFrame.DEL, "a", null, -1));
+		batcher.add(incr("a", 1));
+
+		List<CacheFrame> pending = batcher.getPending();
+		assertEquals(5, pending.size());
+		byte[] commands = { CacheFrame.INCR, CacheFrame.SET, CacheFrame.INCR, CacheFrame.DEL, CacheFrame.INCR };
+		long[] deltas = { 2, 1, 2, 1, 1 };
+		for (int i = 0; i < commands.length; i++) {
+			assertEquals(commands[i], pending.get(i).command);
+			assertEquals(deltas[i], pending.get(i).delta);
+		}
+	}
+
+	/**
+	 * An increment that sets the expiry is not folded, it starts the record later increments fold into.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testExpiryNotFolded() throws Exception {
+		batcher.add(incr("a", 1));
+		batcher.add(frame(CacheFrame.INCR, "a", 2L, 5000));
+		batcher.add(incr("a", 3));
+
+		List<CacheFrame> pending = batcher.getPending();
+		assertEquals(2, pending.size());
+		assertEquals(1, pending.get(0).delta);
+		assertEquals(5000, pending.get(1).expire);
+		assertEquals(2, pending.get(1).delta);
+		assertEquals(3L, pending.get(1).payload);
+	}
+
+	/**
+	 * The folded records go on the wire as INCRBY and decode to an INCR with the delta.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testWireForm() throws Exception {
+		for (long i = 1; i <= 7; i++)
+			batcher.add(incr("a", i));
+		batcher.add(set("b", "x"));
+
+		byte[] bytes = CacheFrame.encodeBatch(HIGH, LOW, 9, batcher.getPending());
+		assertEquals(CacheFrame.BATCH, bytes[2]);
+		List<CacheFrame> list = CacheFrame.decodeAll(bytes);
+		assertEquals(2, list.size());
+		assertEquals(CacheFrame.INCR, list.get(0).command);
+		assertEquals(7, list.get(0).delta);
+		assertEquals(7L, list.get(0).payload);
+		assertEquals(9, list.get(0).sequence);
+		assertEquals("x", list.get(1).payload);
+		assertEquals(1, list.get(1).delta);
+	}
+}
@@ -0,0 +1,214 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.redisson.CacheFrame;
+
+/**
+ * Tests the binary frames of the shared cache.
+ * @author Ben M. Faul
+ *
+ */
+public class TestCacheFrame {
+
+	/** Values on both sides of each varint length, and the ends of the ranges */
+	static final long[] LONGS = { 0, 1, -1, 63, -64, 64, -65, 127, 128, 8191, -8192, 8192, Integer.MAX_VALUE,
+			Integer.MIN_VALUE, 1L << 35, -(1L << 35), Long.MAX_VALUE, Long.MIN_VALUE };
+
+	/**
+	 * Every payload type survives the round trip, with its Java type.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("int", 42);
+		map.put("long", 42L);
+		map.put("double", 1.5);
+		map.put("ascii", "hello");
+		map.put("utf8", "héllo 世界");
+		map.put("true", true);
+		map.put("false", false);
+		map.put("null", null);
+		map.put("list", Arrays.asList(1, "x", null, true, 2L));
+		Map<String, Object> inner = new HashMap<String, Object>();
+		inner.put("a", 1);
+		map.put("map", inner);
+
+		long expire = System.currentTimeMillis() + 60000;
+		UUID origin = UUID.randomUUID();
+		byte[] bytes = CacheFrame.encode(CacheFrame.HMSET, origin.getMostSignificantBits(),
+				origin.getLeastSignificantBits(), "key:é", map, expire);
+		assertTrue(CacheFrame.isFrame(bytes));
+
+		CacheFrame f = CacheFrame.decode(bytes);
+		assertEquals(CacheFrame.HMSET, f.command);
+		assertEquals("hmset", f.getCommand());
+		assertTrue(f.isFrom(origin));
+		assertEquals(origin, f.getOrigin());
+		assertEquals("key:é", f.key);
+		assertEquals(expire, f.expire);
+		assertEquals(1, f.delta);
+		assertEquals(map, f.payload);
+	}
+
+	/**
+	 * Objects without a binary form go as JSON.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testJsonPayload() throws Exception {
+		TreeSet<String> set = new TreeSet<String>(Arrays.asList("b", "a"));
+		CacheFrame f = CacheFrame.decode(CacheFrame.encode(CacheFrame.SET, 1, 2, "k", set, -1));
+		assertEquals(Arrays.asList("a", "b"), f.payload);
+	}
+
+	/**
+	 * The zigzag varints give back the same numbers, and keep small ones small.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testVarints() throws Exception {
+		for (long v : LONGS) {
+			CacheFrame f = CacheFrame.decode(CacheFrame.encode(CacheFrame.INCR, v, -v, "k", v, v));
+			assertEquals(Long.valueOf(v), f.payload);
+			assertEquals(v, f.expire);
+			assertEquals(v, f.originHigh);
+			assertEquals(-v, f.originLow);
+
+			int i = (int) v;
+			f = CacheFrame.decode(CacheFrame.encode(CacheFrame.SET, 1, 2, "k", i, -1));
+			assertEquals(Integer.valueOf(i), f.payload);
+		}
+
+		// magic, version, command, origin, sequence 0, then one byte each for the expire, the key length, the
+		// key, the type and the count
+		byte[] bytes = CacheFrame.encode(CacheFrame.INCR, 1, 2, "k", 1L, -1);
+		assertEquals(25, bytes.length);
+		bytes = CacheFrame.encode(CacheFrame.INCR, 1, 2, "k", -64L, -1);
+		assertEquals(25, bytes.length);
+		bytes = CacheFrame.encode(CacheFrame.INCR, 1, 2, "k", 64L, -1);
+		assertEquals(26, bytes.length);
+	}
+
+	/**
+	 * A batch decodes to its records, in order, with the batch's origin and sequence.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testBatch() throws Exception {
+		UUID origin = UUID.randomUUID();
+		List<CacheFrame> records = new ArrayList<CacheFrame>();
+		for (int i = 0; i < 100; i++) {
+			Map<String, Object> m = new HashMap<String, Object>();
+			m.put("origin", origin.toString());
+			m.put("command", i % 3 == 0 ? "del" : "set");
+			m.put("key", "key" + i);
+			if (i % 3 != 0) {
+				m.put("payload", "value" + i);
+				m.put("expire", 1000L + i);
+			}
+			records.add(CacheFrame.fromMap(m));
+		}
+
+		byte[] bytes = CacheFrame.encodeBatch(origin.getMostSignificantBits(), origin.getLeastSignificantBits(), 300,
+				records);
+		List<CacheFrame> list = CacheFrame.decodeAll(bytes);
+		assertEquals(records.size(), list.size());
+		for (int i = 0; i < list.size(); i++) {
+			CacheFrame a = records.get(i);
+			CacheFrame b = list.get(i);
+			assertEquals(a.command, b.command);
+			assertEquals(a.key, b.key);
+			assertEquals(a.payload, b.payload);
+			assertEquals(a.expire, b.expire);
+			assertEquals(300, b.sequence);
+			assertTrue(b.isFrom(origin));
+		}
+
+		try {
+			CacheFrame.decode(bytes);
+			fail("A batch is not a single mutation");
+		} catch (Exception error) {
+
+		}
+	}
+
+	/**
+	 * A single mutation decodes as a list of one, with its sequence.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testSingleAsList() throws Exception {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("command", "set");
+		m.put("key", "k");
+		m.put("payload", "v");
+		m.put("expire", 5L);
+		byte[] bytes = CacheFrame.encode(CacheFrame.fromMap(m), 1L << 40);
+		List<CacheFrame> list = CacheFrame.decodeAll(bytes);
+		assertEquals(1, list.size());
+		assertEquals("v", list.get(0).payload);
+		assertEquals(1L << 40, list.get(0).sequence);
+		assertEquals(1L << 40, CacheFrame.decode(bytes).sequence);
+	}
+
+	/**
+	 * The map form and the binary form carry the same mutation.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testMapForm() throws Exception {
+		UUID origin = UUID.randomUUID();
+		byte[] bytes = CacheFrame.encode(CacheFrame.SET, origin.getMostSignificantBits(),
+				origin.getLeastSignificantBits(), "k", "v", 12345L);
+		Map<String, Object> m = CacheFrame.decode(bytes).toMap();
+		assertEquals(origin.toString(), m.get("origin"));
+		assertEquals("set", m.get("command"));
+		assertEquals(12345L, m.get("expire"));
+
+		CacheFrame f = CacheFrame.fromMap(m);
+		assertArrayEquals(bytes, CacheFrame.encode(f, 0));
+	}
+
+	/**
+	 * JSON, truncated frames and frames from a newer version are refused.
+	 * @throws Exception on encoding errors.
+	 */
+	@Test
+	public void testRejects() throws Exception {
+		String json = "{\"command\":\"set\",\"key\":\"k\",\"payload\":1,\"expire\":-1}";
+		assertFalse(CacheFrame.isFrame(json.getBytes(StandardCharsets.UTF_8)));
+		assertFalse(CacheFrame.isFrame(null));
+
+		byte[] bytes = CacheFrame.encode(CacheFrame.SET, 1, 2, "key", "value", -1);
+		byte[] newer = bytes.clone();
+		newer[1] = (byte) (CacheFrame.VERSION + 1);
+		try {
+			CacheFrame.decode(newer);
+			fail("Decoded a newer version");
+		} catch (Exception error) {
+
+		}
+
+		for (int n = 0; n < bytes.length; n++) {
+			try {
+				CacheFrame.decode(Arrays.copyOf(bytes, n));
+				fail("Decoded a frame truncated to " + n);
+			} catch (Exception error) {
+
+			}
+		}
+	}
+}
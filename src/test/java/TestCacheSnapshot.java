@@ -0,0 +1,141 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.redisson.CacheFrame;
+import com.jacamars.dsp.rtb.redisson.CacheSnapshot;
+
+/**
+ * Tests writing and reading the binary snapshot Zerospike sends a starting bidder.
+ * @author Ben M. Faul
+ *
+ */
+public class TestCacheSnapshot {
+
+	/**
+	 * Make the JSON map form of a record, as Zerospike stores it.
+	 * @param origin UUID. The sender.
+	 * @param command String. The command name.
+	 * @param key String. The key.
+	 * @param payload Object. The value.
+	 * @param expire long. The expiry.
+	 * @return Map. The record.
+	 */
+	static Map<String, Object> record(UUID origin, String command, String key, Object payload, long expire) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("origin", origin.toString());
+		m.put("command", command);
+		m.put("key", key);
+		m.put("payload", payload);
+		m.put("expire", expire);
+		return m;
+	}
+
+	/**
+	 * The records and the sequences come back as written, across many chunks.
+	 * @throws Exception on I/O errors.
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		UUID a = UUID.randomUUID();
+		UUID b = UUID.randomUUID();
+		Map<UUID, Long> sequences = new HashMap<UUID, Long>();
+		sequences.put(a, 17L);
+		sequences.put(b, 1L << 40);
+
+		List<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 20000; i++) {
+			Map<String, Object> payload = new HashMap<String, Object>();
+			payload.put("price", i * 0.01);
+			payload.put("adid", "campaign-" + (i % 7));
+			values.add(record(i % 2 == 0 ? a : b, i % 3 == 0 ? "incr" : "hmset", "key" + i,
+					i % 3 == 0 ? (Object) (long) i : payload, 1000L + i));
+		}
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		assertEquals(values.size(), CacheSnapshot.write(os, sequences, values));
+		byte[] bytes = os.toByteArray();
+
+		Map<UUID, Long> read = new HashMap<UUID, Long>();
+		List<CacheFrame> frames = new ArrayList<CacheFrame>();
+		int count = CacheSnapshot.read(new DataInputStream(new ByteArrayInputStream(bytes)), read, frames::add);
+		assertEquals(values.size(), count);
+		assertEquals(sequences, read);
+		for (int i = 0; i < values.size(); i++) {
+			Map<String, Object> m = values.get(i);
+			CacheFrame f = frames.get(i);
+			assertEquals(m.get("key"), f.key);
+			assertEquals(m.get("command"), f.getCommand());
+			assertEquals(m.get("payload"), f.payload);
+			assertEquals(m.get("expire"), f.expire);
+			assertEquals(m.get("origin"), f.getOrigin().toString());
+		}
+	}
+
+	/**
+	 * A record that can't be encoded is left out and counted, the rest of the snapshot is still sent.
+	 * @throws Exception on I/O errors.
+	 */
+	@Test
+	public void testSkipsBadRecords() throws Exception {
+		UUID a = UUID.randomUUID();
+		List<Object> values = new ArrayList<Object>();
+		values.add(record(a, "set", "good1", "x", 5));
+		values.add(record(a, "nosuchcommand", "bad1", "x", 5));
+		values.add("not a map");
+		values.add(record(a, "set", "good2", "y", 5));
+
+		long skipped = CacheSnapshot.skipped.get();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		assertEquals(2, CacheSnapshot.write(os, new HashMap<UUID, Long>(), values));
+		assertEquals(skipped + 2, CacheSnapshot.skipped.get());
+
+		List<CacheFrame> frames = new ArrayList<CacheFrame>();
+		int count = CacheSnapshot.read(new DataInputStream(new ByteArrayInputStream(os.toByteArray())),
+				new HashMap<UUID, Long>(), frames::add);
+		assertEquals(2, count);
+		assertEquals("good1", frames.get(0).key);
+		assertEquals("good2", frames.get(1).key);
+	}
+
+	/**
+	 * Only a hello of this version or newer gets the binary form, and a truncated snapshot is an error.
+	 * @throws Exception on I/O errors.
+	 */
+	@Test
+	public void testHelloAndTruncation() throws Exception {
+		assertTrue(CacheSnapshot.isHello(CacheSnapshot.hello()));
+		byte[] old = CacheSnapshot.hello();
+		old[old.length - 1] = 0;
+		assertFalse(CacheSnapshot.isHello(old));
+		assertFalse(CacheSnapshot.isHello(new byte[] { '{' }));
+
+		List<Object> values = new ArrayList<Object>();
+		for (int i = 0; i < 100; i++)
+			values.add(record(UUID.randomUUID(), "set", "key" + i, "value" + i, -1));
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		CacheSnapshot.write(os, new HashMap<UUID, Long>(), values);
+		byte[] bytes = os.toByteArray();
+		byte[] cut = new byte[bytes.length - 3];
+		System.arraycopy(bytes, 0, cut, 0, cut.length);
+		try {
+			CacheSnapshot.read(new DataInputStream(new ByteArrayInputStream(cut)), new HashMap<UUID, Long>(),
+					frame -> {
+					});
+			fail("Read a truncated snapshot");
+		} catch (Exception error) {
+
+		}
+	}
+}
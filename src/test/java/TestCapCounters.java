@@ -0,0 +1,134 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.redisson.CapCounters;
+import com.jacamars.dsp.rtb.redisson.RedissonClient;
+
+/**
+ * Tests that the frequency cap G-counters merge the other bidders' slots, whatever the order and however often they
+ * arrive, and drop them when their windows expire.
+ * @author Ben M. Faul
+ *
+ */
+public class TestCapCounters {
+
+	/** The time the tests start at */
+	static final long T = 1000000000000L;
+
+	static void at(long millis) {
+		RedissonClient.clock = Clock.fixed(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+	}
+
+	@After
+	public void clock() {
+		RedissonClient.clock = Clock.systemUTC();
+	}
+
+	/**
+	 * A slot heard again, or an older total of it, changes nothing. A larger total replaces it, and our own slot is
+	 * never taken from the others.
+	 */
+	@Test
+	public void testMerge() {
+		at(T);
+		UUID a = UUID.randomUUID();
+		UUID b = UUID.randomUUID();
+		UUID c = UUID.randomUUID();
+		CapCounters mine = new CapCounters(b);
+		long key = CapCounters.parse("capped_campaign1_1.2.3.4");
+
+		assertEquals(-1, mine.get(key));
+		assertEquals(1, mine.increment(key, 60));
+		assertEquals(2, mine.increment(key, 60));
+
+		mine.merge(a, key, T + 60000, 3);
+		assertEquals(5, mine.get(key));
+		mine.merge(a, key, T + 60000, 3);
+		assertEquals(5, mine.get(key));
+		mine.merge(a, key, T + 60000, 2);
+		assertEquals(5, mine.get(key));
+		mine.merge(a, key, T + 60000, 4);
+		assertEquals(6, mine.get(key));
+
+		mine.merge(c, key, T + 30000, 1);
+		assertEquals(7, mine.get(key));
+		// Expired, or our own slot coming back
+		mine.merge(c, key, T - 1, 10);
+		mine.merge(b, key, T + 60000, 100);
+		assertEquals(7, mine.get(key));
+		assertEquals(8, mine.increment(key, 60));
+	}
+
+	/**
+	 * Slots stop counting when their windows expire, a win after that opens a new window, and a slot from a newer
+	 * window of another bidder replaces its old one.
+	 */
+	@Test
+	public void testWindows() {
+		at(T);
+		UUID a = UUID.randomUUID();
+		UUID c = UUID.randomUUID();
+		CapCounters mine = new CapCounters(UUID.randomUUID());
+		long key = CapCounters.parse("capped_campaign2_1.2.3.4");
+
+		mine.increment(key, 60);
+		mine.increment(key, 60);
+		mine.merge(a, key, T + 60000, 4);
+		mine.merge(c, key, T + 30000, 1);
+		assertEquals(7, mine.get(key));
+
+		at(T + 30000);
+		assertEquals(6, mine.get(key));
+		at(T + 60000);
+		assertEquals(-1, mine.get(key));
+
+		assertEquals(1, mine.increment(key, 60));
+		mine.merge(a, key, T + 120000, 1);
+		assertEquals(2, mine.get(key));
+		mine.merge(a, key, T + 60000, 50);
+		assertEquals(2, mine.get(key));
+	}
+
+	/**
+	 * A removed cap starts from nothing.
+	 */
+	@Test
+	public void testRemove() {
+		at(T);
+		CapCounters mine = new CapCounters(UUID.randomUUID());
+		long key = CapCounters.parse("capped_campaign3_1.2.3.4");
+		mine.increment(key, 60);
+		mine.merge(UUID.randomUUID(), key, T + 60000, 3);
+		assertEquals(4, mine.get(key));
+
+		mine.remove(key);
+		assertEquals(-1, mine.get(key));
+		assertEquals(1, mine.increment(key, 60));
+	}
+
+	/**
+	 * The string form of a cap key parses back to it, and any other string hashes to the same key every time.
+	 */
+	@Test
+	public void testKeys() {
+		long key = CapCounters.parse("capped_campaign1_1.2.3.4");
+		assertNotEquals(0, key);
+		assertEquals(key, CapCounters.parse("capped_campaign1_1.2.3.4"));
+		assertNotEquals(key, CapCounters.parse("capped_campaign1_1.2.3.5"));
+
+		String s = CapCounters.toKey(key);
+		assertTrue(s.startsWith(CapCounters.PREFIX));
+		assertEquals(CapCounters.PREFIX.length() + 16, s.length());
+		assertEquals(key, CapCounters.parse(s));
+		assertEquals(s, CapCounters.toKey(CapCounters.parse(s)));
+	}
+}
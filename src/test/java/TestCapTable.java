@@ -0,0 +1,185 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.redisson.CapCounters;
+import com.jacamars.dsp.rtb.redisson.CapTable;
+
+/**
+ * Tests the probing and the backward shift delete of the off heap CapTable.
+ * @author Ben M. Faul
+ *
+ */
+public class TestCapTable {
+
+	/**
+	 * A key whose home in a table of 16 is the given entry.
+	 * @param home int. The home entry.
+	 * @param n int. Tells the keys with the same home apart.
+	 * @return long. The key.
+	 */
+	static long key(int home, int n) {
+		return ((long) (n + 1) << 32) | home;
+	}
+
+	/**
+	 * The entry a key is in.
+	 * @param t CapTable. The table.
+	 * @param key long. The key.
+	 * @return int. The entry, or -1 if it is not there.
+	 */
+	static int entry(CapTable t, long key) {
+		int e = t.find(key);
+		return e < 0 ? -1 : e / CapTable.ENTRY;
+	}
+
+	/**
+	 * Keys with the same home go in the entries after it, wrapping at the end of the table, and a key whose home
+	 * is taken probes past it.
+	 */
+	@Test
+	public void testProbing() {
+		CapTable t = new CapTable(16, 16);
+		for (int i = 0; i < 3; i++)
+			t.insert(key(14, i));
+		t.insert(key(0, 0));
+
+		assertEquals(14, entry(t, key(14, 0)));
+		assertEquals(15, entry(t, key(14, 1)));
+		assertEquals(0, entry(t, key(14, 2)));
+		assertEquals(1, entry(t, key(0, 0)));
+		assertEquals(-1, entry(t, key(14, 3)));
+		assertEquals(-1, entry(t, key(0, 1)));
+
+		// Inserting a key that is there finds it
+		assertEquals(t.find(key(14, 1)), t.insert(key(14, 1)));
+		assertEquals(4, t.size());
+	}
+
+	/**
+	 * Removing an entry moves back the entries that probed past it, across the end of the table, and leaves the
+	 * ones that are at home or would probe past their home.
+	 */
+	@Test
+	public void testBackwardShift() {
+		CapTable t = new CapTable(16, 16);
+		t.insert(key(14, 0));
+		t.insert(key(14, 1));
+		t.insert(key(15, 0));
+		t.insert(key(14, 2));
+		t.insert(key(1, 0));
+		t.insert(key(0, 0));
+		// 14: 14/0, 15: 14/1, 0: 15/0, 1: 14/2, 2: 1/0, 3: 0/0
+		t.putLong(t.find(key(14, 2)) + CapTable.EXPIRE, 42);
+
+		t.remove(t.find(key(14, 1)));
+		assertEquals(5, t.size());
+		assertEquals(14, entry(t, key(14, 0)));
+		assertEquals(15, entry(t, key(15, 0)));
+		assertEquals(0, entry(t, key(14, 2)));
+		assertEquals(42, t.getLong(t.find(key(14, 2)) + CapTable.EXPIRE));
+		// Back at its home
+		assertEquals(1, entry(t, key(1, 0)));
+		assertEquals(2, entry(t, key(0, 0)));
+		assertEquals(0, t.getLong(3 * CapTable.ENTRY));
+		assertEquals(-1, entry(t, key(14, 1)));
+
+		t.remove(t.find(key(14, 0)));
+		t.remove(t.find(key(15, 0)));
+		t.remove(t.find(key(14, 2)));
+		t.remove(t.find(key(1, 0)));
+		assertEquals(0, entry(t, key(0, 0)));
+		t.remove(t.find(key(0, 0)));
+		assertEquals(0, t.size());
+
+		// No tombstones, every entry is back to zeros
+		for (int i = 0; i < 16 * CapTable.ENTRY; i += 8)
+			assertEquals(0, t.getLong(i));
+	}
+
+	/**
+	 * Random inserts and removes, through the table growing, agree with a map, and every key can still be found
+	 * from its home.
+	 */
+	@Test
+	public void testRandom() {
+		Random random = new Random(7);
+		CapTable t = new CapTable(16, 1 << 16);
+		Map<Long, Long> map = new HashMap<Long, Long>();
+		List<Long> keys = new ArrayList<Long>();
+		for (int i = 0; i < 20000; i++) {
+			// Few distinct low bits, so there are long probe runs
+			long key = ((long) random.nextInt(5000) << 20) | random.nextInt(64) | 1;
+			if (random.nextInt(3) == 0 && !keys.isEmpty()) {
+				long k = keys.remove(random.nextInt(keys.size()));
+				t.remove(t.find(k));
+				map.remove(k);
+			} else {
+				int e = t.insert(key);
+				if (!map.containsKey(key))
+					keys.add(key);
+				t.putLong(e + CapTable.EXPIRE, i);
+				map.put(key, (long) i);
+			}
+		}
+
+		assertTrue(t.capacity() > 16);
+		assertEquals(map.size(), t.size());
+		for (Map.Entry<Long, Long> m : map.entrySet()) {
+			int e = t.find(m.getKey());
+			assertTrue(e >= 0);
+			assertEquals((long) m.getValue(), t.getLong(e + CapTable.EXPIRE));
+		}
+		int held = 0;
+		for (int i = 0; i < t.capacity(); i++) {
+			long k = t.getLong(i * CapTable.ENTRY);
+			if (k != 0) {
+				assertTrue(map.containsKey(k));
+				held++;
+			}
+		}
+		assertEquals(map.size(), held);
+	}
+
+	/**
+	 * The table stops growing at its most, and then refuses new keys before it fills, so a probe always ends.
+	 */
+	@Test
+	public void testMax() {
+		CapTable t = new CapTable(16, 40);
+		assertEquals(32, t.max);
+		for (int i = 1; i < 32; i++)
+			assertTrue(t.insert(i) >= 0);
+		assertEquals(32, t.capacity());
+		assertEquals(-1, t.insert(32));
+		assertEquals(-1, t.find(32));
+		assertTrue(t.find(31) >= 0);
+
+		assertEquals(16, new CapTable(4096, 1).max);
+		assertEquals(CapTable.LIMIT, new CapTable(16, Integer.MAX_VALUE).max);
+	}
+
+	/**
+	 * The counters' tables share MAX_ENTRIES between them.
+	 */
+	@Test
+	public void testSegmentsBounded() {
+		int old = CapCounters.MAX_ENTRIES;
+		try {
+			CapCounters.MAX_ENTRIES = 1 << 12;
+			CapCounters caps = new CapCounters(UUID.randomUUID());
+			assertEquals(1 << 12, caps.maxEntries());
+		} finally {
+			CapCounters.MAX_ENTRIES = old;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import com.jacamars.dsp.rtb.redisson.CacheFrame;
+import com.jacamars.dsp.rtb.redisson.CapCounters;
+import com.jacamars.dsp.rtb.redisson.Reader;
+
+/**
+ * Tests how a bidder that loaded a snapshot replays the updates it heard meanwhile. The Reader is never started, the
+ * test plays the part of the snapshot.
+ * @author Ben M. Faul
+ *
+ */
+public class TestCatchUp {
+
+	static final long EXPIRE = System.currentTimeMillis() + 600000;
+
+	static CacheFrame frame(byte command, UUID origin, long sequence, String key, Object payload) throws Exception {
+		CacheFrame f = CacheFrame.decode(CacheFrame.encode(command, origin.getMostSignificantBits(),
+				origin.getLeastSignificantBits(), key, payload, EXPIRE));
+		return CacheFrame.decode(CacheFrame.encode(f, sequence));
+	}
+
+	static CacheFrame set(UUID origin, long sequence, String key, Object value) throws Exception {
+		return frame(CacheFrame.SET, origin, sequence, key, value);
+	}
+
+	static CacheFrame incr(UUID origin, long sequence, String key, long count) throws Exception {
+		return frame(CacheFrame.INCR, origin, sequence, key, count);
+	}
+
+	static Reader reader(Cache<String, Object> cache) throws Exception {
+		return new Reader(cache, new CapCounters(UUID.randomUUID()), LoggerFactory.getLogger(TestCatchUp.class),
+				"localhost", 0);
+	}
+
+	static Cache<String, Object> cache() {
+		return new Cache2kBuilder<String, Object>() {
+		}.expireAfterWrite(300, TimeUnit.SECONDS).build();
+	}
+
+	/**
+	 * Updates at or below the snapshot's sequence of their origin are skipped, newer ones and ones from origins the
+	 * snapshot doesn't know are applied.
+	 * @throws Exception on cache errors.
+	 */
+	@Test
+	public void testSequences() throws Exception {
+		UUID a = UUID.randomUUID();
+		UUID b = UUID.randomUUID();
+		Cache<String, Object> cache = cache();
+		Reader reader = reader(cache);
+		reader.sequences.put(a, 5L);
+
+		assertTrue(reader.defer(Arrays.asList(set(a, 4, "a4", "x"), set(a, 5, "a5", "x"), set(a, 6, "a6", "x"),
+				set(b, 1, "b1", "x"))));
+		reader.catchUp();
+
+		assertTrue(reader.isComplete());
+		assertNull(cache.peek("a4"));
+		assertNull(cache.peek("a5"));
+		assertEquals("x", cache.peek("a6"));
+		assertEquals("x", cache.peek("b1"));
+
+		// Once caught up, updates are applied by the caller
+		assertFalse(reader.defer(Arrays.asList(set(a, 7, "a7", "x"))));
+		assertNull(cache.peek("a7"));
+	}
+
+	/**
+	 * A replayed increment sets the counter to the sender's count if that is higher, so an increment the
+	 * snapshot already counted is not counted twice.
+	 * @throws Exception on cache errors.
+	 */
+	@Test
+	public void testIncrements() throws Exception {
+		UUID a = UUID.randomUUID();
+		Cache<String, Object> cache = cache();
+		cache.put("counter", new AtomicLong(10));
+		Reader reader = reader(cache);
+		reader.sequences.put(a, 2L);
+
+		reader.defer(Arrays.asList(incr(a, 2, "counter", 10), incr(a, 3, "counter", 8), incr(a, 4, "counter", 12),
+				incr(a, 5, "fresh", 3)));
+		reader.catchUp();
+
+		assertEquals(12, ((AtomicLong) cache.peek("counter")).get());
+		assertEquals(3, ((AtomicLong) cache.peek("fresh")).get());
+	}
+}
@@ -0,0 +1,246 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.jacamars.dsp.rtb.common.Campaign;
+import com.jacamars.dsp.rtb.common.CampaignSnapshot;
+import com.jacamars.dsp.rtb.common.CompiledPredicate;
+import com.jacamars.dsp.rtb.common.Node;
+import com.jacamars.dsp.rtb.common.PredicateCompiler;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+
+/**
+ * Tests that the compiled predicates give the same answers as the nodes they were compiled from.
+ * @author Ben M. Faul
+ *
+ */
+public class TestCompiledPredicate {
+
+	/** Requests with sites, apps, video, pmp and missing fields */
+	static final String[] REQUESTS = { "./SampleBids/nexage.txt", "./SampleBids/nexageWithApp.txt",
+			"./SampleBids/nexageNoGeo.txt", "./SampleBids/nexageNoDomain.txt", "./SampleBids/nexageVideo.txt",
+			"./SampleBids/nexagePrivateAuction.txt", "./SampleBids/c1x.txt", "./SampleBids/c1xMulti.txt" };
+
+	/**
+	 * Make a node for every operator, on hierarchies that are present, missing and of different types.
+	 * @return List. The nodes.
+	 * @throws Exception on node errors.
+	 */
+	static List<Node> nodes() throws Exception {
+		List<Node> nodes = new ArrayList<Node>();
+		nodes.add(new Node("eq", "device.make", Node.EQUALS, "Apple"));
+		nodes.add(new Node("eqn", "user.yob", Node.EQUALS, 1961));
+		nodes.add(new Node("eqd", "user.yob", Node.EQUALS, 1961.0));
+		nodes.add(new Node("neq", "device.make", Node.NOT_EQUALS, "Apple"));
+		nodes.add(new Node("mem", "site.domain", Node.MEMBER, Arrays.asList("junk1.com", "yahoo.com")));
+		nodes.add(new Node("nmem", "site.domain", Node.NOT_MEMBER, Arrays.asList("junk1.com")));
+		nodes.add(new Node("memn", "device.devicetype", Node.MEMBER, Arrays.asList(1, 2)));
+		nodes.add(new Node("int", "site.cat", Node.INTERSECTS, Arrays.asList("IAB2", "IAB9")));
+		nodes.add(new Node("nint", "site.cat", Node.NOT_INTERSECTS, Arrays.asList("IAB2")));
+		nodes.add(new Node("intimp", "imp.*.id", Node.INTERSECTS, Arrays.asList("2")));
+		nodes.add(new Node("lt", "user.yob", Node.LESS_THAN, 1970));
+		nodes.add(new Node("lte", "user.yob", Node.LESS_THAN_EQUALS, 1961));
+		nodes.add(new Node("gt", "user.yob", Node.GREATER_THAN, 1961));
+		nodes.add(new Node("gte", "imp.0.banner.w", Node.GREATER_THAN_EQUALS, 320));
+		nodes.add(new Node("range", "device.geo", Node.INRANGE, "LATLON, 42.37, -71.22, 10000.0"));
+		nodes.add(new Node("nrange", "device.geo", Node.NOT_INRANGE, "LATLON, 42.37, -71.22, 10000.0"));
+		nodes.add(new Node("dom", "user.yob", Node.DOMAIN, Arrays.asList(1960.0, 1962.0)));
+		nodes.add(new Node("ndom", "user.yob", Node.NOT_DOMAIN, Arrays.asList(1960.0, 1962.0)));
+		nodes.add(new Node("sin", "device.ua", Node.STRINGIN, Arrays.asList("iPhone", "Android")));
+		nodes.add(new Node("nsin", "device.ua", Node.NOT_STRINGIN, Arrays.asList("iPhone")));
+		nodes.add(new Node("ex", "app", Node.EXISTS, null));
+		nodes.add(new Node("nex", "app", Node.NOT_EXISTS, null));
+		nodes.add(new Node("regex", "device.ua", Node.REGEX, ".*Mobi.*"));
+		nodes.add(new Node("nregex", "device.ua", Node.NOT_REGEX, ".*Mobi.*"));
+		nodes.add(new Node("missing", "user.nothere", Node.EQUALS, "x"));
+
+		List<Node> or = new ArrayList<Node>();
+		or.add(new Node("a", "device.make", Node.EQUALS, "Samsung"));
+		or.add(new Node("b", "user.yob", Node.EQUALS, 1961));
+		nodes.add(new Node("or", null, Node.OR, or));
+
+		// The same constraints, but false when the hierarchy is missing
+		int n = nodes.size();
+		for (int i = 0; i < n; i++) {
+			Node node = nodes.get(i);
+			if (node.operator == Node.OR)
+				continue;
+			Node copy = new Node(node.name + "-required", node.hierarchy, node.operator, node.value);
+			copy.notPresentOk = false;
+			nodes.add(copy);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Each compiled predicate must agree with Node.test on every sample request.
+	 * @throws Exception on file or node errors.
+	 */
+	@Test
+	public void testEquivalence() throws Exception {
+		List<Node> nodes = nodes();
+		List<Node> plain = new ArrayList<Node>();
+		for (Node node : nodes) {
+			if (node.operator != Node.OR)
+				plain.add(node);
+		}
+		// Numbered by a snapshot before the requests are parsed, so the requests remember the answers
+		Campaign all = new Campaign("all", plain);
+		CampaignSnapshot.compile(Collections.singletonList(all));
+		CompiledPredicate[] compiled = all.getPredicates();
+		List<CompiledPredicate> predicates = new ArrayList<CompiledPredicate>();
+		int k = 0;
+		for (Node node : nodes)
+			predicates.add(node.operator == Node.OR ? PredicateCompiler.compile(node) : compiled[k++]);
+
+		for (String file : REQUESTS) {
+			BidRequest br = new BidRequest(file);
+			br.setExchange("nexage");
+			for (int i = 0; i < nodes.size(); i++) {
+				Node node = nodes.get(i);
+				CompiledPredicate p = predicates.get(i);
+				boolean expected;
+				try {
+					expected = node.test(new BidRequest(file), null);
+				} catch (Exception error) {
+					// The node throws on some values it can't handle (a geo without lat/lon), there is nothing to compare
+					continue;
+				}
+				assertEquals(file + " " + node.name, expected, p.evaluate(br));
+				// And again, answered from the request's cache this time
+				assertEquals(file + " " + node.name + " (cached)", expected, p.evaluate(br));
+			}
+		}
+	}
+
+	/**
+	 * Equals against a list is set equality, whatever the order or repeats, and agrees with the node.
+	 * @throws Exception on file or node errors.
+	 */
+	@Test
+	public void testEqualsSet() throws Exception {
+		String file = "./SampleBids/nexage.txt";
+		BidRequest br = new BidRequest(file);
+		// site.cat is [ "IAB1", "IAB2", "IAB3" ]
+		Node same = new Node("same", "site.cat", Node.EQUALS, Arrays.asList("IAB3", "IAB1", "IAB2", "IAB1"));
+		Node fewer = new Node("fewer", "site.cat", Node.EQUALS, Arrays.asList("IAB1", "IAB2"));
+		Node more = new Node("more", "site.cat", Node.EQUALS, Arrays.asList("IAB1", "IAB2", "IAB3", "IAB4"));
+		Node not = new Node("not", "site.cat", Node.NOT_EQUALS, Arrays.asList("IAB1", "IAB2"));
+
+		assertTrue(PredicateCompiler.compile(same).evaluate(br));
+		assertFalse(PredicateCompiler.compile(fewer).evaluate(br));
+		assertFalse(PredicateCompiler.compile(more).evaluate(br));
+		assertTrue(PredicateCompiler.compile(not).evaluate(br));
+		for (Node node : Arrays.asList(fewer, more, not))
+			assertEquals(node.name, node.test(new BidRequest(file), null), PredicateCompiler.compile(node).evaluate(br));
+	}
+
+	/**
+	 * Structurally equal predicates share an id in a snapshot, different ones do not, and the ids are dense.
+	 * @throws Exception on node errors.
+	 */
+	@Test
+	public void testSharedIds() throws Exception {
+		Campaign one = campaign("one", new Node("a", "device.make", Node.EQUALS, "Apple"),
+				new Node("yob", "user.yob", Node.LESS_THAN, 1970));
+		Campaign two = campaign("two", new Node("b", "device.make", Node.EQUALS, "Apple"),
+				new Node("c", "device.make", Node.EQUALS, "Samsung"));
+		CampaignSnapshot snapshot = CampaignSnapshot.compile(Arrays.asList(one, two));
+		CompiledPredicate a = one.getPredicates()[0];
+		CompiledPredicate b = two.getPredicates()[0];
+		CompiledPredicate c = two.getPredicates()[1];
+		assertEquals(3, snapshot.predicates);
+		assertTrue(a.getId() >= 0 && a.getId() < 3);
+		assertEquals(a.getId(), b.getId());
+		assertNotEquals(a.getId(), c.getId());
+		assertNotEquals(one.getPredicates()[1].getId(), c.getId());
+
+		BidRequest br = new BidRequest("./SampleBids/nexage.txt");
+		assertEquals(3, br.getPredicateCache().length);
+		assertTrue(a.evaluate(br));
+		assertEquals(CompiledPredicate.TRUE, br.getPredicateCache()[a.getId()]);
+	}
+
+	/**
+	 * Every compile numbers the predicates again from 0, so recompiling does not grow the ids or the requests'
+	 * caches, and a request of an older snapshot still gets the right answers, just not remembered.
+	 * @throws Exception on file or node errors.
+	 */
+	@Test
+	public void testIdsPerSnapshot() throws Exception {
+		Campaign one = campaign("one", new Node("a", "device.make", Node.EQUALS, "Apple"));
+		CampaignSnapshot.compile(Collections.singletonList(one));
+		BidRequest old = new BidRequest("./SampleBids/nexage.txt");
+
+		CampaignSnapshot snapshot = null;
+		for (int i = 0; i < 10; i++) {
+			Campaign two = campaign("two", new Node("b", "device.make", Node.EQUALS, "Samsung"),
+					new Node("yob", "user.yob", Node.EQUALS, 1961 + i));
+			snapshot = CampaignSnapshot.compile(Arrays.asList(one, two));
+			assertEquals(3, snapshot.predicates);
+		}
+		BidRequest br = new BidRequest("./SampleBids/nexage.txt");
+		assertEquals(3, br.getPredicateCache().length);
+		assertEquals(snapshot.version, br.getVersion());
+
+		CompiledPredicate a = one.getPredicates()[0];
+		assertNotEquals(snapshot.version, old.getVersion());
+		assertTrue(a.evaluate(old));
+		for (byte answer : old.getPredicateCache())
+			assertEquals(CompiledPredicate.UNKNOWN, answer);
+		assertTrue(a.evaluate(br));
+		assertEquals(CompiledPredicate.TRUE, br.getPredicateCache()[a.getId()]);
+	}
+
+	/**
+	 * Slots are given out per snapshot, so recompiling with other hierarchies does not grow the field table, and a
+	 * request of an older snapshot still finds its values by name.
+	 * @throws Exception on file or node errors.
+	 */
+	@Test
+	public void testSlotsPerSnapshot() throws Exception {
+		Campaign one = campaign("one", new Node("a", "device.make", Node.EQUALS, "Apple"));
+		CampaignSnapshot first = CampaignSnapshot.compile(Collections.singletonList(one));
+		BidRequest old = new BidRequest("./SampleBids/nexage.txt");
+		assertTrue(first.slotOf("device.make") >= 0);
+		assertEquals(-1, first.slotOf("domain"));
+
+		CampaignSnapshot snapshot = null;
+		for (int i = 0; i < 10; i++) {
+			Campaign two = campaign("two", new Node("x", "user.ext.x" + i, Node.EQUALS, "y"));
+			snapshot = CampaignSnapshot.compile(Arrays.asList(one, two));
+			assertEquals(first.slots() + 1, snapshot.slots());
+			assertEquals(-1, snapshot.slotOf("user.ext.x" + (i - 1)));
+		}
+		BidRequest br = new BidRequest("./SampleBids/nexage.txt");
+		assertEquals("Apple", ((JsonNode) br.database.get("device.make")).textValue());
+		assertEquals("Apple", ((JsonNode) old.database.get("device.make")).textValue());
+
+		CompiledPredicate a = one.getPredicates()[0];
+		assertTrue(a.evaluate(old));
+		assertTrue(a.evaluate(br));
+		assertFalse(campaign("three", new Node("b", "device.make", Node.EQUALS, "Samsung")).getPredicates()[0]
+				.evaluate(br));
+	}
+
+	/**
+	 * Make a campaign with its predicates compiled.
+	 * @param id String. The ad id.
+	 * @param nodes Node[]. The constraints.
+	 * @return Campaign. The campaign.
+	 * @throws Exception on node errors.
+	 */
+	static Campaign campaign(String id, Node... nodes) throws Exception {
+		Campaign c = new Campaign(id, Arrays.asList(nodes));
+		c.compilePredicates();
+		return c;
+	}
+}
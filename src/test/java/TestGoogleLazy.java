@@ -0,0 +1,89 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.jacamars.dsp.rtb.common.Campaign;
+import com.jacamars.dsp.rtb.common.CampaignSnapshot;
+import com.jacamars.dsp.rtb.exchanges.google.GoogleBidRequest;
+
+/**
+ * Tests that Google requests answer the bidder's own hierarchies from the protobuf, without building the JSON of
+ * site/app, device and user.
+ * @author Ben M. Faul
+ *
+ */
+public class TestGoogleLazy {
+
+	/** Requests with a site, an app and video */
+	static final String[] REQUESTS = { "./SampleBids/nexage.txt", "./SampleBids/nexageWithApp.txt",
+			"./SampleBids/nexageVideo.txt", "./SampleBids/nexageNoDomain.txt" };
+
+	/** Hierarchies with an accessor, answered from the protobuf and from the JSON */
+	static final String[] KEYS = { "site.id", "site.domain", "site.page", "site.cat", "app.id", "app.bundle",
+			"device.ua", "device.ip", "device.os", "device.devicetype", "device.didsha1", "device.didmd5",
+			"device.dpidsha1", "device.dnt", "device.js", "device.geo.country", "device.geo.lat", "user.id",
+			"user.yob" };
+
+	/**
+	 * Only the built-in hierarchies, no campaigns.
+	 * @throws Exception on snapshot errors.
+	 */
+	@BeforeClass
+	public static void setup() throws Exception {
+		CampaignSnapshot.compile(Collections.<Campaign>emptyList());
+	}
+
+	/**
+	 * Setting up a typical request reads only hierarchies that have accessors.
+	 * @throws Exception on file or protobuf errors.
+	 */
+	@Test
+	public void testNotMaterialized() throws Exception {
+		for (String file : REQUESTS) {
+			GoogleBidRequest r = GoogleBidRequest.fromRTBFile(file);
+			assertFalse(file, r.isMaterialized());
+			assertNotNull(file, r.id);
+
+			// No accessor for this one, so the JSON gets built
+			r.interrogate("user.keywords");
+			assertTrue(file, r.isMaterialized());
+		}
+	}
+
+	/**
+	 * The accessors give the same values the JSON does.
+	 * @throws Exception on file or protobuf errors.
+	 */
+	@Test
+	public void testAccessors() throws Exception {
+		for (String file : REQUESTS) {
+			GoogleBidRequest json = GoogleBidRequest.fromRTBFile(file);
+			json.interrogate("user.keywords");
+			assertTrue(json.isMaterialized());
+
+			for (String key : KEYS) {
+				GoogleBidRequest lazy = GoogleBidRequest.fromRTBFile(file);
+				Object value = lazy.interrogate(key);
+				assertFalse(file + " " + key, lazy.isMaterialized());
+				assertEquals(file + " " + key, text(json.interrogate(key)), text(value));
+			}
+		}
+	}
+
+	/**
+	 * Missing values are null from an accessor and may be a MissingNode from the JSON.
+	 * @param o Object. The value of a hierarchy.
+	 * @return String. The value as JSON text, or null if it is missing.
+	 */
+	static String text(Object o) {
+		if (o == null || o instanceof MissingNode)
+			return null;
+		return o.toString();
+	}
+}
@@ -0,0 +1,146 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.slf4j.LoggerFactory;
+
+import com.jacamars.dsp.rtb.services.KeyDeletionScheduler;
+
+/**
+ * Tests the timing wheel of the KeyDeletionScheduler. The wheel tests use ticks far ahead of the clock, so the
+ * scheduler's own thread never has anything to do with them.
+ * @author Ben M. Faul
+ *
+ */
+public class TestKeyDeletionScheduler {
+
+	/** Far enough ahead of the clock that the scheduler's thread doesn't reach it during the test */
+	static final long AHEAD = 100000;
+
+	HTreeMap<String, Object> objects;
+	KeyDeletionScheduler scheduler;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		objects = (HTreeMap<String, Object>) DBMaker.memoryDB().make().hashMap("objects").create();
+		scheduler = new KeyDeletionScheduler(objects, LoggerFactory.getLogger(TestKeyDeletionScheduler.class));
+	}
+
+	/**
+	 * The time a tick starts.
+	 * @param tick long. The tick.
+	 * @return long. The time, ms since the epoch.
+	 */
+	long at(long tick) {
+		return scheduler.start + tick * KeyDeletionScheduler.TICK;
+	}
+
+	/**
+	 * Keys spread over several turns of the wheel expire one per tick, in order, and none early.
+	 */
+	@Test
+	public void testTurns() {
+		int n = 3 * KeyDeletionScheduler.SLOTS;
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < n; i++)
+			keys.add("key" + i);
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++)
+			order.add(i);
+		Collections.shuffle(order);
+		for (int i : order)
+			scheduler.addKey(keys.get(i), at(AHEAD + i));
+		assertEquals(n, scheduler.getSize());
+
+		// A jump of more than a turn looks at every bucket, nothing is due yet
+		assertEquals(0, scheduler.expire(AHEAD - 1).size());
+
+		for (int i = 0; i < n; i++) {
+			List<String> expired = scheduler.expire(AHEAD + i);
+			assertEquals(Collections.singletonList(keys.get(i)), expired);
+			assertFalse(scheduler.isScheduled(keys.get(i)));
+		}
+		assertEquals(0, scheduler.getSize());
+	}
+
+	/**
+	 * A key never goes early: a time inside a tick expires at the end of it.
+	 */
+	@Test
+	public void testRoundsUp() {
+		scheduler.expire(AHEAD - 1);
+		scheduler.addKey("a", at(AHEAD + 10) + 1);
+		assertEquals(Long.valueOf(at(AHEAD + 10) + 1), scheduler.getTTL("a"));
+		assertEquals(0, scheduler.expire(AHEAD + 10).size());
+		assertEquals(Collections.singletonList("a"), scheduler.expire(AHEAD + 11));
+		assertNull(scheduler.getTTL("a"));
+	}
+
+	/**
+	 * Adding a key again moves it, deleting it takes it off the wheel, and a key that is already due goes on the
+	 * next tick.
+	 */
+	@Test
+	public void testMoveAndDelete() {
+		scheduler.expire(AHEAD - 1);
+		scheduler.addKey("moved", at(AHEAD + 5));
+		scheduler.addKey("deleted", at(AHEAD + 5));
+		scheduler.addKey("moved", at(AHEAD + 5 + KeyDeletionScheduler.SLOTS));
+		scheduler.delKey("deleted");
+		assertEquals(1, scheduler.getSize());
+
+		for (long t = AHEAD; t < AHEAD + 5 + KeyDeletionScheduler.SLOTS; t++)
+			assertEquals(0, scheduler.expire(t).size());
+		assertEquals(Collections.singletonList("moved"),
+				scheduler.expire(AHEAD + 5 + KeyDeletionScheduler.SLOTS));
+
+		scheduler.addKey("late", at(AHEAD));
+		assertEquals(Collections.singletonList("late"),
+				scheduler.expire(AHEAD + 6 + KeyDeletionScheduler.SLOTS));
+	}
+
+	/**
+	 * Expired objects are deleted. One that was stored again before it was added back keeps its new value.
+	 */
+	@Test
+	public void testProcess() {
+		long now = System.currentTimeMillis();
+		objects.put("old", value(now - 1000));
+		scheduler.addKey("old", now - 1000);
+
+		objects.put("stored", value(now - 1000));
+		scheduler.addKey("stored", now - 1000);
+		// Stored again, its addKey has not happened yet
+		objects.put("stored", value(now + 60000));
+
+		scheduler.process();
+		assertNull(objects.get("old"));
+		assertNotNull(objects.get("stored"));
+		assertEquals(1, scheduler.getDeletions());
+	}
+
+	/**
+	 * Make a stored object, as Zerospike keeps it.
+	 * @param expire long. The expire time, ms since the epoch.
+	 * @return Map. The object.
+	 */
+	static Map<String, Object> value(long expire) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("command", "set");
+		m.put("key", "k");
+		m.put("payload", "v");
+		m.put("expire", expire);
+		return m;
+	}
+}
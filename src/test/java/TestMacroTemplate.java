@@ -0,0 +1,80 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+import com.jacamars.dsp.rtb.pojo.Impression;
+import com.jacamars.dsp.rtb.tools.MacroProcessing;
+import com.jacamars.dsp.rtb.tools.MacroTemplate;
+
+/**
+ * Tests rendering markup from compiled macro templates.
+ * @author Ben M. Faul
+ *
+ */
+public class TestMacroTemplate {
+
+	static final String TEXT = "<a href=\"http://x.com/?site={site_id}&w={impression_width}&h=%7Bimpression_height%7D"
+			+ "&deal={deal_id_enc}&type={bid_type}\">{not_a_macro} {site_id</a>{site_id}";
+
+	/**
+	 * A template renders what substituting every macro over the whole text did, and what expand() does.
+	 * @throws Exception on file or encoding errors.
+	 */
+	@Test
+	public void testRender() throws Exception {
+		BidRequest br = new BidRequest("./SampleBids/nexage.txt");
+		Impression imp = br.getImpression(0);
+		MacroTemplate t = MacroTemplate.compile(TEXT);
+		assertTrue(t.hasMacros());
+		assertEquals(TEXT, t.getText());
+
+		StringBuilder rendered = MacroProcessing.buffer();
+		MacroProcessing.render(t, br, null, imp, "ben:payday", null, "a deal", rendered);
+		assertEquals("<a href=\"http://x.com/?site=99201&w=320&h=50&deal=a+deal&type=SITE\">{not_a_macro} {site_id</a>"
+				+ "99201", rendered.toString());
+
+		StringBuilder expanded = new StringBuilder();
+		MacroProcessing.expand(TEXT, br, null, imp, "ben:payday", null, "a deal", expanded);
+		assertEquals(rendered.toString(), expanded.toString());
+
+		List<String> macros = new ArrayList<String>();
+		MacroProcessing.findMacros(macros, TEXT);
+		StringBuilder replaced = new StringBuilder(TEXT);
+		MacroProcessing.replace(macros, br, null, imp, "ben:payday", replaced, null, "a deal");
+		assertEquals(rendered.toString(), replaced.toString());
+	}
+
+	/**
+	 * Text without macros is one literal, and null compiles to null.
+	 */
+	@Test
+	public void testLiteral() {
+		assertFalse(MacroTemplate.compile("no macros {here} or %7Bthere%7D").hasMacros());
+		assertFalse(MacroTemplate.compile("").hasMacros());
+		assertNull(MacroTemplate.compile(null));
+		assertNull(MacroTemplate.of(null));
+	}
+
+	/**
+	 * Configuration texts are compiled once, until a new macro is added.
+	 */
+	@Test
+	public void testCache() {
+		String text = "http://x.com/?id={site_id}&z={test_template_macro}";
+		MacroTemplate t = MacroTemplate.of(text);
+		assertSame(t, MacroTemplate.of(text));
+
+		MacroProcessing.addMacro("{test_template_macro}");
+		MacroTemplate u = MacroTemplate.of(text);
+		assertNotSame(t, u);
+		assertSame(u, MacroTemplate.of(text));
+		assertTrue(u.hasMacros());
+		assertFalse(MacroTemplate.compile("{test_template_macro").hasMacros());
+	}
+}
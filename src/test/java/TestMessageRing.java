@@ -0,0 +1,125 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.bidder.MessageRing;
+
+/**
+ * Tests the ring that hands messages to a ZPublisher's thread.
+ * @author Ben M. Faul
+ *
+ */
+public class TestMessageRing {
+
+	static final int PRODUCERS = 4;
+	static final int EACH = 20000;
+
+	/**
+	 * Messages come out in the order they went in, in batches of at most max.
+	 */
+	@Test
+	public void testOrder() {
+		MessageRing ring = new MessageRing(5, MessageRing.Wait.YIELDING, 0);
+		assertEquals(8, ring.capacity());
+		assertTrue(ring.isEmpty());
+		assertFalse(ring.offer(null));
+
+		Object[] batch = new Object[8];
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 6; i++)
+				assertTrue(ring.offer(round * 6 + i));
+			assertEquals(6, ring.size());
+			assertEquals(4, ring.take(batch, 4));
+			assertEquals(2, ring.take(batch, 8));
+			assertEquals(Integer.valueOf(round * 6 + 4), batch[0]);
+			assertTrue(ring.isEmpty());
+		}
+		// Nothing comes, it returns empty handed
+		assertEquals(0, ring.take(batch, 8));
+	}
+
+	/**
+	 * A full ring is retried for offerMs, then the message is dropped and counted, and the ones in it are kept.
+	 */
+	@Test
+	public void testDropWhenFull() {
+		MessageRing ring = new MessageRing(4, MessageRing.Wait.BLOCKING, 20);
+		for (int i = 0; i < 4; i++)
+			assertTrue(ring.offer(i));
+		long start = System.nanoTime();
+		assertFalse(ring.offer(4));
+		assertTrue(System.nanoTime() - start >= 20000000L);
+		assertFalse(ring.offer(5));
+		assertEquals(2, ring.getDrops());
+		assertEquals(2, ring.getBackpressure());
+		assertEquals(0, ring.getDrops());
+
+		Object[] batch = new Object[8];
+		assertEquals(4, ring.take(batch, 8));
+		for (int i = 0; i < 4; i++)
+			assertEquals(Integer.valueOf(i), batch[i]);
+		assertTrue(ring.offer(6));
+		assertEquals(0, ring.getBackpressure());
+	}
+
+	/**
+	 * With every wait strategy, messages from several producers through a small ring all arrive, each producer's in
+	 * its order, and none are dropped while the producers may wait long enough.
+	 * @throws Exception on thread errors.
+	 */
+	@Test
+	public void testWaitStrategies() throws Exception {
+		for (MessageRing.Wait wait : MessageRing.Wait.values())
+			producersAndConsumer(new MessageRing(64, wait, 60000), wait);
+	}
+
+	static void producersAndConsumer(MessageRing ring, MessageRing.Wait wait) throws Exception {
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int id = p;
+			Thread t = new Thread(() -> {
+				for (int i = 0; i < EACH; i++) {
+					ring.offer(new int[] { id, i });
+					// Now and then let the consumer run dry and wait
+					if (i % 5000 == 0)
+						sleep(5);
+				}
+			});
+			producers.add(t);
+			t.start();
+		}
+
+		int[] next = new int[PRODUCERS];
+		Object[] batch = new Object[16];
+		int received = 0;
+		long deadline = System.currentTimeMillis() + 60000;
+		while (received < PRODUCERS * EACH && System.currentTimeMillis() < deadline) {
+			int n = ring.take(batch, batch.length);
+			for (int i = 0; i < n; i++) {
+				int[] msg = (int[]) batch[i];
+				assertEquals(wait + " out of order", next[msg[0]], msg[1]);
+				next[msg[0]]++;
+			}
+			received += n;
+		}
+		for (Thread t : producers)
+			t.join();
+
+		assertEquals(wait + " lost messages", PRODUCERS * EACH, received);
+		assertEquals(0, ring.getDrops());
+		assertTrue(ring.isEmpty());
+	}
+
+	static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException error) {
+
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jacamars.dsp.rtb.common.URIEncoder;
+import com.jacamars.dsp.rtb.nativeads.assets.Asset;
+import com.jacamars.dsp.rtb.nativeads.creative.NativeCreative;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+
+/**
+ * Tests that the native markup of a creative is built once per request asset layout.
+ * @author Ben M. Faul
+ *
+ */
+public class TestNativeMarkup {
+
+	static final String FILE = "./SampleBids/nexageNativeAppWall.txt";
+
+	/** The app wall creative of database-sample.json */
+	static final String CREATIVE = "{\"assets\":[{\"title\":{\"text\":\"Install BOA\",\"callToAction\":"
+			+ "\"http://i.am.a/URL\"},\"link\":{\"url\":\"http://i.am.a/URL\"}},{\"img\":{\"url\":"
+			+ "\"http://cdn.mobad.com/ad.png\",\"w\":64,\"h\":64}},{\"link\":{\"url\":\"http://i.am.a/URL\"},"
+			+ "\"data\":{\"value\":\"Install\",\"type\":2,\"callToAction\":\"http://i.am.a/URL\"}},{\"data\":"
+			+ "{\"value\":\"5\",\"type\":3}}],\"link\":{\"url\":\"deeplink://deeplink/url/into/app\",\"fallback\":"
+			+ "\"http://i.am.a/URL\",\"clicktrackers\":[\"http://a.com/a\"]},\"imptrackers\":[\"http://a.com/a\"],"
+			+ "\"nativeAdType\":2}";
+
+	@After
+	public void teardown() {
+		NativeCreative.MAX_LAYOUTS = 64;
+	}
+
+	static NativeCreative creative() throws Exception {
+		NativeCreative c = BidRequest.mapper.readValue(CREATIVE, NativeCreative.class);
+		c.encode();
+		return c;
+	}
+
+	/**
+	 * A request whose native asset ids are offset, a new layout for the creative.
+	 * @param offset int. Added to each asset id.
+	 * @param drop int. The asset to leave out of the request, or -1.
+	 * @return BidRequest. The request.
+	 * @throws Exception on file or JSON errors.
+	 */
+	static BidRequest request(int offset, int drop) throws Exception {
+		ObjectNode json = (ObjectNode) BidRequest.mapper.readTree(Files.readAllBytes(Paths.get(FILE)));
+		ArrayNode assets = (ArrayNode) json.path("imp").path(0).path("native").path("assets");
+		for (JsonNode a : assets)
+			((ObjectNode) a).put("id", a.get("id").asInt() + offset);
+		if (drop >= 0)
+			assets.remove(drop);
+		return new BidRequest(new StringBuilder(json.toString()));
+	}
+
+	/**
+	 * The markup as it was built for every bid.
+	 * @param c NativeCreative. The creative.
+	 * @param br BidRequest. The request.
+	 * @return String. The native JSON.
+	 */
+	static String markup(NativeCreative c, BidRequest br) {
+		StringBuilder buf = new StringBuilder("{\"native\":{\"ver\":1,\"link\":");
+		buf.append(c.link.getStringBuilder()).append(",\"assets\":[");
+		for (int i = 0; i < c.assets.size(); i++) {
+			Asset a = c.assets.get(i);
+			buf.append(a.toStringBuilder(br.getNativeAdAssetIndex(a.getEntityName(), a.getDataKey(), a.getDataType())));
+			if (i + 1 != c.assets.size())
+				buf.append(",");
+		}
+		return buf.append("]}}").toString();
+	}
+
+	/**
+	 * Each layout gets the markup built for it, once, encoded and escaped.
+	 * @throws Exception on file or JSON errors.
+	 */
+	@Test
+	public void testLayouts() throws Exception {
+		NativeCreative c = creative();
+		BidRequest br = request(0, -1);
+		String encoded = c.getEncodedAdm(br);
+		String escaped = c.getEscapedAdm(br);
+		assertEquals(URIEncoder.myUri(markup(c, br)), encoded);
+		assertEquals(markup(c, br).replaceAll("\"", "\\\\\""), escaped);
+		assertTrue(markup(c, br).contains("\"id\":3"));
+
+		// Same layout, another request
+		assertSame(encoded, c.getEncodedAdm(request(0, -1)));
+		assertSame(escaped, c.getEscapedAdm(request(0, -1)));
+
+		BidRequest other = request(10, -1);
+		assertEquals(URIEncoder.myUri(markup(c, other)), c.getEncodedAdm(other));
+		assertNotEquals(encoded, c.getEncodedAdm(other));
+		assertTrue(markup(c, other).contains("\"id\":13"));
+
+		// A creative asset the request does not ask for
+		BidRequest missing = request(0, 3);
+		assertEquals(markup(c, missing).replaceAll("\"", "\\\\\""), c.getEscapedAdm(missing));
+		assertNotEquals(escaped, c.getEscapedAdm(missing));
+		assertSame(encoded, c.getEncodedAdm(br));
+	}
+
+	/**
+	 * Past MAX_LAYOUTS the remembered markup is dropped and built again.
+	 * @throws Exception on file or JSON errors.
+	 */
+	@Test
+	public void testMaxLayouts() throws Exception {
+		NativeCreative.MAX_LAYOUTS = 2;
+		NativeCreative c = creative();
+		String first = c.getEncodedAdm(request(0, -1));
+		assertSame(first, c.getEncodedAdm(request(0, -1)));
+		c.getEncodedAdm(request(10, -1));
+		c.getEncodedAdm(request(20, -1));
+
+		String again = c.getEncodedAdm(request(0, -1));
+		assertNotSame(first, again);
+		assertEquals(first, again);
+	}
+}
@@ -0,0 +1,62 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.jacamars.dsp.rtb.common.Campaign;
+import com.jacamars.dsp.rtb.common.CampaignSnapshot;
+import com.jacamars.dsp.rtb.exchanges.google.GoogleBidRequest;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+
+/**
+ * Tests that Google requests keep the protobuf they were sent, and put it in their JSON for the logs.
+ * @author Ben M. Faul
+ *
+ */
+public class TestProtobufPayload {
+
+	/**
+	 * Only the built-in hierarchies, no campaigns.
+	 * @throws Exception on snapshot errors.
+	 */
+	@BeforeClass
+	public static void setup() throws Exception {
+		CampaignSnapshot.compile(Collections.<Campaign>emptyList());
+	}
+
+	static byte[] protobuf(BidRequest br) {
+		JsonNode node = br.getOriginal().get("protobuf");
+		assertNotNull(node);
+		return DatatypeConverter.parseBase64Binary(node.asText());
+	}
+
+	/**
+	 * The logged protobuf of a Google request is the bytes it was sent, and is only added once.
+	 * @throws Exception on file or protobuf errors.
+	 */
+	@Test
+	public void testGoogle() throws Exception {
+		byte[] bytes = GoogleBidRequest.fromRTBFile("./SampleBids/nexage.txt").getInternal().toByteArray();
+		GoogleBidRequest br = new GoogleBidRequest(new ByteArrayInputStream(bytes));
+		assertFalse(br.notABidRequest());
+		assertEquals("35c22289-06e2-48e9-a0cd-94aeb79fab43", br.id);
+		assertArrayEquals(bytes, protobuf(br));
+		assertArrayEquals(bytes, protobuf(br));
+		assertTrue(br.toString().contains(DatatypeConverter.printBase64Binary(bytes)));
+
+		// Built from the protobuf object, not from bytes
+		br = new GoogleBidRequest(br.getInternal());
+		assertArrayEquals(bytes, protobuf(br));
+
+		br = new GoogleBidRequest(new ByteArrayInputStream(new byte[0]));
+		assertTrue(br.notABidRequest());
+	}
+}
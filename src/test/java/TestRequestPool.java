@@ -0,0 +1,94 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.jacamars.dsp.rtb.bidder.RequestPool;
+import com.jacamars.dsp.rtb.exchanges.Nexage;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+import com.jacamars.dsp.rtb.pojo.Impression;
+
+/**
+ * Tests that the Jetty threads reuse no-bid requests, and only those nothing else holds.
+ * @author Ben M. Faul
+ *
+ */
+public class TestRequestPool {
+
+	static final String FIRST = "./SampleBids/nexage.txt";
+	static final String SECOND = "./SampleBids/nexage320x250.txt";
+
+	@After
+	public void teardown() {
+		BidRequest.setUsesPooling(Nexage.class, false);
+	}
+
+	static BidRequest acquire(BidRequest prototype, String file) throws Exception {
+		try (FileInputStream in = new FileInputStream(file)) {
+			return RequestPool.getInstance().acquire(prototype, in);
+		}
+	}
+
+	/**
+	 * A released request is refilled with the next one, down to its impressions, and holds nothing of the first.
+	 * @throws Exception on file or JSON errors.
+	 */
+	@Test
+	public void testReuse() throws Exception {
+		Nexage prototype = new Nexage();
+		BidRequest.setUsesPooling(Nexage.class, true);
+		assertTrue(prototype.isReusable());
+
+		BidRequest first = acquire(prototype, FIRST);
+		Impression imp = first.getImpression(0);
+		assertEquals(50, (int) imp.h);
+		assertEquals("nexage", first.getExchange());
+		RequestPool.getInstance().release(prototype, first);
+
+		long reused = RequestPool.reused.get();
+		BidRequest second = acquire(prototype, SECOND);
+		assertSame(first, second);
+		assertEquals(reused + 1, RequestPool.reused.get());
+		assertEquals(1, second.getImpressions());
+		assertSame(imp, second.getImpression(0));
+		assertEquals(250, (int) imp.h);
+		assertEquals("35c22289-06e2-48e9-a0cd-94aeb79fab43-1", imp.getImpid());
+		assertEquals("nexage", second.getExchange());
+		assertFalse(second.isRetained());
+		assertEquals(250, ((JsonNode) second.interrogate("imp.0.banner.h")).asInt());
+
+		// Taken, so the next one is a copy
+		assertNotSame(second, acquire(prototype, FIRST));
+	}
+
+	/**
+	 * Retained requests, the prototype itself, and requests of exchanges that don't pool are not reused.
+	 * @throws Exception on file or JSON errors.
+	 */
+	@Test
+	public void testNotReused() throws Exception {
+		Nexage prototype = new Nexage();
+		BidRequest.setUsesPooling(Nexage.class, true);
+		RequestPool pool = RequestPool.getInstance();
+
+		BidRequest br = acquire(prototype, FIRST);
+		br.retain();
+		pool.release(prototype, br);
+		assertNotSame(br, acquire(prototype, FIRST));
+
+		pool.release(prototype, prototype);
+		assertNotSame(prototype, acquire(prototype, FIRST));
+
+		br = acquire(prototype, FIRST);
+		BidRequest.setUsesPooling(Nexage.class, false);
+		assertFalse(prototype.isReusable());
+		pool.release(prototype, br);
+		BidRequest.setUsesPooling(Nexage.class, true);
+		assertNotSame(br, acquire(prototype, FIRST));
+	}
+}
@@ -0,0 +1,89 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jacamars.dsp.rtb.pojo.Bid;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+
+/**
+ * Tests reading bid requests through the shared reader and the per thread body buffer.
+ * @author Ben M. Faul
+ *
+ */
+public class TestRequestReading {
+
+	static final String FILE = "./SampleBids/nexage.txt";
+
+	static BidRequest read(byte[] body) {
+		return new BidRequest(new ByteArrayInputStream(body), "nexage");
+	}
+
+	/**
+	 * Bodies larger than the buffer grow it, bodies larger than the largest kept buffer are read whole, and a short
+	 * body read after them sees only its own bytes.
+	 * @throws Exception on file or JSON errors.
+	 */
+	@Test
+	public void testBodySizes() throws Exception {
+		byte[] small = Files.readAllBytes(Paths.get(FILE));
+		for (int size : new int[] { 20000, 2 * 1024 * 1024 }) {
+			ObjectNode json = (ObjectNode) BidRequest.mapper.readTree(small);
+			char[] pad = new char[size];
+			Arrays.fill(pad, 'x');
+			((ObjectNode) json.get("ext")).put("pad", new String(pad));
+			byte[] big = BidRequest.mapper.writeValueAsBytes(json);
+
+			BidRequest br = read(big);
+			assertFalse(br.blackListed);
+			assertEquals("35c22289-06e2-48e9-a0cd-94aeb79fab43", br.getId());
+			assertEquals(size, br.getOriginal().path("ext").path("pad").asText().length());
+
+			br = read(small);
+			assertFalse(br.blackListed);
+			assertEquals("35c22289-06e2-48e9-a0cd-94aeb79fab43", br.getId());
+			assertNull(br.getOriginal().path("ext").get("pad"));
+		}
+	}
+
+	/**
+	 * A body that is not JSON blacklists the request, and the next one on the thread still reads.
+	 * @throws Exception on file or JSON errors.
+	 */
+	@Test
+	public void testBadBody() throws Exception {
+		BidRequest br = read("{\"id\": \"123\", \"imp\": [".getBytes());
+		assertTrue(br.blackListed);
+		assertEquals("", br.getId());
+
+		br = read(Files.readAllBytes(Paths.get(FILE)));
+		assertFalse(br.blackListed);
+	}
+
+	/**
+	 * A bid payload is read with the shared reader, which ignores fields it does not know.
+	 * @throws Exception on JSON errors.
+	 */
+	@Test
+	public void testBid() throws Exception {
+		String s = "{\"id\":\"abc\",\"unknown\":1,\"seatbid\":[{\"seat\":\"99999\",\"bid\":[{\"impid\":\"1\","
+				+ "\"price\":1.5,\"adid\":\"ben:payday\",\"nurl\":\"http://localhost/win\",\"cid\":\"ben:payday\","
+				+ "\"crid\":\"23skiddoo\",\"iurl\":\"http://localhost/image.jpg\",\"extra\":true}]}]}";
+		for (int i = 0; i < 2; i++) {
+			Bid bid = new Bid(s);
+			assertEquals("abc", bid.id);
+			assertEquals("1", bid.impid);
+			assertEquals(1.5, bid.price, 0);
+			assertEquals("ben:payday", bid.adid);
+			assertEquals("23skiddoo", bid.crid);
+			assertEquals("http://localhost/image.jpg", bid.iurl);
+		}
+	}
+}
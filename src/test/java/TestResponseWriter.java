@@ -0,0 +1,167 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.bidder.ResponseWriter;
+
+/**
+ * Tests writing bid responses, plain and gzipped, from the thread's buffers.
+ * @author Ben M. Faul
+ *
+ */
+public class TestResponseWriter {
+
+	/** What a response was sent */
+	static class Sent {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final Map<String, String> headers = new HashMap<String, String>();
+		int length = -1;
+
+		/**
+		 * Return a servlet response that records into this.
+		 * @return HttpServletResponse. The response.
+		 */
+		HttpServletResponse response() {
+			ServletOutputStream out = new ServletOutputStream() {
+				@Override
+				public void write(int b) {
+					body.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					body.write(b, off, len);
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setWriteListener(WriteListener listener) {
+
+				}
+			};
+			return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> {
+						switch (method.getName()) {
+						case "getOutputStream":
+							return out;
+						case "setContentLength":
+							length = (Integer) args[0];
+							return null;
+						case "addHeader":
+							headers.put((String) args[0], (String) args[1]);
+							return null;
+						default:
+							throw new UnsupportedOperationException(method.getName());
+						}
+					});
+		}
+
+		/**
+		 * The body as the exchange would read it.
+		 * @return String. The body, gunzipped if it was sent gzipped.
+		 * @throws Exception on gzip errors.
+		 */
+		String text() throws Exception {
+			assertEquals(body.size(), length);
+			if (!"gzip".equals(headers.get("Content-Encoding")))
+				return new String(body.toByteArray(), StandardCharsets.UTF_8);
+			GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body.toByteArray()));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) != -1)
+				out.write(buf, 0, n);
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	@After
+	public void teardown() {
+		ResponseWriter.setGzipThreshold(1024);
+	}
+
+	static Sent write(CharSequence body, boolean gzip) throws Exception {
+		Sent sent = new Sent();
+		ResponseWriter.getInstance().write(sent.response(), body, gzip);
+		return sent;
+	}
+
+	static String response(int size) {
+		StringBuilder sb = new StringBuilder("{\"id\":\"\u20ac\u00fc\",\"seatbid\":[");
+		for (int i = 0; sb.length() < size; i++)
+			sb.append("{\"bid\":").append(i).append("},");
+		return sb.append("]}").toString();
+	}
+
+	/**
+	 * Responses go out gzipped only if the exchange accepts it and they are at least the threshold, and always as
+	 * the UTF-8 of the text.
+	 * @throws Exception on I/O errors.
+	 */
+	@Test
+	public void testGzip() throws Exception {
+		String small = response(100);
+		String big = response(200000);
+
+		long gzipped = ResponseWriter.gzipped.get();
+		Sent sent = write(big, true);
+		assertEquals("gzip", sent.headers.get("Content-Encoding"));
+		assertTrue(sent.length < big.length() / 4);
+		assertEquals(big, sent.text());
+		assertEquals(gzipped + 1, ResponseWriter.gzipped.get());
+
+		// After the buffers grew
+		sent = write(small, true);
+		assertNull(sent.headers.get("Content-Encoding"));
+		assertEquals(small, sent.text());
+		assertEquals(small.getBytes(StandardCharsets.UTF_8).length, sent.length);
+
+		sent = write(big, false);
+		assertNull(sent.headers.get("Content-Encoding"));
+		assertEquals(big, sent.text());
+
+		ResponseWriter.setGzipThreshold(0);
+		sent = write(small, true);
+		assertEquals("gzip", sent.headers.get("Content-Encoding"));
+		assertEquals(small, sent.text());
+		sent = write("", true);
+		assertEquals("", sent.text());
+
+		try {
+			ResponseWriter.setGzipThreshold(-1);
+			fail("A negative threshold was taken");
+		} catch (IllegalArgumentException error) {
+
+		}
+		assertEquals(0, ResponseWriter.getGzipThreshold());
+	}
+
+	/**
+	 * Broken surrogates in the text are replaced, the response still goes out.
+	 * @throws Exception on I/O errors.
+	 */
+	@Test
+	public void testMalformed() throws Exception {
+		assertEquals("a?b?", write("a\ud800b\udc00", false).text());
+		assertEquals("a\ud83d\ude00b", write("a\ud83d\ude00b", false).text());
+	}
+}
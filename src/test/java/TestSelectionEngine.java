@@ -0,0 +1,50 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.bidder.SelectionEngine;
+
+/**
+ * Tests how the selection engine cuts a request's campaigns into slices for its shared pool.
+ * @author Ben M. Faul
+ *
+ */
+public class TestSelectionEngine {
+
+	/**
+	 * Cheap selections run in one slice on the calling thread, expensive ones are split, but never into more slices
+	 * than there are campaigns or threads in the pool.
+	 */
+	@Test
+	public void testSlices() {
+		SelectionEngine engine = SelectionEngine.getInstance();
+		assertSame(engine, SelectionEngine.getInstance());
+		long old = SelectionEngine.TARGET_SLICE_NANOS;
+		try {
+			assertEquals(1, engine.slicesFor(0));
+			assertEquals(1, engine.slicesFor(1));
+
+			SelectionEngine.TARGET_SLICE_NANOS = Long.MAX_VALUE;
+			assertEquals(1, engine.slicesFor(100000));
+
+			SelectionEngine.TARGET_SLICE_NANOS = 1;
+			int max = engine.slicesFor(100000);
+			assertTrue(max >= 1);
+			assertEquals(Math.min(2, max), engine.slicesFor(2));
+			int last = 1;
+			for (int n = 1; n < 1000; n++) {
+				int slices = engine.slicesFor(n);
+				assertTrue(slices >= last && slices <= n && slices <= max);
+				last = slices;
+			}
+
+			// About one slice per TARGET_SLICE_NANOS of work
+			SelectionEngine.TARGET_SLICE_NANOS = (long) Math.ceil(engine.getNanosPerCampaign() * 10);
+			assertEquals(Math.min(max, 2), engine.slicesFor(15));
+		} finally {
+			SelectionEngine.TARGET_SLICE_NANOS = old;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.redisson.ShardRing;
+
+/**
+ * Tests how the consistent hash ring spreads the shared cache keys over the Zerospike shards.
+ * @author Ben M. Faul
+ *
+ */
+public class TestShardRing {
+
+	static final int KEYS = 20000;
+
+	static List<String> names(int n) {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < n; i++)
+			names.add("zerospike-" + i);
+		return names;
+	}
+
+	/**
+	 * Every shard gets a fair share of the keys, and a key always goes to the same shard.
+	 */
+	@Test
+	public void testSpread() {
+		ShardRing ring = new ShardRing(names(4));
+		int[] counts = new int[4];
+		for (int i = 0; i < KEYS; i++)
+			counts[ring.shardOf("capkey" + i)]++;
+		for (int i = 0; i < 4; i++)
+			assertTrue("shard " + i + " has " + counts[i], counts[i] > KEYS / 8 && counts[i] < KEYS / 2);
+
+		ShardRing again = new ShardRing(names(4));
+		for (int i = 0; i < 1000; i++)
+			assertEquals(ring.shardOf("capkey" + i), again.shardOf("capkey" + i));
+	}
+
+	/**
+	 * Adding a shard only moves keys to the new shard, about its share of them. Where a shard is in the list
+	 * doesn't change which keys it has.
+	 */
+	@Test
+	public void testAddShard() {
+		List<String> four = names(4);
+		List<String> five = names(5);
+		ShardRing before = new ShardRing(four);
+		ShardRing after = new ShardRing(five);
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			String key = "capkey" + i;
+			int a = before.shardOf(key);
+			int b = after.shardOf(key);
+			if (a != b) {
+				assertEquals(4, b);
+				moved++;
+			}
+		}
+		assertTrue("moved " + moved, moved > KEYS / 10 && moved < KEYS / 3);
+
+		List<String> reversed = new ArrayList<String>(five);
+		Collections.reverse(reversed);
+		ShardRing other = new ShardRing(reversed);
+		for (int i = 0; i < 1000; i++) {
+			String key = "capkey" + i;
+			assertEquals(five.get(after.shardOf(key)), reversed.get(other.shardOf(key)));
+		}
+	}
+
+	/**
+	 * A ring without shards has no owner for a key.
+	 */
+	@Test
+	public void testEmpty() {
+		assertEquals(-1, new ShardRing(Collections.<String>emptyList()).shardOf("capkey"));
+		assertEquals(0, new ShardRing(Arrays.asList("only")).shardOf("capkey"));
+	}
+}
@@ -0,0 +1,135 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jacamars.dsp.rtb.common.Campaign;
+import com.jacamars.dsp.rtb.common.CampaignSnapshot;
+import com.jacamars.dsp.rtb.common.Node;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+import com.jacamars.dsp.rtb.pojo.StreamingRequestParser;
+
+/**
+ * Tests that the streaming parser keeps only the targeted parts of a request, and that the request builds the full
+ * tree when something else is asked for.
+ * @author Ben M. Faul
+ *
+ */
+public class TestStreamingParser {
+
+	static final String FILE = "./SampleBids/nexage.txt";
+
+	/** The campaigns that were running before the test */
+	List<Campaign> before;
+
+	/**
+	 * Run with campaigns that only look at the device make and the year of birth.
+	 * @throws Exception on node errors.
+	 */
+	@Before
+	public void setup() throws Exception {
+		before = new ArrayList<Campaign>(CampaignSnapshot.current().campaigns);
+		Campaign c = new Campaign("streaming", Arrays.asList(
+				new Node("make", "device.make", Node.EQUALS, "Apple"),
+				new Node("yob", "user.yob", Node.LESS_THAN, 1970)));
+		c.compilePredicates();
+		CampaignSnapshot.compile(Arrays.asList(c));
+	}
+
+	@After
+	public void teardown() throws Exception {
+		BidRequest.setUsesStreaming(BidRequest.class, false);
+		CampaignSnapshot.compile(before);
+	}
+
+	static byte[] bytes() throws Exception {
+		return Files.readAllBytes(Paths.get(FILE));
+	}
+
+	/**
+	 * The pruned tree holds the keys and the paths the bidder reads, and nothing else.
+	 * @throws Exception on file or JSON errors.
+	 */
+	@Test
+	public void testPrune() throws Exception {
+		StreamingRequestParser parser = StreamingRequestParser.getInstance();
+		assertSame(parser, StreamingRequestParser.getInstance());
+		ObjectNode pruned = parser.parse(bytes(), BidRequest.mapper);
+
+		assertEquals("Apple", pruned.path("device").path("make").asText());
+		assertEquals(1961, pruned.path("user").path("yob").asInt());
+		assertEquals("166.137.138.18", pruned.path("device").path("ip").asText());
+		assertEquals(42.378, pruned.path("device").path("geo").path("lat").asDouble(), 0);
+		assertEquals(320, pruned.path("imp").path(0).path("banner").path("w").asInt());
+		assertNotNull(pruned.get("id"));
+
+		// The built in keys
+		assertEquals("junk1.com", pruned.path("site").path("domain").asText());
+		assertNotNull(pruned.path("device").get("ua"));
+
+		assertNull(pruned.path("site").get("cat"));
+		assertNull(pruned.path("site").get("publisher"));
+		assertEquals(0, pruned.path("ext").size());
+		assertNull(pruned.path("device").get("carrier"));
+		assertNull(pruned.path("user").get("gender"));
+
+		assertTrue(parser.covered(pruned, Arrays.asList("device", "make")));
+		assertTrue(parser.covered(pruned, Arrays.asList("device", "geo", "country")));
+		// Inside the imp array, kept whole
+		assertTrue(parser.covered(pruned, Arrays.asList("imp", "0", "banner", "h")));
+		assertFalse(parser.covered(pruned, Arrays.asList("device", "carrier")));
+		assertFalse(parser.covered(pruned, Arrays.asList("site", "publisher", "id")));
+	}
+
+	/**
+	 * Changes made to the pruned tree carry over to the full tree, which keeps everything else.
+	 * @throws Exception on file or JSON errors.
+	 */
+	@Test
+	public void testOverlay() throws Exception {
+		StreamingRequestParser parser = StreamingRequestParser.getInstance();
+		ObjectNode pruned = parser.parse(bytes(), BidRequest.mapper);
+		((ObjectNode) pruned.get("device")).put("make", "Samsung");
+		((ObjectNode) pruned.get("user")).remove("yob");
+		ObjectNode full = (ObjectNode) BidRequest.mapper.readTree(bytes());
+
+		parser.overlay(pruned, full);
+		assertEquals("Samsung", full.path("device").path("make").asText());
+		assertNull(full.path("user").get("yob"));
+		assertEquals("F", full.path("user").path("gender").asText());
+		assertEquals("IAB2", full.path("site").path("cat").path(1).asText());
+		assertSame(pruned.get("imp"), full.get("imp"));
+	}
+
+	/**
+	 * A request parsed with the streaming parser answers the keys from the pruned tree, and anything else, and
+	 * its whole JSON, from the full tree, with the synthkey set up on the pruned tree.
+	 * @throws Exception on file or JSON errors.
+	 */
+	@Test
+	public void testRequest() throws Exception {
+		BidRequest.setUsesStreaming(BidRequest.class, true);
+		BidRequest br = new BidRequest(new ByteArrayInputStream(bytes()));
+		assertEquals("Apple", ((JsonNode) br.interrogate("device.make")).asText());
+		assertEquals("Apple", br.getOriginal().path("device").path("make").asText());
+		assertEquals("Waltham", ((JsonNode) br.interrogate("user.geo.city")).asText());
+
+		br = new BidRequest(new ByteArrayInputStream(bytes()));
+		ObjectNode json = (ObjectNode) BidRequest.mapper.readTree(br.toString());
+		assertTrue(json.path("ext").path("synthkey").asText().startsWith("ASDFJKL:166.137.138.18:"));
+		((ObjectNode) json.get("ext")).remove("synthkey");
+		assertEquals(BidRequest.mapper.readTree(bytes()), json);
+	}
+}
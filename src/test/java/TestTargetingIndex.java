@@ -0,0 +1,189 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.common.Campaign;
+import com.jacamars.dsp.rtb.common.CampaignSnapshot;
+import com.jacamars.dsp.rtb.common.CompiledPredicate;
+import com.jacamars.dsp.rtb.common.Node;
+import com.jacamars.dsp.rtb.common.TargetingIndex;
+import com.jacamars.dsp.rtb.pojo.BidRequest;
+
+/**
+ * Tests that pruning with the targeting index selects the same campaigns as testing every campaign.
+ * @author Ben M. Faul
+ *
+ */
+public class TestTargetingIndex {
+
+	/**
+	 * Make campaigns with indexed, residual and mixed constraints, some of which match the sample requests.
+	 * @return List. The campaigns.
+	 * @throws Exception on node errors.
+	 */
+	static List<Campaign> campaigns() throws Exception {
+		List<Campaign> list = new ArrayList<Campaign>();
+		list.add(campaign("type-domain", new Node("type", "device.devicetype", Node.MEMBER, Arrays.asList(1, 2)),
+				new Node("domain", "site.domain", Node.EQUALS, "junk1.com")));
+		list.add(campaign("type4", new Node("type", "device.devicetype", Node.MEMBER, Arrays.asList(4))));
+		list.add(campaign("cat-yob", new Node("cat", "site.cat", Node.INTERSECTS, Arrays.asList("IAB2")),
+				new Node("yob", "user.yob", Node.LESS_THAN, 1970)));
+		list.add(campaign("samsung", new Node("make", "device.make", Node.EQUALS, "Samsung")));
+		list.add(campaign("app", new Node("app", "app", Node.EXISTS, null)));
+		Node required = new Node("domain", "site.domain", Node.MEMBER, Arrays.asList("junk1.com", "yahoo.com"));
+		required.notPresentOk = false;
+		list.add(campaign("required", required));
+		list.add(campaign("country-w", new Node("country", "device.geo.country", Node.EQUALS, "USA"),
+				new Node("w", "imp.0.banner.w", Node.EQUALS, 320)));
+		list.add(campaign("yob", new Node("yob", "user.yob", Node.DOMAIN, Arrays.asList(1960.0, 1962.0))));
+		list.add(campaign("make-cat", new Node("make", "device.make", Node.MEMBER, Arrays.asList("Apple", "Samsung")),
+				new Node("cat", "site.cat", Node.INTERSECTS, Arrays.asList("IAB9"))));
+		list.add(campaign("none"));
+		return list;
+	}
+
+	/**
+	 * Make a campaign with its predicates compiled.
+	 * @param id String. The ad id.
+	 * @param nodes Node[]. The constraints.
+	 * @return Campaign. The campaign.
+	 * @throws Exception on node errors.
+	 */
+	static Campaign campaign(String id, Node... nodes) throws Exception {
+		Campaign c = new Campaign(id, Arrays.asList(nodes));
+		c.compilePredicates();
+		return c;
+	}
+
+	/**
+	 * The campaigns that pass every one of their nodes.
+	 * @param campaigns List. The campaigns.
+	 * @param file String. The bid request file.
+	 * @return List. The matching campaigns.
+	 * @throws Exception on file or node errors.
+	 */
+	static List<Campaign> scan(List<Campaign> campaigns, String file) throws Exception {
+		List<Campaign> list = new ArrayList<Campaign>();
+		for (Campaign c : campaigns) {
+			boolean all = true;
+			for (Node node : c.attributes) {
+				all &= node.test(new BidRequest(file), null);
+			}
+			if (all)
+				list.add(c);
+		}
+		return list;
+	}
+
+	/**
+	 * The candidates that also pass their residual predicates.
+	 * @param index TargetingIndex. The index.
+	 * @param candidates List. The campaigns the index selected.
+	 * @param br BidRequest. The bid request.
+	 * @return List. The matching campaigns.
+	 */
+	static List<Campaign> residual(TargetingIndex index, List<Campaign> candidates, BidRequest br) {
+		List<Campaign> list = new ArrayList<Campaign>();
+		for (Campaign c : candidates) {
+			boolean all = true;
+			for (CompiledPredicate p : index.getResidual(c)) {
+				all &= p.evaluate(br);
+			}
+			if (all)
+				list.add(c);
+		}
+		return list;
+	}
+
+	/**
+	 * The posting lists and the bitsets must both select exactly the campaigns a full scan does.
+	 * @throws Exception on file or node errors.
+	 */
+	@Test
+	public void testEquivalence() throws Exception {
+		List<Campaign> campaigns = campaigns();
+		CampaignSnapshot snapshot = CampaignSnapshot.compile(campaigns);
+		TargetingIndex index = snapshot.index;
+		assertTrue(index.size() > 0);
+
+		boolean pruned = false;
+		for (String file : TestCompiledPredicate.REQUESTS) {
+			BidRequest br = new BidRequest(file);
+			br.setExchange("nexage");
+			List<Campaign> expected = scan(snapshot.campaigns, file);
+
+			List<Campaign> candidates = index.candidates(br, snapshot.campaigns);
+			assertEquals(file, candidates, index.candidates(index.eligible(br), snapshot.campaigns));
+			assertTrue(file, candidates.containsAll(expected));
+			assertEquals(file, expected, residual(index, candidates, br));
+			pruned |= candidates.size() < snapshot.campaigns.size();
+		}
+		assertTrue(pruned);
+	}
+
+	/**
+	 * With more campaigns than fit in one word, the bitsets select what the posting lists and a full scan do, and no
+	 * bit past the last campaign is ever set.
+	 * @throws Exception on file or node errors.
+	 */
+	@Test
+	public void testBitsetWords() throws Exception {
+		List<Campaign> campaigns = new ArrayList<Campaign>();
+		for (int i = 0; i < 150; i++) {
+			if (i % 3 == 0)
+				campaigns.add(campaign("type" + i, new Node("type", "device.devicetype", Node.MEMBER,
+						Arrays.asList(i % 7, 8))));
+			else if (i % 3 == 1)
+				campaigns.add(campaign("make" + i, new Node("make", "device.make", Node.EQUALS,
+						i % 2 == 0 ? "Samsung" : "Apple")));
+			else
+				campaigns.add(campaign("open" + i));
+		}
+		CampaignSnapshot snapshot = CampaignSnapshot.compile(campaigns);
+		TargetingIndex index = snapshot.index;
+
+		for (String file : TestCompiledPredicate.REQUESTS) {
+			BidRequest br = new BidRequest(file);
+			br.setExchange("nexage");
+			long[] bits = index.eligible(br);
+			assertEquals(file, 3, bits.length);
+			assertEquals(file, 0, bits[2] >>> (150 - 128));
+
+			List<Campaign> candidates = index.candidates(bits, snapshot.campaigns);
+			int set = 0;
+			for (long word : bits)
+				set += Long.bitCount(word);
+			assertEquals(file, set, candidates.size());
+			assertEquals(file, index.candidates(br, snapshot.campaigns), candidates);
+			assertEquals(file, scan(snapshot.campaigns, file), residual(index, candidates, br));
+		}
+	}
+
+	/**
+	 * Candidates come back in the order of the list passed in, so the preshuffled lists stay shuffled.
+	 * @throws Exception on file or node errors.
+	 */
+	@Test
+	public void testOrder() throws Exception {
+		CampaignSnapshot snapshot = CampaignSnapshot.compile(campaigns());
+		TargetingIndex index = snapshot.index;
+		List<Campaign> order = new ArrayList<Campaign>(snapshot.campaigns);
+		Collections.reverse(order);
+
+		BidRequest br = new BidRequest("./SampleBids/nexage.txt");
+		List<Campaign> candidates = index.candidates(br, order);
+		int last = -1;
+		for (Campaign c : candidates) {
+			int i = order.indexOf(c);
+			assertTrue(i > last);
+			last = i;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package test.java;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.jacamars.dsp.rtb.bidder.ZPublisher;
+
+/**
+ * Tests what a file publisher writes for each way of adding a message.
+ * @author Ben M. Faul
+ *
+ */
+public class TestZPublisher {
+
+	/**
+	 * Messages from add(), addImmutable(), addDeferred() and addString() are written in order. What add() was
+	 * given is written as it was when added, and addImmutable() writes the same form.
+	 * @throws Exception on file errors.
+	 */
+	@Test
+	public void testFileMessages() throws Exception {
+		File file = File.createTempFile("zpublisher", ".log");
+		file.delete();
+		file.deleteOnExit();
+		ZPublisher publisher = new ZPublisher("file://" + file.getAbsolutePath());
+
+		Map<String, Object> reused = new HashMap<String, Object>();
+		reused.put("name", "first");
+		publisher.add(reused);
+		reused.put("name", "changed");
+
+		Map<String, Object> kept = new HashMap<String, Object>();
+		kept.put("name", "first");
+		publisher.addImmutable(kept);
+		publisher.addDeferred(() -> "{\"deferred\":true}");
+		publisher.addString("{\"string\":true}");
+
+		List<String> lines = new ArrayList<String>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (lines.size() < 4 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			if (file.exists())
+				lines = Files.readAllLines(file.toPath());
+		}
+
+		assertEquals(4, lines.size());
+		assertTrue(lines.get(0).contains("\"name\":\"first\""));
+		assertTrue(lines.get(0).contains("\"serialClass\":\"java.util.HashMap\""));
+		assertEquals(lines.get(0), lines.get(1));
+		assertEquals("{\"deferred\":true}", lines.get(2));
+		assertEquals("{\"string\":true}", lines.get(3));
+	}
+}